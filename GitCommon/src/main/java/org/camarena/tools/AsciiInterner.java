@@ -0,0 +1,113 @@
+package org.camarena.tools;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps one shared string per distinct ASCII value (shas, ref names) read from raw bytes.  The lookup hashes and
+ * compares the bytes in place, so a value that was already seen costs no allocation at all.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class AsciiInterner {
+	private String[] mTable;
+	private int[]    mHashes;
+	private int      mSize = 0;
+
+	public
+	AsciiInterner() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize number of distinct values expected
+	 */
+	public
+	AsciiInterner(final int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		mTable = new String[capacity];
+		mHashes = new int[capacity];
+	}
+
+	/**
+	 * @param bytes where the value is
+	 * @param start first byte of the value
+	 * @param end   byte after the value
+	 * @return the shared string with the value
+	 */
+	@Nonnull
+	public
+	String intern(@Nonnull final ByteBuffer bytes, final int start, final int end) {
+		int hash = 1;
+		for (int inx = start; inx < end; inx++)
+			hash = 31 * hash + bytes.get(inx);
+		final int mask = mTable.length - 1;
+		int slot = mix(hash) & mask;
+		while (mTable[slot] != null) {
+			if (mHashes[slot] == hash && matches(mTable[slot], bytes, start, end))
+				return mTable[slot];
+			slot = (slot + 1) & mask;
+		}
+		final byte[] value = new byte[end - start];
+		for (int inx = start; inx < end; inx++)
+			value[inx - start] = bytes.get(inx);
+		final String interned = new String(value, StandardCharsets.ISO_8859_1);
+		mTable[slot] = interned;
+		mHashes[slot] = hash;
+		if (++mSize * 2 > mTable.length)
+			grow();
+		return interned;
+	}
+
+	@Nonnull
+	public
+	String intern(@Nonnull final String value) {
+		return intern(ByteBuffer.wrap(value.getBytes(StandardCharsets.ISO_8859_1)), 0, value.length());
+	}
+
+	public
+	int size() {
+		return mSize;
+	}
+
+	private static
+	boolean matches(@Nonnull final String value, @Nonnull final ByteBuffer bytes, final int start, final int end) {
+		if (value.length() != end - start)
+			return false;
+		for (int inx = start; inx < end; inx++) {
+			if (value.charAt(inx - start) != (char) (bytes.get(inx) & 0xff))
+				return false;
+		}
+		return true;
+	}
+
+	private static
+	int mix(final int hash) {
+		final int h = hash * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private
+	void grow() {
+		final String[] table = mTable;
+		final int[] hashes = mHashes;
+		mTable = new String[table.length * 2];
+		mHashes = new int[table.length * 2];
+		final int mask = mTable.length - 1;
+		for (int inx = 0; inx < table.length; inx++) {
+			if (table[inx] != null) {
+				int slot = mix(hashes[inx]) & mask;
+				while (mTable[slot] != null)
+					slot = (slot + 1) & mask;
+				mTable[slot] = table[inx];
+				mHashes[slot] = hashes[inx];
+			}
+		}
+	}
+}
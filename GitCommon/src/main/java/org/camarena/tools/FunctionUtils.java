@@ -14,11 +14,20 @@ class FunctionUtils {
 	FunctionUtils() {
 	}
 
+	/**
+	 * @deprecated see {@link #getNWord(int)}
+	 */
+	@Deprecated
 	public static
 	Function<String, String> getFirstWord() {
 		return getNWord(0);
 	}
 
+	/**
+	 * @deprecated splits the whole string to return a single word; use {@link RecordCursor#nextWord()} on the raw
+	 * output instead
+	 */
+	@Deprecated
 	public static
 	Function<String, String> getNWord(final int n) {
 		return s -> {
@@ -27,6 +36,10 @@ class FunctionUtils {
 		};
 	}
 
+	/**
+	 * @deprecated see {@link #getNWord(int)}
+	 */
+	@Deprecated
 	public static
 	Function<String, String> getSecondWord() {
 		return getNWord(1);
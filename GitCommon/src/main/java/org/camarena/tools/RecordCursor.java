@@ -0,0 +1,305 @@
+package org.camarena.tools;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Cursor over the records of a command output, working on the raw bytes.  The cursor moves record by record and,
+ * inside a record, field by field or word by word; nothing is decoded or copied unless asked for.
+ * <p>
+ * {@link #record()} and {@link #field()} return the same mutable view every time, valid until the cursor moves.
+ * The view maps each byte to one char, which is exact for ASCII (shas, ref names, numbers); use
+ * {@link #fieldAsString()} or an {@link AsciiInterner} to keep a value.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class RecordCursor {
+	@Nonnull
+	private final ByteBuffer mBytes;
+	private final byte       mSeparator;
+	private final int        mLimit;
+	private final View       mView        = new View();
+	private       int        mNext;
+	private       int        mRecordStart = 0;
+	private       int        mRecordEnd   = -1;
+	private       int        mFieldStart  = 0;
+	private       int        mFieldEnd    = -1;
+	private       int        mFieldNext   = 0;
+
+	/**
+	 * @param bytes     output to walk, from its position to its limit
+	 * @param separator byte that terminates each record
+	 */
+	public
+	RecordCursor(@Nonnull final ByteBuffer bytes, final byte separator) {
+		Objects.requireNonNull(bytes);
+		mBytes = bytes;
+		mSeparator = separator;
+		mNext = bytes.position();
+		mLimit = bytes.limit();
+	}
+
+	/**
+	 * Moves to the next record.  A separator at the very end of the output does not start an empty record.
+	 *
+	 * @return false when there are no more records
+	 */
+	public
+	boolean nextRecord() {
+		if (mNext >= mLimit)
+			return false;
+		final int end = indexOf(mSeparator, mNext, mLimit);
+		mRecordStart = mNext;
+		mRecordEnd = end;
+		mNext = end + 1;
+		mFieldStart = mRecordStart;
+		mFieldEnd = mRecordStart - 1;
+		mFieldNext = mRecordStart;
+		return true;
+	}
+
+	/**
+	 * Moves to the next field of the current record.
+	 *
+	 * @param delimiter byte between fields
+	 * @return false when the record has no more fields
+	 */
+	public
+	boolean nextField(final byte delimiter) {
+		if (mFieldNext > mRecordEnd)
+			return false;
+		final int end = indexOf(delimiter, mFieldNext, mRecordEnd);
+		mFieldStart = mFieldNext;
+		mFieldEnd = end;
+		mFieldNext = end + 1;
+		return true;
+	}
+
+	/**
+	 * Moves to the next run of non blank bytes of the current record, skipping the blanks (spaces, tabs...) before
+	 * it.
+	 *
+	 * @return false when the record has no more words
+	 */
+	public
+	boolean nextWord() {
+		int start = mFieldNext;
+		while (start < mRecordEnd && isBlank(mBytes.get(start)))
+			start++;
+		if (start >= mRecordEnd) {
+			mFieldNext = mRecordEnd + 1;
+			return false;
+		}
+		int end = start;
+		while (end < mRecordEnd && !isBlank(mBytes.get(end)))
+			end++;
+		mFieldStart = start;
+		mFieldEnd = end;
+		mFieldNext = end;
+		return true;
+	}
+
+	/**
+	 * Makes the rest of the current record, after the current field, the current field.
+	 */
+	public
+	void restOfRecord() {
+		mFieldStart = Math.min(mFieldNext, mRecordEnd);
+		mFieldEnd = mRecordEnd;
+		mFieldNext = mRecordEnd + 1;
+	}
+
+	@Nonnull
+	public
+	CharSequence record() {
+		return mView.of(mRecordStart, mRecordEnd);
+	}
+
+	@Nonnull
+	public
+	CharSequence field() {
+		return mView.of(mFieldStart, mFieldEnd);
+	}
+
+	/**
+	 * @return position in the buffer of the first byte of the current record
+	 */
+	public
+	int recordStart() {
+		return mRecordStart;
+	}
+
+	/**
+	 * @return position in the buffer of the byte after the current record
+	 */
+	public
+	int recordEnd() {
+		return Math.max(mRecordStart, mRecordEnd);
+	}
+
+	public
+	int recordLength() {
+		return mRecordEnd - mRecordStart;
+	}
+
+	public
+	int fieldLength() {
+		return mFieldEnd - mFieldStart;
+	}
+
+	public
+	boolean fieldEquals(@Nonnull final CharSequence value) {
+		final int length = fieldLength();
+		if (value.length() != length)
+			return false;
+		for (int inx = 0; inx < length; inx++) {
+			if ((mBytes.get(mFieldStart + inx) & 0xff) != value.charAt(inx))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the field decoded as UTF-8
+	 */
+	@Nonnull
+	public
+	String fieldAsString() {
+		return decode(mFieldStart, mFieldEnd);
+	}
+
+	/**
+	 * @return the record decoded as UTF-8
+	 */
+	@Nonnull
+	public
+	String recordAsString() {
+		return decode(mRecordStart, mRecordEnd);
+	}
+
+	/**
+	 * @return everything after the current record decoded as UTF-8, without moving the cursor
+	 */
+	@Nonnull
+	public
+	String remainingAsString() {
+		return decode(Math.min(mNext, mLimit), mLimit);
+	}
+
+	/**
+	 * @param interner where equal values are shared
+	 * @return the field as a shared string
+	 */
+	@Nonnull
+	public
+	String fieldInterned(@Nonnull final AsciiInterner interner) {
+		return interner.intern(mBytes, mFieldStart, mFieldEnd);
+	}
+
+	/**
+	 * @param interner where equal values are shared
+	 * @return the record as a shared string
+	 */
+	@Nonnull
+	public
+	String recordInterned(@Nonnull final AsciiInterner interner) {
+		return interner.intern(mBytes, mRecordStart, Math.max(mRecordStart, mRecordEnd));
+	}
+
+	/**
+	 * @return the field parsed as a decimal number, with an optional leading sign
+	 * @throws NumberFormatException if the field is not a number
+	 */
+	public
+	long fieldAsLong() {
+		int inx = mFieldStart;
+		final boolean negative = inx < mFieldEnd && mBytes.get(inx) == '-';
+		if (negative || (inx < mFieldEnd && mBytes.get(inx) == '+'))
+			inx++;
+		if (inx >= mFieldEnd)
+			throw new NumberFormatException("Empty number");
+		long value = 0;
+		for (; inx < mFieldEnd; inx++) {
+			final int digit = mBytes.get(inx) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("Not a number: \"" + fieldAsString() + '"');
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private
+	int indexOf(final byte value, final int from, final int to) {
+		for (int inx = from; inx < to; inx++) {
+			if (mBytes.get(inx) == value)
+				return inx;
+		}
+		return to;
+	}
+
+	@Nonnull
+	private
+	String decode(final int start, final int end) {
+		if (start >= end)
+			return "";
+		final ByteBuffer slice = mBytes.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	private static
+	boolean isBlank(final byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == 0x0b || b == '\f';
+	}
+
+	/**
+	 * Window over the bytes of the current record or field.
+	 */
+	private final
+	class View implements CharSequence {
+		private int mStart;
+		private int mEnd;
+
+		@Nonnull
+		private
+		View of(final int start, final int end) {
+			mStart = start;
+			mEnd = Math.max(start, end);
+			return this;
+		}
+
+		@Override
+		public
+		int length() {
+			return mEnd - mStart;
+		}
+
+		@Override
+		public
+		char charAt(final int index) {
+			if (index < 0 || index >= length())
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			return (char) (mBytes.get(mStart + index) & 0xff);
+		}
+
+		@Nonnull
+		@Override
+		public
+		CharSequence subSequence(final int start, final int end) {
+			return toString().substring(start, end);
+		}
+
+		@Nonnull
+		@Override
+		public
+		String toString() {
+			return decode(mStart, mEnd);
+		}
+	}
+}
@@ -21,6 +21,10 @@ class StreamUtils {
 	StreamUtils() {
 	}
 
+	/**
+	 * @deprecated builds a reader and a string per line; walk the raw output with {@link RecordCursor} instead
+	 */
+	@Deprecated
 	public static
 	Stream<String> linesInString(@Nonnull final String s) {
 		Objects.requireNonNull(s);
@@ -0,0 +1,99 @@
+package org.camarena.tools.gitobjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Least recently used cache of inflated delta bases, bounded by the total number of bytes it holds.  Long delta
+ * chains share most of their bases, so keeping the recent ones avoids inflating the same base again and again.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+class DeltaBaseCache {
+	static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private final long                  mMaxBytes;
+	private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(256, 0.75f, true);
+	private       long                  mBytes   = 0;
+
+	DeltaBaseCache(final long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	@Nullable
+	synchronized
+	Entry get(@Nonnull final PackFile pack, final long offset) {
+		return mEntries.get(new Key(pack, offset));
+	}
+
+	synchronized
+	void put(@Nonnull final PackFile pack, final long offset, final int type, @Nonnull final byte[] data) {
+		if (data.length > mMaxBytes / 4)
+			return;
+		final Entry previous = mEntries.put(new Key(pack, offset), new Entry(type, data));
+		if (previous != null)
+			mBytes -= previous.mData.length;
+		mBytes += data.length;
+		final Iterator<Map.Entry<Key, Entry>> eldest = mEntries.entrySet().iterator();
+		while (mBytes > mMaxBytes && eldest.hasNext()) {
+			mBytes -= eldest.next().getValue().mData.length;
+			eldest.remove();
+		}
+	}
+
+	synchronized
+	void clear() {
+		mEntries.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * Inflated object of a pack entry.
+	 */
+	@SuppressWarnings({"AssignmentToCollectionOrArrayFieldFromParameter"})
+	static final
+	class Entry {
+		final int    mType;
+		@Nonnull
+		final byte[] mData;
+
+		Entry(final int type, @Nonnull final byte[] data) {
+			mType = type;
+			mData = data;
+		}
+	}
+
+	private static final
+	class Key {
+		@Nonnull
+		private final PackFile mPack;
+		private final long     mOffset;
+
+		private
+		Key(@Nonnull final PackFile pack, final long offset) {
+			mPack = pack;
+			mOffset = offset;
+		}
+
+		@Override
+		public
+		boolean equals(final Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key key = (Key) o;
+			return mOffset == key.mOffset && mPack == key.mPack;
+		}
+
+		@Override
+		public
+		int hashCode() {
+			return Objects.hash(System.identityHashCode(mPack), mOffset);
+		}
+	}
+}
@@ -0,0 +1,706 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.camarena.tools.CLIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads objects straight from the files of a repository, without running git: loose objects are inflated and packs
+ * are memory mapped and looked up through their index.  Delta chains are resolved in process with the help of a
+ * bounded cache of delta bases.
+ * <p>
+ * Refs are read from disk on every request, so they are always current.  Packs are scanned when the database is
+ * opened and again whenever an object can't be found, which covers packs written by a gc or a fetch afterwards.
+ * <p>
+ * Revisions understood: full and abbreviated shas, ref names (with the same lookup order as git), and the suffixes
+ * <code>^{type}</code>, <code>^{}</code>, <code>^N</code>, <code>~N</code> and <code>:path</code>.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class FileObjectDatabase implements GitObjectReader, Closeable {
+	private static final Logger                          LOGGER         = LoggerFactory.getLogger(FileObjectDatabase.class);
+	private static final Pattern                         ABBREVIATED_ID = Pattern.compile("[0-9a-f]{4,39}");
+	private static final int                             MAX_REF_DEPTH  = 5;
+
+	@Nonnull
+	private final Path                   mGitDir;
+	@Nonnull
+	private final Path                   mCommonDir;
+	@Nonnull
+	private final ImmutableList<Path>    mObjectDirs;
+	@Nonnull
+	private final DeltaBaseCache         mDeltaBaseCache;
+	@Nonnull
+	private final Map<Path, PackFile>    mPacksByPath = new HashMap<>();
+	@Nonnull
+	private volatile ImmutableList<PackFile> mPacks   = ImmutableList.of();
+	@Nullable
+	private       PackedRefs             mPackedRefs  = null;
+
+	/**
+	 * @param pathToRepo working tree (or git directory of a bare repository)
+	 * @throws CLIException if the path is not a git repository or its packs can't be opened
+	 */
+	public
+	FileObjectDatabase(@Nonnull final Path pathToRepo) throws CLIException {
+		this(pathToRepo, DeltaBaseCache.DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param pathToRepo         working tree (or git directory of a bare repository)
+	 * @param deltaBaseCacheSize maximum number of bytes of inflated delta bases to keep
+	 * @throws CLIException if the path is not a git repository or its packs can't be opened
+	 */
+	public
+	FileObjectDatabase(@Nonnull final Path pathToRepo, final long deltaBaseCacheSize) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		try {
+			mGitDir = findGitDir(pathToRepo);
+			final Path commonDirFile = mGitDir.resolve("commondir");
+			mCommonDir = Files.isRegularFile(commonDirFile) ?
+			             mGitDir.resolve(readFirstLine(commonDirFile)).normalize() :
+			             mGitDir;
+			mObjectDirs = findObjectDirs(mCommonDir.resolve("objects"));
+		} catch (final IOException e) {
+			throw new CLIException("Can't open object database of \"" + pathToRepo + '"', e);
+		}
+		mDeltaBaseCache = new DeltaBaseCache(deltaBaseCacheSize);
+		scanPacks();
+	}
+
+	@Nonnull
+	public
+	Path getGitDir() {
+		return mGitDir;
+	}
+
+	@Nonnull
+	@Override
+	public
+	Optional<GitObject> readObject(@Nonnull final String revision) throws CLIException {
+		final Optional<String> id = resolve(revision);
+		return id.isPresent() ? readById(id.get()) : Optional.empty();
+	}
+
+	@Nonnull
+	@Override
+	public
+	Optional<String> resolve(@Nonnull final String revision) throws CLIException {
+		Objects.requireNonNull(revision);
+		final int colon = revision.indexOf(':');
+		if (colon == 0) {
+			LOGGER.debug("Index paths are not supported: \"{}\"", revision);
+			return Optional.empty();
+		}
+		final Optional<String> id = resolveWithSuffixes(colon < 0 ? revision : revision.substring(0, colon));
+		if (colon < 0 || !id.isPresent())
+			return id;
+		return resolvePath(id.get(), revision.substring(colon + 1));
+	}
+
+	@Override
+	public
+	void close() {
+		mDeltaBaseCache.clear();
+		synchronized (mPacksByPath) {
+			mPacksByPath.values().forEach(PackFile::close);
+			mPacksByPath.clear();
+			mPacks = ImmutableList.of();
+		}
+	}
+
+	/**
+	 * Reads an object by its full sha.
+	 */
+	@Nonnull
+	private
+	Optional<GitObject> readById(@Nonnull final String id) throws CLIException {
+		final byte[] raw = ObjectIds.fromHex(id);
+		Optional<GitObject> object = readPacked(id, raw, mPacks);
+		if (!object.isPresent())
+			object = readLoose(id);
+		if (!object.isPresent()) {
+			final ImmutableList<PackFile> added = scanPacks();
+			if (!added.isEmpty())
+				object = readPacked(id, raw, added);
+		}
+		return object;
+	}
+
+	@Nonnull
+	Path getObjectDir() {
+		return mObjectDirs.get(0);
+	}
+
+	@Nonnull
+	Path getCommonDir() {
+		return mCommonDir;
+	}
+
+	/**
+	 * Checks whether an object exists.
+	 *
+	 * @param id     full sha
+	 * @param rescan true to look for new packs before giving up
+	 */
+	boolean contains(@Nonnull final String id, final boolean rescan) throws CLIException {
+		final byte[] raw = ObjectIds.fromHex(id);
+		for (final PackFile pack : mPacks) {
+			if (pack.contains(raw))
+				return true;
+		}
+		for (final Path objectDir : mObjectDirs) {
+			if (Files.isRegularFile(looseFile(objectDir, id)))
+				return true;
+		}
+		if (rescan) {
+			for (final PackFile pack : scanPacks()) {
+				if (pack.contains(raw))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Nonnull
+	private
+	Optional<GitObject> readPacked(@Nonnull final String id,
+	                               @Nonnull final byte[] raw,
+	                               @Nonnull final List<PackFile> packs) throws CLIException {
+		for (final PackFile pack : packs) {
+			final long offset = pack.findOffset(raw);
+			if (offset >= 0) {
+				final DeltaBaseCache.Entry entry = readPackEntry(pack, offset);
+				return Optional.of(new GitObject(id, PackFile.objectType(entry.mType, pack), entry.mData));
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Reads an entry of a pack, walking its delta chain down to a base (or a cached intermediate object) and then
+	 * applying the deltas back up.  Every intermediate object is offered to the delta base cache.
+	 */
+	@Nonnull
+	private
+	DeltaBaseCache.Entry readPackEntry(@Nonnull final PackFile pack, final long offset) throws CLIException {
+		final Deque<PendingDelta> deltas = new ArrayDeque<>();
+		PackFile currentPack = pack;
+		long currentOffset = offset;
+		DeltaBaseCache.Entry base;
+		boolean baseInPack = true;
+		while (true) {
+			base = mDeltaBaseCache.get(currentPack, currentOffset);
+			if (base != null)
+				break;
+			final PackFile.EntryHeader header = currentPack.readHeader(currentOffset);
+			if (!header.isDelta()) {
+				base = new DeltaBaseCache.Entry(header.mType, currentPack.inflate(header.mDataOffset, header.mSize));
+				break;
+			}
+			deltas.push(new PendingDelta(currentPack, currentOffset, header));
+			if (header.mType == PackFile.OBJ_OFS_DELTA)
+				currentOffset = header.mBaseOffset;
+			else {
+				final long baseOffset = currentPack.findOffset(header.mBaseId);
+				if (baseOffset >= 0)
+					currentOffset = baseOffset;
+				else {
+					final String baseId = ObjectIds.toHex(header.mBaseId);
+					final GitObject object = readById(baseId).orElseThrow(
+							() -> new CLIException("Missing delta base " + baseId + " in \"" + pack + '"'));
+					base = new DeltaBaseCache.Entry(PackFile.typeCode(object.getType()), object.getData());
+					baseInPack = false;
+					break;
+				}
+			}
+		}
+		while (!deltas.isEmpty()) {
+			if (baseInPack)
+				mDeltaBaseCache.put(currentPack, currentOffset, base.mType, base.mData);
+			final PendingDelta delta = deltas.pop();
+			final byte[] instructions = delta.mPack.inflate(delta.mHeader.mDataOffset, delta.mHeader.mSize);
+			base = new DeltaBaseCache.Entry(base.mType, applyDelta(base.mData, instructions, delta.mPack));
+			currentPack = delta.mPack;
+			currentOffset = delta.mOffset;
+			baseInPack = true;
+		}
+		return base;
+	}
+
+	@Nonnull
+	private static
+	byte[] applyDelta(@Nonnull final byte[] base, @Nonnull final byte[] delta, @Nonnull final PackFile pack)
+			throws CLIException {
+		final int[] position = {0};
+		final long baseSize = readDeltaSize(delta, position);
+		final long resultSize = readDeltaSize(delta, position);
+		if (baseSize != base.length || resultSize > Integer.MAX_VALUE)
+			throw new CLIException("Corrupt delta in \"" + pack + '"');
+		final byte[] result = new byte[(int) resultSize];
+		int inx = position[0];
+		int out = 0;
+		try {
+			while (inx < delta.length) {
+				final int op = delta[inx++] & 0xff;
+				if ((op & 0x80) != 0) {
+					long copyOffset = 0;
+					int copySize = 0;
+					if ((op & 0x01) != 0)
+						copyOffset = delta[inx++] & 0xff;
+					if ((op & 0x02) != 0)
+						copyOffset |= (delta[inx++] & 0xff) << 8;
+					if ((op & 0x04) != 0)
+						copyOffset |= (delta[inx++] & 0xff) << 16;
+					if ((op & 0x08) != 0)
+						copyOffset |= (long) (delta[inx++] & 0xff) << 24;
+					if ((op & 0x10) != 0)
+						copySize = delta[inx++] & 0xff;
+					if ((op & 0x20) != 0)
+						copySize |= (delta[inx++] & 0xff) << 8;
+					if ((op & 0x40) != 0)
+						copySize |= (delta[inx++] & 0xff) << 16;
+					if (copySize == 0)
+						copySize = 0x10000;
+					if (copyOffset + copySize > base.length)
+						throw new CLIException("Corrupt delta in \"" + pack + '"');
+					System.arraycopy(base, (int) copyOffset, result, out, copySize);
+					out += copySize;
+				}
+				else if (op != 0) {
+					System.arraycopy(delta, inx, result, out, op);
+					inx += op;
+					out += op;
+				}
+				else
+					throw new CLIException("Corrupt delta in \"" + pack + '"');
+			}
+		} catch (final IndexOutOfBoundsException e) {
+			throw new CLIException("Corrupt delta in \"" + pack + '"', e);
+		}
+		if (out != result.length)
+			throw new CLIException("Corrupt delta in \"" + pack + '"');
+		return result;
+	}
+
+	private static
+	long readDeltaSize(@Nonnull final byte[] delta, @Nonnull final int[] position) {
+		long size = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = delta[position[0]++] & 0xff;
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return size;
+	}
+
+	@Nonnull
+	private
+	Optional<GitObject> readLoose(@Nonnull final String id) throws CLIException {
+		for (final Path objectDir : mObjectDirs) {
+			final Path file = looseFile(objectDir, id);
+			final byte[] content;
+			try (final InputStream in = new InflaterInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+				content = ByteStreams.toByteArray(in);
+			} catch (final NoSuchFileException e) {
+				continue;
+			} catch (final IOException e) {
+				throw new CLIException("Can't read loose object \"" + file + '"', e);
+			}
+			int headerEnd = 0;
+			while (headerEnd < content.length && content[headerEnd] != 0)
+				headerEnd++;
+			final String header = new String(content, 0, headerEnd, StandardCharsets.US_ASCII);
+			final int space = header.indexOf(' ');
+			if (space < 0 || headerEnd == content.length)
+				throw new CLIException("Corrupt loose object \"" + file + '"');
+			final byte[] data = new byte[content.length - headerEnd - 1];
+			System.arraycopy(content, headerEnd + 1, data, 0, data.length);
+			return Optional.of(new GitObject(id, GitObjectType.fromName(header.substring(0, space)), data));
+		}
+		return Optional.empty();
+	}
+
+	@Nonnull
+	private static
+	Path looseFile(@Nonnull final Path objectDir, @Nonnull final String id) {
+		return objectDir.resolve(id.substring(0, 2)).resolve(id.substring(2));
+	}
+
+	/**
+	 * Opens the packs that are not open yet.
+	 *
+	 * @return the packs just opened
+	 */
+	@Nonnull
+	private
+	ImmutableList<PackFile> scanPacks() throws CLIException {
+		synchronized (mPacksByPath) {
+			final ImmutableList.Builder<PackFile> added = ImmutableList.builder();
+			for (final Path objectDir : mObjectDirs) {
+				final Path packDir = objectDir.resolve("pack");
+				if (!Files.isDirectory(packDir))
+					continue;
+				try (final DirectoryStream<Path> indexes = Files.newDirectoryStream(packDir, "*.idx")) {
+					for (final Path index : indexes) {
+						final String name = index.getFileName().toString();
+						final Path packPath = packDir.resolve(name.substring(0, name.length() - 4) + ".pack");
+						if (mPacksByPath.containsKey(packPath) || !Files.isRegularFile(packPath))
+							continue;
+						LOGGER.debug("Opening pack \"{}\"", packPath);
+						final PackFile pack = new PackFile(packPath, index);
+						mPacksByPath.put(packPath, pack);
+						added.add(pack);
+					}
+				} catch (final IOException e) {
+					throw new CLIException("Can't open packs in \"" + packDir + '"', e);
+				}
+			}
+			final ImmutableList<PackFile> packs = added.build();
+			if (!packs.isEmpty()) {
+				// Bigger packs first, they are more likely to have the object
+				final List<PackFile> all = new ArrayList<>(mPacksByPath.values());
+				all.sort((a, b) -> Integer.compare(b.getObjectCount(), a.getObjectCount()));
+				mPacks = ImmutableList.copyOf(all);
+			}
+			return packs;
+		}
+	}
+
+	@Nonnull
+	private
+	Optional<String> resolveWithSuffixes(@Nonnull final String revision) throws CLIException {
+		int suffixStart = 0;
+		while (suffixStart < revision.length() && revision.charAt(suffixStart) != '^' &&
+		       revision.charAt(suffixStart) != '~')
+			suffixStart++;
+		Optional<String> id = resolveName(revision.substring(0, suffixStart));
+		int inx = suffixStart;
+		while (id.isPresent() && inx < revision.length()) {
+			final char operator = revision.charAt(inx++);
+			if (operator == '^' && inx < revision.length() && revision.charAt(inx) == '{') {
+				final int close = revision.indexOf('}', inx);
+				if (close < 0)
+					return Optional.empty();
+				final String type = revision.substring(inx + 1, close);
+				id = type.isEmpty() ? peel(id.get(), null) : peel(id.get(), GitObjectType.fromName(type));
+				inx = close + 1;
+				continue;
+			}
+			int numberEnd = inx;
+			while (numberEnd < revision.length() && Character.isDigit(revision.charAt(numberEnd)))
+				numberEnd++;
+			final int number = numberEnd == inx ? 1 : Integer.parseInt(revision.substring(inx, numberEnd));
+			inx = numberEnd;
+			if (operator == '^')
+				id = number == 0 ? peel(id.get(), GitObjectType.COMMIT) : parent(id.get(), number);
+			else {
+				for (int generation = 0; generation < number && id.isPresent(); generation++)
+					id = parent(id.get(), 1);
+			}
+		}
+		return id;
+	}
+
+	@Nonnull
+	private
+	Optional<String> resolveName(@Nonnull final String name) throws CLIException {
+		if (name.isEmpty())
+			return Optional.empty();
+		if (ObjectIds.isFullHex(name))
+			return contains(name, true) ? Optional.of(name) : Optional.empty();
+		if (isValidRefName(name)) {
+			for (final String candidate : ImmutableList.of(name,
+			                                               "refs/" + name,
+			                                               "refs/tags/" + name,
+			                                               "refs/heads/" + name,
+			                                               "refs/remotes/" + name,
+			                                               "refs/remotes/" + name + "/HEAD")) {
+				final Optional<String> id = readRef(candidate, 0);
+				if (id.isPresent())
+					return id;
+			}
+		}
+		if (ABBREVIATED_ID.matcher(name).matches())
+			return findByPrefix(name);
+		return Optional.empty();
+	}
+
+	static
+	boolean isValidRefName(@Nonnull final String name) {
+		return !name.contains("..") && !name.startsWith("/") && !name.endsWith("/") && name.indexOf('\\') < 0 &&
+		       name.chars().noneMatch(c -> c <= ' ' || c == 0x7f);
+	}
+
+	/**
+	 * Reads a ref by its full name, following symbolic refs.
+	 *
+	 * @param name full name, <code>HEAD</code> or <code>refs/...</code>
+	 * @return the sha it points to or empty if it does not exist
+	 */
+	@Nonnull
+	Optional<String> readRef(@Nonnull final String name) throws CLIException {
+		return readRef(name, 0);
+	}
+
+	/**
+	 * @param name full name of a ref
+	 * @return path of the loose file of the ref, which may not exist
+	 */
+	@Nonnull
+	Path refFile(@Nonnull final String name) {
+		// Per worktree refs (HEAD and friends) live in the git dir, the rest in the common dir
+		return (name.startsWith("refs/") ? mCommonDir : mGitDir).resolve(name);
+	}
+
+	@Nonnull
+	private
+	Optional<String> readRef(@Nonnull final String name, final int depth) throws CLIException {
+		if (depth > MAX_REF_DEPTH)
+			throw new CLIException("Too many levels of symbolic refs resolving \"" + name + '"');
+		final Path file = refFile(name);
+		if (Files.isRegularFile(file)) {
+			final String content;
+			try {
+				content = readFirstLine(file);
+			} catch (final IOException e) {
+				throw new CLIException("Can't read ref \"" + file + '"', e);
+			}
+			if (content.startsWith("ref: "))
+				return readRef(content.substring(5).trim(), depth + 1);
+			if (ObjectIds.isFullHex(content))
+				return Optional.of(content);
+			return Optional.empty();
+		}
+		return name.startsWith("refs/") ? packedRefs().find(name) : Optional.empty();
+	}
+
+	@Nonnull
+	private synchronized
+	PackedRefs packedRefs() throws CLIException {
+		final Path file = mCommonDir.resolve("packed-refs");
+		try {
+			final BasicFileAttributes attributes = Files.isRegularFile(file) ?
+			                                       Files.readAttributes(file, BasicFileAttributes.class) :
+			                                       null;
+			if (mPackedRefs == null || !mPackedRefs.isCurrent(attributes))
+				mPackedRefs = PackedRefs.read(file, attributes);
+			return mPackedRefs;
+		} catch (final IOException e) {
+			throw new CLIException("Can't read \"" + file + '"', e);
+		}
+	}
+
+	@Nonnull
+	private
+	Optional<String> findByPrefix(@Nonnull final String prefix) throws CLIException {
+		final List<String> matches = new ArrayList<>(2);
+		for (final PackFile pack : mPacks) {
+			for (final String match : pack.findByPrefix(prefix, 2)) {
+				if (!matches.contains(match))
+					matches.add(match);
+			}
+		}
+		for (final Path objectDir : mObjectDirs) {
+			final Path dir = objectDir.resolve(prefix.substring(0, 2));
+			if (!Files.isDirectory(dir))
+				continue;
+			try (final DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix.substring(2) + '*')) {
+				for (final Path file : files) {
+					final String match = prefix.substring(0, 2) + file.getFileName();
+					if (!matches.contains(match))
+						matches.add(match);
+				}
+			} catch (final IOException e) {
+				throw new CLIException("Can't list \"" + dir + '"', e);
+			}
+		}
+		if (matches.size() > 1)
+			LOGGER.debug("\"{}\" is ambiguous", prefix);
+		return matches.size() == 1 ? Optional.of(matches.get(0)) : Optional.empty();
+	}
+
+	/**
+	 * Peels tags (and commits, when a tree is wanted) until an object of the requested type is found.
+	 *
+	 * @param type type wanted or null to peel only tags
+	 */
+	@Nonnull
+	private
+	Optional<String> peel(@Nonnull final String id, @Nullable final GitObjectType type) throws CLIException {
+		String current = id;
+		while (true) {
+			final Optional<GitObject> object = readById(current);
+			if (!object.isPresent())
+				return Optional.empty();
+			final GitObjectType objectType = object.get().getType();
+			if (objectType == type || (type == null && objectType != GitObjectType.TAG))
+				return Optional.of(current);
+			if (objectType == GitObjectType.TAG)
+				current = object.get().getDataAsString().substring("object ".length(),
+				                                                   "object ".length() + ObjectIds.HEX_LENGTH);
+			else if (objectType == GitObjectType.COMMIT && type == GitObjectType.TREE)
+				current = GitCommitObject.parse(current, object.get().getData()).getTree();
+			else
+				return Optional.empty();
+		}
+	}
+
+	@Nonnull
+	private
+	Optional<String> parent(@Nonnull final String id, final int number) throws CLIException {
+		final Optional<String> commit = peel(id, GitObjectType.COMMIT);
+		if (!commit.isPresent())
+			return Optional.empty();
+		final ImmutableList<String> parents = readCommit(commit.get()).map(GitCommitObject::getParents)
+		                                                              .orElse(ImmutableList.of());
+		return number <= parents.size() ? Optional.of(parents.get(number - 1)) : Optional.empty();
+	}
+
+	@Nonnull
+	private
+	Optional<String> resolvePath(@Nonnull final String id, @Nonnull final String path) throws CLIException {
+		Optional<String> current = peel(id, GitObjectType.TREE);
+		for (final String component : path.split("/")) {
+			if (!current.isPresent())
+				break;
+			if (component.isEmpty())
+				continue;
+			final Optional<ImmutableList<GitTreeEntry>> entries = readTree(current.get());
+			current = entries.flatMap(e -> e.stream().filter(entry -> entry.getName().equals(component)).findFirst())
+			                 .map(GitTreeEntry::getId);
+		}
+		return current;
+	}
+
+	@Nonnull
+	private static
+	Path findGitDir(@Nonnull final Path pathToRepo) throws IOException {
+		final Path dotGit = pathToRepo.resolve(".git");
+		if (Files.isDirectory(dotGit))
+			return dotGit;
+		if (Files.isRegularFile(dotGit)) {
+			final String content = readFirstLine(dotGit);
+			if (content.startsWith("gitdir: "))
+				return pathToRepo.resolve(content.substring("gitdir: ".length()).trim()).normalize();
+		}
+		if (Files.isDirectory(pathToRepo.resolve("objects")) && Files.isRegularFile(pathToRepo.resolve("HEAD")))
+			return pathToRepo;
+		throw new IOException("\"" + pathToRepo + "\" is not a git repository");
+	}
+
+	@Nonnull
+	private static
+	ImmutableList<Path> findObjectDirs(@Nonnull final Path objectDir) throws IOException {
+		final ImmutableList.Builder<Path> dirs = ImmutableList.<Path>builder().add(objectDir);
+		final Path alternates = objectDir.resolve("info").resolve("alternates");
+		if (Files.isRegularFile(alternates)) {
+			for (final String line : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+				if (!line.isEmpty() && !line.startsWith("#"))
+					dirs.add(objectDir.resolve(line.trim()).normalize());
+			}
+		}
+		return dirs.build();
+	}
+
+	@Nonnull
+	static
+	String readFirstLine(@Nonnull final Path file) throws IOException {
+		final String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		final int newLine = content.indexOf('\n');
+		return (newLine < 0 ? content : content.substring(0, newLine)).trim();
+	}
+
+	private static final
+	class PendingDelta {
+		@Nonnull
+		private final PackFile             mPack;
+		private final long                 mOffset;
+		@Nonnull
+		private final PackFile.EntryHeader mHeader;
+
+		private
+		PendingDelta(@Nonnull final PackFile pack, final long offset, @Nonnull final PackFile.EntryHeader header) {
+			mPack = pack;
+			mOffset = offset;
+			mHeader = header;
+		}
+	}
+
+	/**
+	 * Contents of <code>packed-refs</code>, reloaded when the file changes.
+	 */
+	private static final
+	class PackedRefs {
+		@Nonnull
+		private final ImmutableMap<String, String> mRefs;
+		@Nullable
+		private final Object                       mFileKey;
+
+		private
+		PackedRefs(@Nonnull final ImmutableMap<String, String> refs, @Nullable final Object fileKey) {
+			mRefs = refs;
+			mFileKey = fileKey;
+		}
+
+		@Nonnull
+		private static
+		PackedRefs read(@Nonnull final Path file, @Nullable final BasicFileAttributes attributes) throws IOException {
+			if (attributes == null)
+				return new PackedRefs(ImmutableMap.of(), null);
+			final Map<String, String> refs = new HashMap<>();
+			for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				if (line.length() > ObjectIds.HEX_LENGTH && line.charAt(ObjectIds.HEX_LENGTH) == ' ' &&
+				    !line.startsWith("#") && !line.startsWith("^"))
+					refs.put(line.substring(ObjectIds.HEX_LENGTH + 1), line.substring(0, ObjectIds.HEX_LENGTH));
+			}
+			return new PackedRefs(ImmutableMap.copyOf(refs), fileKey(attributes));
+		}
+
+		@Nonnull
+		private static
+		Object fileKey(@Nonnull final BasicFileAttributes attributes) {
+			return ImmutableList.of(attributes.lastModifiedTime(), attributes.size(), String.valueOf(attributes.fileKey()));
+		}
+
+		private
+		boolean isCurrent(@Nullable final BasicFileAttributes attributes) {
+			return attributes == null ? mFileKey == null : fileKey(attributes).equals(mFileKey);
+		}
+
+		@Nonnull
+		private
+		Optional<String> find(@Nonnull final String name) {
+			return Optional.ofNullable(mRefs.get(name));
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.collect.ImmutableList;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.RecordCursor;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Parsed git commit object.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCommitObject {
+	@Nonnull
+	private final String                mId;
+	@Nonnull
+	private final String                mTree;
+	@Nonnull
+	private final ImmutableList<String> mParents;
+	@Nonnull
+	private final GitPersonIdent        mAuthor;
+	@Nonnull
+	private final GitPersonIdent        mCommitter;
+	@Nonnull
+	private final String                mMessage;
+
+	public
+	GitCommitObject(@Nonnull final String id,
+	                @Nonnull final String tree,
+	                @Nonnull final ImmutableList<String> parents,
+	                @Nonnull final GitPersonIdent author,
+	                @Nonnull final GitPersonIdent committer,
+	                @Nonnull final String message) {
+		Objects.requireNonNull(id);
+		Objects.requireNonNull(tree);
+		Objects.requireNonNull(parents);
+		Objects.requireNonNull(author);
+		Objects.requireNonNull(committer);
+		Objects.requireNonNull(message);
+		mId = id;
+		mTree = tree;
+		//noinspection AssignmentToCollectionOrArrayFieldFromParameter
+		mParents = parents;
+		mAuthor = author;
+		mCommitter = committer;
+		mMessage = message;
+	}
+
+	/**
+	 * Parses the content of a commit object.  Headers other than tree, parent, author and committer (encoding,
+	 * gpgsig, mergetag...) are skipped.
+	 *
+	 * @param id   id of the commit
+	 * @param data content of the commit object
+	 * @return the parsed commit
+	 * @throws CLIException if the content is malformed
+	 */
+	@Nonnull
+	public static
+	GitCommitObject parse(@Nonnull final String id, @Nonnull final byte[] data) throws CLIException {
+		Objects.requireNonNull(id);
+		Objects.requireNonNull(data);
+		final RecordCursor cursor = new RecordCursor(ByteBuffer.wrap(data), (byte) '\n');
+		String tree = null;
+		GitPersonIdent author = null;
+		GitPersonIdent committer = null;
+		final ImmutableList.Builder<String> parents = ImmutableList.builder();
+		// Headers end at the first empty line, the message is the rest
+		while (cursor.nextRecord() && cursor.recordLength() > 0) {
+			if (!cursor.nextField((byte) ' '))
+				continue;
+			if (cursor.fieldEquals("tree")) {
+				cursor.restOfRecord();
+				tree = cursor.fieldAsString();
+			}
+			else if (cursor.fieldEquals("parent")) {
+				cursor.restOfRecord();
+				parents.add(cursor.fieldAsString());
+			}
+			else if (cursor.fieldEquals("author")) {
+				cursor.restOfRecord();
+				author = GitPersonIdent.parse(cursor.fieldAsString());
+			}
+			else if (cursor.fieldEquals("committer")) {
+				cursor.restOfRecord();
+				committer = GitPersonIdent.parse(cursor.fieldAsString());
+			}
+		}
+		final String message = cursor.remainingAsString();
+		if (tree == null || author == null || committer == null)
+			throw new CLIException("Can't parse commit \"" + id + "\"\n" + new String(data, StandardCharsets.UTF_8));
+		return new GitCommitObject(id, tree, parents.build(), author, committer, message);
+	}
+
+	/**
+	 * Builds the content of a commit object.
+	 *
+	 * @param tree      id of the tree
+	 * @param parents   ids of the parents, in order
+	 * @param author    author of the commit
+	 * @param committer committer of the commit
+	 * @param message   message of the commit
+	 * @return content of the commit object
+	 */
+	@Nonnull
+	public static
+	byte[] format(@Nonnull final String tree,
+	              @Nonnull final List<String> parents,
+	              @Nonnull final GitPersonIdent author,
+	              @Nonnull final GitPersonIdent committer,
+	              @Nonnull final String message) {
+		Objects.requireNonNull(tree);
+		Objects.requireNonNull(parents);
+		Objects.requireNonNull(author);
+		Objects.requireNonNull(committer);
+		Objects.requireNonNull(message);
+		final StringBuilder content = new StringBuilder(256 + message.length());
+		content.append("tree ").append(tree).append('\n');
+		parents.forEach(parent -> content.append("parent ").append(parent).append('\n'));
+		content.append("author ").append(author.toExternalString()).append('\n');
+		content.append("committer ").append(committer.toExternalString()).append("\n\n");
+		content.append(message);
+		return content.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Nonnull
+	public
+	GitPersonIdent getAuthor() {
+		return mAuthor;
+	}
+
+	@Nonnull
+	public
+	GitPersonIdent getCommitter() {
+		return mCommitter;
+	}
+
+	@Nonnull
+	public
+	String getId() {
+		return mId;
+	}
+
+	@Nonnull
+	public
+	String getMessage() {
+		return mMessage;
+	}
+
+	@Nonnull
+	public
+	ImmutableList<String> getParents() {
+		//noinspection ReturnOfCollectionOrArrayField
+		return mParents;
+	}
+
+	@Nonnull
+	public
+	String getTree() {
+		return mTree;
+	}
+}
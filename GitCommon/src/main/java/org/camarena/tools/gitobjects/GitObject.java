@@ -0,0 +1,55 @@
+package org.camarena.tools.gitobjects;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Raw object read from a git object database.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+@SuppressWarnings({"AssignmentToCollectionOrArrayFieldFromParameter", "ReturnOfCollectionOrArrayField"})
+public
+class GitObject {
+	@Nonnull
+	private final String        mId;
+	@Nonnull
+	private final GitObjectType mType;
+	@Nonnull
+	private final byte[]        mData;
+
+	public
+	GitObject(@Nonnull final String id, @Nonnull final GitObjectType type, @Nonnull final byte[] data) {
+		Objects.requireNonNull(id);
+		Objects.requireNonNull(type);
+		Objects.requireNonNull(data);
+		mId = id;
+		mType = type;
+		mData = data;
+	}
+
+	@Nonnull
+	public
+	byte[] getData() {
+		return mData;
+	}
+
+	@Nonnull
+	public
+	String getDataAsString() {
+		return new String(mData, StandardCharsets.UTF_8);
+	}
+
+	@Nonnull
+	public
+	String getId() {
+		return mId;
+	}
+
+	@Nonnull
+	public
+	GitObjectType getType() {
+		return mType;
+	}
+}
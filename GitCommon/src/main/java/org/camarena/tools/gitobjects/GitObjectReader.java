@@ -0,0 +1,85 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.collect.ImmutableList;
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Read only access to the objects of a git repository.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+interface GitObjectReader {
+	/**
+	 * Reads an object.
+	 *
+	 * @param revision sha or any other revision expression the implementation understands
+	 * @return the object or empty if it does not exist
+	 * @throws CLIException if the object can't be read
+	 */
+	@Nonnull
+	Optional<GitObject> readObject(@Nonnull final String revision) throws CLIException;
+
+	/**
+	 * Resolves a revision to the full sha of the object without reading its content.
+	 *
+	 * @param revision sha or any other revision expression the implementation understands
+	 * @return the full sha or empty if it does not exist
+	 * @throws CLIException if the revision can't be resolved
+	 */
+	@Nonnull
+	Optional<String> resolve(@Nonnull final String revision) throws CLIException;
+
+	/**
+	 * Reads several objects.  Implementations may pipeline the requests.
+	 *
+	 * @param revisions revisions to read
+	 * @return the objects in the same order as requested
+	 * @throws CLIException if the objects can't be read
+	 */
+	@Nonnull
+	default
+	ImmutableList<Optional<GitObject>> readObjects(@Nonnull final Collection<String> revisions) throws CLIException {
+		final ImmutableList.Builder<Optional<GitObject>> objects = ImmutableList.builder();
+		for (final String revision : revisions)
+			objects.add(readObject(revision));
+		return objects.build();
+	}
+
+	@Nonnull
+	default
+	Optional<GitCommitObject> readCommit(@Nonnull final String revision) throws CLIException {
+		final Optional<GitObject> object = readObject(revision);
+		if (!object.isPresent())
+			return Optional.empty();
+		if (object.get().getType() != GitObjectType.COMMIT)
+			throw new CLIException("\"" + revision + "\" is not a commit");
+		return Optional.of(GitCommitObject.parse(object.get().getId(), object.get().getData()));
+	}
+
+	@Nonnull
+	default
+	Optional<ImmutableList<GitTreeEntry>> readTree(@Nonnull final String revision) throws CLIException {
+		final Optional<GitObject> object = readObject(revision);
+		if (!object.isPresent())
+			return Optional.empty();
+		if (object.get().getType() != GitObjectType.TREE)
+			throw new CLIException("\"" + revision + "\" is not a tree");
+		return Optional.of(GitTreeEntry.parse(object.get().getData()));
+	}
+
+	@Nonnull
+	default
+	Optional<byte[]> readBlob(@Nonnull final String revision) throws CLIException {
+		final Optional<GitObject> object = readObject(revision);
+		if (!object.isPresent())
+			return Optional.empty();
+		if (object.get().getType() != GitObjectType.BLOB)
+			throw new CLIException("\"" + revision + "\" is not a blob");
+		return Optional.of(object.get().getData());
+	}
+}
@@ -0,0 +1,43 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+/**
+ * Kinds of objects stored in a git object database.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+enum GitObjectType {
+	COMMIT("commit"),
+	TREE("tree"),
+	BLOB("blob"),
+	TAG("tag");
+
+	@Nonnull
+	private final String mName;
+
+	GitObjectType(@Nonnull final String name) {
+		mName = name;
+	}
+
+	@Nonnull
+	public static
+	GitObjectType fromName(@Nonnull final String name) throws CLIException {
+		Objects.requireNonNull(name);
+		for (final GitObjectType type : values()) {
+			if (type.mName.equals(name))
+				return type;
+		}
+		throw new CLIException("Unknown git object type \"" + name + '"');
+	}
+
+	@Nonnull
+	public
+	String getName() {
+		return mName;
+	}
+}
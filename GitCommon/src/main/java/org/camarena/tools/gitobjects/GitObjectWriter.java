@@ -0,0 +1,100 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Write access to the objects of a git repository.  Objects are addressed by content, so inserting an object that
+ * already exists is a no op that returns the same id.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+interface GitObjectWriter extends AutoCloseable {
+	/**
+	 * Inserts an object.  Depending on the implementation the object may not be visible to readers until
+	 * {@link #flush()} is called.
+	 *
+	 * @param type type of the object
+	 * @param data content of the object
+	 * @return full sha of the object
+	 * @throws CLIException if the object can't be written
+	 */
+	@Nonnull
+	String insert(@Nonnull final GitObjectType type, @Nonnull final byte[] data) throws CLIException;
+
+	/**
+	 * @param id full sha
+	 * @return true if the object exists in the repository or was inserted through this writer
+	 * @throws CLIException if the repository can't be read
+	 */
+	boolean contains(@Nonnull final String id) throws CLIException;
+
+	/**
+	 * Makes every inserted object visible to readers of the repository.
+	 *
+	 * @throws CLIException if the objects can't be written
+	 */
+	void flush() throws CLIException;
+
+	/**
+	 * Flushes and releases the writer.
+	 *
+	 * @throws CLIException if the objects can't be written
+	 */
+	@Override
+	void close() throws CLIException;
+
+	@Nonnull
+	default
+	String insertTree(@Nonnull final Collection<GitTreeEntry> entries) throws CLIException {
+		return insert(GitObjectType.TREE, GitTreeEntry.format(entries));
+	}
+
+	@Nonnull
+	default
+	String insertCommit(@Nonnull final String tree,
+	                    @Nonnull final List<String> parents,
+	                    @Nonnull final GitPersonIdent author,
+	                    @Nonnull final GitPersonIdent committer,
+	                    @Nonnull final String message) throws CLIException {
+		return insert(GitObjectType.COMMIT, GitCommitObject.format(tree, parents, author, committer, message));
+	}
+
+	/**
+	 * Copies a tree, and every subtree and blob it references, from another repository.  Objects that already exist
+	 * here are not read again, nor is anything below an existing tree.  Children are written before their tree, so an
+	 * interrupted copy never leaves a tree with missing children.  Submodule entries are not followed.
+	 *
+	 * @param source repository to copy from
+	 * @param treeId full sha of the tree
+	 * @return number of objects copied
+	 * @throws CLIException if an object can't be read or written
+	 */
+	default
+	int copyTree(@Nonnull final GitObjectReader source, @Nonnull final String treeId) throws CLIException {
+		Objects.requireNonNull(source);
+		Objects.requireNonNull(treeId);
+		if (contains(treeId))
+			return 0;
+		final GitObject tree = source.readObject(treeId).orElseThrow(
+				() -> new CLIException("Can't find tree " + treeId + " in source repository"));
+		int copied = 0;
+		for (final GitTreeEntry entry : GitTreeEntry.parse(tree.getData())) {
+			if (entry.isTree())
+				copied += copyTree(source, entry.getId());
+			else if (!entry.isGitLink() && !contains(entry.getId())) {
+				final GitObject blob = source.readObject(entry.getId()).orElseThrow(
+						() -> new CLIException("Can't find blob " + entry.getId() + " in source repository"));
+				insert(blob.getType(), blob.getData());
+				copied++;
+			}
+		}
+		insert(GitObjectType.TREE, tree.getData());
+		return copied + 1;
+	}
+}
@@ -0,0 +1,151 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Author or committer line of a commit: <code>Name &lt;email&gt; epochSeconds +hhmm</code>.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitPersonIdent {
+	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss Z",
+	                                                                                    Locale.ROOT);
+	@Nonnull
+	private final String mName;
+	@Nonnull
+	private final String mEmail;
+	private final long   mWhen;
+	private final int    mTimeZoneOffset;
+
+	public
+	GitPersonIdent(@Nonnull final String name,
+	               @Nonnull final String email,
+	               final long when,
+	               final int timeZoneOffset) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(email);
+		mName = name;
+		mEmail = email;
+		mWhen = when;
+		mTimeZoneOffset = timeZoneOffset;
+	}
+
+	/**
+	 * Parses the value of an <code>author</code> or <code>committer</code> header.
+	 *
+	 * @param value header value without the header name
+	 * @return the parsed identity
+	 * @throws CLIException if the value is malformed
+	 */
+	@Nonnull
+	public static
+	GitPersonIdent parse(@Nonnull final String value) throws CLIException {
+		Objects.requireNonNull(value);
+		final int emailStart = value.lastIndexOf('<');
+		final int emailEnd = value.lastIndexOf('>');
+		if (emailStart < 0 || emailEnd < emailStart)
+			throw new CLIException("Can't parse identity \"" + value + '"');
+		final String name = value.substring(0, emailStart).trim();
+		final String email = value.substring(emailStart + 1, emailEnd);
+		final String[] dateParts = value.substring(emailEnd + 1).trim().split(" ");
+		if (dateParts.length != 2 || dateParts[1].length() != 5)
+			throw new CLIException("Can't parse identity \"" + value + '"');
+		try {
+			final long when = Long.parseLong(dateParts[0]);
+			final String tz = dateParts[1];
+			final int sign = tz.charAt(0) == '-' ? -1 : 1;
+			final int offset = sign * (Integer.parseInt(tz.substring(1, 3)) * 60 + Integer.parseInt(tz.substring(3)));
+			return new GitPersonIdent(name, email, when, offset);
+		} catch (final NumberFormatException e) {
+			throw new CLIException("Can't parse identity \"" + value + '"', e);
+		}
+	}
+
+	/**
+	 * Date formatted as RFC 2822, which is accepted by <code>git commit --date</code>.
+	 *
+	 * @return formatted date
+	 */
+	@Nonnull
+	public
+	String getDateAsString() {
+		return formatDate(mWhen, mTimeZoneOffset);
+	}
+
+	/**
+	 * Formats a date as RFC 2822, which is accepted by <code>git commit --date</code>.
+	 *
+	 * @param when           seconds since the epoch
+	 * @param timeZoneOffset time zone offset in minutes
+	 * @return formatted date
+	 */
+	@Nonnull
+	public static
+	String formatDate(final long when, final int timeZoneOffset) {
+		return OffsetDateTime.ofInstant(Instant.ofEpochSecond(when), ZoneOffset.ofTotalSeconds(timeZoneOffset * 60))
+		                     .format(DATE_FORMATTER);
+	}
+
+	@Nonnull
+	public
+	String getEmail() {
+		return mEmail;
+	}
+
+	@Nonnull
+	public
+	String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return time zone offset in minutes
+	 */
+	public
+	int getTimeZoneOffset() {
+		return mTimeZoneOffset;
+	}
+
+	/**
+	 * @return seconds since the epoch
+	 */
+	public
+	long getWhen() {
+		return mWhen;
+	}
+
+	/**
+	 * @return the identity as it is stored in a commit: <code>Name &lt;email&gt; epochSeconds +hhmm</code>
+	 */
+	@Nonnull
+	public
+	String toExternalString() {
+		final int offset = Math.abs(mTimeZoneOffset);
+		return String.format(Locale.ROOT,
+		                     "%s <%s> %d %c%02d%02d",
+		                     mName,
+		                     mEmail,
+		                     mWhen,
+		                     mTimeZoneOffset < 0 ? '-' : '+',
+		                     offset / 60,
+		                     offset % 60);
+	}
+
+	/**
+	 * @return the identity in the <code>Name &lt;email&gt;</code> form used by <code>git commit --author</code>
+	 */
+	@Override
+	public
+	String toString() {
+		return mName + " <" + mEmail + '>';
+	}
+}
@@ -0,0 +1,131 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.UnsignedBytes;
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One entry of a git tree object.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitTreeEntry {
+	public static final int TREE_MODE    = 040000;
+	public static final int GITLINK_MODE = 0160000;
+
+	private final int    mMode;
+	@Nonnull
+	private final String mName;
+	@Nonnull
+	private final String mId;
+
+	public
+	GitTreeEntry(final int mode, @Nonnull final String name, @Nonnull final String id) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(id);
+		mMode = mode;
+		mName = name;
+		mId = id;
+	}
+
+	/**
+	 * Parses the binary content of a tree object.
+	 *
+	 * @param data content of the tree object
+	 * @return entries in the order they are stored
+	 * @throws CLIException if the content is malformed
+	 */
+	@Nonnull
+	public static
+	ImmutableList<GitTreeEntry> parse(@Nonnull final byte[] data) throws CLIException {
+		Objects.requireNonNull(data);
+		final ImmutableList.Builder<GitTreeEntry> entries = ImmutableList.builder();
+		int inx = 0;
+		while (inx < data.length) {
+			int mode = 0;
+			while (inx < data.length && data[inx] != ' ') {
+				mode = (mode << 3) + (data[inx] - '0');
+				inx++;
+			}
+			final int nameStart = inx + 1;
+			int nameEnd = nameStart;
+			while (nameEnd < data.length && data[nameEnd] != 0)
+				nameEnd++;
+			if (nameEnd + 21 > data.length)
+				throw new CLIException("Truncated tree object");
+			final String name = new String(data, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+			final String id = BaseEncoding.base16().lowerCase().encode(data, nameEnd + 1, 20);
+			entries.add(new GitTreeEntry(mode, name, id));
+			inx = nameEnd + 21;
+		}
+		return entries.build();
+	}
+
+	/**
+	 * Builds the binary content of a tree object.  Entries are sorted the way git sorts them, comparing the names of
+	 * subtrees as if they ended with a slash.
+	 *
+	 * @param entries entries of the tree, in any order
+	 * @return content of the tree object
+	 */
+	@Nonnull
+	public static
+	byte[] format(@Nonnull final Collection<GitTreeEntry> entries) {
+		Objects.requireNonNull(entries);
+		final List<GitTreeEntry> sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparing(GitTreeEntry::sortKey, UnsignedBytes.lexicographicalComparator()));
+		final ByteArrayOutputStream data = new ByteArrayOutputStream(sorted.size() * 48);
+		for (final GitTreeEntry entry : sorted) {
+			final byte[] header = (Integer.toOctalString(entry.mMode) + ' ' + entry.mName).getBytes(StandardCharsets.UTF_8);
+			data.write(header, 0, header.length);
+			data.write(0);
+			final byte[] id = ObjectIds.fromHex(entry.mId);
+			data.write(id, 0, id.length);
+		}
+		return data.toByteArray();
+	}
+
+	@Nonnull
+	private
+	byte[] sortKey() {
+		return (isTree() ? mName + '/' : mName).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Nonnull
+	public
+	String getId() {
+		return mId;
+	}
+
+	public
+	int getMode() {
+		return mMode;
+	}
+
+	@Nonnull
+	public
+	String getName() {
+		return mName;
+	}
+
+	public
+	boolean isTree() {
+		return mMode == TREE_MODE;
+	}
+
+	public
+	boolean isGitLink() {
+		return mMode == GITLINK_MODE;
+	}
+}
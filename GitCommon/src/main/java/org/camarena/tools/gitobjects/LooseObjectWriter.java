@@ -0,0 +1,110 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes every object as a loose object, the same way <code>git hash-object -w</code> does: deflated into a
+ * temporary file that is then moved to <code>objects/xx/yyyy</code>.  Objects are visible as soon as
+ * {@link #insert(GitObjectType, byte[])} returns.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class LooseObjectWriter implements GitObjectWriter {
+	@Nonnull
+	private final FileObjectDatabase mDatabase;
+	private final int                mCompressionLevel;
+
+	/**
+	 * @param database         repository to write to
+	 * @param compressionLevel zlib level, {@link Deflater#DEFAULT_COMPRESSION} to use the default
+	 */
+	public
+	LooseObjectWriter(@Nonnull final FileObjectDatabase database, final int compressionLevel) {
+		Objects.requireNonNull(database);
+		mDatabase = database;
+		mCompressionLevel = compressionLevel;
+	}
+
+	public
+	LooseObjectWriter(@Nonnull final FileObjectDatabase database) {
+		this(database, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	@Nonnull
+	@Override
+	public
+	String insert(@Nonnull final GitObjectType type, @Nonnull final byte[] data) throws CLIException {
+		final String id = ObjectIds.toHex(ObjectIds.hash(type, data));
+		if (mDatabase.contains(id, false))
+			return id;
+		final Path dir = mDatabase.getObjectDir().resolve(id.substring(0, 2));
+		final Path file = dir.resolve(id.substring(2));
+		Path temp = null;
+		try {
+			Files.createDirectories(dir);
+			temp = Files.createTempFile(dir, "tmp_obj_", "");
+			final Deflater deflater = new Deflater(mCompressionLevel);
+			try (final OutputStream out = new DeflaterOutputStream(Files.newOutputStream(temp), deflater, 8192)) {
+				out.write(ObjectIds.header(type, data.length));
+				out.write(data);
+			} finally {
+				deflater.end();
+			}
+			moveIntoPlace(temp, file);
+			temp = null;
+		} catch (final IOException e) {
+			throw new CLIException("Can't write object " + id + " to \"" + file + '"', e);
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (final IOException ignored) {
+					// Nothing else to do, git gc removes stale temporary files
+				}
+			}
+		}
+		return id;
+	}
+
+	private static
+	void moveIntoPlace(@Nonnull final Path temp, @Nonnull final Path file) throws IOException {
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final FileAlreadyExistsException e) {
+			// Someone else wrote the same object, the content is the same
+			Files.deleteIfExists(temp);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public
+	boolean contains(@Nonnull final String id) throws CLIException {
+		return mDatabase.contains(id, false);
+	}
+
+	@Override
+	public
+	void flush() {
+		// Loose objects are visible as soon as they are written
+	}
+
+	@Override
+	public
+	void close() {
+	}
+}
@@ -0,0 +1,191 @@
+package org.camarena.tools.gitobjects;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Map from binary shas to non negative ints.  Keys are stored inline in a flat <code>byte[]</code>, values in an
+ * <code>int[]</code>, with open addressing and linear probing; there is no object per entry.  Removal shifts the
+ * following entries back, so there are no tombstones.
+ * <p>
+ * The {@link CharSequence} methods take full hexadecimal shas.  Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class ObjectIdIntMap {
+	/**
+	 * Returned when a key is not in the map.
+	 */
+	public static final int NOT_FOUND = -1;
+
+	@Nonnull
+	private final byte[] mScratch = new byte[ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private       byte[] mKeys;
+	@Nonnull
+	private       int[]  mValues;
+	private       int    mSize     = 0;
+
+	public
+	ObjectIdIntMap() {
+		this(256);
+	}
+
+	/**
+	 * @param expectedSize number of entries expected
+	 */
+	public
+	ObjectIdIntMap(final int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		mKeys = new byte[capacity * ObjectIds.RAW_LENGTH];
+		mValues = new int[capacity];
+		Arrays.fill(mValues, NOT_FOUND);
+	}
+
+	/**
+	 * @param raw    where the binary sha is
+	 * @param offset position of the sha in <code>raw</code>
+	 * @param value  value, not negative
+	 * @return the previous value, {@link #NOT_FOUND} if there was none
+	 */
+	public
+	int put(@Nonnull final byte[] raw, final int offset, final int value) {
+		Objects.requireNonNull(raw);
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value " + value);
+		final int slot = slotOf(raw, offset);
+		final int previous = mValues[slot];
+		if (previous == NOT_FOUND) {
+			System.arraycopy(raw, offset, mKeys, slot * ObjectIds.RAW_LENGTH, ObjectIds.RAW_LENGTH);
+			mSize++;
+		}
+		mValues[slot] = value;
+		if (mSize * 2 > mValues.length)
+			grow();
+		return previous;
+	}
+
+	public
+	int put(@Nonnull final CharSequence id, final int value) {
+		ObjectIds.fromHex(id, mScratch, 0);
+		return put(mScratch, 0, value);
+	}
+
+	/**
+	 * @param raw    where the binary sha is
+	 * @param offset position of the sha in <code>raw</code>
+	 * @return the value, {@link #NOT_FOUND} if the key is not in the map
+	 */
+	public
+	int get(@Nonnull final byte[] raw, final int offset) {
+		Objects.requireNonNull(raw);
+		return mValues[slotOf(raw, offset)];
+	}
+
+	public
+	int get(@Nonnull final CharSequence id) {
+		ObjectIds.fromHex(id, mScratch, 0);
+		return get(mScratch, 0);
+	}
+
+	public
+	boolean containsKey(@Nonnull final CharSequence id) {
+		return get(id) != NOT_FOUND;
+	}
+
+	/**
+	 * @param raw    where the binary sha is
+	 * @param offset position of the sha in <code>raw</code>
+	 * @return the value removed, {@link #NOT_FOUND} if the key was not in the map
+	 */
+	public
+	int remove(@Nonnull final byte[] raw, final int offset) {
+		Objects.requireNonNull(raw);
+		final int mask = mValues.length - 1;
+		int hole = slotOf(raw, offset);
+		final int previous = mValues[hole];
+		if (previous == NOT_FOUND)
+			return NOT_FOUND;
+		mValues[hole] = NOT_FOUND;
+		mSize--;
+		// Shifts back every following entry of the run that would no longer be reachable through the hole
+		for (int next = (hole + 1) & mask; mValues[next] != NOT_FOUND; next = (next + 1) & mask) {
+			final int home = hash(mKeys, next * ObjectIds.RAW_LENGTH) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				System.arraycopy(mKeys, next * ObjectIds.RAW_LENGTH, mKeys, hole * ObjectIds.RAW_LENGTH,
+				                 ObjectIds.RAW_LENGTH);
+				mValues[hole] = mValues[next];
+				mValues[next] = NOT_FOUND;
+				hole = next;
+			}
+		}
+		return previous;
+	}
+
+	public
+	int remove(@Nonnull final CharSequence id) {
+		ObjectIds.fromHex(id, mScratch, 0);
+		return remove(mScratch, 0);
+	}
+
+	public
+	int size() {
+		return mSize;
+	}
+
+	public
+	boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @return the slot with the key, or the empty slot where it would go
+	 */
+	private
+	int slotOf(@Nonnull final byte[] raw, final int offset) {
+		final int mask = mValues.length - 1;
+		int slot = hash(raw, offset) & mask;
+		while (mValues[slot] != NOT_FOUND && !equals(mKeys, slot * ObjectIds.RAW_LENGTH, raw, offset))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private
+	void grow() {
+		final byte[] keys = mKeys;
+		final int[] values = mValues;
+		mKeys = new byte[keys.length * 2];
+		mValues = new int[values.length * 2];
+		Arrays.fill(mValues, NOT_FOUND);
+		for (int slot = 0; slot < values.length; slot++) {
+			if (values[slot] != NOT_FOUND) {
+				final int newSlot = slotOf(keys, slot * ObjectIds.RAW_LENGTH);
+				System.arraycopy(keys, slot * ObjectIds.RAW_LENGTH, mKeys, newSlot * ObjectIds.RAW_LENGTH,
+				                 ObjectIds.RAW_LENGTH);
+				mValues[newSlot] = values[slot];
+			}
+		}
+	}
+
+	/**
+	 * shas are already uniformly distributed, their first bytes are a good enough hash.
+	 */
+	static
+	int hash(@Nonnull final byte[] raw, final int offset) {
+		return (raw[offset] & 0xff) << 24 | (raw[offset + 1] & 0xff) << 16 | (raw[offset + 2] & 0xff) << 8
+		       | (raw[offset + 3] & 0xff);
+	}
+
+	static
+	boolean equals(@Nonnull final byte[] a, final int aOffset, @Nonnull final byte[] b, final int bOffset) {
+		for (int inx = 0; inx < ObjectIds.RAW_LENGTH; inx++) {
+			if (a[aOffset + inx] != b[bOffset + inx])
+				return false;
+		}
+		return true;
+	}
+}
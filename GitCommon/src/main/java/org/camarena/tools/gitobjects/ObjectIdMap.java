@@ -0,0 +1,163 @@
+package org.camarena.tools.gitobjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Map from shas to shas, like the one from the commits of a repository to the commits they were copied to.  Entries
+ * are kept in insertion order in two flat <code>byte[]</code> columns; an {@link ObjectIdIntMap} finds the entry of a
+ * key and another one, the reverse index, the entry of a value.  The entries with the same value are chained, newest
+ * first, so the reverse index returns the last key put with the value and, once it moves to another value, the
+ * previous one.
+ * <p>
+ * The methods take and return full hexadecimal shas.  Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class ObjectIdMap {
+	@Nonnull
+	private final byte[]         mKey   = new byte[ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private final byte[]         mValue = new byte[ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private final ObjectIdIntMap mKeyIndex;
+	@Nonnull
+	private final ObjectIdIntMap mValueIndex;
+	@Nonnull
+	private       byte[]         mKeys;
+	@Nonnull
+	private       byte[]         mValues;
+	@Nonnull
+	private       int[]          mNextWithValue;
+	private       int            mSize  = 0;
+
+	public
+	ObjectIdMap() {
+		this(256);
+	}
+
+	/**
+	 * @param expectedSize number of entries expected
+	 */
+	public
+	ObjectIdMap(final int expectedSize) {
+		final int capacity = Math.max(16, expectedSize);
+		mKeyIndex = new ObjectIdIntMap(capacity);
+		mValueIndex = new ObjectIdIntMap(capacity);
+		mKeys = new byte[capacity * ObjectIds.RAW_LENGTH];
+		mValues = new byte[capacity * ObjectIds.RAW_LENGTH];
+		mNextWithValue = new int[capacity];
+	}
+
+	/**
+	 * @param key   full sha
+	 * @param value full sha
+	 * @return the previous value of the key, null if there was none
+	 */
+	@Nullable
+	public
+	String put(@Nonnull final CharSequence key, @Nonnull final CharSequence value) {
+		ObjectIds.fromHex(key, mKey, 0);
+		ObjectIds.fromHex(value, mValue, 0);
+		int entry = mKeyIndex.get(mKey, 0);
+		final String previous;
+		if (entry == ObjectIdIntMap.NOT_FOUND) {
+			if (mSize * ObjectIds.RAW_LENGTH == mKeys.length) {
+				mKeys = Arrays.copyOf(mKeys, mKeys.length * 2);
+				mValues = Arrays.copyOf(mValues, mValues.length * 2);
+				mNextWithValue = Arrays.copyOf(mNextWithValue, mNextWithValue.length * 2);
+			}
+			entry = mSize++;
+			System.arraycopy(mKey, 0, mKeys, entry * ObjectIds.RAW_LENGTH, ObjectIds.RAW_LENGTH);
+			mKeyIndex.put(mKey, 0, entry);
+			previous = null;
+		}
+		else {
+			previous = ObjectIds.toHex(mValues, entry * ObjectIds.RAW_LENGTH);
+			unlinkValue(entry);
+		}
+		System.arraycopy(mValue, 0, mValues, entry * ObjectIds.RAW_LENGTH, ObjectIds.RAW_LENGTH);
+		final int next = mValueIndex.put(mValue, 0, entry);
+		mNextWithValue[entry] = next;
+		return previous;
+	}
+
+	/**
+	 * Takes an entry out of the chain of its value, the next one in the chain takes its place in the reverse index.
+	 */
+	private
+	void unlinkValue(final int entry) {
+		final int offset = entry * ObjectIds.RAW_LENGTH;
+		final int head = mValueIndex.get(mValues, offset);
+		if (head == entry) {
+			if (mNextWithValue[entry] == ObjectIdIntMap.NOT_FOUND)
+				mValueIndex.remove(mValues, offset);
+			else
+				mValueIndex.put(mValues, offset, mNextWithValue[entry]);
+			return;
+		}
+		int prev = head;
+		while (mNextWithValue[prev] != entry)
+			prev = mNextWithValue[prev];
+		mNextWithValue[prev] = mNextWithValue[entry];
+	}
+
+	/**
+	 * @param key full sha
+	 * @return the value of the key, null if the key is not in the map
+	 */
+	@Nullable
+	public
+	String get(@Nonnull final CharSequence key) {
+		final int entry = mKeyIndex.get(key);
+		return entry == ObjectIdIntMap.NOT_FOUND ? null : ObjectIds.toHex(mValues, entry * ObjectIds.RAW_LENGTH);
+	}
+
+	/**
+	 * Looks the reverse index up.
+	 *
+	 * @param value full sha
+	 * @return the last key put with the value that still has it, null if no key has it
+	 */
+	@Nullable
+	public
+	String getKey(@Nonnull final CharSequence value) {
+		final int entry = mValueIndex.get(value);
+		return entry == ObjectIdIntMap.NOT_FOUND ? null : ObjectIds.toHex(mKeys, entry * ObjectIds.RAW_LENGTH);
+	}
+
+	public
+	boolean containsKey(@Nonnull final CharSequence key) {
+		return mKeyIndex.containsKey(key);
+	}
+
+	public
+	boolean containsValue(@Nonnull final CharSequence value) {
+		return mValueIndex.containsKey(value);
+	}
+
+	public
+	int size() {
+		return mSize;
+	}
+
+	public
+	boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @param action called with every key and its value, in insertion order
+	 */
+	public
+	void forEach(@Nonnull final BiConsumer<String, String> action) {
+		Objects.requireNonNull(action);
+		for (int entry = 0; entry < mSize; entry++)
+			action.accept(ObjectIds.toHex(mKeys, entry * ObjectIds.RAW_LENGTH),
+			              ObjectIds.toHex(mValues, entry * ObjectIds.RAW_LENGTH));
+	}
+}
@@ -0,0 +1,498 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Persistent map from shas to shas, like the one from the commits of a repository to the commits they were copied
+ * to, stored in binary form.
+ * <p>
+ * Entries are appended to a log of fixed width records, the binary key followed by the binary value.  Every so often
+ * the log is indexed into a sibling <code>.idx</code> file holding the last entry of every key sorted by key and
+ * again sorted by value; the index is memory mapped and searched in place.  Entries appended since the last indexing, a bounded
+ * number, are kept in an {@link ObjectIdMap}.  Opening an existing file maps its index and only reads the entries
+ * appended after it, so lookups start right away and don't load the map on the heap.
+ * <p>
+ * When a key is put several times the last value wins, when several keys have the same value the reverse lookup
+ * returns the last one put that still has it, as in {@link ObjectIdMap}.  A record cut by a crash at the end of the log is dropped.
+ * <p>
+ * The methods take and return full hexadecimal shas.  The log and its index are limited to 2 GB each.  Not thread
+ * safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class ObjectIdMappingFile implements Closeable {
+	public static final  String INDEX_SUFFIX  = ".idx";
+	private static final int    RECORD_LENGTH = 2 * ObjectIds.RAW_LENGTH;
+	private static final int    INDEX_MAGIC   = 0x4f49444d;
+	private static final int    INDEX_VERSION = 1;
+	private static final int    HEADER_LENGTH = 24;
+	private static final int    MIN_TAIL      = 4096;
+	private static final int    WRITE_BUFFER  = 256;
+
+	@Nonnull
+	private final Path             mLogPath;
+	@Nonnull
+	private final Path             mIndexPath;
+	@Nonnull
+	private final FileChannel      mLog;
+	@Nonnull
+	private final ByteBuffer       mPending        = ByteBuffer.allocate(WRITE_BUFFER * RECORD_LENGTH);
+	@Nonnull
+	private final byte[]           mKey            = new byte[ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private final byte[]           mValue          = new byte[ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private       ObjectIdMap      mTail           = new ObjectIdMap(MIN_TAIL);
+	@Nullable
+	private       MappedByteBuffer mIndex          = null;
+	private       long             mIndexedEntries;
+	private       int              mKeyCount;
+	private       int              mValueCount;
+	private       long             mEntries;
+	private       int              mSize;
+
+	private
+	ObjectIdMappingFile(@Nonnull final Path logPath, @Nonnull final FileChannel log, final long entries) {
+		mLogPath = logPath;
+		mIndexPath = logPath.resolveSibling(logPath.getFileName() + INDEX_SUFFIX);
+		mLog = log;
+		mEntries = entries;
+	}
+
+	/**
+	 * Opens a mapping file, it is created if it doesn't exist.
+	 *
+	 * @param logPath path to the log, the index is next to it
+	 * @return the mapping file, open for appending
+	 * @throws IOException  if the files can't be read or written
+	 * @throws CLIException if the index is not a mapping index
+	 */
+	@Nonnull
+	public static
+	ObjectIdMappingFile open(@Nonnull final Path logPath) throws IOException, CLIException {
+		Objects.requireNonNull(logPath);
+		final FileChannel log = FileChannel.open(logPath,
+		                                         StandardOpenOption.CREATE,
+		                                         StandardOpenOption.READ,
+		                                         StandardOpenOption.WRITE);
+		final ObjectIdMappingFile mapping;
+		try {
+			final long entries = log.size() / RECORD_LENGTH;
+			if (log.size() != entries * RECORD_LENGTH)
+				log.truncate(entries * RECORD_LENGTH);
+			log.position(entries * RECORD_LENGTH);
+			mapping = new ObjectIdMappingFile(logPath, log, entries);
+			mapping.load();
+		} catch (final IOException | CLIException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		return mapping;
+	}
+
+	/**
+	 * Maps the index, if it is there and doesn't cover more than the log, and reads the entries after it.
+	 */
+	private
+	void load() throws IOException, CLIException {
+		if (Files.exists(mIndexPath)) {
+			mapIndex();
+			if (mIndexedEntries > mEntries)
+				mIndex = null;
+		}
+		if (mIndex == null) {
+			mIndexedEntries = 0;
+			mKeyCount = 0;
+			mValueCount = 0;
+		}
+		mSize = mKeyCount;
+		final ByteBuffer tail = mLog.map(FileChannel.MapMode.READ_ONLY,
+		                                 mIndexedEntries * RECORD_LENGTH,
+		                                 (mEntries - mIndexedEntries) * RECORD_LENGTH);
+		while (tail.hasRemaining()) {
+			tail.get(mKey);
+			tail.get(mValue);
+			addToTail(mKey, mValue);
+		}
+		if (mTail.size() >= getTailLimit())
+			index();
+	}
+
+	private
+	void mapIndex() throws IOException, CLIException {
+		try (final FileChannel index = FileChannel.open(mIndexPath, StandardOpenOption.READ)) {
+			final MappedByteBuffer mapped = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+			if (index.size() < HEADER_LENGTH
+			    || mapped.getInt(0) != INDEX_MAGIC
+			    || mapped.getInt(4) != INDEX_VERSION)
+				throw new CLIException("\"" + mIndexPath + "\" is not a mapping index");
+			mIndexedEntries = mapped.getLong(8);
+			mKeyCount = mapped.getInt(16);
+			mValueCount = mapped.getInt(20);
+			if (index.size() != HEADER_LENGTH + (long) (mKeyCount + mValueCount) * RECORD_LENGTH)
+				throw new CLIException("Truncated mapping index \"" + mIndexPath + '"');
+			mIndex = mapped;
+		}
+	}
+
+	/**
+	 * Appends an entry.  It is buffered, see {@link #flush()}.
+	 *
+	 * @param key   full sha
+	 * @param value full sha
+	 * @throws IOException if the log can't be written
+	 */
+	public
+	void put(@Nonnull final CharSequence key, @Nonnull final CharSequence value) throws IOException {
+		ObjectIds.fromHex(key, mKey, 0);
+		ObjectIds.fromHex(value, mValue, 0);
+		mPending.put(mKey).put(mValue);
+		mEntries++;
+		addToTail(mKey, mValue);
+		if (!mPending.hasRemaining())
+			flush();
+		if (mTail.size() >= getTailLimit())
+			index();
+	}
+
+	private
+	void addToTail(@Nonnull final byte[] key, @Nonnull final byte[] value) {
+		final String hexKey = ObjectIds.toHex(key);
+		if (mTail.put(hexKey, ObjectIds.toHex(value)) == null && find(key, 0, mKeyCount) < 0)
+			mSize++;
+	}
+
+	/**
+	 * @param key full sha
+	 * @return the value of the key, null if the key is not in the map
+	 */
+	@Nullable
+	public
+	String get(@Nonnull final CharSequence key) {
+		final String value = mTail.get(key);
+		if (value != null)
+			return value;
+		ObjectIds.fromHex(key, mKey, 0);
+		final int position = find(mKey, 0, mKeyCount);
+		return position < 0 ? null : ObjectIds.toHex(readId(position + ObjectIds.RAW_LENGTH));
+	}
+
+	/**
+	 * Looks the values up.
+	 *
+	 * @param value full sha
+	 * @return the last key put with the value that still has it, null if no key has it
+	 */
+	@Nullable
+	public
+	String getKey(@Nonnull final CharSequence value) {
+		final String key = mTail.getKey(value);
+		if (key != null)
+			return key;
+		ObjectIds.fromHex(value, mValue, 0);
+		int position = find(mValue, mKeyCount, mValueCount);
+		if (position < 0)
+			return null;
+		// The keys with the value are next to each other in log order, the search starts at the last one put
+		final int first = HEADER_LENGTH + mKeyCount * RECORD_LENGTH;
+		final int last = HEADER_LENGTH + (mKeyCount + mValueCount - 1) * RECORD_LENGTH;
+		while (position < last && compareId(position + RECORD_LENGTH, mValue) == 0)
+			position += RECORD_LENGTH;
+		for (; position >= first && compareId(position, mValue) == 0; position -= RECORD_LENGTH) {
+			final String indexedKey = ObjectIds.toHex(readId(position + ObjectIds.RAW_LENGTH));
+			// The key may have been put again with another value after the indexing
+			final String current = mTail.get(indexedKey);
+			if (current == null || current.contentEquals(value))
+				return indexedKey;
+		}
+		return null;
+	}
+
+	public
+	boolean containsKey(@Nonnull final CharSequence key) {
+		return get(key) != null;
+	}
+
+	public
+	boolean containsValue(@Nonnull final CharSequence value) {
+		return getKey(value) != null;
+	}
+
+	/**
+	 * @return number of distinct keys
+	 */
+	public
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return number of entries appended to the log, including keys put again
+	 */
+	public
+	long getEntryCount() {
+		return mEntries;
+	}
+
+	/**
+	 * Writes the buffered entries to the log.
+	 *
+	 * @throws IOException if the log can't be written
+	 */
+	public
+	void flush() throws IOException {
+		mPending.flip();
+		while (mPending.hasRemaining())
+			mLog.write(mPending);
+		mPending.clear();
+	}
+
+	/**
+	 * Writes the buffered entries to the log and forces the log to the disk, so that they survive a crash of the OS.
+	 *
+	 * @throws IOException if the log can't be written
+	 */
+	public
+	void sync() throws IOException {
+		flush();
+		mLog.force(true);
+	}
+
+	/**
+	 * Writes the entries of the log in the text format of the mapping file, <code>key&lt;TAB&gt;value</code> lines
+	 * in the order they were put.
+	 *
+	 * @param writer where to write them
+	 * @throws IOException if the log can't be read or the writer fails
+	 */
+	public
+	void exportText(@Nonnull final Writer writer) throws IOException {
+		Objects.requireNonNull(writer);
+		flush();
+		final ByteBuffer log = mLog.map(FileChannel.MapMode.READ_ONLY, 0, mEntries * RECORD_LENGTH);
+		while (log.hasRemaining()) {
+			log.get(mKey);
+			log.get(mValue);
+			writer.write(ObjectIds.toHex(mKey));
+			writer.write('\t');
+			writer.write(ObjectIds.toHex(mValue));
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Rewrites the index with every entry of the log and empties the tail.  The new index replaces the old one
+	 * atomically.
+	 *
+	 * @throws IOException if the files can't be read or written
+	 */
+	public
+	void index() throws IOException {
+		flush();
+		final int entries = (int) mEntries;
+		final ByteBuffer log = mLog.map(FileChannel.MapMode.READ_ONLY, 0, mEntries * RECORD_LENGTH);
+		final int[] byKey = sortEntries(log, entries, 0, null);
+		final BitSet live = new BitSet(entries);
+		for (final int entry : byKey)
+			live.set(entry);
+		// Every live entry, a value is shared by several keys
+		final int[] byValue = sortEntries(log, entries, ObjectIds.RAW_LENGTH, live);
+		final Path newIndex = mIndexPath.resolveSibling(mIndexPath.getFileName() + ".new");
+		try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(newIndex), 1 << 16))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(mEntries);
+			out.writeInt(byKey.length);
+			out.writeInt(byValue.length);
+			final byte[] record = new byte[RECORD_LENGTH];
+			for (final int entry : byKey) {
+				log.position(entry * RECORD_LENGTH);
+				log.get(record);
+				out.write(record);
+			}
+			for (final int entry : byValue) {
+				log.position(entry * RECORD_LENGTH + ObjectIds.RAW_LENGTH);
+				log.get(record, 0, ObjectIds.RAW_LENGTH);
+				log.position(entry * RECORD_LENGTH);
+				log.get(record, ObjectIds.RAW_LENGTH, ObjectIds.RAW_LENGTH);
+				out.write(record);
+			}
+		}
+		Files.move(newIndex, mIndexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		try {
+			mapIndex();
+		} catch (final CLIException e) {
+			throw new IOException(e);
+		}
+		mTail = new ObjectIdMap(MIN_TAIL);
+		mSize = mKeyCount;
+	}
+
+	/**
+	 * Sorts the entries of the log by key, keeping the last entry of every key, or sorts some of them by value, keeping
+	 * all of them in log order when the value is the same.  Entries are sorted as longs holding the first four bytes of
+	 * the field over the entry number, equal prefixes are then sorted by the whole field.
+	 *
+	 * @param log     mapped log
+	 * @param entries number of entries
+	 * @param field   0 to sort by key, {@link ObjectIds#RAW_LENGTH} to sort by value
+	 * @param live    entries to sort, all kept, null to sort all the entries keeping the last one of every field
+	 * @return entry numbers
+	 */
+	@Nonnull
+	private static
+	int[] sortEntries(@Nonnull final ByteBuffer log, final int entries, final int field, @Nullable final BitSet live) {
+		final long[] sorted = new long[live == null ? entries : live.cardinality()];
+		int size = 0;
+		for (int entry = 0; entry < entries; entry++) {
+			if (live == null || live.get(entry))
+				sorted[size++] = (log.getInt(entry * RECORD_LENGTH + field) & 0xffffffffL) << 31 | entry;
+		}
+		Arrays.sort(sorted);
+		final int[] result = new int[size];
+		int count = 0;
+		for (int start = 0; start < size; ) {
+			int end = start + 1;
+			while (end < size && sorted[end] >>> 31 == sorted[start] >>> 31)
+				end++;
+			// Insertion sort, stable so equal fields stay in log order
+			for (int inx = start + 1; inx < end; inx++) {
+				final long current = sorted[inx];
+				int prev = inx - 1;
+				while (prev >= start && compareFields(log, field, entryOf(sorted[prev]), entryOf(current)) > 0) {
+					sorted[prev + 1] = sorted[prev];
+					prev--;
+				}
+				sorted[prev + 1] = current;
+			}
+			for (int inx = start; inx < end; inx++) {
+				if (live != null
+				    || inx + 1 == end
+				    || compareFields(log, field, entryOf(sorted[inx]), entryOf(sorted[inx + 1])) != 0)
+					result[count++] = entryOf(sorted[inx]);
+			}
+			start = end;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static
+	int entryOf(final long sorted) {
+		return (int) (sorted & Integer.MAX_VALUE);
+	}
+
+	private static
+	int compareFields(@Nonnull final ByteBuffer log, final int field, final int entry1, final int entry2) {
+		final int position1 = entry1 * RECORD_LENGTH + field;
+		final int position2 = entry2 * RECORD_LENGTH + field;
+		for (int inx = 0; inx < ObjectIds.RAW_LENGTH; inx++) {
+			final int diff = (log.get(position1 + inx) & 0xff) - (log.get(position2 + inx) & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param id    binary sha
+	 * @param first first record of the section of the index to search
+	 * @param count records in the section
+	 * @return position of the record in the index, negative if it is not there
+	 */
+	private
+	int find(@Nonnull final byte[] id, final int first, final int count) {
+		if (mIndex == null)
+			return -1;
+		int low = first;
+		int high = first + count - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int position = HEADER_LENGTH + middle * RECORD_LENGTH;
+			final int diff = compareId(position, id);
+			if (diff < 0)
+				low = middle + 1;
+			else if (diff > 0)
+				high = middle - 1;
+			else
+				return position;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param position position of a record in the index
+	 * @param id       binary sha
+	 * @return how the first sha of the record compares to the sha
+	 */
+	private
+	int compareId(final int position, @Nonnull final byte[] id) {
+		final MappedByteBuffer index = Objects.requireNonNull(mIndex);
+		for (int inx = 0; inx < ObjectIds.RAW_LENGTH; inx++) {
+			final int diff = (index.get(position + inx) & 0xff) - (id[inx] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return 0;
+	}
+
+	@Nonnull
+	private
+	byte[] readId(final int position) {
+		final ByteBuffer index = Objects.requireNonNull(mIndex).duplicate();
+		index.position(position);
+		final byte[] id = new byte[ObjectIds.RAW_LENGTH];
+		index.get(id);
+		return id;
+	}
+
+	private
+	int getTailLimit() {
+		return Math.max(MIN_TAIL, mKeyCount / 8);
+	}
+
+	@Nonnull
+	public
+	Path getLogPath() {
+		return mLogPath;
+	}
+
+	/**
+	 * Indexes the entries appended since the last indexing, so that the next open doesn't read them, and closes the
+	 * log.
+	 *
+	 * @throws IOException if the files can't be written
+	 */
+	@Override
+	public
+	void close() throws IOException {
+		try {
+			if (mTail.isEmpty())
+				flush();
+			else
+				index();
+		} finally {
+			mLog.close();
+		}
+	}
+}
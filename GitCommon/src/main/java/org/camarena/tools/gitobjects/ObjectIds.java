@@ -0,0 +1,124 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Conversions between the binary (20 bytes) and hexadecimal (40 characters) forms of a sha.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class ObjectIds {
+	public static final  int         RAW_LENGTH = 20;
+	public static final  int         HEX_LENGTH = 40;
+	private static final Pattern     FULL_HEX   = Pattern.compile("[0-9a-f]{40}");
+	private static final BaseEncoding HEX        = BaseEncoding.base16().lowerCase();
+
+	private
+	ObjectIds() {
+	}
+
+	public static
+	boolean isFullHex(@Nonnull final CharSequence id) {
+		Objects.requireNonNull(id);
+		return FULL_HEX.matcher(id).matches();
+	}
+
+	@Nonnull
+	public static
+	byte[] fromHex(@Nonnull final String id) {
+		Objects.requireNonNull(id);
+		if (!isFullHex(id))
+			throw new IllegalArgumentException("\"" + id + "\" is not a full sha");
+		return HEX.decode(id);
+	}
+
+	/**
+	 * Decodes a full sha without allocating.
+	 *
+	 * @param id     hexadecimal sha, 40 lower case characters
+	 * @param raw    where the binary sha is written
+	 * @param offset position in <code>raw</code> of the first byte
+	 * @throws IllegalArgumentException if <code>id</code> is not a full sha
+	 */
+	public static
+	void fromHex(@Nonnull final CharSequence id, @Nonnull final byte[] raw, final int offset) {
+		Objects.requireNonNull(id);
+		Objects.requireNonNull(raw);
+		if (id.length() != HEX_LENGTH)
+			throw new IllegalArgumentException("\"" + id + "\" is not a full sha");
+		for (int inx = 0; inx < RAW_LENGTH; inx++) {
+			final int high = hexDigit(id.charAt(inx * 2));
+			final int low = hexDigit(id.charAt(inx * 2 + 1));
+			if (high < 0 || low < 0)
+				throw new IllegalArgumentException("\"" + id + "\" is not a full sha");
+			raw[offset + inx] = (byte) ((high << 4) | low);
+		}
+	}
+
+	private static
+	int hexDigit(final char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+
+	/**
+	 * Computes the id git gives to an object.
+	 *
+	 * @param type type of the object
+	 * @param data content of the object
+	 * @return binary sha
+	 */
+	@Nonnull
+	public static
+	byte[] hash(@Nonnull final GitObjectType type, @Nonnull final byte[] data) {
+		Objects.requireNonNull(type);
+		Objects.requireNonNull(data);
+		final MessageDigest digest = sha1();
+		digest.update(header(type, data.length));
+		digest.update(data);
+		return digest.digest();
+	}
+
+	/**
+	 * @return header that precedes the content of a loose object and is hashed with it
+	 */
+	@Nonnull
+	static
+	byte[] header(@Nonnull final GitObjectType type, final long size) {
+		return (type.getName() + ' ' + size + '\0').getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Nonnull
+	static
+	MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	@Nonnull
+	public static
+	String toHex(@Nonnull final byte[] raw) {
+		return toHex(raw, 0);
+	}
+
+	@Nonnull
+	public static
+	String toHex(@Nonnull final byte[] raw, final int offset) {
+		Objects.requireNonNull(raw);
+		return HEX.encode(raw, offset, RAW_LENGTH);
+	}
+}
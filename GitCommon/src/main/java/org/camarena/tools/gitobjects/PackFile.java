@@ -0,0 +1,333 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.collect.ImmutableBiMap;
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A memory mapped <code>.pack</code> file together with its <code>.idx</code> (version 2).  Objects are located by a
+ * binary search inside the fanout range of the index and read straight from the mapping.  Delta entries are not
+ * resolved here, see {@link FileObjectDatabase}.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+class PackFile implements Closeable {
+	static final         int  OBJ_COMMIT    = 1;
+	static final         int  OBJ_TREE      = 2;
+	static final         int  OBJ_BLOB      = 3;
+	static final         int  OBJ_TAG       = 4;
+	static final         int  OBJ_OFS_DELTA = 6;
+	static final         int  OBJ_REF_DELTA = 7;
+	private static final int  CHUNK_BITS    = 30;
+	private static final long CHUNK_MASK    = (1L << CHUNK_BITS) - 1;
+	private static final int  IDX_MAGIC     = 0xff744f63;
+	private static final ImmutableBiMap<Integer, GitObjectType> TYPES =
+			ImmutableBiMap.of(OBJ_COMMIT, GitObjectType.COMMIT,
+			                  OBJ_TREE, GitObjectType.TREE,
+			                  OBJ_BLOB, GitObjectType.BLOB,
+			                  OBJ_TAG, GitObjectType.TAG);
+
+	@Nonnull
+	private final Path                 mPackPath;
+	@Nonnull
+	private final MappedByteBuffer     mIndex;
+	@Nonnull
+	private final MappedByteBuffer[]   mPackChunks;
+	private final int                  mObjectCount;
+	private final int                  mNamesOffset;
+	private final int                  mOffsetsOffset;
+	private final int                  mLargeOffsetsOffset;
+
+	PackFile(@Nonnull final Path packPath, @Nonnull final Path indexPath) throws IOException, CLIException {
+		Objects.requireNonNull(packPath);
+		Objects.requireNonNull(indexPath);
+		mPackPath = packPath;
+		try (final FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			mIndex = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+		}
+		if (mIndex.getInt(0) != IDX_MAGIC || mIndex.getInt(4) != 2)
+			throw new CLIException("Unsupported pack index \"" + indexPath + "\", only version 2 is supported");
+		mObjectCount = mIndex.getInt(8 + 255 * 4);
+		mNamesOffset = 8 + 256 * 4;
+		mOffsetsOffset = mNamesOffset + mObjectCount * (ObjectIds.RAW_LENGTH + 4);
+		mLargeOffsetsOffset = mOffsetsOffset + mObjectCount * 4;
+		try (final FileChannel pack = FileChannel.open(packPath, StandardOpenOption.READ)) {
+			final long size = pack.size();
+			final int chunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+			mPackChunks = new MappedByteBuffer[Math.max(chunks, 1)];
+			for (int inx = 0; inx < chunks; inx++) {
+				final long start = (long) inx << CHUNK_BITS;
+				mPackChunks[inx] = pack.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << CHUNK_BITS));
+			}
+			if (chunks == 0)
+				mPackChunks[0] = pack.map(FileChannel.MapMode.READ_ONLY, 0, 0);
+		}
+	}
+
+	/**
+	 * @return the code a pack uses for an object type
+	 */
+	static
+	int typeCode(@Nonnull final GitObjectType type) {
+		return TYPES.inverse().get(type);
+	}
+
+	/**
+	 * @return the object type of a pack type code that is not a delta
+	 */
+	@Nonnull
+	static
+	GitObjectType objectType(final int typeCode, @Nonnull final PackFile pack) throws CLIException {
+		final GitObjectType type = TYPES.get(typeCode);
+		if (type == null)
+			throw new CLIException("Unknown object type " + typeCode + " in \"" + pack + '"');
+		return type;
+	}
+
+	@Override
+	public
+	void close() {
+		// Mappings are released when they are garbage collected
+	}
+
+	@Nonnull
+	Path getPackPath() {
+		return mPackPath;
+	}
+
+	int getObjectCount() {
+		return mObjectCount;
+	}
+
+	/**
+	 * @param id binary sha
+	 * @return offset of the object in the pack or -1 if the pack does not contain it
+	 */
+	long findOffset(@Nonnull final byte[] id) {
+		final int position = findPosition(id);
+		return position < 0 ? -1 : offsetAt(position);
+	}
+
+	boolean contains(@Nonnull final byte[] id) {
+		return findPosition(id) >= 0;
+	}
+
+	/**
+	 * Looks for the objects whose sha starts with a prefix.
+	 *
+	 * @param prefix hexadecimal prefix, at least 2 characters long
+	 * @param limit  maximum number of matches to collect
+	 * @return full shas of the matches
+	 */
+	@Nonnull
+	List<String> findByPrefix(@Nonnull final String prefix, final int limit) {
+		final List<String> matches = new ArrayList<>(2);
+		final int first = Integer.parseInt(prefix.substring(0, 2), 16);
+		final int low = first == 0 ? 0 : mIndex.getInt(8 + (first - 1) * 4);
+		final int high = mIndex.getInt(8 + first * 4);
+		final byte[] name = new byte[ObjectIds.RAW_LENGTH];
+		for (int inx = low; inx < high && matches.size() < limit; inx++) {
+			readName(inx, name);
+			final String hex = ObjectIds.toHex(name);
+			if (hex.startsWith(prefix))
+				matches.add(hex);
+		}
+		return matches;
+	}
+
+	private
+	int findPosition(@Nonnull final byte[] id) {
+		final int first = id[0] & 0xff;
+		int low = first == 0 ? 0 : mIndex.getInt(8 + (first - 1) * 4);
+		int high = mIndex.getInt(8 + first * 4) - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int cmp = compareName(middle, id);
+			if (cmp < 0)
+				low = middle + 1;
+			else if (cmp > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	private
+	int compareName(final int position, @Nonnull final byte[] id) {
+		final int base = mNamesOffset + position * ObjectIds.RAW_LENGTH;
+		for (int inx = 0; inx < ObjectIds.RAW_LENGTH; inx++) {
+			final int cmp = (mIndex.get(base + inx) & 0xff) - (id[inx] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	private
+	void readName(final int position, @Nonnull final byte[] name) {
+		final ByteBuffer index = mIndex.duplicate();
+		index.position(mNamesOffset + position * ObjectIds.RAW_LENGTH);
+		index.get(name);
+	}
+
+	private
+	long offsetAt(final int position) {
+		final int offset = mIndex.getInt(mOffsetsOffset + position * 4);
+		if ((offset & 0x80000000) == 0)
+			return offset;
+		return mIndex.getLong(mLargeOffsetsOffset + (offset & 0x7fffffff) * 8);
+	}
+
+	/**
+	 * Reads the header of the entry at an offset.
+	 *
+	 * @param offset offset of the entry
+	 * @return the header
+	 */
+	@Nonnull
+	EntryHeader readHeader(final long offset) {
+		long position = offset;
+		int c = get(position++);
+		final int type = (c >> 4) & 7;
+		long size = c & 15;
+		int shift = 4;
+		while ((c & 0x80) != 0) {
+			c = get(position++);
+			size |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		}
+		long baseOffset = -1;
+		byte[] baseId = null;
+		if (type == OBJ_OFS_DELTA) {
+			c = get(position++);
+			long distance = c & 0x7f;
+			while ((c & 0x80) != 0) {
+				c = get(position++);
+				distance = ((distance + 1) << 7) | (c & 0x7f);
+			}
+			baseOffset = offset - distance;
+		}
+		else if (type == OBJ_REF_DELTA) {
+			baseId = new byte[ObjectIds.RAW_LENGTH];
+			read(position, baseId, 0, baseId.length);
+			position += baseId.length;
+		}
+		return new EntryHeader(type, size, position, baseOffset, baseId);
+	}
+
+	/**
+	 * Inflates the zlib stream of an entry.
+	 *
+	 * @param dataOffset offset where the compressed data starts
+	 * @param size       size of the inflated data
+	 * @return the inflated data
+	 * @throws CLIException if the data is corrupt
+	 */
+	@Nonnull
+	byte[] inflate(final long dataOffset, final long size) throws CLIException {
+		if (size > Integer.MAX_VALUE)
+			throw new CLIException("Object of " + size + " bytes in \"" + mPackPath + "\" is too big");
+		final byte[] out = new byte[(int) size];
+		final byte[] in = new byte[8192];
+		final Inflater inflater = new Inflater();
+		try {
+			long position = dataOffset;
+			int produced = 0;
+			while (produced < out.length) {
+				if (inflater.needsInput()) {
+					final int read = read(position, in, 0, in.length);
+					if (read <= 0)
+						throw new CLIException("Truncated entry in \"" + mPackPath + '"');
+					inflater.setInput(in, 0, read);
+					position += read;
+				}
+				final int count = inflater.inflate(out, produced, out.length - produced);
+				if (count == 0 && (inflater.finished() || inflater.needsDictionary()))
+					throw new CLIException("Corrupt entry in \"" + mPackPath + '"');
+				produced += count;
+			}
+			return out;
+		} catch (final DataFormatException e) {
+			throw new CLIException("Corrupt entry in \"" + mPackPath + '"', e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private
+	int get(final long position) {
+		return mPackChunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK)) & 0xff;
+	}
+
+	/**
+	 * Copies bytes from the pack, possibly across mapping chunks.
+	 *
+	 * @return the number of bytes copied, less than requested at the end of the pack
+	 */
+	private
+	int read(final long position, @Nonnull final byte[] dst, final int offset, final int length) {
+		int copied = 0;
+		long current = position;
+		while (copied < length) {
+			final int chunk = (int) (current >>> CHUNK_BITS);
+			if (chunk >= mPackChunks.length)
+				break;
+			final ByteBuffer buffer = mPackChunks[chunk].duplicate();
+			final int start = (int) (current & CHUNK_MASK);
+			if (start >= buffer.limit())
+				break;
+			buffer.position(start);
+			final int count = Math.min(length - copied, buffer.remaining());
+			buffer.get(dst, offset + copied, count);
+			copied += count;
+			current += count;
+		}
+		return copied;
+	}
+
+	/**
+	 * Header of a pack entry.
+	 */
+	static final
+	class EntryHeader {
+		final int    mType;
+		final long   mSize;
+		final long   mDataOffset;
+		final long   mBaseOffset;
+		final byte[] mBaseId;
+
+		private
+		EntryHeader(final int type, final long size, final long dataOffset, final long baseOffset, final byte[] baseId) {
+			mType = type;
+			mSize = size;
+			mDataOffset = dataOffset;
+			mBaseOffset = baseOffset;
+			//noinspection AssignmentToCollectionOrArrayFieldFromParameter
+			mBaseId = baseId;
+		}
+
+		boolean isDelta() {
+			return mType == OBJ_OFS_DELTA || mType == OBJ_REF_DELTA;
+		}
+	}
+
+	@Override
+	public
+	String toString() {
+		return mPackPath.toString();
+	}
+}
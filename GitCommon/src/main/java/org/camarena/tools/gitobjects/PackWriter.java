@@ -0,0 +1,359 @@
+package org.camarena.tools.gitobjects;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.camarena.tools.CLIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams inserted objects into a new pack of the repository.  Objects are deflated in parallel on an executor and
+ * appended to the pack in insertion order as soon as they are ready; at most a bounded number of them are waiting
+ * to be written at any time.  {@link #flush()} completes the pack, writes its index (version 2) and moves both into
+ * <code>objects/pack</code>, which is when the objects become visible to readers.
+ * <p>
+ * Every object is stored whole, no deltas are computed; a later <code>git gc</code> can repack them.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class PackWriter implements GitObjectWriter {
+	public static final  int    DEFAULT_MAX_PENDING = 256;
+	private static final Logger LOGGER              = LoggerFactory.getLogger(PackWriter.class);
+	private static final int    IDX_MAGIC           = 0xff744f63;
+
+	@Nonnull
+	private final FileObjectDatabase      mDatabase;
+	@Nonnull
+	private final Executor                mExecutor;
+	private final int                     mCompressionLevel;
+	private final int                     mMaxPending;
+	@Nonnull
+	private final Set<String>             mInserted = new HashSet<>();
+	@Nonnull
+	private final Deque<PendingObject>    mPending  = new ArrayDeque<>();
+	@Nonnull
+	private final List<WrittenObject>     mWritten  = new ArrayList<>();
+	@Nullable
+	private       Path                    mTempPack = null;
+	@Nullable
+	private       FileChannel             mChannel  = null;
+	private       long                    mPosition = 0;
+
+	/**
+	 * @param database         repository to write to
+	 * @param executor         where objects are deflated
+	 * @param compressionLevel zlib level, {@link Deflater#DEFAULT_COMPRESSION} to use the default
+	 * @param maxPending       maximum number of objects waiting to be written
+	 */
+	public
+	PackWriter(@Nonnull final FileObjectDatabase database,
+	           @Nonnull final Executor executor,
+	           final int compressionLevel,
+	           final int maxPending) {
+		Objects.requireNonNull(database);
+		Objects.requireNonNull(executor);
+		if (maxPending < 1)
+			throw new IllegalArgumentException("maxPending must be positive");
+		mDatabase = database;
+		mExecutor = executor;
+		mCompressionLevel = compressionLevel;
+		mMaxPending = maxPending;
+	}
+
+	/**
+	 * Deflates on the common fork join pool, so on every core.
+	 *
+	 * @param database repository to write to
+	 */
+	public
+	PackWriter(@Nonnull final FileObjectDatabase database) {
+		this(database, ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_PENDING);
+	}
+
+	@Nonnull
+	@Override
+	public synchronized
+	String insert(@Nonnull final GitObjectType type, @Nonnull final byte[] data) throws CLIException {
+		Objects.requireNonNull(type);
+		Objects.requireNonNull(data);
+		final byte[] raw = ObjectIds.hash(type, data);
+		final String id = ObjectIds.toHex(raw);
+		if (mInserted.contains(id) || mDatabase.contains(id, false))
+			return id;
+		if (mChannel == null)
+			open();
+		mPending.add(new PendingObject(raw,
+		                               CompletableFuture.supplyAsync(() -> deflate(type, data, mCompressionLevel),
+		                                                             mExecutor)));
+		mInserted.add(id);
+		while (!mPending.isEmpty() && (mPending.size() > mMaxPending || mPending.peek().mEntry.isDone()))
+			writeNext();
+		return id;
+	}
+
+	@Override
+	public synchronized
+	boolean contains(@Nonnull final String id) throws CLIException {
+		return mInserted.contains(id) || mDatabase.contains(id, false);
+	}
+
+	@Override
+	public synchronized
+	void flush() throws CLIException {
+		if (mChannel == null)
+			return;
+		while (!mPending.isEmpty())
+			writeNext();
+		try {
+			finish();
+		} catch (final IOException e) {
+			throw new CLIException("Can't complete pack \"" + mTempPack + '"', e);
+		} finally {
+			discard();
+		}
+	}
+
+	@Override
+	public synchronized
+	void close() throws CLIException {
+		flush();
+	}
+
+	private
+	void open() throws CLIException {
+		final Path packDir = mDatabase.getObjectDir().resolve("pack");
+		try {
+			Files.createDirectories(packDir);
+			mTempPack = Files.createTempFile(packDir, "tmp_pack_", "");
+			mChannel = FileChannel.open(mTempPack, StandardOpenOption.WRITE, StandardOpenOption.READ);
+			// The object count is filled in when the pack is completed
+			writeFully(ByteBuffer.wrap(new byte[]{'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0}));
+		} catch (final IOException e) {
+			discard();
+			throw new CLIException("Can't create a pack in \"" + packDir + '"', e);
+		}
+	}
+
+	private
+	void writeNext() throws CLIException {
+		final PendingObject pending = mPending.poll();
+		final byte[] entry;
+		try {
+			entry = pending.mEntry.join();
+		} catch (final CompletionException e) {
+			throw new CLIException("Can't deflate object " + ObjectIds.toHex(pending.mId), e.getCause());
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(entry);
+		mWritten.add(new WrittenObject(pending.mId, mPosition, (int) crc.getValue()));
+		try {
+			writeFully(ByteBuffer.wrap(entry));
+		} catch (final IOException e) {
+			throw new CLIException("Can't write to pack \"" + mTempPack + '"', e);
+		}
+	}
+
+	private
+	void writeFully(@Nonnull final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			mPosition += mChannel.write(buffer, mPosition);
+	}
+
+	/**
+	 * Fills in the object count, appends the checksum and writes the index next to the pack.
+	 */
+	private
+	void finish() throws IOException, CLIException {
+		final FileChannel channel = mChannel;
+		final ByteBuffer count = ByteBuffer.allocate(4);
+		count.putInt(0, mWritten.size());
+		channel.write(count, 8);
+		final MessageDigest digest = ObjectIds.sha1();
+		final ByteBuffer buffer = ByteBuffer.allocate(65536);
+		long position = 0;
+		while (position < mPosition) {
+			buffer.clear();
+			final int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Pack is shorter than expected");
+			buffer.flip();
+			digest.update(buffer);
+			position += read;
+		}
+		final byte[] packChecksum = digest.digest();
+		writeFully(ByteBuffer.wrap(packChecksum));
+		channel.force(true);
+		channel.close();
+		mChannel = null;
+
+		final Path packDir = mTempPack.getParent();
+		final String name = "pack-" + ObjectIds.toHex(packChecksum);
+		final Path tempIndex = Files.createTempFile(packDir, "tmp_idx_", "");
+		try {
+			writeIndex(tempIndex, packChecksum);
+			final Path pack = packDir.resolve(name + ".pack");
+			final boolean published = Files.exists(pack);
+			Files.move(mTempPack, pack, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(tempIndex, packDir.resolve(name + ".idx"), StandardCopyOption.REPLACE_EXISTING);
+			} catch (final IOException e) {
+				// Git reports a pack without its index as broken, unless the same pack was already there with it
+				if (!published)
+					Files.deleteIfExists(pack);
+				throw e;
+			}
+			mTempPack = null;
+		} finally {
+			Files.deleteIfExists(tempIndex);
+		}
+		LOGGER.debug("Wrote {} objects to \"{}\"", mWritten.size(), name);
+		mWritten.clear();
+	}
+
+	private
+	void writeIndex(@Nonnull final Path index, @Nonnull final byte[] packChecksum) throws IOException {
+		final List<WrittenObject> sorted = new ArrayList<>(mWritten);
+		sorted.sort(Comparator.comparing(w -> w.mId, UnsignedBytes.lexicographicalComparator()));
+		final MessageDigest digest = ObjectIds.sha1();
+		try (final OutputStream file = new BufferedOutputStream(Files.newOutputStream(index), 65536);
+		     final DataOutputStream out = new DataOutputStream(new DigestOutputStream(file, digest))) {
+			out.writeInt(IDX_MAGIC);
+			out.writeInt(2);
+			int inx = 0;
+			for (int first = 0; first < 256; first++) {
+				while (inx < sorted.size() && (sorted.get(inx).mId[0] & 0xff) <= first)
+					inx++;
+				out.writeInt(inx);
+			}
+			for (final WrittenObject object : sorted)
+				out.write(object.mId);
+			for (final WrittenObject object : sorted)
+				out.writeInt(object.mCrc);
+			final List<Long> largeOffsets = new ArrayList<>();
+			for (final WrittenObject object : sorted) {
+				if (object.mOffset < 0x80000000L)
+					out.writeInt((int) object.mOffset);
+				else {
+					out.writeInt(0x80000000 | largeOffsets.size());
+					largeOffsets.add(object.mOffset);
+				}
+			}
+			for (final long offset : largeOffsets)
+				out.writeLong(offset);
+			out.write(packChecksum);
+			out.flush();
+			file.write(digest.digest());
+		}
+	}
+
+	private
+	void discard() {
+		// Whatever did not reach a completed pack has to be inserted again
+		mPending.forEach(p -> mInserted.remove(ObjectIds.toHex(p.mId)));
+		mWritten.forEach(w -> mInserted.remove(ObjectIds.toHex(w.mId)));
+		mPending.forEach(p -> p.mEntry.cancel(false));
+		mPending.clear();
+		mWritten.clear();
+		mPosition = 0;
+		try {
+			if (mChannel != null)
+				mChannel.close();
+			if (mTempPack != null)
+				Files.deleteIfExists(mTempPack);
+		} catch (final IOException e) {
+			LOGGER.debug("Ignoring error removing \"{}\"", mTempPack, e);
+		}
+		mChannel = null;
+		mTempPack = null;
+	}
+
+	/**
+	 * @return the pack entry: type and size header followed by the deflated content
+	 */
+	@Nonnull
+	private static
+	byte[] deflate(@Nonnull final GitObjectType type, @Nonnull final byte[] data, final int compressionLevel) {
+		final ByteArrayOutputStream entry = new ByteArrayOutputStream(data.length / 2 + 64);
+		long size = data.length;
+		int c = (PackFile.typeCode(type) << 4) | (int) (size & 15);
+		size >>>= 4;
+		while (size != 0) {
+			entry.write(c | 0x80);
+			c = (int) (size & 0x7f);
+			size >>>= 7;
+		}
+		entry.write(c);
+		final Deflater deflater = new Deflater(compressionLevel);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			final byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				final int count = deflater.deflate(buffer);
+				entry.write(buffer, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+		return entry.toByteArray();
+	}
+
+	private static final
+	class PendingObject {
+		@Nonnull
+		private final byte[]                    mId;
+		@Nonnull
+		private final CompletableFuture<byte[]> mEntry;
+
+		private
+		PendingObject(@Nonnull final byte[] id, @Nonnull final CompletableFuture<byte[]> entry) {
+			mId = id;
+			mEntry = entry;
+		}
+	}
+
+	private static final
+	class WrittenObject {
+		@Nonnull
+		private final byte[] mId;
+		private final long   mOffset;
+		private final int    mCrc;
+
+		private
+		WrittenObject(@Nonnull final byte[] id, final long offset, final int crc) {
+			mId = id;
+			mOffset = offset;
+			mCrc = crc;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package org.camarena.tools.gitobjects;
+
+import org.camarena.tools.CLIException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Updates refs by writing their loose files under a <code>.lock</code> file, the same protocol git uses, so it is
+ * safe against a concurrent git process.  A loose ref shadows the packed one, so packed refs are never rewritten.
+ * Reflogs are not written.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class RefUpdater {
+	private static final String SYMBOLIC_PREFIX = "ref: ";
+
+	@Nonnull
+	private final FileObjectDatabase mDatabase;
+
+	public
+	RefUpdater(@Nonnull final FileObjectDatabase database) {
+		Objects.requireNonNull(database);
+		mDatabase = database;
+	}
+
+	/**
+	 * Points a ref to an object.  When the ref is symbolic (<code>HEAD</code> on a branch) the ref it points to is
+	 * the one updated, like <code>git update-ref</code> does.
+	 *
+	 * @param name     full name, <code>HEAD</code> or <code>refs/...</code>
+	 * @param id       full sha the ref will point to
+	 * @param expected full sha the ref must point to now, empty to accept any value (or no value)
+	 * @throws CLIException if the ref is locked, does not have the expected value or can't be written
+	 */
+	public
+	void update(@Nonnull final String name, @Nonnull final String id, @Nonnull final Optional<String> expected)
+			throws CLIException {
+		Objects.requireNonNull(id);
+		Objects.requireNonNull(expected);
+		if (!ObjectIds.isFullHex(id))
+			throw new CLIException("\"" + id + "\" is not a full sha");
+		final String target = followSymbolic(checkName(name));
+		final Path file = mDatabase.refFile(target);
+		final Path lock = lockFile(file);
+		try {
+			final Optional<String> current = mDatabase.readRef(target);
+			if (expected.isPresent() && !expected.equals(current))
+				throw new CLIException("Ref \"" + target + "\" is at " + current.orElse("nothing") + ", not at " +
+				                       expected.get());
+			writeAndCommit(lock, file, id + '\n');
+		} finally {
+			deleteQuietly(lock);
+		}
+	}
+
+	/**
+	 * Makes a ref symbolic, as <code>git symbolic-ref</code> does.
+	 *
+	 * @param name   full name of the symbolic ref, usually <code>HEAD</code>
+	 * @param target full name of the ref it will point to
+	 * @throws CLIException if the ref is locked or can't be written
+	 */
+	public
+	void link(@Nonnull final String name, @Nonnull final String target) throws CLIException {
+		checkName(name);
+		checkName(target);
+		final Path file = mDatabase.refFile(name);
+		final Path lock = lockFile(file);
+		try {
+			writeAndCommit(lock, file, SYMBOLIC_PREFIX + target + '\n');
+		} finally {
+			deleteQuietly(lock);
+		}
+	}
+
+	@Nonnull
+	private static
+	String checkName(@Nonnull final String name) throws CLIException {
+		Objects.requireNonNull(name);
+		if (!FileObjectDatabase.isValidRefName(name) || (!name.equals("HEAD") && !name.startsWith("refs/")))
+			throw new CLIException("Invalid ref name \"" + name + '"');
+		return name;
+	}
+
+	@Nonnull
+	private
+	String followSymbolic(@Nonnull final String name) throws CLIException {
+		final Path file = mDatabase.refFile(name);
+		if (!Files.isRegularFile(file))
+			return name;
+		try {
+			final String content = FileObjectDatabase.readFirstLine(file);
+			return content.startsWith(SYMBOLIC_PREFIX) ? checkName(content.substring(SYMBOLIC_PREFIX.length()).trim()) :
+			       name;
+		} catch (final IOException e) {
+			throw new CLIException("Can't read ref \"" + file + '"', e);
+		}
+	}
+
+	/**
+	 * Takes the lock, failing if somebody else has it.
+	 */
+	@Nonnull
+	private static
+	Path lockFile(@Nonnull final Path file) throws CLIException {
+		final Path lock = file.resolveSibling(file.getFileName() + ".lock");
+		try {
+			Files.createDirectories(file.getParent());
+			Files.createFile(lock);
+		} catch (final FileAlreadyExistsException e) {
+			throw new CLIException("\"" + lock + "\" exists, another process is updating the ref", e);
+		} catch (final IOException e) {
+			throw new CLIException("Can't lock \"" + file + '"', e);
+		}
+		return lock;
+	}
+
+	private static
+	void writeAndCommit(@Nonnull final Path lock, @Nonnull final Path file, @Nonnull final String content)
+			throws CLIException {
+		try {
+			try (final FileChannel channel = FileChannel.open(lock, StandardOpenOption.WRITE)) {
+				final ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+			try {
+				Files.move(lock, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(lock, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (final IOException e) {
+			throw new CLIException("Can't write ref \"" + file + '"', e);
+		}
+	}
+
+	private static
+	void deleteQuietly(@Nonnull final Path lock) {
+		try {
+			Files.deleteIfExists(lock);
+		} catch (final IOException ignored) {
+			// A stale lock is reported by the next update
+		}
+	}
+}
@@ -2,7 +2,6 @@ package org.camarena.tools.oscommands;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.io.ByteStreams;
 import org.camarena.tools.CLIException;
 import org.camarena.tools.CLIInvalidArgumentException;
 import org.camarena.tools.StreamUtils;
@@ -13,14 +12,26 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.util.stream.Collectors.joining;
 
 /**
  * @author Hermán de J. Camarena R.
@@ -32,6 +43,11 @@ class OSCommand {
 	@Nonnull
 	private final String mCommandName;
 	private Optional<Path> mPathToCommand = Optional.empty();
+	private int            mSpillThreshold = ProcessOutput.DEFAULT_SPILL_THRESHOLD;
+	@Nonnull
+	private Executor       mExecutor       = ProcessExecutors.defaultProcessExecutor();
+	@Nonnull
+	private Executor       mStreamExecutor = ProcessExecutors.defaultStreamExecutor();
 
 	public
 	OSCommand(@Nonnull final String commandName) {
@@ -54,6 +70,74 @@ class OSCommand {
 		}
 	}
 
+	/**
+	 * Executor that starts processes, reads their stdOut and waits for them.  Its bound is the maximum number of
+	 * processes this command runs concurrently.  Defaults to a pool shared by all commands, see
+	 * {@link ProcessExecutors}.
+	 *
+	 * @param executor executor for the processes
+	 */
+	public
+	void setExecutor(@Nonnull final Executor executor) {
+		Objects.requireNonNull(executor);
+		mExecutor = executor;
+	}
+
+	/**
+	 * Executor that drains stdErr of running processes.  It must not be bounded below the number of processes that
+	 * can run concurrently.
+	 *
+	 * @param streamExecutor executor for the drainers
+	 */
+	public
+	void setStreamExecutor(@Nonnull final Executor streamExecutor) {
+		Objects.requireNonNull(streamExecutor);
+		mStreamExecutor = streamExecutor;
+	}
+
+	/**
+	 * Runs processes and drainers with one virtual thread per task.
+	 *
+	 * @throws CLIException if the JVM does not support virtual threads
+	 */
+	public
+	void useVirtualThreads() throws CLIException {
+		final ExecutorService executor = ProcessExecutors.virtualThreadPerTask().orElseThrow(
+				() -> new CLIException("Virtual threads require Java 21 or later"));
+		mExecutor = executor;
+		mStreamExecutor = executor;
+	}
+
+	@Nonnull
+	protected
+	Executor getExecutor() {
+		return mExecutor;
+	}
+
+	@Nonnull
+	protected
+	Executor getStreamExecutor() {
+		return mStreamExecutor;
+	}
+
+	protected
+	int getSpillThreshold() {
+		return mSpillThreshold;
+	}
+
+	/**
+	 * Number of bytes of each output stream kept on the heap.  Bigger outputs are spilled to a memory mapped
+	 * temporary file.
+	 *
+	 * @param spillThreshold threshold in bytes
+	 */
+	public
+	void setSpillThreshold(final int spillThreshold) {
+		if (spillThreshold < 0)
+			throw new IllegalArgumentException("Spill threshold can't be negative");
+		mSpillThreshold = spillThreshold;
+	}
+
 	/**
 	 * {@link Logger} for this class.
 	 *
@@ -78,34 +162,282 @@ class OSCommand {
 		Objects.requireNonNull(argsAndOptions);
 		final String[] args = argsToProcess(argsAndOptions);
 		return CompletableFuture.supplyAsync(() -> {
+			final ProcessObservation observation = ProcessObservation.begin(metricName(args), workingDirectory);
 			try {
 				final ProcessBuilder processBuilder = new ProcessBuilder(args);
 				workingDirectory.ifPresent(processBuilder::directory);
 				final Process process = processBuilder.start();
-				// Read stdIn and stdOut in a different thread to avoid blocking due to buffering
-				final CompletableFuture<byte[]> stdOut = CompletableFuture.supplyAsync(() -> {
-					try {
-						return ByteStreams.toByteArray(process.getInputStream());
-					} catch (IOException e) {
-						throw Throwables.propagate(e);
-					}
-				});
-				final CompletableFuture<byte[]> stdErr = CompletableFuture.supplyAsync(() -> {
-					try {
-						return ByteStreams.toByteArray(process.getErrorStream());
-					} catch (IOException e) {
-						throw Throwables.propagate(e);
-					}
-				});
+				observation.started();
+				// Read stdErr in a different thread to avoid blocking due to buffering
+				final CompletableFuture<ProcessOutput> stdErr = drain(process.getErrorStream());
+				final ProcessOutput stdOut = ProcessOutput.read(process.getInputStream(), mSpillThreshold);
 				process.waitFor();
 				final int exitValue = process.exitValue();
-				return new ProcessResult(exitValue, stdOut.get(), stdErr.get(), workingDirectory, args);
+				final ProcessResult result = new ProcessResult(exitValue,
+				                                               stdOut,
+				                                               stdErr.get(),
+				                                               StandardCharsets.UTF_8,
+				                                               workingDirectory,
+				                                               args);
+				observation.end(exitValue, stdOut.size(), result.getRawStdErr().size());
+				return result;
 			} catch (IOException | InterruptedException | ExecutionException e) {
+				observation.failed();
 				throw Throwables.propagate(e);
 			}
+		}, mExecutor);
+	}
+
+	/**
+	 * Runs a command writing data to its stdIn while it runs.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @param stdIn            data for the stdIn of the process
+	 * @return the result of the process
+	 * @throws CLIException if the command is not configured
+	 */
+	protected
+	CompletableFuture<ProcessResult> runOsCommand(@Nonnull final Optional<File> workingDirectory,
+	                                              @Nonnull final Stream<String> argsAndOptions,
+	                                              @Nonnull final ProcessInput stdIn)
+			throws CLIException {
+		return OSCommandPipeline.run(stdIn, ImmutableList.of(stage(workingDirectory, argsAndOptions)))
+		                        .thenApply(results -> results.get(0));
+	}
+
+	/**
+	 * Prepares a process to be run as part of an {@link OSCommandPipeline}.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @return the stage
+	 * @throws CLIException if the command is not configured
+	 */
+	@Nonnull
+	protected
+	PipelineStage stage(@Nonnull final Optional<File> workingDirectory,
+	                    @Nonnull final Stream<String> argsAndOptions) throws CLIException {
+		return stage(workingDirectory, argsAndOptions, () -> {
 		});
 	}
 
+	/**
+	 * Prepares a process to be run as part of an {@link OSCommandPipeline}.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @param onExit           called once the process ended, successfully or not
+	 * @return the stage
+	 * @throws CLIException if the command is not configured
+	 */
+	@Nonnull
+	protected
+	PipelineStage stage(@Nonnull final Optional<File> workingDirectory,
+	                    @Nonnull final Stream<String> argsAndOptions,
+	                    @Nonnull final Runnable onExit) throws CLIException {
+		Objects.requireNonNull(workingDirectory);
+		Objects.requireNonNull(argsAndOptions);
+		return new PipelineStage(this, workingDirectory, argsToProcess(argsAndOptions), onExit);
+	}
+
+	/**
+	 * Runs a command pushing every record of its stdOut to a consumer as soon as it is read.  The consumer runs in
+	 * the thread reading the output, so a slow consumer makes the process block on its stdOut instead of buffering
+	 * the whole output in memory.  The stdOut of the returned {@link ProcessResult} is always empty.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @param separator        how the records are delimited
+	 * @param consumer         receives each record without its separator
+	 * @return the result of the process once all its output was consumed
+	 * @throws CLIException if the process can't be started
+	 */
+	protected
+	CompletableFuture<ProcessResult> runOsCommand(@Nonnull final Optional<File> workingDirectory,
+	                                              @Nonnull final Stream<String> argsAndOptions,
+	                                              @Nonnull final RecordSeparator separator,
+	                                              @Nonnull final Consumer<String> consumer)
+			throws CLIException {
+		Objects.requireNonNull(workingDirectory);
+		Objects.requireNonNull(argsAndOptions);
+		Objects.requireNonNull(separator);
+		Objects.requireNonNull(consumer);
+		final String[] args = argsToProcess(argsAndOptions);
+		return CompletableFuture.supplyAsync(() -> {
+			final ProcessObservation observation = ProcessObservation.begin(metricName(args), workingDirectory);
+			Process process = null;
+			try {
+				final ProcessBuilder processBuilder = new ProcessBuilder(args);
+				workingDirectory.ifPresent(processBuilder::directory);
+				process = processBuilder.start();
+				observation.started();
+				final CompletableFuture<ProcessOutput> stdErr = drain(process.getErrorStream());
+				final long stdOutBytes;
+				try (final RecordReader reader = new RecordReader(process.getInputStream(),
+				                                                  separator,
+				                                                  StandardCharsets.UTF_8)) {
+					String record;
+					while ((record = reader.next()) != null)
+						consumer.accept(record);
+					stdOutBytes = reader.getBytesRead();
+				}
+				process.waitFor();
+				final int exitValue = process.exitValue();
+				final ProcessOutput stdErrOutput = stdErr.get();
+				observation.end(exitValue, stdOutBytes, stdErrOutput.size());
+				return new ProcessResult(exitValue,
+				                         ProcessOutput.empty(),
+				                         stdErrOutput,
+				                         StandardCharsets.UTF_8,
+				                         workingDirectory,
+				                         args);
+			} catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+				observation.failed();
+				if (process != null)
+					process.destroy();
+				throw Throwables.propagate(e);
+			}
+		}, mExecutor);
+	}
+
+	/**
+	 * Runs a command and exposes its stdOut as a lazily read stream of records.  Nothing is buffered besides the
+	 * record being read, so the process only advances as fast as the stream is consumed.
+	 * <p>
+	 * The returned stream must be closed; closing it before reaching its end kills the process.  If the process ends
+	 * with an exit value other than 0 the stream throws when its end is reached.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @param separator        how the records are delimited
+	 * @return the records of the stdOut of the process
+	 * @throws CLIException if the process can't be started
+	 */
+	protected
+	Stream<String> streamOsCommand(@Nonnull final Optional<File> workingDirectory,
+	                               @Nonnull final Stream<String> argsAndOptions,
+	                               @Nonnull final RecordSeparator separator) throws CLIException {
+		Objects.requireNonNull(workingDirectory);
+		Objects.requireNonNull(argsAndOptions);
+		Objects.requireNonNull(separator);
+		final String[] args = argsToProcess(argsAndOptions);
+		final ProcessBuilder processBuilder = new ProcessBuilder(args);
+		workingDirectory.ifPresent(processBuilder::directory);
+		final ProcessObservation observation = ProcessObservation.begin(metricName(args), workingDirectory);
+		final Process process;
+		try {
+			process = processBuilder.start();
+		} catch (final IOException e) {
+			observation.failed();
+			throw new CLIException("Can't start \"" + mCommandName + '"', e);
+		}
+		observation.started();
+		final CompletableFuture<ProcessOutput> stdErr = drain(process.getErrorStream());
+		final RecordReader reader = new RecordReader(process.getInputStream(), separator, StandardCharsets.UTF_8);
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		final Spliterator<String> records = new Spliterators.AbstractSpliterator<String>(Long.MAX_VALUE,
+		                                                                                 Spliterator.ORDERED
+		                                                                                 | Spliterator.NONNULL) {
+			@Override
+			public
+			boolean tryAdvance(final Consumer<? super String> action) {
+				try {
+					final String record = reader.next();
+					if (record == null) {
+						process.waitFor();
+						if (ended.compareAndSet(false, true))
+							observation.end(process.exitValue(), reader.getBytesRead(), stdErr.get().size());
+						if (process.exitValue() != 0)
+							throw CLIException.rtWrap("Command failed:"
+							                          + Arrays.stream(args).collect(joining("', '", "'", "'"))
+							                          + "\nstdErr:"
+							                          + stdErr.get().asString(StandardCharsets.UTF_8));
+						return false;
+					}
+					action.accept(record);
+					return true;
+				} catch (IOException | InterruptedException | ExecutionException e) {
+					throw Throwables.propagate(e);
+				}
+			}
+		};
+		return StreamSupport.stream(records, false).onClose(() -> {
+			if (ended.compareAndSet(false, true))
+				observation.failed();
+			try {
+				reader.close();
+			} catch (final IOException e) {
+				getLogger().debug("Ignoring error closing stdOut", e);
+			} finally {
+				process.destroy();
+			}
+		});
+	}
+
+	@Nonnull
+	CompletableFuture<ProcessOutput> drain(@Nonnull final InputStream stream) {
+		final int spillThreshold = mSpillThreshold;
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return ProcessOutput.read(stream, spillThreshold);
+			} catch (IOException e) {
+				throw Throwables.propagate(e);
+			}
+		}, mStreamExecutor);
+	}
+
+	/**
+	 * Starts a long lived process the caller talks to through its stdIn and stdOut.  The stdErr of the process is
+	 * inherited so it never blocks waiting for somebody to read it.
+	 *
+	 * @param workingDirectory directory where the process is started
+	 * @param argsAndOptions   arguments for the command
+	 * @return the started process
+	 * @throws CLIException if the process can't be started
+	 */
+	protected
+	Process startOsProcess(@Nonnull final Optional<File> workingDirectory,
+	                       @Nonnull final Stream<String> argsAndOptions) throws CLIException {
+		Objects.requireNonNull(workingDirectory);
+		Objects.requireNonNull(argsAndOptions);
+		final ProcessBuilder processBuilder = new ProcessBuilder(argsToProcess(argsAndOptions));
+		workingDirectory.ifPresent(processBuilder::directory);
+		processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		final ProcessObservation observation = ProcessObservation.begin(metricName(processBuilder.command()
+		                                                                                         .toArray(new String[0])),
+		                                                                workingDirectory);
+		try {
+			final Process process = processBuilder.start();
+			// Long lived processes are only measured until they are up, their traffic is not a single request
+			observation.started();
+			observation.end(0, 0, 0);
+			return process;
+		} catch (final IOException e) {
+			observation.failed();
+			throw new CLIException("Can't start \"" + mCommandName + '"', e);
+		}
+	}
+
+	/**
+	 * Name under which the processes of this command are reported to {@link OSCommandMetrics} and to Java Flight
+	 * Recorder.
+	 *
+	 * @param args full command line, including the command itself
+	 * @return the name, by default the name of the command
+	 */
+	@Nonnull
+	protected
+	String metricName(@Nonnull final String[] args) {
+		return mCommandName;
+	}
+
+	@Nonnull
+	protected
+	String getCommandName() {
+		return mCommandName;
+	}
+
 	protected
 	String osCommand() throws CLIException {
 		return mPathToCommand.orElseThrow(() -> new CLIException("No \""
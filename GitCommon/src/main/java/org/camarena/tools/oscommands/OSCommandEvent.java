@@ -0,0 +1,45 @@
+package org.camarena.tools.oscommands;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event emitted for every process run by an {@link OSCommand}.  The duration of the event is
+ * the wall time of the process, from the request to start it until its output was consumed.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+@Name("org.camarena.tools.OSCommand")
+@Label("OS Command")
+@Category({"Git Tools", "OS Commands"})
+@Description("Process run by an OSCommand")
+@StackTrace(false)
+class OSCommandEvent extends Event {
+	@Label("Command")
+	@Description("Command and subcommand, for instance \"git checkout\"")
+	String command;
+
+	@Label("Working Directory")
+	String workingDirectory;
+
+	@Label("Spawn Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long spawnLatency;
+
+	@Label("Exit Code")
+	int exitCode;
+
+	@Label("StdOut Bytes")
+	@DataAmount
+	long stdOutBytes;
+
+	@Label("StdErr Bytes")
+	@DataAmount
+	long stdErrBytes;
+}
@@ -0,0 +1,178 @@
+package org.camarena.tools.oscommands;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import javax.annotation.Nonnull;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In process registry of counters and latency histograms for the processes run by {@link OSCommand}, keyed by
+ * command and subcommand (<code>git checkout</code>, <code>git commit</code>, <code>rsync</code>...).
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class OSCommandMetrics {
+	private static final OSCommandMetrics mgOurInstance = new OSCommandMetrics();
+
+	private final Map<String, Stats> mStats = new ConcurrentHashMap<>(32);
+
+	private
+	OSCommandMetrics() {
+	}
+
+	@Nonnull
+	public static
+	OSCommandMetrics registry() {
+		return mgOurInstance;
+	}
+
+	void record(@Nonnull final String command, final long wallNanos, final long spawnNanos, final boolean failed) {
+		mStats.computeIfAbsent(command, c -> new Stats()).record(wallNanos, spawnNanos, failed);
+	}
+
+	/**
+	 * Records the time spent in something that is not a process, like a stage of a pipeline, so it is reported with
+	 * the processes.
+	 *
+	 * @param name      what is measured
+	 * @param wallNanos time spent
+	 */
+	public
+	void recordTime(@Nonnull final String name, final long wallNanos) {
+		Objects.requireNonNull(name);
+		record(name, wallNanos, 0, false);
+	}
+
+	/**
+	 * @return statistics per command, sorted by command
+	 */
+	@Nonnull
+	public
+	ImmutableSortedMap<String, Stats> snapshot() {
+		return ImmutableSortedMap.copyOf(mStats);
+	}
+
+	public
+	void reset() {
+		mStats.clear();
+	}
+
+	/**
+	 * @return one line per command with its counters and latencies in milliseconds
+	 */
+	@Nonnull
+	public
+	String report() {
+		final StringBuilder sb = new StringBuilder(1024);
+		sb.append(String.format(Locale.ROOT,
+		                        "%-24s %10s %8s %12s %10s %10s %10s %10s %10s %10s%n",
+		                        "command", "count", "failed", "total(ms)", "avg(ms)", "spawn(ms)",
+		                        "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)"));
+		snapshot().forEach((command, stats) -> {
+			final long count = stats.getCount();
+			sb.append(String.format(Locale.ROOT,
+			                        "%-24s %10d %8d %12.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+			                        command,
+			                        count,
+			                        stats.getFailures(),
+			                        toMillis(stats.getTotalNanos()),
+			                        count == 0 ? 0.0 : toMillis(stats.getTotalNanos()) / count,
+			                        count == 0 ? 0.0 : toMillis(stats.getTotalSpawnNanos()) / count,
+			                        toMillis(stats.getPercentileNanos(0.50)),
+			                        toMillis(stats.getPercentileNanos(0.90)),
+			                        toMillis(stats.getPercentileNanos(0.99)),
+			                        toMillis(stats.getMaxNanos())));
+		});
+		return sb.toString();
+	}
+
+	private static
+	double toMillis(final long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Counters for one command.  Latencies are kept in a histogram with power of two buckets of microseconds, so
+	 * percentiles are approximated by the upper bound of their bucket.
+	 */
+	public static final
+	class Stats {
+		private static final int             BUCKETS          = 40;
+		private final        LongAdder       mCount           = new LongAdder();
+		private final        LongAdder       mFailures        = new LongAdder();
+		private final        LongAdder       mTotalNanos      = new LongAdder();
+		private final        LongAdder       mTotalSpawnNanos = new LongAdder();
+		private final        AtomicLong      mMaxNanos        = new AtomicLong();
+		private final        AtomicLongArray mHistogram       = new AtomicLongArray(BUCKETS);
+
+		private
+		Stats() {
+		}
+
+		private
+		void record(final long wallNanos, final long spawnNanos, final boolean failed) {
+			mCount.increment();
+			if (failed)
+				mFailures.increment();
+			mTotalNanos.add(wallNanos);
+			mTotalSpawnNanos.add(spawnNanos);
+			mMaxNanos.accumulateAndGet(wallNanos, Math::max);
+			final long micros = TimeUnit.NANOSECONDS.toMicros(wallNanos);
+			mHistogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		}
+
+		public
+		long getCount() {
+			return mCount.sum();
+		}
+
+		public
+		long getFailures() {
+			return mFailures.sum();
+		}
+
+		public
+		long getMaxNanos() {
+			return mMaxNanos.get();
+		}
+
+		/**
+		 * @param percentile between 0 and 1
+		 * @return upper bound of the bucket that contains the percentile, in nanoseconds
+		 */
+		public
+		long getPercentileNanos(final double percentile) {
+			long total = 0;
+			for (int inx = 0; inx < BUCKETS; inx++)
+				total += mHistogram.get(inx);
+			if (total == 0)
+				return 0;
+			final long target = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int inx = 0; inx < BUCKETS; inx++) {
+				seen += mHistogram.get(inx);
+				if (seen >= target)
+					return Math.min(getMaxNanos(), TimeUnit.MICROSECONDS.toNanos(1L << inx));
+			}
+			return getMaxNanos();
+		}
+
+		public
+		long getTotalNanos() {
+			return mTotalNanos.sum();
+		}
+
+		public
+		long getTotalSpawnNanos() {
+			return mTotalSpawnNanos.sum();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package org.camarena.tools.oscommands;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs several processes connected stdOut to stdIn, like <code>a | b | c</code> in a shell, optionally feeding the
+ * stdIn of the first one.
+ * <p>
+ * On Java 9 or later the processes are connected with OS level pipes (<code>ProcessBuilder.startPipeline</code>, looked
+ * up reflectively since this code targets Java 8), so the data between them never goes through the JVM.  On Java 8
+ * the data is pumped between the processes through a small fixed buffer.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class OSCommandPipeline {
+	private static final Logger           LOGGER         = LoggerFactory.getLogger(OSCommandPipeline.class);
+	private static final Optional<Method> START_PIPELINE = findStartPipeline();
+
+	private
+	OSCommandPipeline() {
+	}
+
+	/**
+	 * Runs the stages.  The processes run on the executor of the command of the last stage.
+	 *
+	 * @param stdIn  data for the stdIn of the first stage
+	 * @param stages stages of the pipeline, in order
+	 * @return one result per stage.  Only the last one has a stdOut
+	 */
+	@Nonnull
+	public static
+	CompletableFuture<ImmutableList<ProcessResult>> run(@Nonnull final ProcessInput stdIn,
+	                                                    @Nonnull final List<PipelineStage> stages) {
+		Objects.requireNonNull(stdIn);
+		Objects.requireNonNull(stages);
+		if (stages.isEmpty())
+			throw new IllegalArgumentException("A pipeline needs at least one stage");
+		final ImmutableList<PipelineStage> allStages = ImmutableList.copyOf(stages);
+		final OSCommand owner = allStages.get(allStages.size() - 1).getCommand();
+		return CompletableFuture.supplyAsync(() -> runStages(stdIn, allStages, owner), owner.getExecutor());
+	}
+
+	@Nonnull
+	private static
+	ImmutableList<ProcessResult> runStages(@Nonnull final ProcessInput stdIn,
+	                                       @Nonnull final ImmutableList<PipelineStage> stages,
+	                                       @Nonnull final OSCommand owner) {
+		final Executor streamExecutor = owner.getStreamExecutor();
+		final List<ProcessBuilder> builders = new ArrayList<>(stages.size());
+		stages.forEach(s -> builders.add(s.toProcessBuilder()));
+		stdIn.asFile().ifPresent(f -> builders.get(0).redirectInput(f.toFile()));
+		final List<Process> processes = new ArrayList<>(stages.size());
+		final List<ProcessObservation> observations = new ArrayList<>(stages.size());
+		stages.forEach(s -> observations.add(ProcessObservation.begin(s.getCommand().metricName(s.getArgs()),
+		                                                              s.getWorkingDirectory())));
+		try {
+			final boolean connected = start(builders, processes);
+			observations.forEach(ProcessObservation::started);
+			final List<CompletableFuture<ProcessOutput>> stdErrs = new ArrayList<>(processes.size());
+			processes.forEach(p -> stdErrs.add(owner.drain(p.getErrorStream())));
+			final CompletableFuture<Void> feeder;
+			if (stdIn.asFile().isPresent())
+				feeder = CompletableFuture.completedFuture(null);
+			else
+				feeder = CompletableFuture.runAsync(() -> {
+					try (final OutputStream out = processes.get(0).getOutputStream()) {
+						stdIn.writeTo(out);
+					} catch (final IOException e) {
+						throw Throwables.propagate(e);
+					}
+				}, streamExecutor);
+			final List<CompletableFuture<Void>> pumps = new ArrayList<>(processes.size());
+			if (!connected) {
+				for (int inx = 0; inx < processes.size() - 1; inx++) {
+					final InputStream from = processes.get(inx).getInputStream();
+					final OutputStream to = processes.get(inx + 1).getOutputStream();
+					pumps.add(CompletableFuture.runAsync(() -> pump(from, to), streamExecutor));
+				}
+			}
+			final ProcessOutput stdOut = ProcessOutput.read(processes.get(processes.size() - 1).getInputStream(),
+			                                                owner.getSpillThreshold());
+			boolean allSucceeded = true;
+			for (final Process process : processes) {
+				process.waitFor();
+				allSucceeded &= process.exitValue() == 0;
+			}
+			try {
+				feeder.get();
+				for (final CompletableFuture<Void> pump : pumps)
+					pump.get();
+			} catch (final ExecutionException e) {
+				// A process that fails usually stops reading its stdIn, what is reported is its exit value
+				if (allSucceeded)
+					throw e;
+				LOGGER.debug("Ignoring error writing to a failed process", e);
+			}
+			final ImmutableList.Builder<ProcessResult> results = ImmutableList.builder();
+			for (int inx = 0; inx < processes.size(); inx++) {
+				final PipelineStage stage = stages.get(inx);
+				final ProcessOutput stageStdOut = inx == processes.size() - 1 ? stdOut : ProcessOutput.empty();
+				final ProcessOutput stageStdErr = stdErrs.get(inx).get();
+				observations.get(inx).end(processes.get(inx).exitValue(), stageStdOut.size(), stageStdErr.size());
+				results.add(new ProcessResult(processes.get(inx).exitValue(),
+				                              stageStdOut,
+				                              stageStdErr,
+				                              StandardCharsets.UTF_8,
+				                              stage.getWorkingDirectory(),
+				                              stage.getArgs()));
+			}
+			return results.build();
+		} catch (IOException | InterruptedException | ExecutionException | RuntimeException e) {
+			observations.forEach(ProcessObservation::failed);
+			processes.forEach(Process::destroy);
+			throw Throwables.propagate(e);
+		} finally {
+			stages.forEach(PipelineStage::exited);
+		}
+	}
+
+	/**
+	 * @return true if the processes are connected by the OS, false if the data must be pumped between them
+	 */
+	private static
+	boolean start(@Nonnull final List<ProcessBuilder> builders, @Nonnull final List<Process> processes)
+			throws IOException {
+		if (builders.size() > 1 && START_PIPELINE.isPresent()) {
+			try {
+				@SuppressWarnings("unchecked")
+				final List<Process> started = (List<Process>) START_PIPELINE.get().invoke(null, builders);
+				processes.addAll(started);
+				return true;
+			} catch (final IllegalAccessException e) {
+				throw new IOException("Can't start pipeline", e);
+			} catch (final InvocationTargetException e) {
+				Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+				throw Throwables.propagate(e.getCause());
+			}
+		}
+		for (final ProcessBuilder builder : builders)
+			processes.add(builder.start());
+		return builders.size() == 1;
+	}
+
+	private static
+	void pump(@Nonnull final InputStream from, @Nonnull final OutputStream to) {
+		try (final InputStream in = from; final OutputStream out = to) {
+			ByteStreams.copy(in, out);
+		} catch (final IOException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	@Nonnull
+	private static
+	Optional<Method> findStartPipeline() {
+		try {
+			return Optional.of(ProcessBuilder.class.getMethod("startPipeline", List.class));
+		} catch (final NoSuchMethodException e) {
+			LOGGER.debug("ProcessBuilder.startPipeline not available, data will be pumped between processes");
+			return Optional.empty();
+		}
+	}
+}
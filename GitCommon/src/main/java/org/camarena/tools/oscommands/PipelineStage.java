@@ -0,0 +1,71 @@
+package org.camarena.tools.oscommands;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * One process of an {@link OSCommandPipeline}.  Created by the commands, see
+ * {@link OSCommand#stage(Optional, java.util.stream.Stream)}.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+@SuppressWarnings({"AssignmentToCollectionOrArrayFieldFromParameter", "ReturnOfCollectionOrArrayField"})
+public
+class PipelineStage {
+	@Nonnull
+	private final OSCommand      mCommand;
+	@Nonnull
+	private final Optional<File> mWorkingDirectory;
+	@Nonnull
+	private final String[]       mArgs;
+	@Nonnull
+	private final Runnable       mOnExit;
+
+	PipelineStage(@Nonnull final OSCommand command,
+	              @Nonnull final Optional<File> workingDirectory,
+	              @Nonnull final String[] args,
+	              @Nonnull final Runnable onExit) {
+		Objects.requireNonNull(command);
+		Objects.requireNonNull(workingDirectory);
+		Objects.requireNonNull(args);
+		Objects.requireNonNull(onExit);
+		mCommand = command;
+		mWorkingDirectory = workingDirectory;
+		mArgs = args;
+		mOnExit = onExit;
+	}
+
+	@Nonnull
+	public
+	String[] getArgs() {
+		return mArgs;
+	}
+
+	@Nonnull
+	public
+	OSCommand getCommand() {
+		return mCommand;
+	}
+
+	@Nonnull
+	public
+	Optional<File> getWorkingDirectory() {
+		return mWorkingDirectory;
+	}
+
+	/**
+	 * Called by the pipeline once the process of this stage ended, successfully or not.
+	 */
+	void exited() {
+		mOnExit.run();
+	}
+
+	@Nonnull
+	ProcessBuilder toProcessBuilder() {
+		final ProcessBuilder processBuilder = new ProcessBuilder(mArgs);
+		mWorkingDirectory.ifPresent(processBuilder::directory);
+		return processBuilder;
+	}
+}
@@ -0,0 +1,105 @@
+package org.camarena.tools.oscommands;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors used to run OS processes.  Waiting for a process and draining its output are blocking I/O, so they must
+ * not run on the common {@link java.util.concurrent.ForkJoinPool}.
+ * <p>
+ * Two kinds of tasks are involved: the task that starts a process, reads its stdOut and waits for it, and the task
+ * that drains its stdErr.  The first kind is bounded, the second one runs on its own pool so a process task never
+ * waits for a drainer stuck in the queue behind other process tasks.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class ProcessExecutors {
+	private static final Logger LOGGER                = LoggerFactory.getLogger(ProcessExecutors.class);
+	public static final  int    DEFAULT_MAX_PROCESSES = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	private
+	ProcessExecutors() {
+	}
+
+	/**
+	 * Executor that runs at most <code>maxProcesses</code> processes at the same time.  Extra requests wait in the
+	 * queue.  Threads are daemons so a forgotten executor does not keep the JVM alive.
+	 *
+	 * @param maxProcesses maximum number of processes running concurrently
+	 * @return the executor
+	 */
+	@Nonnull
+	public static
+	ExecutorService bounded(final int maxProcesses) {
+		if (maxProcesses < 1)
+			throw new IllegalArgumentException("At least one process must be allowed");
+		return Executors.newFixedThreadPool(maxProcesses, new ThreadFactoryBuilder().setDaemon(true)
+		                                                                            .setNameFormat("os-command-%d")
+		                                                                            .build());
+	}
+
+	/**
+	 * Executor for the tasks that drain the output streams of running processes.  There is at most one of these per
+	 * running process so it does not need a bound of its own.
+	 *
+	 * @return the executor
+	 */
+	@Nonnull
+	public static
+	ExecutorService streamDrainers() {
+		return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+		                                                               .setNameFormat("os-command-stream-%d")
+		                                                               .build());
+	}
+
+	/**
+	 * Executor that starts a new virtual thread per task.  Only available when running on a JVM that supports virtual
+	 * threads (21 or later); this code is compiled for older versions so it is looked up reflectively.
+	 *
+	 * @return the executor or empty if the JVM does not support virtual threads
+	 */
+	@Nonnull
+	public static
+	Optional<ExecutorService> virtualThreadPerTask() {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return Optional.of((ExecutorService) factory.invoke(null));
+		} catch (final NoSuchMethodException e) {
+			LOGGER.debug("Virtual threads are not supported by this JVM");
+			return Optional.empty();
+		} catch (final IllegalAccessException | InvocationTargetException e) {
+			LOGGER.warn("Can't create virtual thread executor", e);
+			return Optional.empty();
+		}
+	}
+
+	@Nonnull
+	static
+	ExecutorService defaultProcessExecutor() {
+		return DefaultExecutors.PROCESSES;
+	}
+
+	@Nonnull
+	static
+	ExecutorService defaultStreamExecutor() {
+		return DefaultExecutors.STREAMS;
+	}
+
+	/**
+	 * Holder so the default pools are only created when first used.
+	 */
+	private static final
+	class DefaultExecutors {
+		private static final ExecutorService PROCESSES = bounded(DEFAULT_MAX_PROCESSES);
+		private static final ExecutorService STREAMS   = streamDrainers();
+	}
+}
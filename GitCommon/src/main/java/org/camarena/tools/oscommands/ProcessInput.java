@@ -0,0 +1,108 @@
+package org.camarena.tools.oscommands;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Data written to the stdIn of a process.  It is written from its own thread while the process runs, so it can be
+ * produced lazily and never needs to be held in memory as a whole.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+@FunctionalInterface
+public
+interface ProcessInput {
+	/**
+	 * Nothing is written; stdIn is closed right away.
+	 *
+	 * @return an empty input
+	 */
+	@Nonnull
+	static
+	ProcessInput none() {
+		return out -> {
+		};
+	}
+
+	@Nonnull
+	static
+	ProcessInput of(@Nonnull final byte[] bytes) {
+		Objects.requireNonNull(bytes);
+		return out -> out.write(bytes);
+	}
+
+	/**
+	 * The content of a file.  When it is the input of a process the file is connected directly to its stdIn, so the
+	 * data does not go through the JVM.
+	 *
+	 * @param file file to send
+	 * @return the input
+	 */
+	@Nonnull
+	static
+	ProcessInput of(@Nonnull final Path file) {
+		Objects.requireNonNull(file);
+		return new ProcessInput() {
+			@Override
+			public
+			void writeTo(@Nonnull final OutputStream out) throws IOException {
+				Files.copy(file, out);
+			}
+
+			@Nonnull
+			@Override
+			public
+			Optional<Path> asFile() {
+				return Optional.of(file);
+			}
+		};
+	}
+
+	/**
+	 * Records written in UTF-8, each one followed by the separator.  The stream is consumed while the process runs.
+	 *
+	 * @param records   records to write
+	 * @param separator separator written after each record
+	 * @return the input
+	 */
+	@Nonnull
+	static
+	ProcessInput ofRecords(@Nonnull final Stream<String> records, @Nonnull final RecordSeparator separator) {
+		Objects.requireNonNull(records);
+		Objects.requireNonNull(separator);
+		return out -> {
+			try (final Stream<String> toWrite = records) {
+				final Iterator<String> iterator = toWrite.iterator();
+				while (iterator.hasNext()) {
+					out.write(iterator.next().getBytes(StandardCharsets.UTF_8));
+					out.write(separator.getSeparator());
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the data.  The stream is closed by the caller once this method returns.
+	 *
+	 * @param out stdIn of the process
+	 * @throws IOException if the data can't be written
+	 */
+	void writeTo(@Nonnull final OutputStream out) throws IOException;
+
+	/**
+	 * @return the file with the data, if the input is just the content of a file
+	 */
+	@Nonnull
+	default
+	Optional<Path> asFile() {
+		return Optional.empty();
+	}
+}
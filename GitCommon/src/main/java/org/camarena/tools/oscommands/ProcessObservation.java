@@ -0,0 +1,87 @@
+package org.camarena.tools.oscommands;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Measures one process for {@link OSCommandEvent} and {@link OSCommandMetrics}.
+ * <p>
+ * Flight Recorder is not part of every Java 8 JVM, it is looked up once and without it no event is created, so
+ * {@link OSCommandEvent} is never loaded.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class ProcessObservation {
+	private static final boolean FLIGHT_RECORDER = isFlightRecorderAvailable();
+
+	@Nonnull
+	private final String         mCommand;
+	@Nullable
+	private final OSCommandEvent mEvent;
+	private final long           mStart;
+	private       long           mSpawnNanos;
+	private       boolean        mEnded;
+
+	private
+	ProcessObservation(@Nonnull final String command, @Nonnull final Optional<File> workingDirectory) {
+		mCommand = command;
+		mStart = System.nanoTime();
+		mEvent = FLIGHT_RECORDER ? new OSCommandEvent() : null;
+		if (mEvent != null && mEvent.isEnabled()) {
+			mEvent.begin();
+			mEvent.command = command;
+			mEvent.workingDirectory = workingDirectory.map(File::toString).orElse("");
+		}
+	}
+
+	@Nonnull
+	static
+	ProcessObservation begin(@Nonnull final String command, @Nonnull final Optional<File> workingDirectory) {
+		return new ProcessObservation(command, workingDirectory);
+	}
+
+	private static
+	boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, ProcessObservation.class.getClassLoader());
+			return true;
+		} catch (final ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Called once the process was started.
+	 */
+	void started() {
+		mSpawnNanos = System.nanoTime() - mStart;
+	}
+
+	void end(final int exitCode, final long stdOutBytes, final long stdErrBytes) {
+		if (mEnded)
+			return;
+		mEnded = true;
+		OSCommandMetrics.registry().record(mCommand, System.nanoTime() - mStart, mSpawnNanos, exitCode != 0);
+		if (mEvent != null && mEvent.isEnabled()) {
+			mEvent.end();
+			if (mEvent.shouldCommit()) {
+				mEvent.spawnLatency = mSpawnNanos;
+				mEvent.exitCode = exitCode;
+				mEvent.stdOutBytes = stdOutBytes;
+				mEvent.stdErrBytes = stdErrBytes;
+				mEvent.commit();
+			}
+		}
+	}
+
+	/**
+	 * Called when the process could not be run or its output could not be read.  Ignored if the process was already
+	 * reported.
+	 */
+	void failed() {
+		end(-1, 0, 0);
+	}
+}
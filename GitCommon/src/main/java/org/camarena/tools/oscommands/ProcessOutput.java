@@ -0,0 +1,182 @@
+package org.camarena.tools.oscommands;
+
+import org.camarena.tools.RecordCursor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Raw bytes written by a process to one of its output streams.  Up to a threshold the bytes are kept on the heap;
+ * bigger outputs are spilled to a temporary file that is memory mapped, so the heap stays flat no matter how much a
+ * command writes.  Nothing is decoded until a caller asks for it.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class ProcessOutput {
+	public static final  int           DEFAULT_SPILL_THRESHOLD = 8 * 1024 * 1024;
+	private static final ProcessOutput EMPTY                   = new ProcessOutput(ByteBuffer.allocate(0));
+
+	/**
+	 * Read only view of the bytes, either a heap buffer or a mapped file.
+	 */
+	@Nonnull
+	private final ByteBuffer mBytes;
+
+	private
+	ProcessOutput(@Nonnull final ByteBuffer bytes) {
+		mBytes = bytes;
+	}
+
+	@Nonnull
+	public static
+	ProcessOutput empty() {
+		return EMPTY;
+	}
+
+	@Nonnull
+	public static
+	ProcessOutput of(@Nonnull final byte[] bytes) {
+		Objects.requireNonNull(bytes);
+		return new ProcessOutput(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+	}
+
+	/**
+	 * Reads a stream until its end.
+	 *
+	 * @param input          stream to read, it is not closed
+	 * @param spillThreshold number of bytes kept on the heap before spilling to a temporary file
+	 * @return the bytes read
+	 * @throws IOException if the stream can't be read or the temporary file can't be written
+	 */
+	@Nonnull
+	public static
+	ProcessOutput read(@Nonnull final InputStream input, final int spillThreshold) throws IOException {
+		Objects.requireNonNull(input);
+		byte[] buffer = new byte[Math.min(8192, Math.max(spillThreshold, 1))];
+		int count = 0;
+		//noinspection ForLoopWithMissingComponent
+		for (; ; ) {
+			if (count == buffer.length) {
+				if (count >= spillThreshold)
+					return spill(input, buffer, count);
+				buffer = Arrays.copyOf(buffer, Math.min(spillThreshold, buffer.length * 2));
+			}
+			final int read = input.read(buffer, count, buffer.length - count);
+			if (read < 0)
+				break;
+			count += read;
+		}
+		return new ProcessOutput(ByteBuffer.wrap(buffer, 0, count).slice().asReadOnlyBuffer());
+	}
+
+	@Nonnull
+	private static
+	ProcessOutput spill(@Nonnull final InputStream input, @Nonnull final byte[] head, final int headCount)
+			throws IOException {
+		final Path spillFile = Files.createTempFile("ProcessOutput", ".tmp");
+		try {
+			try (final OutputStream out = Files.newOutputStream(spillFile)) {
+				out.write(head, 0, headCount);
+				final byte[] buffer = new byte[65536];
+				int read;
+				while ((read = input.read(buffer)) >= 0)
+					out.write(buffer, 0, read);
+			}
+			try (final FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+				if (channel.size() > Integer.MAX_VALUE)
+					throw new IOException("Process output of " + channel.size() + " bytes is too big to be mapped");
+				final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return new ProcessOutput(mapped);
+			}
+		} finally {
+			// The mapping stays valid after the file is gone
+			if (!spillFile.toFile().delete())
+				spillFile.toFile().deleteOnExit();
+		}
+	}
+
+	/**
+	 * @return a read only view of the bytes, positioned at the start
+	 */
+	@Nonnull
+	public
+	ByteBuffer asByteBuffer() {
+		return mBytes.duplicate();
+	}
+
+	/**
+	 * @param separator how the records are delimited
+	 * @return a cursor over the records, see {@link RecordCursor}
+	 */
+	@Nonnull
+	public
+	RecordCursor cursor(@Nonnull final RecordSeparator separator) {
+		Objects.requireNonNull(separator);
+		return new RecordCursor(asByteBuffer(), separator.getSeparator());
+	}
+
+	@Nonnull
+	public
+	String asString(@Nonnull final Charset charset) {
+		Objects.requireNonNull(charset);
+		return charset.decode(asByteBuffer()).toString();
+	}
+
+	public
+	boolean isEmpty() {
+		return mBytes.limit() == 0;
+	}
+
+	public
+	boolean isSpilled() {
+		return mBytes instanceof MappedByteBuffer;
+	}
+
+	@Nonnull
+	public
+	InputStream openStream() {
+		final ByteBuffer bytes = asByteBuffer();
+		return new InputStream() {
+			@Override
+			public
+			int read() {
+				return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+			}
+
+			@Override
+			public
+			int read(@Nonnull final byte[] b, final int off, final int len) {
+				if (len == 0)
+					return 0;
+				if (!bytes.hasRemaining())
+					return -1;
+				final int count = Math.min(len, bytes.remaining());
+				bytes.get(b, off, count);
+				return count;
+			}
+
+			@Override
+			public
+			int available() {
+				return bytes.remaining();
+			}
+		};
+	}
+
+	public
+	int size() {
+		return mBytes.limit();
+	}
+}
@@ -2,9 +2,15 @@ package org.camarena.tools.oscommands;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import java.util.Optional;
 
 /**
+ * Outcome of a process.  The outputs are kept as raw bytes (see {@link ProcessOutput}) and only decoded when they
+ * are requested, using the charset given when the result was created unless another one is asked for.
+ *
  * @author Hermán de J. Camarena R.
  */
 @SuppressWarnings({"AssignmentToCollectionOrArrayFieldFromParameter", "ReturnOfCollectionOrArrayField"})
@@ -14,11 +20,13 @@ class ProcessResult {
 	@Nonnull
 	private final Optional<File> mWorkingDirectory;
 	@Nonnull
-	private final String[] mArgs;
+	private final String[]       mArgs;
 	@Nonnull
-	private final String mStdOut;
+	private final ProcessOutput  mStdOut;
 	@Nonnull
-	private final String mStdErr;
+	private final ProcessOutput  mStdErr;
+	@Nonnull
+	private final Charset        mCharset;
 
 	@Nonnull
 	public
@@ -37,11 +45,29 @@ class ProcessResult {
 	              @Nonnull final byte[] stdOut,
 	              @Nonnull final byte[] stdErr,
 	              @Nonnull final Optional<File> workingDirectory, @Nonnull final String[] args) {
+		this(exitValue,
+		     ProcessOutput.of(stdOut),
+		     ProcessOutput.of(stdErr),
+		     StandardCharsets.UTF_8,
+		     workingDirectory,
+		     args);
+	}
+
+	public
+	ProcessResult(final int exitValue,
+	              @Nonnull final ProcessOutput stdOut,
+	              @Nonnull final ProcessOutput stdErr,
+	              @Nonnull final Charset charset,
+	              @Nonnull final Optional<File> workingDirectory, @Nonnull final String[] args) {
+		Objects.requireNonNull(stdOut);
+		Objects.requireNonNull(stdErr);
+		Objects.requireNonNull(charset);
 		mExitValue = exitValue;
 		mWorkingDirectory = workingDirectory;
 		mArgs = args;
-		mStdOut = new String(stdOut);
-		mStdErr = new String(stdErr);
+		mStdOut = stdOut;
+		mStdErr = stdErr;
+		mCharset = charset;
 	}
 
 	public
@@ -49,15 +75,59 @@ class ProcessResult {
 		return mExitValue;
 	}
 
+	@Nonnull
+	public
+	Charset getCharset() {
+		return mCharset;
+	}
+
+	/**
+	 * Decodes stdErr.  Every call decodes it again, so callers that need it more than once should keep the value.
+	 *
+	 * @return stdErr decoded with the charset of this result
+	 */
 	@Nonnull
 	public
 	String getStdErr() {
-		return mStdErr;
+		return mStdErr.asString(mCharset);
 	}
 
+	/**
+	 * Decodes stdOut.  Every call decodes it again, so callers that need it more than once should keep the value.
+	 *
+	 * @return stdOut decoded with the charset of this result
+	 */
 	@Nonnull
 	public
 	String getStdOut() {
+		return mStdOut.asString(mCharset);
+	}
+
+	@Nonnull
+	public
+	String getStdOut(@Nonnull final Charset charset) {
+		return mStdOut.asString(charset);
+	}
+
+	/**
+	 * Raw stdErr, for callers that want to parse it without decoding it as a whole.
+	 *
+	 * @return raw stdErr
+	 */
+	@Nonnull
+	public
+	ProcessOutput getRawStdErr() {
+		return mStdErr;
+	}
+
+	/**
+	 * Raw stdOut, for callers that want to parse it without decoding it as a whole.
+	 *
+	 * @return raw stdOut
+	 */
+	@Nonnull
+	public
+	ProcessOutput getRawStdOut() {
 		return mStdOut;
 	}
 }
@@ -0,0 +1,100 @@
+package org.camarena.tools.oscommands;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Objects;
+
+/**
+ * Reads delimited records from the output of a process without holding more than one record in memory.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class RecordReader implements Closeable {
+	@Nonnull
+	private final InputStream           mInput;
+	@Nonnull
+	private final RecordSeparator       mSeparator;
+	@Nonnull
+	private final Charset               mCharset;
+	private final byte[]                mBuffer = new byte[65536];
+	private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(256);
+	private       int                   mPosition;
+	private       int                   mLimit;
+	private       long                  mBytesRead;
+
+	public
+	RecordReader(@Nonnull final InputStream input,
+	             @Nonnull final RecordSeparator separator,
+	             @Nonnull final Charset charset) {
+		Objects.requireNonNull(input);
+		Objects.requireNonNull(separator);
+		Objects.requireNonNull(charset);
+		mInput = input;
+		mSeparator = separator;
+		mCharset = charset;
+	}
+
+	/**
+	 * Reads the next record.  A last record without a terminator is returned as well.
+	 *
+	 * @return the record without its separator or null at the end of the input
+	 * @throws IOException if the input can't be read
+	 */
+	@Nullable
+	public
+	String next() throws IOException {
+		final byte separator = mSeparator.getSeparator();
+		mRecord.reset();
+		boolean readSomething = false;
+		//noinspection ForLoopWithMissingComponent
+		for (; ; ) {
+			if (mPosition == mLimit) {
+				mLimit = mInput.read(mBuffer);
+				mPosition = 0;
+				if (mLimit < 0) {
+					mLimit = 0;
+					return readSomething ? toRecord() : null;
+				}
+				mBytesRead += mLimit;
+			}
+			readSomething = true;
+			final int start = mPosition;
+			while (mPosition < mLimit && mBuffer[mPosition] != separator)
+				mPosition++;
+			mRecord.write(mBuffer, start, mPosition - start);
+			if (mPosition < mLimit) {
+				mPosition++;
+				return toRecord();
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes read from the input so far
+	 */
+	public
+	long getBytesRead() {
+		return mBytesRead;
+	}
+
+	@Override
+	public
+	void close() throws IOException {
+		mInput.close();
+	}
+
+	@Nonnull
+	private
+	String toRecord() {
+		String record = new String(mRecord.toByteArray(), mCharset);
+		if (mSeparator == RecordSeparator.LINE && record.endsWith("\r"))
+			record = record.substring(0, record.length() - 1);
+		return record;
+	}
+}
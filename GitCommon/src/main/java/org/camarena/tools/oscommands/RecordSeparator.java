@@ -0,0 +1,29 @@
+package org.camarena.tools.oscommands;
+
+/**
+ * How the records in the output of a command are delimited.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+enum RecordSeparator {
+	/**
+	 * One record per line.  A trailing carriage return is removed.
+	 */
+	LINE((byte) '\n'),
+	/**
+	 * Records terminated by NUL, as produced by <code>-z</code> or <code>%x00</code> in git formats.
+	 */
+	NUL((byte) 0);
+
+	private final byte mSeparator;
+
+	RecordSeparator(final byte separator) {
+		mSeparator = separator;
+	}
+
+	public
+	byte getSeparator() {
+		return mSeparator;
+	}
+}
@@ -0,0 +1,459 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.CLIException;
+import org.camarena.tools.RecordCursor;
+import org.camarena.tools.gitobjects.GitPersonIdent;
+import org.camarena.tools.gitobjects.ObjectIdIntMap;
+import org.camarena.tools.gitobjects.ObjectIds;
+import org.camarena.tools.oscommands.ProcessOutput;
+import org.camarena.tools.oscommands.RecordSeparator;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Topology and metadata of every commit reachable from a set of revisions, loaded with a single
+ * <code>git rev-list</code> (see {@link GitCommand#loadCommitGraph(java.nio.file.Path, Collection)}).
+ * <p>
+ * Commits are identified by dense int ids, <code>0</code> to <code>size() - 1</code>, in topological order with
+ * parents before their children.  Everything is stored in columns of primitive arrays: binary shas, parents as an
+ * adjacency list, author identities interned into a table, author dates as epoch seconds plus time zone offset.
+ * Messages are not copied: they are decoded on demand from the rev-list output, which is kept as is (memory mapped,
+ * so off the heap, when the output was large).
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class CommitGraph {
+	/**
+	 * Returned by {@link #indexOf(CharSequence)} for a commit that is not in the graph.
+	 */
+	public static final  int    NONE               = ObjectIdIntMap.NOT_FOUND;
+	/**
+	 * Format for <code>rev-list --format</code>.  rev-list writes its own <code>commit ...</code> line before each
+	 * commit, so every commit is five NUL terminated records: that line, sha, parents, author and message.
+	 */
+	static final         String FORMAT             = "%x00%H%x00%P%x00%an <%ae> %ad%x00%B%x00";
+	private static final int    RECORDS_PER_COMMIT = 5;
+
+	@Nonnull
+	private final ByteBuffer     mOutput;
+	private final int            mSize;
+	@Nonnull
+	private final byte[]         mIds;
+	@Nonnull
+	private final ObjectIdIntMap mIndex;
+	@Nonnull
+	private final int[]          mParentStart;
+	@Nonnull
+	private final int[]          mParents;
+	@Nonnull
+	private final int[]          mAuthors;
+	@Nonnull
+	private final String[]       mIdentities;
+	@Nonnull
+	private final long[]         mAuthorTimes;
+	@Nonnull
+	private final short[]        mAuthorTimeZones;
+	@Nonnull
+	private final int[]          mMessageStarts;
+	@Nonnull
+	private final int[]          mMessageEnds;
+	@Nonnull
+	private final BitSet         mGrafted;
+
+	private
+	CommitGraph(@Nonnull final Builder builder) {
+		mOutput = builder.mOutput;
+		mSize = builder.mSize;
+		mIds = Arrays.copyOf(builder.mIds, mSize * ObjectIds.RAW_LENGTH);
+		mIndex = builder.mIndex;
+		mParentStart = Arrays.copyOf(builder.mParentStart, mSize + 1);
+		mParents = Arrays.copyOf(builder.mParents, builder.mParentCount);
+		mAuthors = Arrays.copyOf(builder.mAuthors, mSize);
+		mIdentities = builder.mIdentities.toArray(new String[builder.mIdentities.size()]);
+		mAuthorTimes = Arrays.copyOf(builder.mAuthorTimes, mSize);
+		mAuthorTimeZones = Arrays.copyOf(builder.mAuthorTimeZones, mSize);
+		mMessageStarts = Arrays.copyOf(builder.mMessageStarts, mSize);
+		mMessageEnds = Arrays.copyOf(builder.mMessageEnds, mSize);
+		mGrafted = new BitSet(0);
+	}
+
+	/**
+	 * Copies the commits of <code>graph</code> in <code>included</code>, dropping their links to the other ones.
+	 */
+	private
+	CommitGraph(@Nonnull final CommitGraph graph, @Nonnull final BitSet included) {
+		final int[] newIds = new int[graph.mSize];
+		Arrays.fill(newIds, NONE);
+		mOutput = graph.mOutput;
+		mSize = included.cardinality();
+		mIds = new byte[mSize * ObjectIds.RAW_LENGTH];
+		mIndex = new ObjectIdIntMap(mSize);
+		mParentStart = new int[mSize + 1];
+		int parentCount = 0;
+		for (int commit = included.nextSetBit(0); commit >= 0; commit = included.nextSetBit(commit + 1)) {
+			for (int n = 0; n < graph.getParentCount(commit); n++) {
+				if (included.get(graph.getParent(commit, n)))
+					parentCount++;
+			}
+		}
+		mParents = new int[parentCount];
+		mAuthors = new int[mSize];
+		mIdentities = graph.mIdentities;
+		mAuthorTimes = new long[mSize];
+		mAuthorTimeZones = new short[mSize];
+		mMessageStarts = new int[mSize];
+		mMessageEnds = new int[mSize];
+		mGrafted = new BitSet(mSize);
+		int id = 0;
+		parentCount = 0;
+		for (int commit = included.nextSetBit(0); commit >= 0; commit = included.nextSetBit(commit + 1), id++) {
+			newIds[commit] = id;
+			System.arraycopy(graph.mIds, commit * ObjectIds.RAW_LENGTH, mIds, id * ObjectIds.RAW_LENGTH,
+			                 ObjectIds.RAW_LENGTH);
+			mIndex.put(mIds, id * ObjectIds.RAW_LENGTH, id);
+			for (int n = 0; n < graph.getParentCount(commit); n++) {
+				final int parent = newIds[graph.getParent(commit, n)];
+				if (parent == NONE)
+					mGrafted.set(id);
+				else
+					mParents[parentCount++] = parent;
+			}
+			mParentStart[id + 1] = parentCount;
+			mAuthors[id] = graph.mAuthors[commit];
+			mAuthorTimes[id] = graph.mAuthorTimes[commit];
+			mAuthorTimeZones[id] = graph.mAuthorTimeZones[commit];
+			mMessageStarts[id] = graph.mMessageStarts[commit];
+			mMessageEnds[id] = graph.mMessageEnds[commit];
+		}
+	}
+
+	/**
+	 * Parses the output of <code>rev-list --topo-order --reverse --date=raw --format=</code>{@link #FORMAT}.  The
+	 * graph keeps a reference to the output.
+	 *
+	 * @param output raw output of rev-list
+	 * @return the graph
+	 * @throws CLIException if the output is malformed
+	 */
+	@Nonnull
+	static
+	CommitGraph parse(@Nonnull final ProcessOutput output) throws CLIException {
+		Objects.requireNonNull(output);
+		final Builder builder = new Builder(output.asByteBuffer());
+		final RecordCursor cursor = output.cursor(RecordSeparator.NUL);
+		int record = 0;
+		try {
+			while (cursor.nextRecord()) {
+				switch (record++ % RECORDS_PER_COMMIT) {
+					case 0:
+						// The "commit <sha> <parents>" line of rev-list, the same data comes in the next records.
+						// The output ends with a new line after the last NUL, which is not a commit.
+						if (!cursor.nextWord())
+							record--;
+						break;
+					case 1:
+						builder.addCommit(cursor.record());
+						break;
+					case 2:
+						while (cursor.nextWord())
+							builder.addParent(cursor.field());
+						break;
+					case 3:
+						builder.setAuthor(cursor);
+						break;
+					default:
+						builder.setMessage(cursor.recordStart(), cursor.recordEnd());
+						break;
+				}
+			}
+		} catch (final IllegalArgumentException e) {
+			throw new CLIException("Malformed rev-list output in commit " + builder.mSize, e);
+		}
+		if (record % RECORDS_PER_COMMIT != 0)
+			throw new CLIException("Truncated rev-list output after commit " + builder.mSize);
+		return new CommitGraph(builder);
+	}
+
+	/**
+	 * Restricts the graph to some of its commits.  Links to the commits left out are dropped: a commit whose parents
+	 * are all left out becomes a root and a merge with a single parent left becomes a plain commit.  Those commits are
+	 * reported by {@link #isGrafted(int)}.
+	 * <p>
+	 * Ids are renumbered, the order of the commits is kept.  The new graph shares the rev-list output and the
+	 * identity table with this one.
+	 *
+	 * @param included ids of the commits to keep
+	 * @return the restricted graph
+	 */
+	@Nonnull
+	public
+	CommitGraph window(@Nonnull final BitSet included) {
+		Objects.requireNonNull(included);
+		if (included.length() > mSize)
+			throw new IndexOutOfBoundsException("No commit " + (included.length() - 1));
+		return new CommitGraph(this, included);
+	}
+
+	public
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param commit full sha
+	 * @return the id of the commit, {@link #NONE} if it is not in the graph
+	 */
+	public
+	int indexOf(@Nonnull final CharSequence commit) {
+		Objects.requireNonNull(commit);
+		if (!ObjectIds.isFullHex(commit))
+			return NONE;
+		return mIndex.get(commit);
+	}
+
+	public
+	boolean contains(@Nonnull final CharSequence commit) {
+		return indexOf(commit) != NONE;
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return the sha of the commit
+	 */
+	@Nonnull
+	public
+	String getSha(final int commit) {
+		checkCommit(commit);
+		return ObjectIds.toHex(mIds, commit * ObjectIds.RAW_LENGTH);
+	}
+
+	public
+	int getParentCount(final int commit) {
+		checkCommit(commit);
+		return mParentStart[commit + 1] - mParentStart[commit];
+	}
+
+	/**
+	 * @param commit commit id
+	 * @param n      which parent, <code>0</code> is the first one
+	 * @return the id of the parent, always lower than <code>commit</code>
+	 */
+	public
+	int getParent(final int commit, final int n) {
+		if (n < 0 || n >= getParentCount(commit))
+			throw new IndexOutOfBoundsException("Commit " + commit + " has no parent " + n);
+		return mParents[mParentStart[commit] + n];
+	}
+
+	public
+	boolean isMerge(final int commit) {
+		return getParentCount(commit) > 1;
+	}
+
+	public
+	boolean isRoot(final int commit) {
+		return getParentCount(commit) == 0;
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return true if some parent of the commit was left out by {@link #window(BitSet)}
+	 */
+	public
+	boolean isGrafted(final int commit) {
+		checkCommit(commit);
+		return mGrafted.get(commit);
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return author in the <code>Name &lt;email&gt;</code> form used by <code>git commit --author</code>
+	 */
+	@Nonnull
+	public
+	String getAuthor(final int commit) {
+		checkCommit(commit);
+		return mIdentities[mAuthors[commit]];
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return author date in seconds since the epoch
+	 */
+	public
+	long getAuthorTime(final int commit) {
+		checkCommit(commit);
+		return mAuthorTimes[commit];
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return time zone offset of the author date in minutes
+	 */
+	public
+	int getAuthorTimeZone(final int commit) {
+		checkCommit(commit);
+		return mAuthorTimeZones[commit];
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return author date formatted for <code>git commit --date</code>
+	 */
+	@Nonnull
+	public
+	String getDate(final int commit) {
+		return GitPersonIdent.formatDate(getAuthorTime(commit), getAuthorTimeZone(commit));
+	}
+
+	/**
+	 * Decodes the message, it is not cached.
+	 *
+	 * @param commit commit id
+	 * @return message without trailing blanks
+	 */
+	@Nonnull
+	public
+	String getMessage(final int commit) {
+		checkCommit(commit);
+		final ByteBuffer message = mOutput.duplicate();
+		message.limit(mMessageEnds[commit]);
+		message.position(mMessageStarts[commit]);
+		return StandardCharsets.UTF_8.decode(message).toString();
+	}
+
+	/**
+	 * @return number of distinct author identities, of the whole loaded graph for a {@link #window(BitSet)}
+	 */
+	public
+	int getIdentityCount() {
+		return mIdentities.length;
+	}
+
+	private
+	void checkCommit(final int commit) {
+		if (commit < 0 || commit >= mSize)
+			throw new IndexOutOfBoundsException("No commit " + commit);
+	}
+
+	/**
+	 * Growable columns filled while the output is parsed.
+	 */
+	private static final
+	class Builder {
+		@Nonnull
+		private final ByteBuffer           mOutput;
+		@Nonnull
+		private final Map<String, Integer> mIdentityIds     = new HashMap<>(256);
+		@Nonnull
+		private final List<String>         mIdentities      = new ArrayList<>(256);
+		@Nonnull
+		private final ObjectIdIntMap       mIndex           = new ObjectIdIntMap(1024);
+		private       int                  mSize            = 0;
+		private       int                  mParentCount     = 0;
+		@Nonnull
+		private       byte[]               mIds             = new byte[1024 * ObjectIds.RAW_LENGTH];
+		@Nonnull
+		private       int[]                mParentStart     = new int[1025];
+		@Nonnull
+		private       int[]                mParents         = new int[1024];
+		@Nonnull
+		private       int[]                mAuthors         = new int[1024];
+		@Nonnull
+		private       long[]               mAuthorTimes     = new long[1024];
+		@Nonnull
+		private       short[]              mAuthorTimeZones = new short[1024];
+		@Nonnull
+		private       int[]                mMessageStarts   = new int[1024];
+		@Nonnull
+		private       int[]                mMessageEnds     = new int[1024];
+
+		private
+		Builder(@Nonnull final ByteBuffer output) {
+			mOutput = output;
+		}
+
+		private
+		void addCommit(@Nonnull final CharSequence sha) {
+			if (mSize == mAuthors.length)
+				grow();
+			final int commit = mSize++;
+			ObjectIds.fromHex(sha, mIds, commit * ObjectIds.RAW_LENGTH);
+			if (mIndex.put(mIds, commit * ObjectIds.RAW_LENGTH, commit) != ObjectIdIntMap.NOT_FOUND)
+				throw new IllegalArgumentException("Duplicated commit " + sha);
+			mParentStart[commit + 1] = mParentCount;
+		}
+
+		/**
+		 * rev-list writes every parent before its children, so a parent is always known.
+		 */
+		private
+		void addParent(@Nonnull final CharSequence sha) {
+			final int parent = mIndex.get(sha);
+			if (parent == ObjectIdIntMap.NOT_FOUND)
+				throw new IllegalArgumentException("Parent " + sha + " is not loaded before its child");
+			if (mParentCount == mParents.length)
+				mParents = Arrays.copyOf(mParents, mParents.length * 2);
+			mParents[mParentCount++] = parent;
+			mParentStart[mSize] = mParentCount;
+		}
+
+		/**
+		 * Parses <code>Name &lt;email&gt; epochSeconds +hhmm</code>.
+		 */
+		private
+		void setAuthor(@Nonnull final RecordCursor cursor) {
+			final int commit = mSize - 1;
+			if (!cursor.nextField((byte) '>'))
+				throw new IllegalArgumentException("Missing author");
+			final String identity = cursor.fieldAsString().trim() + '>';
+			Integer id = mIdentityIds.get(identity);
+			if (id == null) {
+				id = mIdentities.size();
+				mIdentities.add(identity);
+				mIdentityIds.put(identity, id);
+			}
+			mAuthors[commit] = id;
+			if (!cursor.nextWord())
+				throw new IllegalArgumentException("Missing author date");
+			mAuthorTimes[commit] = cursor.fieldAsLong();
+			if (!cursor.nextWord() || cursor.fieldLength() != 5)
+				throw new IllegalArgumentException("Missing author time zone");
+			final long zone = cursor.fieldAsLong();
+			final long minutes = Math.abs(zone) / 100 * 60 + Math.abs(zone) % 100;
+			mAuthorTimeZones[commit] = (short) (zone < 0 ? -minutes : minutes);
+		}
+
+		private
+		void setMessage(final int start, final int end) {
+			int last = end;
+			while (last > start && Character.isWhitespace(mOutput.get(last - 1)))
+				last--;
+			mMessageStarts[mSize - 1] = start;
+			mMessageEnds[mSize - 1] = last;
+		}
+
+		private
+		void grow() {
+			final int capacity = mAuthors.length * 2;
+			mIds = Arrays.copyOf(mIds, capacity * ObjectIds.RAW_LENGTH);
+			mParentStart = Arrays.copyOf(mParentStart, capacity + 1);
+			mAuthors = Arrays.copyOf(mAuthors, capacity);
+			mAuthorTimes = Arrays.copyOf(mAuthorTimes, capacity);
+			mAuthorTimeZones = Arrays.copyOf(mAuthorTimeZones, capacity);
+			mMessageStarts = Arrays.copyOf(mMessageStarts, capacity);
+			mMessageEnds = Arrays.copyOf(mMessageEnds, capacity);
+		}
+	}
+}
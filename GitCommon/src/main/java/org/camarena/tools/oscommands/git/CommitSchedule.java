@@ -0,0 +1,165 @@
+package org.camarena.tools.oscommands.git;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Order in which to replay the commits of a {@link CommitGraph} so that the head being built changes as few times as
+ * possible.  Parents still come before their children.
+ * <p>
+ * Replaying a commit whose first parent is not the commit replayed just before it means switching to another head
+ * (a checkout, and in GitSplitter a one second wait).  The schedule walks linear chains depth first: after a commit
+ * it continues with a child that has it as first parent, preferring non merge children, and only when there is none
+ * it takes the most recently readied commit.  Every commit with <i>k</i> non merge children forces at least
+ * <i>k - 1</i> switches and the walk needs no more than that.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class CommitSchedule {
+	@Nonnull
+	private final int[] mOrder;
+	private final int   mSwitches;
+	private final int   mTopologicalSwitches;
+
+	private
+	CommitSchedule(@Nonnull final int[] order, final int switches, final int topologicalSwitches) {
+		mOrder = order;
+		mSwitches = switches;
+		mTopologicalSwitches = topologicalSwitches;
+	}
+
+	/**
+	 * @param graph commits to schedule
+	 * @return the schedule
+	 */
+	@Nonnull
+	public static
+	CommitSchedule plan(@Nonnull final CommitGraph graph) {
+		Objects.requireNonNull(graph);
+		final int size = graph.size();
+		final int[] childStart = new int[size + 1];
+		final int[] pending = new int[size];
+		for (int commit = 0; commit < size; commit++) {
+			pending[commit] = graph.getParentCount(commit);
+			for (int n = 0; n < pending[commit]; n++)
+				childStart[graph.getParent(commit, n) + 1]++;
+		}
+		for (int commit = 0; commit < size; commit++)
+			childStart[commit + 1] += childStart[commit];
+		final int[] children = new int[childStart[size]];
+		final int[] fill = Arrays.copyOf(childStart, size);
+		for (int commit = 0; commit < size; commit++) {
+			for (int n = 0; n < graph.getParentCount(commit); n++)
+				children[fill[graph.getParent(commit, n)]++] = commit;
+		}
+
+		final int[] order = new int[size];
+		final boolean[] done = new boolean[size];
+		// Commits whose parents are all done, the last one readied on top.  A commit can be in it after being done.
+		final int[] ready = new int[size];
+		int readyCount = 0;
+		for (int commit = size - 1; commit >= 0; commit--) {
+			if (pending[commit] == 0)
+				ready[readyCount++] = commit;
+		}
+		int last = CommitGraph.NONE;
+		for (int inx = 0; inx < size; inx++) {
+			int next = CommitGraph.NONE;
+			if (last != CommitGraph.NONE)
+				next = continuation(graph, children, childStart, pending, done, last);
+			while (next == CommitGraph.NONE) {
+				final int candidate = ready[--readyCount];
+				if (!done[candidate])
+					next = candidate;
+			}
+			order[inx] = next;
+			done[next] = true;
+			for (int child = childStart[next + 1] - 1; child >= childStart[next]; child--) {
+				if (--pending[children[child]] == 0)
+					ready[readyCount++] = children[child];
+			}
+			last = next;
+		}
+		final int[] topological = new int[size];
+		Arrays.setAll(topological, commit -> commit);
+		return new CommitSchedule(order, countSwitches(graph, order), countSwitches(graph, topological));
+	}
+
+	/**
+	 * Counts the commits that are not roots nor merges and whose first parent is not the commit before them.  Merges
+	 * always check their parents out, whatever the order.
+	 *
+	 * @param graph commits
+	 * @param order order of the commits
+	 * @return number of head switches
+	 */
+	public static
+	int countSwitches(@Nonnull final CommitGraph graph, @Nonnull final int[] order) {
+		Objects.requireNonNull(graph);
+		Objects.requireNonNull(order);
+		int switches = 0;
+		int last = CommitGraph.NONE;
+		for (final int commit : order) {
+			if (graph.getParentCount(commit) == 1 && graph.getParent(commit, 0) != last)
+				switches++;
+			last = commit;
+		}
+		return switches;
+	}
+
+	/**
+	 * @return ready child of <code>last</code> that has it as first parent, non merges first, or
+	 * {@link CommitGraph#NONE}
+	 */
+	private static
+	int continuation(@Nonnull final CommitGraph graph,
+	                 @Nonnull final int[] children,
+	                 @Nonnull final int[] childStart,
+	                 @Nonnull final int[] pending,
+	                 @Nonnull final boolean[] done,
+	                 final int last) {
+		int merge = CommitGraph.NONE;
+		for (int inx = childStart[last]; inx < childStart[last + 1]; inx++) {
+			final int child = children[inx];
+			if (pending[child] == 0 && !done[child] && graph.getParent(child, 0) == last) {
+				if (!graph.isMerge(child))
+					return child;
+				if (merge == CommitGraph.NONE)
+					merge = child;
+			}
+		}
+		return merge;
+	}
+
+	/**
+	 * @return commit ids in the order to replay them
+	 */
+	@Nonnull
+	public
+	int[] getOrder() {
+		return mOrder.clone();
+	}
+
+	/**
+	 * @return head switches of this order
+	 */
+	public
+	int getSwitches() {
+		return mSwitches;
+	}
+
+	/**
+	 * @return head switches of the plain topological order, as loaded by {@link CommitGraph}
+	 */
+	public
+	int getTopologicalSwitches() {
+		return mTopologicalSwitches;
+	}
+
+	public
+	int getSwitchesSaved() {
+		return mTopologicalSwitches - mSwitches;
+	}
+}
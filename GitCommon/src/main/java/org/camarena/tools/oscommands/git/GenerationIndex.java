@@ -0,0 +1,188 @@
+package org.camarena.tools.oscommands.git;
+
+import javax.annotation.Nonnull;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory index over a {@link CommitGraph} that answers ancestry and "does this commit touch that path" without
+ * running git.
+ * <p>
+ * Every commit gets a generation number, one more than the highest of its parents, and the interval of its subtree
+ * in the forest formed by first parent links.  A commit is an ancestor of another one when the interval of the
+ * first contains the second (the common case of a commit on the same line of development), and it never is when its
+ * generation is not lower.  Only the remaining cases walk the graph, never below the generation of the candidate
+ * ancestor.
+ * <p>
+ * Paths are indexed one at a time with {@link GitCommand#indexPath(java.nio.file.Path, GenerationIndex, String,
+ * java.util.Collection, java.util.Collection)}, which keeps a bit per commit.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class GenerationIndex {
+	@Nonnull
+	private final CommitGraph         mGraph;
+	@Nonnull
+	private final int[]               mGenerations;
+	@Nonnull
+	private final int[]               mPreorder;
+	@Nonnull
+	private final int[]               mSubtreeEnd;
+	@Nonnull
+	private final Map<String, BitSet> mPaths = new ConcurrentHashMap<>(4);
+
+	private
+	GenerationIndex(@Nonnull final CommitGraph graph,
+	                @Nonnull final int[] generations,
+	                @Nonnull final int[] preorder,
+	                @Nonnull final int[] subtreeEnd) {
+		mGraph = graph;
+		mGenerations = generations;
+		mPreorder = preorder;
+		mSubtreeEnd = subtreeEnd;
+	}
+
+	/**
+	 * @param graph commits to index
+	 * @return the index
+	 */
+	@Nonnull
+	public static
+	GenerationIndex of(@Nonnull final CommitGraph graph) {
+		Objects.requireNonNull(graph);
+		final int size = graph.size();
+		// Parents come before their children, one pass is enough
+		final int[] generations = new int[size];
+		final int[] childStart = new int[size + 1];
+		for (int commit = 0; commit < size; commit++) {
+			int generation = 0;
+			for (int n = 0; n < graph.getParentCount(commit); n++)
+				generation = Math.max(generation, generations[graph.getParent(commit, n)]);
+			generations[commit] = generation + 1;
+			if (!graph.isRoot(commit))
+				childStart[graph.getParent(commit, 0) + 1]++;
+		}
+		for (int commit = 0; commit < size; commit++)
+			childStart[commit + 1] += childStart[commit];
+		final int[] children = new int[childStart[size]];
+		final int[] fill = new int[size];
+		System.arraycopy(childStart, 0, fill, 0, size);
+		for (int commit = 0; commit < size; commit++) {
+			if (!graph.isRoot(commit))
+				children[fill[graph.getParent(commit, 0)]++] = commit;
+		}
+
+		final int[] preorder = new int[size];
+		final int[] subtreeEnd = new int[size];
+		final int[] stack = new int[size];
+		final int[] nextChild = new int[size];
+		int counter = 0;
+		for (int root = 0; root < size; root++) {
+			if (!graph.isRoot(root))
+				continue;
+			int depth = 0;
+			stack[depth++] = root;
+			preorder[root] = counter++;
+			nextChild[root] = childStart[root];
+			while (depth > 0) {
+				final int commit = stack[depth - 1];
+				if (nextChild[commit] < childStart[commit + 1]) {
+					final int child = children[nextChild[commit]++];
+					preorder[child] = counter++;
+					nextChild[child] = childStart[child];
+					stack[depth++] = child;
+				}
+				else {
+					subtreeEnd[commit] = counter - 1;
+					depth--;
+				}
+			}
+		}
+		return new GenerationIndex(graph, generations, preorder, subtreeEnd);
+	}
+
+	@Nonnull
+	public
+	CommitGraph getGraph() {
+		return mGraph;
+	}
+
+	/**
+	 * @param commit commit id
+	 * @return 1 for roots, one more than the highest generation of its parents otherwise
+	 */
+	public
+	int getGeneration(final int commit) {
+		return mGenerations[commit];
+	}
+
+	/**
+	 * @param ancestor   commit id
+	 * @param descendant commit id
+	 * @return true if <code>ancestor</code> is reachable from <code>descendant</code>, a commit being its own ancestor
+	 * as for <code>git merge-base --is-ancestor</code>
+	 */
+	public
+	boolean isAncestor(final int ancestor, final int descendant) {
+		if (isInSubtree(ancestor, descendant))
+			return true;
+		if (mGenerations[ancestor] >= mGenerations[descendant])
+			return false;
+		final BitSet visited = new BitSet(mGraph.size());
+		final int[] stack = new int[mGraph.size()];
+		int depth = 0;
+		stack[depth++] = descendant;
+		visited.set(descendant);
+		while (depth > 0) {
+			final int commit = stack[--depth];
+			for (int n = 0; n < mGraph.getParentCount(commit); n++) {
+				final int parent = mGraph.getParent(commit, n);
+				if (isInSubtree(ancestor, parent))
+					return true;
+				if (!visited.get(parent) && mGenerations[parent] > mGenerations[ancestor]) {
+					visited.set(parent);
+					stack[depth++] = parent;
+				}
+			}
+		}
+		return false;
+	}
+
+	private
+	boolean isInSubtree(final int root, final int commit) {
+		return mPreorder[root] <= mPreorder[commit] && mPreorder[commit] <= mSubtreeEnd[root];
+	}
+
+	/**
+	 * @param name     name to query the path by
+	 * @param touching commits that touch the path, by id
+	 */
+	public
+	void addPath(@Nonnull final String name, @Nonnull final BitSet touching) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(touching);
+		mPaths.put(name, (BitSet) touching.clone());
+	}
+
+	public
+	boolean hasPath(@Nonnull final String name) {
+		return mPaths.containsKey(name);
+	}
+
+	/**
+	 * @param commit commit id
+	 * @param name   name the path was added with
+	 * @return true if the commit changes the path with respect to its parents
+	 * @throws IllegalArgumentException if the path was not added
+	 */
+	public
+	boolean touches(final int commit, @Nonnull final String name) {
+		final BitSet touching = mPaths.get(name);
+		if (touching == null)
+			throw new IllegalArgumentException("Path \"" + name + "\" is not indexed");
+		return touching.get(commit);
+	}
+}
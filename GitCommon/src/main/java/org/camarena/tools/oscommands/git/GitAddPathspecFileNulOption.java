@@ -0,0 +1,20 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * The pathspecs read with {@link GitAddPathspecFromFileOption} are NUL terminated and not quoted.  Needs git 2.26 or
+ * later.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitAddPathspecFileNulOption extends SimpleOSCommandOption implements GitAddOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitAddPathspecFileNulOption pathspecFileNul = new GitAddPathspecFileNulOption();
+
+	private
+	GitAddPathspecFileNulOption() {
+		super("--pathspec-file-nul");
+	}
+}
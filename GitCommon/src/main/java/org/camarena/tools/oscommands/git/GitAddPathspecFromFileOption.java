@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Read the pathspecs from a file, <code>-</code> for stdIn, instead of the command line.  Needs git 2.26 or later.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitAddPathspecFromFileOption extends StringOSCommandOption implements GitAddOption {
+
+	public
+	GitAddPathspecFromFileOption(@Nonnull final String file) {
+		super("--pathspec-from-file", Optional.ofNullable(file));
+		Objects.requireNonNull(file);
+	}
+
+	public static
+	GitAddPathspecFromFileOption pathspecFromFile(@Nonnull final String file) {
+		return new GitAddPathspecFromFileOption(file);
+	}
+}
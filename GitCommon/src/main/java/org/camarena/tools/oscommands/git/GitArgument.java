@@ -14,7 +14,9 @@ import java.util.stream.Stream;
  */
 public
 class GitArgument implements GitLogOption, GitCheckoutOption, GitBranchOption, GitMergeOption, GitFilterBranchOption,
-                             GitRemoteOption {
+                             GitRemoteOption, GitRevParseOption, GitLsTreeOption, GitRevListOption,
+                             GitDiffTreeOption, GitFastExportOption, GitForEachRefOption, GitCommitGraphOption,
+                             GitReadTreeOption {
 
 	@Nonnull
 	private final ImmutableList<String> mArguments;
@@ -0,0 +1,262 @@
+package org.camarena.tools.oscommands.git;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.gitobjects.GitObject;
+import org.camarena.tools.gitobjects.GitObjectReader;
+import org.camarena.tools.gitobjects.GitObjectType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Long lived <code>git cat-file --batch</code> and <code>git cat-file --batch-check</code> processes for a single
+ * repository.  Every lookup is a write to the stdIn of the already running process instead of a new process.
+ * <p>
+ * The processes are started on the first request and live until {@link #close()} is called.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCatFileBatch implements GitObjectReader, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GitCatFileBatch.class);
+
+	@Nonnull
+	private final GitCommand mGitCommand;
+	@Nonnull
+	private final Path       mPathToRepo;
+	private       Session    mBatch      = null;
+	private       Session    mBatchCheck = null;
+
+	GitCatFileBatch(@Nonnull final GitCommand gitCommand, @Nonnull final Path pathToRepo) {
+		Objects.requireNonNull(gitCommand);
+		Objects.requireNonNull(pathToRepo);
+		mGitCommand = gitCommand;
+		mPathToRepo = pathToRepo;
+	}
+
+	@Nonnull
+	public
+	Path getPathToRepo() {
+		return mPathToRepo;
+	}
+
+	@Nonnull
+	@Override
+	public synchronized
+	Optional<GitObject> readObject(@Nonnull final String revision) throws CLIException {
+		return readObjects(ImmutableList.of(revision)).get(0);
+	}
+
+	/**
+	 * Reads several objects writing all the requests before reading the answers, so git can work on the next
+	 * request while we are parsing the previous answer.
+	 *
+	 * @param revisions revisions to read
+	 * @return the objects in the same order as requested
+	 * @throws CLIException if the objects can't be read
+	 */
+	@Nonnull
+	@Override
+	public synchronized
+	ImmutableList<Optional<GitObject>> readObjects(@Nonnull final Collection<String> revisions) throws CLIException {
+		Objects.requireNonNull(revisions);
+		revisions.forEach(GitCatFileBatch::checkRevision);
+		if (mBatch == null)
+			mBatch = new Session("--batch");
+		final Session session = mBatch;
+		final CompletableFuture<Void> requests = session.sendRequests(revisions);
+		final ImmutableList.Builder<Optional<GitObject>> objects = ImmutableList.builder();
+		try {
+			for (final String revision : revisions) {
+				final Optional<Header> header = session.readHeader(revision);
+				if (header.isPresent()) {
+					final byte[] data = session.readContent(header.get().mSize);
+					objects.add(Optional.of(new GitObject(header.get().mId, header.get().mType, data)));
+				}
+				else
+					objects.add(Optional.empty());
+			}
+			requests.get();
+		} catch (final IOException | InterruptedException | ExecutionException e) {
+			closeQuietly(session);
+			mBatch = null;
+			throw new CLIException("Failed reading objects from \"" + mPathToRepo + '"', e);
+		}
+		return objects.build();
+	}
+
+	@Nonnull
+	@Override
+	public synchronized
+	Optional<String> resolve(@Nonnull final String revision) throws CLIException {
+		checkRevision(revision);
+		if (mBatchCheck == null)
+			mBatchCheck = new Session("--batch-check");
+		final Session session = mBatchCheck;
+		try {
+			session.sendRequests(ImmutableList.of(revision)).get();
+			return session.readHeader(revision).map(h -> h.mId);
+		} catch (final IOException | InterruptedException | ExecutionException e) {
+			closeQuietly(session);
+			mBatchCheck = null;
+			throw new CLIException("Failed resolving \"" + revision + "\" in \"" + mPathToRepo + '"', e);
+		}
+	}
+
+	@Override
+	public synchronized
+	void close() {
+		if (mBatch != null)
+			closeQuietly(mBatch);
+		if (mBatchCheck != null)
+			closeQuietly(mBatchCheck);
+		mBatch = null;
+		mBatchCheck = null;
+	}
+
+	private static
+	void checkRevision(@Nonnull final String revision) {
+		Objects.requireNonNull(revision);
+		if (revision.indexOf('\n') >= 0)
+			throw new IllegalArgumentException("Revision can't contain new lines: \"" + revision + '"');
+	}
+
+	private static
+	void closeQuietly(@Nonnull final Session session) {
+		try {
+			session.close();
+		} catch (final IOException e) {
+			LOGGER.debug("Ignoring error closing cat-file session", e);
+		}
+	}
+
+	private static
+	class Header {
+		@Nonnull
+		private final String        mId;
+		@Nonnull
+		private final GitObjectType mType;
+		private final int           mSize;
+
+		private
+		Header(@Nonnull final String id, @Nonnull final GitObjectType type, final int size) {
+			mId = id;
+			mType = type;
+			mSize = size;
+		}
+	}
+
+	private
+	class Session implements Closeable {
+		@Nonnull
+		private final Process      mProcess;
+		@Nonnull
+		private final InputStream  mStdOut;
+		@Nonnull
+		private final OutputStream mStdIn;
+
+		private
+		Session(@Nonnull final String mode) throws CLIException {
+			LOGGER.debug("Starting \"cat-file {}\" for \"{}\"", mode, mPathToRepo);
+			mProcess = mGitCommand.startCatFile(mPathToRepo, mode);
+			mStdOut = new BufferedInputStream(mProcess.getInputStream(), 65536);
+			mStdIn = new BufferedOutputStream(mProcess.getOutputStream(), 8192);
+		}
+
+		@Override
+		public
+		void close() throws IOException {
+			try {
+				mStdIn.close();
+			} finally {
+				mStdOut.close();
+				mProcess.destroy();
+			}
+		}
+
+		/**
+		 * Writes from a different thread so a long list of requests can't deadlock against a full stdOut pipe.
+		 */
+		@Nonnull
+		private
+		CompletableFuture<Void> sendRequests(@Nonnull final Collection<String> revisions) {
+			return CompletableFuture.runAsync(() -> {
+				try {
+					for (final String revision : revisions) {
+						mStdIn.write(revision.getBytes(StandardCharsets.UTF_8));
+						mStdIn.write('\n');
+					}
+					mStdIn.flush();
+				} catch (final IOException e) {
+					throw Throwables.propagate(e);
+				}
+			}, mGitCommand.streamExecutor());
+		}
+
+		@Nonnull
+		private
+		Optional<Header> readHeader(@Nonnull final String revision) throws IOException, CLIException {
+			final String line = readLine();
+			if (line.endsWith(" missing") || line.endsWith(" ambiguous")) {
+				LOGGER.debug("cat-file can't find \"{}\": {}", revision, line);
+				return Optional.empty();
+			}
+			final String[] parts = line.split(" ");
+			if (parts.length != 3)
+				throw new CLIException("Can't parse cat-file header \"" + line + '"');
+			try {
+				return Optional.of(new Header(parts[0], GitObjectType.fromName(parts[1]), Integer.parseInt(parts[2])));
+			} catch (final NumberFormatException e) {
+				throw new CLIException("Can't parse cat-file header \"" + line + '"', e);
+			}
+		}
+
+		@Nonnull
+		private
+		byte[] readContent(final int size) throws IOException {
+			final byte[] data = new byte[size];
+			int read = 0;
+			while (read < size) {
+				final int count = mStdOut.read(data, read, size - read);
+				if (count < 0)
+					throw new EOFException("cat-file ended before sending the object content");
+				read += count;
+			}
+			// Every object content is followed by a new line
+			if (mStdOut.read() != '\n')
+				throw new IOException("cat-file content is not terminated by a new line");
+			return data;
+		}
+
+		@Nonnull
+		private
+		String readLine() throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			int c;
+			while ((c = mStdOut.read()) != '\n') {
+				if (c < 0)
+					throw new EOFException("cat-file ended unexpectedly");
+				line.write(c);
+			}
+			return new String(line.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCheckoutForceOption extends SimpleOSCommandOption implements GitCheckoutOption {
+	public static final GitCheckoutForceOption force = new GitCheckoutForceOption();
+
+	private
+	GitCheckoutForceOption() {
+		super("-f");
+	}
+}
@@ -0,0 +1,16 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCheckoutOrphanOption extends SimpleOSCommandOption implements GitCheckoutOption {
+	public static final GitCheckoutOrphanOption orphanBranch = new GitCheckoutOrphanOption();
+
+	private
+	GitCheckoutOrphanOption() {
+		super("--orphan");
+	}
+}
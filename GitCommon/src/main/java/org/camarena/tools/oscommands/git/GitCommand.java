@@ -1,34 +1,75 @@
 package org.camarena.tools.oscommands.git;
 
 import com.beust.jcommander.Parameter;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.apache.commons.lang3.StringUtils;
 import org.camarena.tools.CLIException;
 import org.camarena.tools.CLIInvalidArgumentException;
 import org.camarena.tools.Configuration;
-import org.camarena.tools.FunctionUtils;
+import org.camarena.tools.RecordCursor;
+import org.camarena.tools.gitobjects.FileObjectDatabase;
+import org.camarena.tools.gitobjects.GitCommitObject;
+import org.camarena.tools.gitobjects.GitObjectReader;
+import org.camarena.tools.gitobjects.GitObjectWriter;
+import org.camarena.tools.gitobjects.LooseObjectWriter;
+import org.camarena.tools.gitobjects.PackWriter;
+import org.camarena.tools.gitobjects.RefUpdater;
 import org.camarena.tools.oscommands.OSCommand;
 import org.camarena.tools.oscommands.OSCommandOption;
+import org.camarena.tools.oscommands.OSCommandPipeline;
+import org.camarena.tools.oscommands.PipelineStage;
+import org.camarena.tools.oscommands.ProcessInput;
+import org.camarena.tools.oscommands.ProcessOutput;
 import org.camarena.tools.oscommands.ProcessResult;
+import org.camarena.tools.oscommands.RecordSeparator;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
-import static java.util.stream.Collectors.joining;
-import static org.camarena.tools.FunctionUtils.getFirstWord;
 import static org.camarena.tools.StreamUtils.immutableListCollector;
-import static org.camarena.tools.StreamUtils.linesInString;
+import static org.camarena.tools.oscommands.git.GitAddAllFullTreeOption.allFullTree;
+import static org.camarena.tools.oscommands.git.GitAddPathspecFileNulOption.pathspecFileNul;
+import static org.camarena.tools.oscommands.git.GitAddPathspecFromFileOption.pathspecFromFile;
 import static org.camarena.tools.oscommands.git.GitArgument.arguments;
-import static org.camarena.tools.oscommands.git.GitLogAbbrevCommitOption.abbrev;
-import static org.camarena.tools.oscommands.git.GitLogMaxCountOption.maxCount;
-import static org.camarena.tools.oscommands.git.GitLogPrettyOption.pretty;
+import static org.camarena.tools.oscommands.git.GitCommitGraphChangedPathsOption.changedPaths;
+import static org.camarena.tools.oscommands.git.GitCommitGraphReachableOption.reachable;
+import static org.camarena.tools.oscommands.git.GitDiffTreeNameOnlyOption.nameOnly;
+import static org.camarena.tools.oscommands.git.GitDiffTreeNameStatusOption.nameStatus;
+import static org.camarena.tools.oscommands.git.GitDiffTreeNoCommitIdOption.noCommitId;
+import static org.camarena.tools.oscommands.git.GitDiffTreeNoRenamesOption.noRenames;
+import static org.camarena.tools.oscommands.git.GitDiffTreeRecursiveOption.recursive;
+import static org.camarena.tools.oscommands.git.GitDiffTreeRootOption.root;
+import static org.camarena.tools.oscommands.git.GitExportMarksOption.exportMarks;
+import static org.camarena.tools.oscommands.git.GitFastExportReencodeOption.reencode;
+import static org.camarena.tools.oscommands.git.GitFastExportSignedTagsOption.signedTags;
+import static org.camarena.tools.oscommands.git.GitFastExportUseDoneFeatureOption.useDoneFeature;
+import static org.camarena.tools.oscommands.git.GitFastImportQuietOption.quiet;
+import static org.camarena.tools.oscommands.git.GitFormatOption.format;
+import static org.camarena.tools.oscommands.git.GitReadTreeMergeOption.merge;
+import static org.camarena.tools.oscommands.git.GitReadTreeUpdateOption.update;
+import static org.camarena.tools.oscommands.git.GitRevListDateOption.date;
+import static org.camarena.tools.oscommands.git.GitRevListFullHistoryOption.fullHistory;
+import static org.camarena.tools.oscommands.git.GitRevListParentsOption.parents;
+import static org.camarena.tools.oscommands.git.GitRevListReverseOption.reverse;
+import static org.camarena.tools.oscommands.git.GitRevListTopoOrderOption.topoOrder;
+import static org.camarena.tools.oscommands.git.GitUpdateRefStdinOption.stdin;
+import static org.camarena.tools.oscommands.git.GitZeroTerminatedOption.zeroTerminated;
 
 /**
  * @author Hermán de J. Camarena R.
@@ -36,11 +77,25 @@ import static org.camarena.tools.oscommands.git.GitLogPrettyOption.pretty;
 @SuppressWarnings("HardcodedFileSeparator")
 public
 class GitCommand extends OSCommand implements Configuration {
-	private static final String     LINE_SEPARATOR = System.getProperty("line.separator");
-	private static final GitCommand mgOurInstance  = new GitCommand();
+	private static final GitCommand                 mgOurInstance    = new GitCommand();
+	private static final ImmutableSet<String>       CACHEABLE_QUERIES = ImmutableSet.of("log",
+	                                                                                     "rev-parse",
+	                                                                                     "branch",
+	                                                                                     "ls-tree",
+	                                                                                     "for-each-ref",
+	                                                                                     "diff-tree");
+	private final        Map<Path, GitCatFileBatch> mCatFileSessions  = new ConcurrentHashMap<>(4);
+	private final        Map<Path, FileObjectDatabase> mObjectDatabases = new ConcurrentHashMap<>(4);
+	private final        GitQueryCache              mQueryCache       = new GitQueryCache();
 	@SuppressWarnings("unused")
 	@Parameter(names = "--git", description = "Path to the git command", required = false)
-	private              String     mGitCommandX   = "/usr/local/bin/git";
+	private              String                     mGitCommandX      = "/usr/local/bin/git";
+	@Parameter(names = "--gitQueryCache",
+	           description = "Cache the answers of read only git queries until the refs they depend on change")
+	private              boolean                    mQueryCacheEnabled = false;
+	@Parameter(names = "--inProcessObjects",
+	           description = "Read commits and trees straight from the object files instead of asking git")
+	private              boolean                    mInProcessObjects  = false;
 
 	private
 	GitCommand() {
@@ -71,10 +126,113 @@ class GitCommand extends OSCommand implements Configuration {
 		Objects.requireNonNull(command);
 		Objects.requireNonNull(pathToRepo);
 		Objects.requireNonNull(options);
-		return runOsCommand(Optional.of(pathToRepo.toFile()), Stream.concat(Stream.of(command),
-		                                                                    Arrays.stream(options)
-		                                                                          .flatMap
-				                                                                          (OSCommandOption::asStream)));
+		final ImmutableList<String> commandLine = commandLine(command, options).collect(immutableListCollector());
+		final List<String> args = commandLine.subList(1, commandLine.size());
+		if (GitQueryCache.isRefMutating(command, args)) {
+			mQueryCache.invalidateRefs(pathToRepo);
+			return runOsCommand(Optional.of(pathToRepo.toFile()), commandLine.stream()).whenComplete((r, e) -> mQueryCache
+					.invalidateRefs(pathToRepo));
+		}
+		if (mQueryCacheEnabled && CACHEABLE_QUERIES.contains(command))
+			return mQueryCache.get(pathToRepo,
+			                       commandLine,
+			                       () -> runOsCommand(Optional.of(pathToRepo.toFile()), commandLine.stream()),
+			                       r -> r.getExitValue() == 0);
+		return runOsCommand(Optional.of(pathToRepo.toFile()), commandLine.stream());
+	}
+
+	/**
+	 * Memoizes read only queries, see {@link GitQueryCache}.  Off by default.
+	 *
+	 * @param queryCacheEnabled true to cache
+	 */
+	public
+	void setQueryCacheEnabled(final boolean queryCacheEnabled) {
+		mQueryCacheEnabled = queryCacheEnabled;
+		if (!queryCacheEnabled)
+			mQueryCache.clear();
+	}
+
+	@Nonnull
+	public
+	GitQueryCache getQueryCache() {
+		return mQueryCache;
+	}
+
+	/**
+	 * Runs a git subcommand writing data to its stdIn while it runs.  Meant for the plumbing commands that read their
+	 * work from stdIn (<code>update-index --index-info</code>, <code>update-ref --stdin</code>,
+	 * <code>hash-object --stdin-paths</code>, <code>fast-import</code>...).
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param stdIn      data for stdIn
+	 * @param command    git subcommand
+	 * @param options    options and arguments for the subcommand
+	 * @return the result of the process
+	 * @throws CLIException if git is not configured
+	 */
+	public
+	CompletableFuture<ProcessResult> runWithStdIn(@Nonnull final Path pathToRepo,
+	                                              @Nonnull final ProcessInput stdIn,
+	                                              @Nonnull final String command,
+	                                              @Nonnull final OSCommandOption... options) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(stdIn);
+		Objects.requireNonNull(command);
+		Objects.requireNonNull(options);
+		final ImmutableList<String> commandLine = commandLine(command, options).collect(immutableListCollector());
+		if (!GitQueryCache.isRefMutating(command, commandLine.subList(1, commandLine.size())))
+			return runOsCommand(Optional.of(pathToRepo.toFile()), commandLine.stream(), stdIn);
+		mQueryCache.invalidateRefs(pathToRepo);
+		return runOsCommand(Optional.of(pathToRepo.toFile()), commandLine.stream(), stdIn).whenComplete(
+				(r, e) -> mQueryCache.invalidateRefs(pathToRepo));
+	}
+
+	/**
+	 * Prepares a git subcommand to be one of the processes of an {@link OSCommandPipeline}, for instance
+	 * <code>git fast-export | git fast-import</code>.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param command    git subcommand
+	 * @param options    options and arguments for the subcommand
+	 * @return the stage
+	 * @throws CLIException if git is not configured
+	 */
+	@Nonnull
+	public
+	PipelineStage stage(@Nonnull final Path pathToRepo,
+	                    @Nonnull final String command,
+	                    @Nonnull final OSCommandOption... options) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(command);
+		Objects.requireNonNull(options);
+		final ImmutableList<String> commandLine = commandLine(command, options).collect(immutableListCollector());
+		if (!GitQueryCache.isRefMutating(command, commandLine.subList(1, commandLine.size())))
+			return stage(Optional.of(pathToRepo.toFile()), commandLine.stream());
+		mQueryCache.invalidateRefs(pathToRepo);
+		return stage(Optional.of(pathToRepo.toFile()),
+		             commandLine.stream(),
+		             () -> mQueryCache.invalidateRefs(pathToRepo));
+	}
+
+	/**
+	 * Runs <code>git update-ref --stdin -z</code>, applying all the ref updates in one transaction.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param commands   NUL terminated update-ref commands
+	 * @return the result of the process
+	 * @throws CLIException if git is not configured
+	 */
+	public
+	CompletableFuture<ProcessResult> updateRefs(@Nonnull final Path pathToRepo,
+	                                            @Nonnull final ProcessInput commands) throws CLIException {
+		return runWithStdIn(pathToRepo, commands, "update-ref", stdin, zeroTerminated);
+	}
+
+	@Nonnull
+	private static
+	Stream<String> commandLine(@Nonnull final String command, @Nonnull final OSCommandOption... options) {
+		return Stream.concat(Stream.of(command), Arrays.stream(options).flatMap(OSCommandOption::asStream));
 	}
 
 	public
@@ -96,6 +254,66 @@ class GitCommand extends OSCommand implements Configuration {
 		return common("branch", pathToRepo, options);
 	}
 
+	/**
+	 * Names of the local branches, read from <code>for-each-ref</code> with NUL terminated names.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @return short names of the branches
+	 * @throws CLIException if git fails
+	 */
+	@Nonnull
+	public
+	ImmutableList<String> listBranches(@Nonnull final Path pathToRepo) throws CLIException {
+		final RecordCursor cursor = queryOutput(forEachRef(pathToRepo,
+		                                                   format("%(refname:short)%00"),
+		                                                   arguments("refs/heads")))
+				.cursor(RecordSeparator.LINE);
+		final ImmutableList.Builder<String> branches = ImmutableList.builder();
+		while (cursor.nextRecord()) {
+			if (cursor.nextField((byte) 0) && cursor.fieldLength() > 0)
+				branches.add(cursor.fieldAsString());
+		}
+		return branches.build();
+	}
+
+	public
+	CompletableFuture<ProcessResult> forEachRef(@Nonnull final Path pathToRepo,
+	                                            @Nonnull final GitForEachRefOption... options) throws CLIException {
+		return common("for-each-ref", pathToRepo, options);
+	}
+
+	/**
+	 * @param pathToRepo path to the repository
+	 * @return names of the remotes
+	 * @throws CLIException if git fails
+	 */
+	@Nonnull
+	public
+	ImmutableList<String> listRemotes(@Nonnull final Path pathToRepo) throws CLIException {
+		final RecordCursor cursor = queryOutput(common("remote", pathToRepo)).cursor(RecordSeparator.LINE);
+		final ImmutableList.Builder<String> remotes = ImmutableList.builder();
+		while (cursor.nextRecord()) {
+			if (cursor.nextWord())
+				remotes.add(cursor.fieldAsString());
+		}
+		return remotes.build();
+	}
+
+	@Nonnull
+	private static
+	ProcessOutput queryOutput(@Nonnull final CompletableFuture<ProcessResult> query) throws CLIException {
+		final ProcessResult result;
+		try {
+			result = query.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new CLIException(e);
+		}
+		if (result.getExitValue() != 0)
+			throw new CLIException("Command failed: " + String.join(" ", result.getArgs()) + '\n' +
+			                       result.getStdErr());
+		return result.getRawStdOut();
+	}
+
 	public
 	CompletableFuture<ProcessResult> checkout(@Nonnull final Path pathToRepo,
 	                                          @Nonnull final GitCheckoutOption... options) throws
@@ -114,65 +332,505 @@ class GitCommand extends OSCommand implements Configuration {
 	public
 	CompletableFuture<ProcessResult> init(@Nonnull final Path pathToNewRepo) throws CLIException {
 		Objects.requireNonNull(pathToNewRepo);
+		mQueryCache.invalidateRefs(pathToNewRepo);
 		return runOsCommand(Optional.of(pathToNewRepo.toFile()), Stream.of("init"));
 	}
 
+	public
+	CompletableFuture<ProcessResult> revParse(@Nonnull final Path pathToRepo,
+	                                          @Nonnull final GitRevParseOption... options) throws CLIException {
+		return common("rev-parse", pathToRepo, options);
+	}
+
+	public
+	CompletableFuture<ProcessResult> lsTree(@Nonnull final Path pathToRepo,
+	                                        @Nonnull final GitLsTreeOption... options) throws CLIException {
+		return common("ls-tree", pathToRepo, options);
+	}
+
 	public
 	CompletableFuture<ProcessResult> log(@Nonnull final Path pathToRepo, @Nonnull final GitLogOption... options) throws
 	                                                                                                             CLIException {
 		return common("log", pathToRepo, options);
 	}
 
+	/**
+	 * Long lived <code>cat-file</code> session for a repository.  There is one session per repository path and it
+	 * lives until {@link #closeObjectReaders()} is called.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @return the session for the repository
+	 */
+	@Nonnull
+	public
+	GitCatFileBatch catFile(@Nonnull final Path pathToRepo) {
+		Objects.requireNonNull(pathToRepo);
+		return mCatFileSessions.computeIfAbsent(pathToRepo.toAbsolutePath().normalize(),
+		                                        p -> new GitCatFileBatch(this, p));
+	}
+
+	/**
+	 * In process reader of the object files of a repository.  There is one per repository path and it lives until
+	 * {@link #closeObjectReaders()} is called.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @return the reader for the repository
+	 * @throws CLIException if the path is not a repository
+	 */
+	@Nonnull
+	public
+	FileObjectDatabase objectDatabase(@Nonnull final Path pathToRepo) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		final Path key = pathToRepo.toAbsolutePath().normalize();
+		synchronized (mObjectDatabases) {
+			FileObjectDatabase database = mObjectDatabases.get(key);
+			if (database == null) {
+				database = new FileObjectDatabase(key);
+				mObjectDatabases.put(key, database);
+			}
+			return database;
+		}
+	}
+
+	/**
+	 * Reader used for {@link #getCommitInfo(Path, String)} and {@link #resolveCommit(Path, String)}: the in process
+	 * one when <code>--inProcessObjects</code> is given, the <code>cat-file</code> session otherwise.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @return the reader for the repository
+	 * @throws CLIException if the reader can't be opened
+	 */
+	@Nonnull
+	public
+	GitObjectReader objectReader(@Nonnull final Path pathToRepo) throws CLIException {
+		return mInProcessObjects ? objectDatabase(pathToRepo) : catFile(pathToRepo);
+	}
+
+	/**
+	 * Writer that puts objects straight into the object files of a repository, without running git.  The caller owns
+	 * the writer and must close it.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param packed     true to stream the objects into a new pack (deflated on every core), false to write loose
+	 *                   objects
+	 * @return the writer
+	 * @throws CLIException if the path is not a repository
+	 */
+	@Nonnull
+	public
+	GitObjectWriter objectWriter(@Nonnull final Path pathToRepo, final boolean packed) throws CLIException {
+		final FileObjectDatabase database = objectDatabase(pathToRepo);
+		return packed ? new PackWriter(database) : new LooseObjectWriter(database);
+	}
+
+	@Nonnull
+	public
+	RefUpdater refUpdater(@Nonnull final Path pathToRepo) throws CLIException {
+		return new RefUpdater(objectDatabase(pathToRepo));
+	}
+
+	public
+	void setInProcessObjects(final boolean inProcessObjects) {
+		mInProcessObjects = inProcessObjects;
+	}
+
+	public
+	void closeObjectReader(@Nonnull final Path pathToRepo) {
+		Objects.requireNonNull(pathToRepo);
+		final Path key = pathToRepo.toAbsolutePath().normalize();
+		final GitCatFileBatch session = mCatFileSessions.remove(key);
+		if (session != null)
+			session.close();
+		final FileObjectDatabase database = mObjectDatabases.remove(key);
+		if (database != null)
+			database.close();
+	}
+
+	public
+	void closeObjectReaders() {
+		ImmutableSet.<Path>builder()
+		            .addAll(mCatFileSessions.keySet())
+		            .addAll(mObjectDatabases.keySet())
+		            .build()
+		            .forEach(this::closeObjectReader);
+	}
+
+	@Nonnull
+	Executor streamExecutor() {
+		return getStreamExecutor();
+	}
+
+	@Nonnull
+	Process startCatFile(@Nonnull final Path pathToRepo, @Nonnull final String mode) throws CLIException {
+		return startOsProcess(Optional.of(pathToRepo.toFile()), Stream.of("cat-file", mode));
+	}
+
+	/**
+	 * Resolves a revision to the full sha of the commit using the object reader of the repository.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param revision   revision to resolve
+	 * @return the full sha
+	 * @throws CLIException if the revision does not exist
+	 */
+	@Nonnull
+	public
+	String resolveCommit(@Nonnull final Path pathToRepo, @Nonnull final String revision) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(revision);
+		final String commitRevision = revision + "^{commit}";
+		final Optional<String> commit;
+		try {
+			if (mQueryCacheEnabled)
+				commit = mQueryCache.get(pathToRepo,
+				                         ImmutableList.of("cat-file", commitRevision),
+				                         () -> CompletableFuture.completedFuture(objectReader(pathToRepo)
+						                                                                 .resolve(commitRevision)),
+				                         Optional::isPresent).get();
+			else
+				commit = objectReader(pathToRepo).resolve(commitRevision);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new CLIException(e);
+		}
+		return commit.orElseThrow(() -> new CLIException("Can't find commit \"" + revision + '"'));
+	}
+
+	/**
+	 * Runs <code>git log</code> pushing each record of its output to a consumer while git is still writing it.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param separator  how the records are delimited
+	 * @param consumer   receives each record
+	 * @param options    options for log
+	 * @return the result of the process, with an empty stdOut
+	 * @throws CLIException if git can't be started
+	 */
+	public
+	CompletableFuture<ProcessResult> log(@Nonnull final Path pathToRepo,
+	                                     @Nonnull final RecordSeparator separator,
+	                                     @Nonnull final Consumer<String> consumer,
+	                                     @Nonnull final GitLogOption... options) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(options);
+		return runOsCommand(Optional.of(pathToRepo.toFile()), commandLine("log", options), separator, consumer);
+	}
+
+	/**
+	 * Runs <code>git log</code> exposing its output as a lazily read stream of records.  The stream must be closed.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param separator  how the records are delimited
+	 * @param options    options for log
+	 * @return records of the output
+	 * @throws CLIException if git can't be started
+	 */
+	public
+	Stream<String> logRecords(@Nonnull final Path pathToRepo,
+	                          @Nonnull final RecordSeparator separator,
+	                          @Nonnull final GitLogOption... options) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(options);
+		return streamOsCommand(Optional.of(pathToRepo.toFile()), commandLine("log", options), separator);
+	}
+
+	/**
+	 * Switches the index and the working tree from one tree to another without moving HEAD, the way a checkout does:
+	 * <code>read-tree -m -u</code>.  Only the files that differ between the trees are written.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param from       tree, or commit, the index and the working tree hold now
+	 * @param to         tree, or commit, they will hold
+	 * @return the result of the process
+	 * @throws CLIException if git is not configured
+	 */
+	public
+	CompletableFuture<ProcessResult> switchTree(@Nonnull final Path pathToRepo,
+	                                            @Nonnull final String from,
+	                                            @Nonnull final String to) throws CLIException {
+		Objects.requireNonNull(from);
+		Objects.requireNonNull(to);
+		return readTree(pathToRepo, merge, update, arguments(from, to));
+	}
+
+	public
+	CompletableFuture<ProcessResult> readTree(@Nonnull final Path pathToRepo,
+	                                          @Nonnull final GitReadTreeOption... options) throws CLIException {
+		return common("read-tree", pathToRepo, options);
+	}
+
+	public
+	CompletableFuture<ProcessResult> diffTree(@Nonnull final Path pathToRepo,
+	                                          @Nonnull final GitDiffTreeOption... options) throws CLIException {
+		return common("diff-tree", pathToRepo, options);
+	}
+
+	/**
+	 * Paths changed between two commits, recursing into trees.  Renames are reported as a deletion and an
+	 * addition.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param from       commit to compare with, null to compare with an empty tree
+	 * @param to         commit
+	 * @return changed paths, relative to the top of the repository
+	 * @throws CLIException if git fails
+	 */
+	@Nonnull
+	public
+	ImmutableList<String> changedPaths(@Nonnull final Path pathToRepo,
+	                                   @Nullable final String from,
+	                                   @Nonnull final String to) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(to);
+		final RecordCursor cursor = queryOutput(diffTree(pathToRepo,
+		                                                 recursive,
+		                                                 zeroTerminated,
+		                                                 noCommitId,
+		                                                 nameOnly,
+		                                                 noRenames,
+		                                                 from == null ? root : arguments(from),
+		                                                 arguments(to, "--")))
+				.cursor(RecordSeparator.NUL);
+		final ImmutableList.Builder<String> paths = ImmutableList.builder();
+		while (cursor.nextRecord()) {
+			if (cursor.recordLength() > 0)
+				paths.add(cursor.recordAsString());
+		}
+		return paths.build();
+	}
+
+	/**
+	 * Paths changed between two commits with how they changed, recursing into trees: <code>A</code> added,
+	 * <code>D</code> deleted, <code>M</code> modified and <code>T</code> changed type.  Renames are reported as a
+	 * deletion and an addition.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param from       commit to compare with, null to compare with an empty tree
+	 * @param to         commit
+	 * @return status letter by changed path, relative to the top of the repository, in the order git reports them
+	 * @throws CLIException if git fails
+	 */
+	@Nonnull
+	public
+	ImmutableMap<String, Character> changedPathStatus(@Nonnull final Path pathToRepo,
+	                                                  @Nullable final String from,
+	                                                  @Nonnull final String to) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(to);
+		final RecordCursor cursor = queryOutput(diffTree(pathToRepo,
+		                                                 recursive,
+		                                                 zeroTerminated,
+		                                                 noCommitId,
+		                                                 nameStatus,
+		                                                 noRenames,
+		                                                 from == null ? root : arguments(from),
+		                                                 arguments(to, "--")))
+				.cursor(RecordSeparator.NUL);
+		final ImmutableMap.Builder<String, Character> paths = ImmutableMap.builder();
+		while (cursor.nextRecord()) {
+			if (cursor.recordLength() == 0)
+				continue;
+			final char status = cursor.recordAsString().charAt(0);
+			if (!cursor.nextRecord())
+				throw new CLIException("Missing path after status \"" + status + "\" in diff-tree output");
+			paths.put(cursor.recordAsString(), status);
+		}
+		return paths.build();
+	}
+
+	public
+	CompletableFuture<ProcessResult> revList(@Nonnull final Path pathToRepo,
+	                                         @Nonnull final GitRevListOption... options) throws CLIException {
+		return common("rev-list", pathToRepo, options);
+	}
+
+	/**
+	 * @param pathToRepo path to the repository
+	 * @param commit     full sha of a commit
+	 * @param revisions  branches or other revisions
+	 * @return true if the commit is one of the revisions or an ancestor of one of them
+	 * @throws CLIException if git fails, the commit doesn't exist for instance
+	 */
+	public
+	boolean isReachable(@Nonnull final Path pathToRepo,
+	                    @Nonnull final String commit,
+	                    @Nonnull final Collection<String> revisions) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(commit);
+		Objects.requireNonNull(revisions);
+		return queryOutput(revList(pathToRepo,
+		                           arguments(commit),
+		                           arguments(revisions.stream().map(r -> '^' + r)),
+		                           arguments("--"))).isEmpty();
+	}
+
+	/**
+	 * Loads every commit reachable from some revisions, with its parents and metadata, running a single
+	 * <code>rev-list</code> instead of a <code>log</code> per revision and per commit.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param revisions  branches or other revisions to start from
+	 * @return the commits in topological order, parents first
+	 * @throws CLIException if git fails
+	 */
+	@Nonnull
+	public
+	CommitGraph loadCommitGraph(@Nonnull final Path pathToRepo, @Nonnull final Collection<String> revisions) throws
+	                                                                                                         CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(revisions);
+		if (revisions.isEmpty())
+			throw new CLIException("No revisions to load the commit graph from");
+		return CommitGraph.parse(queryOutput(revList(pathToRepo,
+		                                             topoOrder,
+		                                             reverse,
+		                                             parents,
+		                                             date("raw"),
+		                                             format(CommitGraph.FORMAT),
+		                                             arguments(revisions.stream()),
+		                                             arguments("--"))));
+	}
+
+	/**
+	 * Starts a <code>git fast-export</code> of some revisions.  Its stream is read from the stdOut of the process, the
+	 * caller owns the process.  The stream ends with <code>done</code>, commit messages are not reencoded and signed
+	 * tags are stripped.
+	 *
+	 * @param pathToRepo  path to the repository
+	 * @param exportMarks file the marks of the exported commits are written to
+	 * @param revisions   branches or other revisions to export
+	 * @return the started process
+	 * @throws CLIException if the process can't be started
+	 */
+	@Nonnull
+	public
+	Process startFastExport(@Nonnull final Path pathToRepo,
+	                        @Nonnull final Path exportMarks,
+	                        @Nonnull final Collection<String> revisions) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(exportMarks);
+		Objects.requireNonNull(revisions);
+		return startOsProcess(Optional.of(pathToRepo.toFile()),
+		                      commandLine("fast-export",
+		                                  useDoneFeature,
+		                                  reencode("no"),
+		                                  signedTags("strip"),
+		                                  exportMarks(exportMarks.toAbsolutePath().toString()),
+		                                  arguments(revisions.stream())));
+	}
+
+	/**
+	 * Starts a <code>git fast-import</code>.  The stream is written to the stdIn of the process, the caller owns the
+	 * process.  The refs change when the process ends, cached queries have to be invalidated then, see
+	 * {@link GitQueryCache#invalidateRefs(Path)}.
+	 *
+	 * @param pathToRepo  path to the repository
+	 * @param exportMarks file the marks of the imported commits are written to
+	 * @return the started process
+	 * @throws CLIException if the process can't be started
+	 */
+	@Nonnull
+	public
+	Process startFastImport(@Nonnull final Path pathToRepo, @Nonnull final Path exportMarks) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(exportMarks);
+		return startOsProcess(Optional.of(pathToRepo.toFile()),
+		                      commandLine("fast-import", quiet, exportMarks(exportMarks.toAbsolutePath().toString())));
+	}
+
+	/**
+	 * Writes a commit-graph file for every reachable commit, with changed path Bloom filters.  Walks of the history
+	 * then use generation numbers and path limited ones (<code>rev-list -- path</code>, which
+	 * <code>filter-branch --subdirectory-filter</code> runs) skip most tree diffs.  Needs git 2.27 or later.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @throws CLIException if git fails, older versions don't know <code>--changed-paths</code>
+	 */
+	public
+	void writeCommitGraph(@Nonnull final Path pathToRepo) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		queryOutput(commitGraph(pathToRepo, arguments("write"), reachable, changedPaths));
+	}
+
+	public
+	CompletableFuture<ProcessResult> commitGraph(@Nonnull final Path pathToRepo,
+	                                             @Nonnull final GitCommitGraphOption... options) throws CLIException {
+		return common("commit-graph", pathToRepo, options);
+	}
+
+	/**
+	 * Finds, with a single <code>rev-list --full-history</code>, the commits that change some paths and adds them
+	 * to an index.  Every commit is considered, not only the ones of a simplified history.  Commits grafted by a
+	 * {@link CommitGraph#window(BitSet)} are compared with fewer parents than git does, they are always added.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param index      index to add the path to, commits outside its graph are ignored
+	 * @param name       name to query the path by, see {@link GenerationIndex#touches(int, String)}
+	 * @param revisions  branches or other revisions to start from
+	 * @param pathspecs  paths, with any pathspec magic
+	 * @throws CLIException if git fails
+	 */
+	public
+	void indexPath(@Nonnull final Path pathToRepo,
+	               @Nonnull final GenerationIndex index,
+	               @Nonnull final String name,
+	               @Nonnull final Collection<String> revisions,
+	               @Nonnull final Collection<String> pathspecs) throws CLIException {
+		Objects.requireNonNull(pathToRepo);
+		Objects.requireNonNull(index);
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(revisions);
+		Objects.requireNonNull(pathspecs);
+		if (revisions.isEmpty() || pathspecs.isEmpty())
+			throw new CLIException("No revisions or paths to index");
+		final RecordCursor cursor = queryOutput(revList(pathToRepo,
+		                                                fullHistory,
+		                                                arguments(revisions.stream()),
+		                                                arguments("--"),
+		                                                arguments(pathspecs.stream())))
+				.cursor(RecordSeparator.LINE);
+		final CommitGraph graph = index.getGraph();
+		final BitSet touching = new BitSet(graph.size());
+		while (cursor.nextRecord()) {
+			if (cursor.nextWord()) {
+				final int commit = graph.indexOf(cursor.field());
+				if (commit != CommitGraph.NONE)
+					touching.set(commit);
+			}
+		}
+		for (int commit = 0; commit < graph.size(); commit++) {
+			if (graph.isGrafted(commit))
+				touching.set(commit);
+		}
+		index.addPath(name, touching);
+	}
+
 	public
 	CompletableFuture<CommitInfo> getCommitInfo(@Nonnull final Path pathToRepo, @Nonnull final String commit) throws
 	                                                                                                          CLIException {
 		Objects.requireNonNull(pathToRepo);
 		Objects.requireNonNull(commit);
-		return log(pathToRepo, maxCount(1), arguments(commit)).thenApply(pr -> {
-			try {
-				final String resultOfLog = pr.getStdOut();
-				final ImmutableList<String> lines = linesInString(resultOfLog).collect(immutableListCollector());
-				if (lines.size() < 4) {
-					throw new CLIException("Can't parse result from log -1.\n" + resultOfLog);
-				}
-				if (!lines.get(0).startsWith("commit ")) {
-					throw new CLIException("Can't parse result from log -1.\n" + resultOfLog);
-				}
-				int inx = 1;
-				final ImmutableList<String> parents;
-				if (lines.get(inx).startsWith("Merge:")) {
-					parents = Arrays.stream(FunctionUtils.SPACES_PATTERN.split(lines.get(inx)
-					                                                                .substring("Merge:".length())
-					                                                                .trim()))
-					                .collect(immutableListCollector());
-					inx++;
-				}
-				else {
-					final Optional<String> optionalParent = getParentOfNonMergeCommit(pathToRepo, commit).get();
-					parents = optionalParent
-							.map(ImmutableList::of)
-							.orElse(ImmutableList.of());
-				}
-				if (!lines.get(inx).startsWith("Author: ")) {
-					throw new CLIException("Can't parse result from log -1.\n" + resultOfLog);
-				}
-				final String author = lines.get(inx).substring("Author: ".length()).trim();
-				inx++;
-				if (!lines.get(inx).startsWith("Date: ")) {
-					throw new CLIException("Can't parse result from log -1.\n" + resultOfLog);
-				}
-				final String date = lines.get(inx).substring("Date: ".length()).trim();
-				inx++;
-				if (!StringUtils.isEmpty(lines.get(inx).trim())) {
-					throw new CLIException("Can't parse result from log -1.\n" + resultOfLog);
-				}
-				inx++;
-				final String comment = lines.stream().skip(inx).map(String::trim).collect(joining(LINE_SEPARATOR));
-				return new CommitInfo(author, date, comment, parents);
-			} catch (InterruptedException | ExecutionException | CLIException e) {
-				throw Throwables.propagate(e);
-			}
-		});
+		final GitCommitObject commitObject = objectReader(pathToRepo).readCommit(commit).orElseThrow(
+				() -> new CLIException("Can't find commit \"" + commit + '"'));
+		return CompletableFuture.completedFuture(toCommitInfo(commitObject));
+	}
+
+	@Nonnull
+	private static
+	CommitInfo toCommitInfo(@Nonnull final GitCommitObject commitObject) {
+		return new CommitInfo(commitObject.getAuthor().toString(),
+		                      commitObject.getAuthor().getDateAsString(),
+		                      StringUtils.stripEnd(commitObject.getMessage(), null),
+		                      commitObject.getParents());
+	}
+
+	/**
+	 * Git processes are reported by subcommand, <code>git checkout</code>, <code>git log</code>...
+	 */
+	@Nonnull
+	@Override
+	protected
+	String metricName(@Nonnull final String[] args) {
+		return args.length > 1 ? getCommandName() + ' ' + args[1] : getCommandName();
 	}
 
 	@Override
@@ -181,20 +839,6 @@ class GitCommand extends OSCommand implements Configuration {
 		setPathToCommand(mGitCommandX);
 	}
 
-	@Nonnull
-	private
-	CompletableFuture<Optional<String>> getParentOfNonMergeCommit(@Nonnull final Path pathToRepo,
-	                                                              @Nonnull final String commit) throws
-	                                                                                            CLIException {
-		return log(pathToRepo, abbrev, pretty("oneline"), maxCount(1), arguments(commit
-		                                                                         + '^')).thenApply(pr -> {
-			final String resultOfLog = pr.getStdOut().trim();
-			if (StringUtils.isEmpty(resultOfLog))
-				return Optional.empty();
-			return Optional.of(getFirstWord().apply(resultOfLog));
-		});
-	}
-
 	public
 	CompletableFuture<ProcessResult> status(@Nonnull final Path pathToRepo,
 	                                        @Nonnull final GitStatusOption... options) throws
@@ -214,4 +858,26 @@ class GitCommand extends OSCommand implements Configuration {
 	                                                                                                 CLIException {
 		return common("add", pathToRepo, options);
 	}
+
+	/**
+	 * Stages only some paths, whether they were added, modified or deleted.  The paths are passed literally through
+	 * stdIn, so there is no limit on how many and no character in them is taken as a wildcard.  Needs git 2.26 or
+	 * later.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param paths      paths relative to the top of the repository
+	 * @return the result of the process
+	 * @throws CLIException if git is not configured
+	 */
+	public
+	CompletableFuture<ProcessResult> addPaths(@Nonnull final Path pathToRepo,
+	                                          @Nonnull final Collection<String> paths) throws CLIException {
+		Objects.requireNonNull(paths);
+		return runWithStdIn(pathToRepo,
+		                    ProcessInput.ofRecords(paths.stream().map(p -> ":(literal)" + p), RecordSeparator.NUL),
+		                    "add",
+		                    allFullTree,
+		                    pathspecFromFile("-"),
+		                    pathspecFileNul);
+	}
 }
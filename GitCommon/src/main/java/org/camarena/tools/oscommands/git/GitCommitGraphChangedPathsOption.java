@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Write the changed path Bloom filters of the commits.  Needs git 2.27 or later.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCommitGraphChangedPathsOption extends SimpleOSCommandOption implements GitCommitGraphOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitCommitGraphChangedPathsOption changedPaths = new GitCommitGraphChangedPathsOption();
+
+	private
+	GitCommitGraphChangedPathsOption() {
+		super("--changed-paths");
+	}
+}
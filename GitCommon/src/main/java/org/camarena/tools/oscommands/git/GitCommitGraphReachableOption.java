@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Write the commits reachable from every ref.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitCommitGraphReachableOption extends SimpleOSCommandOption implements GitCommitGraphOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitCommitGraphReachableOption reachable = new GitCommitGraphReachableOption();
+
+	private
+	GitCommitGraphReachableOption() {
+		super("--reachable");
+	}
+}
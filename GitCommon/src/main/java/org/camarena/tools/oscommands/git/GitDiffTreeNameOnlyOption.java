@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Output only the paths changed.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeNameOnlyOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeNameOnlyOption nameOnly = new GitDiffTreeNameOnlyOption();
+
+	private
+	GitDiffTreeNameOnlyOption() {
+		super("--name-only");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Output only the paths changed, each after the letter of its change.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeNameStatusOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeNameStatusOption nameStatus = new GitDiffTreeNameStatusOption();
+
+	private
+	GitDiffTreeNameStatusOption() {
+		super("--name-status");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Don't output the id of the commit compared.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeNoCommitIdOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeNoCommitIdOption noCommitId = new GitDiffTreeNoCommitIdOption();
+
+	private
+	GitDiffTreeNoCommitIdOption() {
+		super("--no-commit-id");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Report renames as a deletion and an addition.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeNoRenamesOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeNoRenamesOption noRenames = new GitDiffTreeNoRenamesOption();
+
+	private
+	GitDiffTreeNoRenamesOption() {
+		super("--no-renames");
+	}
+}
@@ -0,0 +1,10 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.OSCommandOption;
+
+/**
+ * @author Hermán de J. Camarena R.
+ */
+@SuppressWarnings("MarkerInterface")
+public interface GitDiffTreeOption extends OSCommandOption {
+}
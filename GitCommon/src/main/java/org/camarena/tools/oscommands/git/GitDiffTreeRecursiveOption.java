@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Recurse into subtrees.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeRecursiveOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeRecursiveOption recursive = new GitDiffTreeRecursiveOption();
+
+	private
+	GitDiffTreeRecursiveOption() {
+		super("-r");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Compare a root commit with an empty tree.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitDiffTreeRootOption extends SimpleOSCommandOption implements GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitDiffTreeRootOption root = new GitDiffTreeRootOption();
+
+	private
+	GitDiffTreeRootOption() {
+		super("--root");
+	}
+}
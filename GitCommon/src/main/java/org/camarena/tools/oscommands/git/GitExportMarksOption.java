@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * File the marks of the objects are written to when the stream ends.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitExportMarksOption extends StringOSCommandOption implements GitFastExportOption, GitFastImportOption {
+
+	public
+	GitExportMarksOption(@Nonnull final String file) {
+		super("--export-marks", Optional.ofNullable(file));
+		Objects.requireNonNull(file);
+	}
+
+	public static
+	GitExportMarksOption exportMarks(@Nonnull final String file) {
+		return new GitExportMarksOption(file);
+	}
+}
@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * What to do with commit messages not in UTF-8: <code>yes</code>, <code>no</code> or <code>abort</code>.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitFastExportReencodeOption extends StringOSCommandOption implements GitFastExportOption {
+
+	public
+	GitFastExportReencodeOption(@Nonnull final String value) {
+		super("--reencode", Optional.ofNullable(value));
+		Objects.requireNonNull(value);
+	}
+
+	public static
+	GitFastExportReencodeOption reencode(@Nonnull final String value) {
+		return new GitFastExportReencodeOption(value);
+	}
+}
@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * What to do with signed tags: <code>verbatim</code>, <code>warn</code>, <code>strip</code>...
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitFastExportSignedTagsOption extends StringOSCommandOption implements GitFastExportOption {
+
+	public
+	GitFastExportSignedTagsOption(@Nonnull final String value) {
+		super("--signed-tags", Optional.ofNullable(value));
+		Objects.requireNonNull(value);
+	}
+
+	public static
+	GitFastExportSignedTagsOption signedTags(@Nonnull final String value) {
+		return new GitFastExportSignedTagsOption(value);
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * End the stream with <code>done</code>, a stream cut short is then detected.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitFastExportUseDoneFeatureOption extends SimpleOSCommandOption implements GitFastExportOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitFastExportUseDoneFeatureOption useDoneFeature = new GitFastExportUseDoneFeatureOption();
+
+	private
+	GitFastExportUseDoneFeatureOption() {
+		super("--use-done-feature");
+	}
+}
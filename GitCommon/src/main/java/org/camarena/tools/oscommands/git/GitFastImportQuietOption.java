@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Don't report the statistics of the import.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitFastImportQuietOption extends SimpleOSCommandOption implements GitFastImportOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitFastImportQuietOption quiet = new GitFastImportQuietOption();
+
+	private
+	GitFastImportQuietOption() {
+		super("--quiet");
+	}
+}
@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Format of each record of the output, with the placeholders of the command.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitFormatOption extends StringOSCommandOption implements GitForEachRefOption, GitRevListOption {
+
+	public
+	GitFormatOption(@Nonnull final String value) {
+		super("--format", Optional.ofNullable(value));
+		Objects.requireNonNull(value);
+	}
+
+	public static
+	GitFormatOption format(@Nonnull final String value) {
+		return new GitFormatOption(value);
+	}
+}
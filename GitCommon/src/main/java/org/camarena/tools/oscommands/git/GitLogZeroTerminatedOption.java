@@ -0,0 +1,18 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Separate commits with NUL instead of new lines.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitLogZeroTerminatedOption extends SimpleOSCommandOption implements GitLogOption {
+	public static final GitLogZeroTerminatedOption zeroTerminated = new GitLogZeroTerminatedOption();
+
+	public
+	GitLogZeroTerminatedOption() {
+		super("-z");
+	}
+}
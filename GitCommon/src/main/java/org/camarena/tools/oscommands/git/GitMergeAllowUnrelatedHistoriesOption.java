@@ -0,0 +1,18 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitMergeAllowUnrelatedHistoriesOption extends SimpleOSCommandOption implements GitMergeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitMergeAllowUnrelatedHistoriesOption allowUnrelatedHistories =
+			new GitMergeAllowUnrelatedHistoriesOption();
+
+	private
+	GitMergeAllowUnrelatedHistoriesOption() {
+		super("--allow-unrelated-histories");
+	}
+}
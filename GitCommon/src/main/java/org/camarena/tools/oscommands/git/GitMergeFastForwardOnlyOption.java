@@ -0,0 +1,17 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitMergeFastForwardOnlyOption extends SimpleOSCommandOption implements GitMergeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitMergeFastForwardOnlyOption fastForwardOnly = new GitMergeFastForwardOnlyOption();
+
+	private
+	GitMergeFastForwardOnlyOption() {
+		super("--ff-only");
+	}
+}
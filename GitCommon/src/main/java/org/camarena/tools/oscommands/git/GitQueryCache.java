@@ -0,0 +1,202 @@
+package org.camarena.tools.oscommands.git;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.camarena.tools.CLIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Memoizes the results of read only git queries (<code>log</code>, <code>rev-parse</code>, branch listings,
+ * <code>ls-tree</code>...) per repository.
+ * <p>
+ * A query whose arguments only name objects by full sha can't change its answer, so it is kept forever.  Any other
+ * query depends on the refs of the repository and is dropped when {@link GitCommand} runs a command that changes
+ * refs (checkout, commit, merge, branch, update-ref...).  Failed queries are never kept.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitQueryCache {
+	private static final Logger               LOGGER               = LoggerFactory.getLogger(GitQueryCache.class);
+	private static final Pattern              IMMUTABLE_REVISION   = Pattern.compile("[0-9a-f]{40}([:^~].*)?");
+	private static final ImmutableSet<String> REF_MUTATING         = ImmutableSet.of("checkout",
+	                                                                                 "commit",
+	                                                                                 "merge",
+	                                                                                 "update-ref",
+	                                                                                 "filter-branch",
+	                                                                                 "fast-import",
+	                                                                                 "remote",
+	                                                                                 "reset",
+	                                                                                 "tag",
+	                                                                                 "fetch",
+	                                                                                 "pull",
+	                                                                                 "rebase",
+	                                                                                 "cherry-pick",
+	                                                                                 "symbolic-ref");
+	private static final ImmutableSet<String> BRANCH_LIST_OPTIONS  = ImmutableSet.of("-v",
+	                                                                                 "-vv",
+	                                                                                 "--verbose",
+	                                                                                 "--list",
+	                                                                                 "-a",
+	                                                                                 "--all",
+	                                                                                 "-r",
+	                                                                                 "--remotes");
+	private static final ImmutableSet<String> REMOTE_LIST_OPTIONS  = ImmutableSet.of("-v", "--verbose");
+	private static final ImmutableSet<String> REF_DEPENDENT_OPTIONS = ImmutableSet.of("--all",
+	                                                                                  "--branches",
+	                                                                                  "--tags",
+	                                                                                  "--remotes",
+	                                                                                  "--glob");
+
+	private final Map<Path, Map<List<String>, CompletableFuture<?>>> mImmutable    = new ConcurrentHashMap<>(4);
+	private final Map<Path, Map<List<String>, CompletableFuture<?>>> mRefDependent = new ConcurrentHashMap<>(4);
+	private final LongAdder                                          mHits         = new LongAdder();
+	private final LongAdder                                          mMisses       = new LongAdder();
+
+	/**
+	 * @param command git subcommand
+	 * @param args    arguments after the subcommand
+	 * @return true if running the command may change the refs of the repository
+	 */
+	public static
+	boolean isRefMutating(@Nonnull final String command, @Nonnull final List<String> args) {
+		Objects.requireNonNull(command);
+		Objects.requireNonNull(args);
+		if ("branch".equals(command))
+			return !args.stream().allMatch(BRANCH_LIST_OPTIONS::contains);
+		if ("remote".equals(command))
+			return !args.stream().allMatch(REMOTE_LIST_OPTIONS::contains);
+		return REF_MUTATING.contains(command);
+	}
+
+	/**
+	 * @param args arguments after the subcommand
+	 * @return true if the arguments only reference objects by their full sha
+	 */
+	public static
+	boolean isImmutable(@Nonnull final List<String> args) {
+		Objects.requireNonNull(args);
+		boolean namesAnObject = false;
+		boolean afterSeparator = false;
+		for (final String arg : args) {
+			if (afterSeparator)
+				continue;
+			if ("--".equals(arg))
+				afterSeparator = true;
+			else if (arg.startsWith("-")) {
+				final int equals = arg.indexOf('=');
+				if (REF_DEPENDENT_OPTIONS.contains(equals < 0 ? arg : arg.substring(0, equals)))
+					return false;
+			}
+			else if (IMMUTABLE_REVISION.matcher(arg).matches())
+				namesAnObject = true;
+			else
+				return false;
+		}
+		return namesAnObject;
+	}
+
+	/**
+	 * Returns the cached answer of a query or computes and caches it.  Identical queries running at the same time share
+	 * the process of the first one.
+	 *
+	 * @param pathToRepo path to the repository
+	 * @param key        the subcommand and its arguments
+	 * @param query      runs the query
+	 * @param succeeded  tells if an answer can be kept
+	 * @param <T>        type of the answer
+	 * @return the answer
+	 * @throws CLIException if the query can't be run
+	 */
+	@Nonnull
+	<T>
+	CompletableFuture<T> get(@Nonnull final Path pathToRepo,
+	                         @Nonnull final ImmutableList<String> key,
+	                         @Nonnull final Query<T> query,
+	                         @Nonnull final Predicate<T> succeeded) throws CLIException {
+		final Path repo = pathToRepo.toAbsolutePath().normalize();
+		final Map<Path, Map<List<String>, CompletableFuture<?>>> area =
+				isImmutable(key.subList(1, key.size())) ? mImmutable : mRefDependent;
+		final Map<List<String>, CompletableFuture<?>> entries = area.computeIfAbsent(repo,
+		                                                                             p -> new ConcurrentHashMap<>(64));
+		final CompletableFuture<?> failed = entries.get(key);
+		if (failed != null && failed.isCompletedExceptionally())
+			entries.remove(key, failed);
+		final boolean[] started = new boolean[1];
+		final CompletableFuture<T> result;
+		try {
+			@SuppressWarnings("unchecked")
+			final CompletableFuture<T> answer = (CompletableFuture<T>) entries.computeIfAbsent(key, k -> {
+				started[0] = true;
+				try {
+					return query.run();
+				} catch (final CLIException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			result = answer;
+		} catch (final RuntimeException e) {
+			if (e.getCause() instanceof CLIException)
+				throw (CLIException) e.getCause();
+			throw e;
+		}
+		if (!started[0]) {
+			mHits.increment();
+			return result;
+		}
+		mMisses.increment();
+		result.whenComplete((value, error) -> {
+			if (error != null || !succeeded.test(value))
+				entries.remove(key, result);
+		});
+		return result;
+	}
+
+	/**
+	 * Drops every answer that depends on the refs of a repository.
+	 *
+	 * @param pathToRepo path to the repository
+	 */
+	public
+	void invalidateRefs(@Nonnull final Path pathToRepo) {
+		Objects.requireNonNull(pathToRepo);
+		final Map<List<String>, CompletableFuture<?>> entries = mRefDependent.remove(pathToRepo.toAbsolutePath()
+		                                                                                       .normalize());
+		if (entries != null && !entries.isEmpty())
+			LOGGER.debug("Dropped {} cached queries for \"{}\"", entries.size(), pathToRepo);
+	}
+
+	public
+	void clear() {
+		mImmutable.clear();
+		mRefDependent.clear();
+	}
+
+	public
+	long getHits() {
+		return mHits.sum();
+	}
+
+	public
+	long getMisses() {
+		return mMisses.sum();
+	}
+
+	@FunctionalInterface
+	interface Query<T> {
+		@Nonnull
+		CompletableFuture<T> run() throws CLIException;
+	}
+}
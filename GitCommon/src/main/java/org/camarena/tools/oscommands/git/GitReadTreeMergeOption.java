@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Merge the trees into the index instead of replacing it, two trees switch from the first to the second.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitReadTreeMergeOption extends SimpleOSCommandOption implements GitReadTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitReadTreeMergeOption merge = new GitReadTreeMergeOption();
+
+	private
+	GitReadTreeMergeOption() {
+		super("-m");
+	}
+}
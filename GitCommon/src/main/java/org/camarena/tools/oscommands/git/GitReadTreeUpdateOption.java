@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Update the working tree with the result of the merge.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitReadTreeUpdateOption extends SimpleOSCommandOption implements GitReadTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitReadTreeUpdateOption update = new GitReadTreeUpdateOption();
+
+	private
+	GitReadTreeUpdateOption() {
+		super("-u");
+	}
+}
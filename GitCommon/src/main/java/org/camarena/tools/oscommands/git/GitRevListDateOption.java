@@ -0,0 +1,27 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.StringOSCommandOption;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Format of the dates of the output: <code>raw</code>, <code>iso</code>, <code>unix</code>...
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitRevListDateOption extends StringOSCommandOption implements GitRevListOption {
+
+	public
+	GitRevListDateOption(@Nonnull final String value) {
+		super("--date", Optional.ofNullable(value));
+		Objects.requireNonNull(value);
+	}
+
+	public static
+	GitRevListDateOption date(@Nonnull final String value) {
+		return new GitRevListDateOption(value);
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Don't simplify the history limited by paths, every commit changing them is output.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitRevListFullHistoryOption extends SimpleOSCommandOption implements GitRevListOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitRevListFullHistoryOption fullHistory = new GitRevListFullHistoryOption();
+
+	private
+	GitRevListFullHistoryOption() {
+		super("--full-history");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Follow every commit with its parents.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitRevListParentsOption extends SimpleOSCommandOption implements GitRevListOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitRevListParentsOption parents = new GitRevListParentsOption();
+
+	private
+	GitRevListParentsOption() {
+		super("--parents");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Output the commits in reverse order, parents first with <code>--topo-order</code>.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitRevListReverseOption extends SimpleOSCommandOption implements GitRevListOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitRevListReverseOption reverse = new GitRevListReverseOption();
+
+	private
+	GitRevListReverseOption() {
+		super("--reverse");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Show no parent before all its children, and the commits of a line of history together.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitRevListTopoOrderOption extends SimpleOSCommandOption implements GitRevListOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitRevListTopoOrderOption topoOrder = new GitRevListTopoOrderOption();
+
+	private
+	GitRevListTopoOrderOption() {
+		super("--topo-order");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Read the updates from stdIn and apply them all in one transaction.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitUpdateRefStdinOption extends SimpleOSCommandOption implements GitUpdateRefOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitUpdateRefStdinOption stdin = new GitUpdateRefStdinOption();
+
+	private
+	GitUpdateRefStdinOption() {
+		super("--stdin");
+	}
+}
@@ -0,0 +1,19 @@
+package org.camarena.tools.oscommands.git;
+
+import org.camarena.tools.oscommands.SimpleOSCommandOption;
+
+/**
+ * Records, of the input or the output, are NUL terminated and paths are not quoted.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public
+class GitZeroTerminatedOption extends SimpleOSCommandOption implements GitUpdateRefOption, GitDiffTreeOption {
+	@SuppressWarnings("ConstantNamingConvention")
+	public static final GitZeroTerminatedOption zeroTerminated = new GitZeroTerminatedOption();
+
+	private
+	GitZeroTerminatedOption() {
+		super("-z");
+	}
+}
@@ -0,0 +1,141 @@
+package org.camarena.tools.oscommands.git;
+
+import javax.annotation.Nonnull;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * Recent part of the history of some branches: the commits authored since a date, the commits that are not
+ * ancestors of a given one, or the last commits of every branch.  A window is closed under descendants, so besides
+ * the commits selected it takes every commit built on them.
+ * <p>
+ * {@link #apply(CommitGraph, int...)} restricts a {@link CommitGraph} to the window, the oldest commits in it become
+ * roots (see {@link CommitGraph#window(BitSet)}).
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class HistoryWindow {
+	private final long   mSince;
+	@Nonnull
+	private final String mSinceCommit;
+	private final int    mLast;
+
+	private
+	HistoryWindow(final long since, @Nonnull final String sinceCommit, final int last) {
+		mSince = since;
+		mSinceCommit = sinceCommit;
+		mLast = last;
+	}
+
+	/**
+	 * @param epochSeconds oldest author date included
+	 * @return window of the commits authored since the date
+	 */
+	@Nonnull
+	public static
+	HistoryWindow since(final long epochSeconds) {
+		return new HistoryWindow(epochSeconds, "", 0);
+	}
+
+	/**
+	 * @param commit full sha, excluded from the window
+	 * @return window of the commits that are not ancestors of the commit, like <code>commit..branch</code>
+	 */
+	@Nonnull
+	public static
+	HistoryWindow sinceCommit(@Nonnull final String commit) {
+		Objects.requireNonNull(commit);
+		return new HistoryWindow(Long.MIN_VALUE, commit, 0);
+	}
+
+	/**
+	 * @param count commits per branch
+	 * @return window of the last commits of every branch, following all parents
+	 */
+	@Nonnull
+	public static
+	HistoryWindow last(final int count) {
+		if (count <= 0)
+			throw new IllegalArgumentException("A window needs at least one commit per branch");
+		return new HistoryWindow(Long.MIN_VALUE, "", count);
+	}
+
+	/**
+	 * @param graph commits of the branches
+	 * @param tips  ids of the commits the branches point to
+	 * @return the commits of the graph in the window
+	 * @throws IllegalArgumentException if the window starts at a commit that is not in the graph
+	 */
+	@Nonnull
+	public
+	CommitGraph apply(@Nonnull final CommitGraph graph, @Nonnull final int... tips) {
+		Objects.requireNonNull(graph);
+		Objects.requireNonNull(tips);
+		final BitSet included = new BitSet(graph.size());
+		if (mLast > 0) {
+			for (final int tip : tips)
+				includeLast(graph, tip, included);
+		}
+		else if (!mSinceCommit.isEmpty()) {
+			final int start = graph.indexOf(mSinceCommit);
+			if (start == CommitGraph.NONE)
+				throw new IllegalArgumentException("Commit \"" + mSinceCommit + "\" is not in the branches");
+			included.set(0, graph.size());
+			included.andNot(ancestors(graph, start));
+		}
+		else {
+			for (int commit = 0; commit < graph.size(); commit++) {
+				if (graph.getAuthorTime(commit) >= mSince)
+					included.set(commit);
+			}
+		}
+		// Parents come before their children, one pass is enough
+		for (int commit = 0; commit < graph.size(); commit++) {
+			for (int n = 0; n < graph.getParentCount(commit) && !included.get(commit); n++) {
+				if (included.get(graph.getParent(commit, n)))
+					included.set(commit);
+			}
+		}
+		return graph.window(included);
+	}
+
+	/**
+	 * The last commits reachable from the tip are the ones with the highest ids, parents having lower ids than
+	 * their children.
+	 */
+	private
+	void includeLast(@Nonnull final CommitGraph graph, final int tip, @Nonnull final BitSet included) {
+		final PriorityQueue<Integer> pending = new PriorityQueue<>(16, Collections.reverseOrder());
+		final BitSet seen = new BitSet(graph.size());
+		pending.add(tip);
+		seen.set(tip);
+		for (int count = 0; count < mLast && !pending.isEmpty(); count++) {
+			final int commit = pending.poll();
+			included.set(commit);
+			for (int n = 0; n < graph.getParentCount(commit); n++) {
+				final int parent = graph.getParent(commit, n);
+				if (!seen.get(parent)) {
+					seen.set(parent);
+					pending.add(parent);
+				}
+			}
+		}
+	}
+
+	@Nonnull
+	private static
+	BitSet ancestors(@Nonnull final CommitGraph graph, final int commit) {
+		final BitSet ancestors = new BitSet(graph.size());
+		ancestors.set(commit);
+		for (int inx = commit; inx >= 0; inx--) {
+			if (ancestors.get(inx)) {
+				for (int n = 0; n < graph.getParentCount(inx); n++)
+					ancestors.set(graph.getParent(inx, n));
+			}
+		}
+		return ancestors;
+	}
+}
@@ -13,10 +13,20 @@ import java.util.Optional;
  */
 public
 class RSyncExcludeOption extends StringOSCommandOption implements RSyncOption {
+	@Nonnull
+	private final String mPattern;
+
 	public
 	RSyncExcludeOption(@Nonnull final String pattern) {
 		super("--exclude", Optional.ofNullable(pattern));
 		Objects.requireNonNull(pattern);
+		mPattern = pattern;
+	}
+
+	@Nonnull
+	public
+	String getPattern() {
+		return mPattern;
 	}
 
 	public static
@@ -0,0 +1,518 @@
+package org.camarena.tools.oscommands.rsync;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.oscommands.OSCommandMetrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.camarena.tools.StreamUtils.immutableListCollector;
+
+/**
+ * In process equivalent of <code>rsync -a --delete --exclude ...</code> between two working trees, that also tells
+ * exactly which files it added, modified and deleted, so they can be staged without asking git to scan the tree.
+ * <p>
+ * Files are compared by size and then by a hash of their content.  Hashes are cached by path, file key, size and
+ * modification time: a checkout rewrites only the files it changes, so the others are compared with a stat.  A file
+ * modified less than a second before it was hashed is hashed again next time, the time may not be precise enough to
+ * tell a later write.  Every directory is a fork-join task, so siblings are compared in parallel.
+ * <p>
+ * Files are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, or hard
+ * linked to the source when asked to and the filesystem allows it.  Linking is only safe because git replaces the files
+ * it checks out instead of writing them in place; a file about to be replaced is always deleted first.  Symbolic links
+ * are copied as links, modification times and POSIX permissions are kept.
+ * <p>
+ * Excluded files are neither copied nor deleted, like rsync does without <code>--delete-excluded</code>.  Patterns
+ * follow rsync: a pattern without a slash matches a name at any depth, a leading slash anchors it to the top of the
+ * tree, a trailing slash matches directories only, and <code>*</code>, <code>?</code>, <code>[...]</code> and
+ * <code>**</code> are wildcards.
+ * <p>
+ * Names are decoded with the file name encoding of the JVM, names that are not ASCII need a UTF-8 locale.
+ * <p>
+ * Thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+public final
+class TreeSynchronizer {
+	private static final String       SYNC_STAGE = "tree sync";
+	private static final HashFunction HASH       = Hashing.sha1();
+	private static final long         RACY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final boolean      POSIX      =
+			FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+	@Nonnull
+	private final ImmutableList<Exclude> mExcluded;
+	private final boolean                mHardLinks;
+	@Nonnull
+	private final ForkJoinPool           mPool;
+	@Nonnull
+	private final Map<Path, CachedHash>  mHashes = new ConcurrentHashMap<>(1024);
+
+	/**
+	 * @param excluded  rsync patterns of the files neither copied nor deleted
+	 * @param hardLinks true to hard link the copies to the source files when the filesystem allows it
+	 * @param pool      pool running the comparison of the directories
+	 */
+	public
+	TreeSynchronizer(@Nonnull final Collection<String> excluded,
+	                 final boolean hardLinks,
+	                 @Nonnull final ForkJoinPool pool) {
+		Objects.requireNonNull(excluded);
+		Objects.requireNonNull(pool);
+		mExcluded = excluded.stream().map(Exclude::new).collect(immutableListCollector());
+		mHardLinks = hardLinks;
+		mPool = pool;
+	}
+
+	/**
+	 * @param hardLinks true to hard link the copies to the source files when the filesystem allows it
+	 * @param options   rsync options, only the excludes are honored
+	 * @return a synchronizer on the common fork-join pool
+	 */
+	@Nonnull
+	public static
+	TreeSynchronizer forOptions(final boolean hardLinks, @Nonnull final RSyncOption... options) {
+		Objects.requireNonNull(options);
+		final List<String> excluded = new ArrayList<>(options.length);
+		for (final RSyncOption option : options) {
+			if (option instanceof RSyncExcludeOption)
+				excluded.add(((RSyncExcludeOption) option).getPattern());
+		}
+		return new TreeSynchronizer(excluded, hardLinks, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Makes the destination tree equal to the source one, except for the excluded files.
+	 *
+	 * @param source      top of the tree to copy
+	 * @param destination top of the tree to update, created if it doesn't exist
+	 * @return the files of the destination that changed, relative to its top and separated by <code>/</code>
+	 * @throws CLIException if a file can't be read or written
+	 */
+	@Nonnull
+	public
+	Changes sync(@Nonnull final Path source, @Nonnull final Path destination) throws CLIException {
+		Objects.requireNonNull(source);
+		Objects.requireNonNull(destination);
+		final long start = System.nanoTime();
+		final Changes.Collector collector = new Changes.Collector();
+		try {
+			Files.createDirectories(destination);
+			mPool.invoke(new DirectoryTask(source, destination, "", collector));
+			return collector.build();
+		} catch (final IOException e) {
+			throw new CLIException("Can't create \"" + destination + '"', e);
+		} catch (final RuntimeException e) {
+			// The pool rethrows the exception of a worker wrapped again, the CLIException is deeper than its cause
+			for (final Throwable cause : Throwables.getCausalChain(e)) {
+				if (cause instanceof CLIException)
+					throw (CLIException) cause;
+			}
+			throw e;
+		} finally {
+			OSCommandMetrics.registry().recordTime(SYNC_STAGE, System.nanoTime() - start);
+		}
+	}
+
+	private
+	boolean isExcluded(@Nonnull final String path, final boolean directory) {
+		for (final Exclude exclude : mExcluded) {
+			if (exclude.matches(path, directory))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return entries of a directory by name, without the excluded ones, empty if it doesn't exist
+	 */
+	@Nonnull
+	private
+	Map<String, BasicFileAttributes> list(@Nonnull final Path dir, @Nonnull final String prefix) throws IOException {
+		final Map<String, BasicFileAttributes> entries = new TreeMap<>();
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (final Path entry : stream) {
+				final String name = entry.getFileName().toString();
+				final BasicFileAttributes attributes = readAttributes(entry);
+				if (!isExcluded(prefix + name, attributes.isDirectory()))
+					entries.put(name, attributes);
+			}
+		} catch (final NoSuchFileException ignored) {
+			// A directory of the source not in the destination yet
+		}
+		return entries;
+	}
+
+	/**
+	 * @return true if the destination file has the same content and permissions as the source one
+	 */
+	private
+	boolean isSame(@Nonnull final Path source,
+	               @Nonnull final BasicFileAttributes sourceAttributes,
+	               @Nonnull final Path destination,
+	               @Nonnull final BasicFileAttributes destinationAttributes) throws IOException {
+		if (sourceAttributes.isSymbolicLink() != destinationAttributes.isSymbolicLink())
+			return false;
+		if (sourceAttributes.isSymbolicLink())
+			return Files.readSymbolicLink(source).equals(Files.readSymbolicLink(destination));
+		if (sourceAttributes.size() != destinationAttributes.size())
+			return false;
+		if (POSIX && !getPermissions(source).equals(getPermissions(destination)))
+			return false;
+		if (Objects.equals(sourceAttributes.fileKey(), destinationAttributes.fileKey())
+		    && sourceAttributes.fileKey() != null)
+			return true;
+		return hash(source, sourceAttributes).equals(hash(destination, destinationAttributes));
+	}
+
+	@Nonnull
+	private
+	HashCode hash(@Nonnull final Path file, @Nonnull final BasicFileAttributes attributes) throws IOException {
+		final CachedHash cached = mHashes.get(file);
+		if (cached != null && cached.isValidFor(attributes))
+			return cached.mHash;
+		final long hashedAt = System.currentTimeMillis();
+		final HashCode hash = com.google.common.io.Files.asByteSource(file.toFile()).hash(HASH);
+		mHashes.put(file, new CachedHash(attributes, hash, hashedAt));
+		return hash;
+	}
+
+	/**
+	 * Replaces, or creates, the destination file with the source one.
+	 */
+	private
+	void copy(@Nonnull final Path source,
+	          @Nonnull final BasicFileAttributes attributes,
+	          @Nonnull final Path destination) throws IOException {
+		Files.deleteIfExists(destination);
+		if (attributes.isSymbolicLink()) {
+			Files.createSymbolicLink(destination, Files.readSymbolicLink(source));
+			return;
+		}
+		if (mHardLinks) {
+			try {
+				Files.createLink(destination, source);
+				return;
+			} catch (final IOException | UnsupportedOperationException ignored) {
+				// Another filesystem or no hard links, the file is copied
+			}
+		}
+		try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     final FileChannel out = FileChannel.open(destination,
+		                                              StandardOpenOption.WRITE,
+		                                              StandardOpenOption.CREATE_NEW)) {
+			final long size = in.size();
+			for (long position = 0; position < size; )
+				position += in.transferTo(position, size - position, out);
+		}
+		if (POSIX)
+			Files.setPosixFilePermissions(destination, getPermissions(source));
+		Files.setLastModifiedTime(destination, attributes.lastModifiedTime());
+	}
+
+	/**
+	 * Deletes a file or a whole directory, reporting the files deleted.
+	 */
+	private
+	void delete(@Nonnull final Path path,
+	            @Nonnull final BasicFileAttributes attributes,
+	            @Nonnull final String relative,
+	            @Nonnull final Changes.Collector collector) throws IOException {
+		if (attributes.isDirectory()) {
+			for (final Map.Entry<String, BasicFileAttributes> entry : list(path, relative + '/').entrySet())
+				delete(path.resolve(entry.getKey()), entry.getValue(), relative + '/' + entry.getKey(), collector);
+			// Excluded files are kept, and so is the directory holding them
+			try (final DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				if (stream.iterator().hasNext())
+					return;
+			}
+		}
+		else
+			collector.mDeleted.add(relative);
+		mHashes.remove(path);
+		Files.delete(path);
+	}
+
+	@Nonnull
+	private static
+	BasicFileAttributes readAttributes(@Nonnull final Path path) throws IOException {
+		return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	@Nonnull
+	private static
+	Set<PosixFilePermission> getPermissions(@Nonnull final Path file) throws IOException {
+		return Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS).permissions();
+	}
+
+	/**
+	 * Compares a directory, recursing into its subdirectories in parallel.
+	 */
+	private final
+	class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = -1880613497244012634L;
+
+		@Nonnull
+		private final Path              mSource;
+		@Nonnull
+		private final Path              mDestination;
+		@Nonnull
+		private final String            mPrefix;
+		@Nonnull
+		private final Changes.Collector mCollector;
+
+		/**
+		 * @param prefix relative path of the directory followed by a slash, empty for the top
+		 */
+		DirectoryTask(@Nonnull final Path source,
+		              @Nonnull final Path destination,
+		              @Nonnull final String prefix,
+		              @Nonnull final Changes.Collector collector) {
+			mSource = source;
+			mDestination = destination;
+			mPrefix = prefix;
+			mCollector = collector;
+		}
+
+		@Override
+		protected
+		void compute() {
+			final List<DirectoryTask> subdirectories = new ArrayList<>();
+			try {
+				final Map<String, BasicFileAttributes> sourceEntries = list(mSource, mPrefix);
+				final Map<String, BasicFileAttributes> destinationEntries = list(mDestination, mPrefix);
+				// Deletions go first, a deleted directory may be replaced by a file of the same name
+				for (final Map.Entry<String, BasicFileAttributes> entry : destinationEntries.entrySet()) {
+					final BasicFileAttributes sourceAttributes = sourceEntries.get(entry.getKey());
+					if (sourceAttributes == null || sourceAttributes.isDirectory() != entry.getValue().isDirectory())
+						delete(mDestination.resolve(entry.getKey()), entry.getValue(), mPrefix + entry.getKey(),
+						       mCollector);
+				}
+				for (final Map.Entry<String, BasicFileAttributes> entry : sourceEntries.entrySet()) {
+					final String name = entry.getKey();
+					final Path source = mSource.resolve(name);
+					final Path destination = mDestination.resolve(name);
+					final BasicFileAttributes sourceAttributes = entry.getValue();
+					@Nullable
+					final BasicFileAttributes destinationAttributes = Files.exists(destination,
+					                                                               LinkOption.NOFOLLOW_LINKS)
+					                                                  ? readAttributes(destination)
+					                                                  : null;
+					if (sourceAttributes.isDirectory()) {
+						if (destinationAttributes == null)
+							Files.createDirectory(destination);
+						subdirectories.add(new DirectoryTask(source, destination, mPrefix + name + '/', mCollector));
+					}
+					else if (destinationAttributes == null) {
+						copy(source, sourceAttributes, destination);
+						mCollector.mAdded.add(mPrefix + name);
+					}
+					else if (!isSame(source, sourceAttributes, destination, destinationAttributes)) {
+						mHashes.remove(destination);
+						copy(source, sourceAttributes, destination);
+						mCollector.mModified.add(mPrefix + name);
+					}
+				}
+			} catch (final IOException e) {
+				throw CLIException.rtWrap("Can't sync \"" + mSource + "\" into \"" + mDestination + '"', e);
+			}
+			invokeAll(subdirectories);
+		}
+	}
+
+	/**
+	 * An rsync exclude pattern, matched as a regular expression on the relative path.
+	 */
+	private static final
+	class Exclude {
+		@Nonnull
+		private final Pattern mPattern;
+		private final boolean mDirectoryOnly;
+
+		Exclude(@Nonnull final String pattern) {
+			Objects.requireNonNull(pattern);
+			String glob = pattern;
+			mDirectoryOnly = glob.endsWith("/");
+			if (mDirectoryOnly)
+				glob = glob.substring(0, glob.length() - 1);
+			final boolean anchored = glob.startsWith("/");
+			if (anchored)
+				glob = glob.substring(1);
+			// Not anchored, the pattern matches the last components of the path
+			mPattern = Pattern.compile((anchored ? "" : "(?:.*/)?") + toRegex(glob));
+		}
+
+		/**
+		 * @param path      path relative to the top of the tree
+		 * @param directory true if it is a directory
+		 */
+		boolean matches(@Nonnull final String path, final boolean directory) {
+			return (!mDirectoryOnly || directory) && mPattern.matcher(path).matches();
+		}
+
+		@Nonnull
+		private static
+		String toRegex(@Nonnull final String glob) {
+			final StringBuilder regex = new StringBuilder(glob.length() * 2);
+			for (int i = 0; i < glob.length(); i++) {
+				final char c = glob.charAt(i);
+				if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				}
+				else if (c == '*')
+					regex.append("[^/]*");
+				else if (c == '?')
+					regex.append("[^/]");
+				else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+					final int close = glob.indexOf(']', i + 2);
+					String set = glob.substring(i + 1, close);
+					if (set.charAt(0) == '!')
+						set = '^' + set.substring(1);
+					regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = close;
+				}
+				else if (c == '\\' && i + 1 < glob.length())
+					regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+				else
+					regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			return regex.toString();
+		}
+	}
+
+	/**
+	 * Hash of a file while its key, size and modification time don't change.
+	 */
+	private static final
+	class CachedHash {
+		@Nullable
+		private final Object   mFileKey;
+		private final long     mSize;
+		private final long     mModified;
+		@Nonnull
+		private final HashCode mHash;
+		private final boolean  mRacy;
+
+		CachedHash(@Nonnull final BasicFileAttributes attributes, @Nonnull final HashCode hash, final long hashedAt) {
+			mFileKey = attributes.fileKey();
+			mSize = attributes.size();
+			mModified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			mHash = hash;
+			mRacy = mModified >= TimeUnit.MILLISECONDS.toNanos(hashedAt) - RACY_NANOS;
+		}
+
+		boolean isValidFor(@Nonnull final BasicFileAttributes attributes) {
+			return !mRacy
+			       && mSize == attributes.size()
+			       && mModified == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+			       && Objects.equals(mFileKey, attributes.fileKey());
+		}
+	}
+
+	/**
+	 * Files a sync added, modified and deleted, relative to the top of the destination.  Directories are not
+	 * reported, like git doesn't track them.
+	 */
+	public static final
+	class Changes {
+		@Nonnull
+		private final ImmutableSortedSet<String> mAdded;
+		@Nonnull
+		private final ImmutableSortedSet<String> mModified;
+		@Nonnull
+		private final ImmutableSortedSet<String> mDeleted;
+
+		private
+		Changes(@Nonnull final Collection<String> added,
+		        @Nonnull final Collection<String> modified,
+		        @Nonnull final Collection<String> deleted) {
+			mAdded = ImmutableSortedSet.copyOf(added);
+			mModified = ImmutableSortedSet.copyOf(modified);
+			mDeleted = ImmutableSortedSet.copyOf(deleted);
+		}
+
+		@Nonnull
+		public
+		ImmutableSortedSet<String> getAdded() {
+			return mAdded;
+		}
+
+		@Nonnull
+		public
+		ImmutableSortedSet<String> getModified() {
+			return mModified;
+		}
+
+		@Nonnull
+		public
+		ImmutableSortedSet<String> getDeleted() {
+			return mDeleted;
+		}
+
+		/**
+		 * @return every path added, modified or deleted
+		 */
+		@Nonnull
+		public
+		ImmutableSortedSet<String> getChangedPaths() {
+			return ImmutableSortedSet.<String>naturalOrder().addAll(mAdded).addAll(mModified).addAll(mDeleted).build();
+		}
+
+		public
+		boolean isEmpty() {
+			return mAdded.isEmpty() && mModified.isEmpty() && mDeleted.isEmpty();
+		}
+
+		@Override
+		public
+		String toString() {
+			return mAdded.size() + " added, " + mModified.size() + " modified, " + mDeleted.size() + " deleted";
+		}
+
+		private static final
+		class Collector {
+			private final Queue<String> mAdded    = new ConcurrentLinkedQueue<>();
+			private final Queue<String> mModified = new ConcurrentLinkedQueue<>();
+			private final Queue<String> mDeleted  = new ConcurrentLinkedQueue<>();
+
+			@Nonnull
+			Changes build() {
+				return new Changes(mAdded, mModified, mDeleted);
+			}
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.FunctionUtils;
+import org.camarena.tools.gitobjects.ObjectIds;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write ahead journal of the copy loop, so a failed run resumes from the exact commit it stopped at.
+ * <p>
+ * Every copied commit appends a <code>Step:</code> line with its position in the schedule, the temporary and final
+ * commits, the head it was committed on and the heads a merge removed.  The line is written before the commit is
+ * added to the mapping file, which is repaired from the journal on resume.  Lines are forced to disk in batches, every
+ * {@value #SYNC_BATCH} steps or every second.  Every {@value #SNAPSHOT_INTERVAL} steps the state they add up to, the
+ * heads of the final repo, the last commit copied and how many commits the mapping file has, is written to a
+ * <code>.snapshot</code> file, replaced atomically, and the journal is emptied.
+ * <p>
+ * A line cut by a crash at the end of the journal is ignored.  Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class CheckpointJournal implements Closeable {
+	static final         String SUFFIX            = ".journal";
+	static final         String SNAPSHOT_SUFFIX   = ".snapshot";
+	static final         int    SYNC_BATCH        = 64;
+	static final         int    SNAPSHOT_INTERVAL = 1024;
+	private static final long   SYNC_INTERVAL     = TimeUnit.SECONDS.toNanos(1);
+
+	@Nonnull
+	private final Path                mPath;
+	@Nonnull
+	private final Path                mSnapshotPath;
+	@Nonnull
+	private final FileChannel         mChannel;
+	@Nonnull
+	private final Map<String, String> mHeads          = new LinkedHashMap<>(16);
+	@Nonnull
+	private final Map<String, String> mReplayed       = new LinkedHashMap<>(64);
+	private       int                 mPosition       = -1;
+	@Nullable
+	private       String              mLastCommit     = null;
+	@Nullable
+	private       String              mCurrentHead    = null;
+	@Nullable
+	private       String              mFinalInitial   = null;
+	private       int                 mMapped         = 0;
+	private       int                 mSteps          = 0;
+	private       int                 mUnsynced       = 0;
+	private       long                mLastSync       = System.nanoTime();
+
+	private
+	CheckpointJournal(@Nonnull final Path path, @Nonnull final FileChannel channel) {
+		mPath = path;
+		mSnapshotPath = path.resolveSibling(path.getFileName() + SNAPSHOT_SUFFIX);
+		mChannel = channel;
+	}
+
+	/**
+	 * Starts an empty journal, a previous one and its snapshot are discarded.
+	 *
+	 * @param path journal file
+	 * @return the journal
+	 * @throws IOException if the files can't be written
+	 */
+	@Nonnull
+	static
+	CheckpointJournal create(@Nonnull final Path path) throws IOException {
+		Objects.requireNonNull(path);
+		final CheckpointJournal journal = new CheckpointJournal(path, FileChannel.open(path,
+		                                                                              StandardOpenOption.CREATE,
+		                                                                              StandardOpenOption.WRITE,
+		                                                                              StandardOpenOption
+				                                                                              .TRUNCATE_EXISTING));
+		Files.deleteIfExists(journal.mSnapshotPath);
+		return journal;
+	}
+
+	/**
+	 * Reads the snapshot and the steps journaled after it.
+	 *
+	 * @param path journal file
+	 * @return the journal, open to append more steps
+	 * @throws IOException  if the files can't be read
+	 * @throws CLIException if the files are malformed
+	 */
+	@Nonnull
+	static
+	CheckpointJournal open(@Nonnull final Path path) throws IOException, CLIException {
+		Objects.requireNonNull(path);
+		final CheckpointJournal journal = new CheckpointJournal(path, FileChannel.open(path,
+		                                                                              StandardOpenOption.CREATE,
+		                                                                              StandardOpenOption.READ,
+		                                                                              StandardOpenOption.WRITE));
+		try {
+			journal.load();
+		} catch (final IOException | CLIException | RuntimeException e) {
+			journal.mChannel.close();
+			throw e;
+		}
+		return journal;
+	}
+
+	private
+	void load() throws IOException, CLIException {
+		final String journal = new String(Files.readAllBytes(mPath), StandardCharsets.UTF_8);
+		final int complete = journal.lastIndexOf('\n') + 1;
+		try {
+			if (Files.exists(mSnapshotPath)) {
+				for (final String line : Files.readAllLines(mSnapshotPath, StandardCharsets.UTF_8))
+					readSnapshotLine(line);
+			}
+			for (final String line : journal.substring(0, complete).split("\n")) {
+				if (!line.isEmpty())
+					readStep(line);
+			}
+		} catch (final NumberFormatException e) {
+			throw new CLIException("Malformed journal \"" + mPath + '"', e);
+		}
+		// Drop what a crash cut
+		mChannel.truncate(journal.substring(0, complete).getBytes(StandardCharsets.UTF_8).length);
+		mChannel.position(mChannel.size());
+	}
+
+	private
+	void readSnapshotLine(@Nonnull final String line) throws CLIException {
+		final int colon = line.indexOf(':');
+		if (colon < 0)
+			throw new CLIException("Invalid snapshot line \"" + line + '"');
+		final String value = line.substring(colon + 1);
+		switch (line.substring(0, colon)) {
+			case "Position":
+				mPosition = Integer.parseInt(value);
+				break;
+			case "LastCommit":
+				mLastCommit = value;
+				break;
+			case "CurrentHead":
+				mCurrentHead = value;
+				break;
+			case "FinalInitial":
+				mFinalInitial = value;
+				break;
+			case "Mapped":
+				mMapped = Integer.parseInt(value);
+				break;
+			case "Head":
+				final String[] head = FunctionUtils.SPACES_PATTERN.split(value);
+				if (head.length != 2 || !ObjectIds.isFullHex(head[1]))
+					throw new CLIException("Invalid snapshot head \"" + line + '"');
+				mHeads.put(head[0], head[1]);
+				break;
+			default:
+				throw new CLIException("Invalid snapshot line \"" + line + '"');
+		}
+	}
+
+	/**
+	 * Parses <code>Step:position temp final head [removed heads]</code>.
+	 */
+	private
+	void readStep(@Nonnull final String line) throws CLIException {
+		final String[] step = line.startsWith("Step:") ? FunctionUtils.SPACES_PATTERN.split(line.substring(5)) : null;
+		if (step == null || step.length < 4 || !ObjectIds.isFullHex(step[1]) || !ObjectIds.isFullHex(step[2]))
+			throw new CLIException("Invalid journal line \"" + line + '"');
+		apply(Integer.parseInt(step[0]), step[1], step[2], step[3], ImmutableList.copyOf(step).subList(4, step.length));
+		mReplayed.put(step[1], step[2]);
+	}
+
+	private
+	void apply(final int position,
+	           @Nonnull final String tempCommit,
+	           @Nonnull final String finalCommit,
+	           @Nonnull final String head,
+	           @Nonnull final Collection<String> removedHeads) {
+		removedHeads.forEach(mHeads::remove);
+		mHeads.put(head, finalCommit);
+		mPosition = position;
+		mLastCommit = tempCommit;
+		mCurrentHead = head;
+		if (mFinalInitial == null)
+			mFinalInitial = finalCommit;
+		mSteps++;
+	}
+
+	/**
+	 * Journals a copied commit.
+	 *
+	 * @param position     position of the commit in the schedule
+	 * @param tempCommit   commit of the temporary repo
+	 * @param finalCommit  commit it was copied to
+	 * @param head         head of the final repo it was committed on
+	 * @param removedHeads heads merged into <code>head</code> and removed
+	 * @throws IOException if the journal can't be written
+	 */
+	void step(final int position,
+	          @Nonnull final String tempCommit,
+	          @Nonnull final String finalCommit,
+	          @Nonnull final String head,
+	          @Nonnull final List<String> removedHeads) throws IOException {
+		final StringBuilder line = new StringBuilder(128);
+		line.append("Step:").append(position).append(' ').append(tempCommit).append(' ').append(finalCommit)
+		    .append(' ').append(head);
+		removedHeads.forEach(h -> line.append(' ').append(h));
+		line.append('\n');
+		write(line.toString());
+		apply(position, tempCommit, finalCommit, head, removedHeads);
+		mUnsynced++;
+		if (mUnsynced >= SYNC_BATCH || System.nanoTime() - mLastSync >= SYNC_INTERVAL)
+			sync();
+	}
+
+	/**
+	 * @return true when enough steps were journaled since the last snapshot
+	 */
+	boolean isSnapshotDue() {
+		return mSteps >= SNAPSHOT_INTERVAL;
+	}
+
+	/**
+	 * Writes the state to the snapshot and empties the journal.  The mapping file must have been forced to the disk.
+	 *
+	 * @param mapped commits in the mapping file
+	 * @throws IOException if the files can't be written
+	 */
+	void snapshot(final int mapped) throws IOException {
+		mMapped = mapped;
+		final StringBuilder snapshot = new StringBuilder(256 + mHeads.size() * 64);
+		snapshot.append("Position:").append(mPosition).append('\n');
+		snapshot.append("Mapped:").append(mMapped).append('\n');
+		if (mLastCommit != null)
+			snapshot.append("LastCommit:").append(mLastCommit).append('\n');
+		if (mCurrentHead != null)
+			snapshot.append("CurrentHead:").append(mCurrentHead).append('\n');
+		if (mFinalInitial != null)
+			snapshot.append("FinalInitial:").append(mFinalInitial).append('\n');
+		mHeads.forEach((head, commit) -> snapshot.append("Head:").append(head).append(' ').append(commit)
+		                                         .append('\n'));
+		final Path newSnapshot = mSnapshotPath.resolveSibling(mSnapshotPath.getFileName() + ".new");
+		try (final FileChannel channel = FileChannel.open(newSnapshot,
+		                                                  StandardOpenOption.CREATE,
+		                                                  StandardOpenOption.WRITE,
+		                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buffer = ByteBuffer.wrap(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(newSnapshot, mSnapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		mChannel.truncate(0);
+		mChannel.position(0);
+		mChannel.force(true);
+		mReplayed.clear();
+		mSteps = 0;
+		mUnsynced = 0;
+		mLastSync = System.nanoTime();
+	}
+
+	private
+	void write(@Nonnull final String text) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining())
+			mChannel.write(buffer);
+	}
+
+	/**
+	 * Forces the journaled steps to disk.
+	 *
+	 * @throws IOException if they can't be forced
+	 */
+	void sync() throws IOException {
+		if (mUnsynced > 0)
+			mChannel.force(false);
+		mUnsynced = 0;
+		mLastSync = System.nanoTime();
+	}
+
+	/**
+	 * @return true if some commit was journaled, in the snapshot or after it
+	 */
+	boolean hasSteps() {
+		return mPosition >= 0;
+	}
+
+	/**
+	 * @return position in the schedule of the last commit journaled, -1 if none was
+	 */
+	int getPosition() {
+		return mPosition;
+	}
+
+	@Nullable
+	String getLastCommit() {
+		return mLastCommit;
+	}
+
+	@Nullable
+	String getCurrentHead() {
+		return mCurrentHead;
+	}
+
+	@Nullable
+	String getFinalInitial() {
+		return mFinalInitial;
+	}
+
+	/**
+	 * @return commits the mapping file had at the snapshot
+	 */
+	int getMapped() {
+		return mMapped;
+	}
+
+	/**
+	 * @return heads of the final repo and the commits they point to
+	 */
+	@Nonnull
+	ImmutableMap<String, String> getHeads() {
+		return ImmutableMap.copyOf(mHeads);
+	}
+
+	/**
+	 * @return temporary to final commits journaled after the snapshot, the mapping file may lack them
+	 */
+	@Nonnull
+	ImmutableMap<String, String> getReplayed() {
+		return ImmutableMap.copyOf(mReplayed);
+	}
+
+	/**
+	 * Closes and deletes the journal and its snapshot, once they are no longer needed.
+	 *
+	 * @throws IOException if the files can't be deleted
+	 */
+	void delete() throws IOException {
+		mChannel.close();
+		Files.deleteIfExists(mPath);
+		Files.deleteIfExists(mSnapshotPath);
+	}
+
+	@Override
+	public
+	void close() throws IOException {
+		if (mChannel.isOpen()) {
+			try {
+				sync();
+			} finally {
+				mChannel.close();
+			}
+		}
+	}
+}
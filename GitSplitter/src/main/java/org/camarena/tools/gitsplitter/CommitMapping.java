@@ -0,0 +1,194 @@
+package org.camarena.tools.gitsplitter;
+
+import org.camarena.tools.CLIException;
+import org.camarena.tools.CLIInvalidArgumentException;
+import org.camarena.tools.FunctionUtils;
+import org.camarena.tools.gitobjects.ObjectIdMap;
+import org.camarena.tools.gitobjects.ObjectIdMappingFile;
+import org.camarena.tools.gitobjects.ObjectIds;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Mapping from the commits of the temporary repo to the commits they were copied to, backed by the mapping file.
+ * <p>
+ * The text format has a <code>temp&lt;TAB&gt;final</code> line per commit, it is loaded whole into an
+ * {@link ObjectIdMap}.  The binary format is an {@link ObjectIdMappingFile}, searched in place.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class CommitMapping implements Closeable {
+	@Nullable
+	private final ObjectIdMap         mMap;
+	@Nullable
+	private final FileChannel         mChannel;
+	@Nullable
+	private final PrintWriter         mWriter;
+	@Nullable
+	private final ObjectIdMappingFile mFile;
+
+	private
+	CommitMapping(@Nullable final ObjectIdMap map,
+	              @Nullable final FileChannel channel,
+	              @Nullable final ObjectIdMappingFile file) {
+		mMap = map;
+		mChannel = channel;
+		mWriter = channel == null
+		          ? null
+		          : new PrintWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 8192));
+		mFile = file;
+	}
+
+	/**
+	 * @param path   mapping file, created if it doesn't exist
+	 * @param binary true for the binary format
+	 * @return the mapping with the entries already in the file
+	 * @throws IOException  if the file can't be read or written
+	 * @throws CLIException if the file is malformed
+	 */
+	@Nonnull
+	static
+	CommitMapping open(@Nonnull final Path path, final boolean binary) throws IOException, CLIException {
+		Objects.requireNonNull(path);
+		if (binary)
+			return new CommitMapping(null, null, ObjectIdMappingFile.open(path));
+		final ObjectIdMap map = new ObjectIdMap(256);
+		if (Files.exists(path)) {
+			try (final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+				reader.lines().forEach(l -> {
+					final String[] p = FunctionUtils.SPACES_PATTERN.split(l.trim());
+					if (p.length != 2 || !ObjectIds.isFullHex(p[0]) || !ObjectIds.isFullHex(p[1]))
+						throw CLIInvalidArgumentException.rtWrap("Invalid mapping entry \"" + l + '"');
+					map.put(p[0], p[1]);
+				});
+			} catch (final RuntimeException e) {
+				if (e.getCause() instanceof CLIException)
+					throw (CLIException) e.getCause();
+				throw e;
+			}
+		}
+		return new CommitMapping(map,
+		                         FileChannel.open(path,
+		                                          StandardOpenOption.CREATE,
+		                                          StandardOpenOption.WRITE,
+		                                          StandardOpenOption.APPEND),
+		                         null);
+	}
+
+	/**
+	 * Records a copied commit in memory and in the file.
+	 *
+	 * @param tempCommit  full sha in the temporary repo
+	 * @param finalCommit full sha in the final repo
+	 * @throws IOException if the file can't be written
+	 */
+	void put(@Nonnull final String tempCommit, @Nonnull final String finalCommit) throws IOException {
+		if (mFile != null)
+			mFile.put(tempCommit, finalCommit);
+		else {
+			Objects.requireNonNull(mMap).put(tempCommit, finalCommit);
+			Objects.requireNonNull(mWriter).println(tempCommit + '\t' + finalCommit);
+		}
+	}
+
+	/**
+	 * @param tempCommit full sha in the temporary repo
+	 * @return the commit it was copied to, null if it was not copied
+	 */
+	@Nullable
+	String get(@Nonnull final String tempCommit) {
+		return mFile != null ? mFile.get(tempCommit) : Objects.requireNonNull(mMap).get(tempCommit);
+	}
+
+	/**
+	 * @param finalCommit full sha in the final repo
+	 * @return the last commit copied to it, null if none was
+	 */
+	@Nullable
+	String getKey(@Nonnull final String finalCommit) {
+		return mFile != null ? mFile.getKey(finalCommit) : Objects.requireNonNull(mMap).getKey(finalCommit);
+	}
+
+	/**
+	 * @return number of commits mapped
+	 */
+	int size() {
+		return mFile != null ? mFile.size() : Objects.requireNonNull(mMap).size();
+	}
+
+	boolean containsKey(@Nonnull final String tempCommit) {
+		return get(tempCommit) != null;
+	}
+
+	boolean containsValue(@Nonnull final String finalCommit) {
+		return getKey(finalCommit) != null;
+	}
+
+	/**
+	 * Writes the mapping in the text format.
+	 *
+	 * @param writer where to write it
+	 * @throws IOException if the mapping can't be read or the writer fails
+	 */
+	void exportText(@Nonnull final Writer writer) throws IOException {
+		Objects.requireNonNull(writer);
+		if (mFile != null)
+			mFile.exportText(writer);
+		else {
+			final IOException[] failure = new IOException[1];
+			Objects.requireNonNull(mMap).forEach((tempCommit, finalCommit) -> {
+				try {
+					if (failure[0] == null)
+						writer.write(tempCommit + '\t' + finalCommit + '\n');
+				} catch (final IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Writes the buffered entries and forces them to the disk, so that they survive a crash of the OS.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	void sync() throws IOException {
+		if (mFile != null)
+			mFile.sync();
+		else {
+			final PrintWriter writer = Objects.requireNonNull(mWriter);
+			writer.flush();
+			if (writer.checkError())
+				throw new IOException("Can't write mapping file");
+			Objects.requireNonNull(mChannel).force(true);
+		}
+	}
+
+	@Override
+	public
+	void close() throws IOException {
+		if (mFile != null)
+			mFile.close();
+		else
+			Objects.requireNonNull(mWriter).close();
+	}
+}
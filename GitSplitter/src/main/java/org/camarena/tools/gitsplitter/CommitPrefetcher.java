@@ -0,0 +1,200 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.oscommands.OSCommandMetrics;
+import org.camarena.tools.oscommands.git.CommitGraph;
+import org.camarena.tools.oscommands.git.GitCommand;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Source side of the copy loop: reads what is needed to copy the commits, in the order they will be copied, up to a
+ * window of commits ahead of the one being written.  Reads run concurrently on a small pool of their own, so the
+ * stage writing the final repository only waits when it catches up with them.
+ * <p>
+ * With a window of 0 nothing is read ahead and changed paths are not read at all.
+ * <p>
+ * Stall times are recorded in {@link OSCommandMetrics}: <code>pipeline source queued</code> is how long reads wait
+ * for a thread, <code>pipeline source read</code> how long they take and <code>pipeline write stalled</code> how
+ * long the write stage waits for them.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class CommitPrefetcher implements AutoCloseable {
+	static final String SOURCE_QUEUED = "pipeline source queued";
+	static final String SOURCE_READ   = "pipeline source read";
+	static final String WRITE_STALLED = "pipeline write stalled";
+
+	@Nonnull
+	private final GitCommand                            mGit;
+	@Nonnull
+	private final Path                                  mRepo;
+	@Nonnull
+	private final CommitGraph                           mGraph;
+	@Nonnull
+	private final int[]                                 mOrder;
+	private final int                                   mWindow;
+	@Nonnull
+	private final CompletableFuture<PrefetchedCommit>[] mPending;
+	@Nullable
+	private final ExecutorService                       mExecutor;
+	private       int                                   mNextToSubmit = 0;
+
+	/**
+	 * @param git    git used to read the repository
+	 * @param repo   repository the commits are read from
+	 * @param graph  commits
+	 * @param order  order in which the commits are taken
+	 * @param window how many commits are read ahead, 0 to read them when they are taken
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	CommitPrefetcher(@Nonnull final GitCommand git,
+	                 @Nonnull final Path repo,
+	                 @Nonnull final CommitGraph graph,
+	                 @Nonnull final int[] order,
+	                 final int window) {
+		Objects.requireNonNull(git);
+		Objects.requireNonNull(repo);
+		Objects.requireNonNull(graph);
+		Objects.requireNonNull(order);
+		if (window < 0)
+			throw new IllegalArgumentException("Negative lookahead window");
+		mGit = git;
+		mRepo = repo;
+		mGraph = graph;
+		mOrder = order.clone();
+		mWindow = window;
+		mPending = new CompletableFuture[Math.max(1, window)];
+		mExecutor = window == 0 ? null : Executors.newFixedThreadPool(
+				Math.min(window, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("commit-prefetch-%d").build());
+	}
+
+	/**
+	 * Takes the next commit, positions must be taken in order.
+	 *
+	 * @param position position of the commit in the order
+	 * @return what was read for the commit
+	 * @throws CLIException if the commit can't be read
+	 */
+	@Nonnull
+	PrefetchedCommit take(final int position) throws CLIException {
+		if (mExecutor == null)
+			return new PrefetchedCommit(mGraph, mOrder[position], null);
+		while (mNextToSubmit < mOrder.length && mNextToSubmit <= position + mWindow - 1)
+			submit(mNextToSubmit++);
+		final CompletableFuture<PrefetchedCommit> pending = mPending[position % mPending.length];
+		final long start = System.nanoTime();
+		try {
+			return pending.join();
+		} catch (final CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof CLIException)
+				throw (CLIException) cause;
+			throw new CLIException("Can't read commit \"" + mGraph.getSha(mOrder[position]) + '"', cause);
+		} finally {
+			OSCommandMetrics.registry().recordTime(WRITE_STALLED, System.nanoTime() - start);
+			mPending[position % mPending.length] = null;
+		}
+	}
+
+	private
+	void submit(final int position) {
+		final int commit = mOrder[position];
+		final long queued = System.nanoTime();
+		mPending[position % mPending.length] = CompletableFuture.supplyAsync(() -> {
+			final long start = System.nanoTime();
+			OSCommandMetrics.registry().recordTime(SOURCE_QUEUED, start - queued);
+			try {
+				final String parent = mGraph.isRoot(commit) ? null : mGraph.getSha(mGraph.getParent(commit, 0));
+				return new PrefetchedCommit(mGraph,
+				                            commit,
+				                            mGit.changedPaths(mRepo, parent, mGraph.getSha(commit)));
+			} catch (final CLIException e) {
+				throw new CompletionException(e);
+			} finally {
+				OSCommandMetrics.registry().recordTime(SOURCE_READ, System.nanoTime() - start);
+			}
+		}, mExecutor);
+	}
+
+	@Override
+	public
+	void close() {
+		if (mExecutor != null)
+			mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Metadata of a commit decoded from the graph and, when read ahead, the paths it changes from its first parent.
+	 */
+	static final
+	class PrefetchedCommit {
+		private final int                   mCommit;
+		@Nonnull
+		private final String                mSha;
+		@Nonnull
+		private final String                mAuthor;
+		@Nonnull
+		private final String                mDate;
+		@Nonnull
+		private final String                mMessage;
+		@Nullable
+		private final ImmutableList<String> mChangedPaths;
+
+		private
+		PrefetchedCommit(@Nonnull final CommitGraph graph,
+		                 final int commit,
+		                 @Nullable final ImmutableList<String> changedPaths) {
+			mCommit = commit;
+			mSha = graph.getSha(commit);
+			mAuthor = graph.getAuthor(commit);
+			mDate = graph.getDate(commit);
+			mMessage = graph.getMessage(commit);
+			mChangedPaths = changedPaths;
+		}
+
+		int getCommit() {
+			return mCommit;
+		}
+
+		@Nonnull
+		String getSha() {
+			return mSha;
+		}
+
+		@Nonnull
+		String getAuthor() {
+			return mAuthor;
+		}
+
+		@Nonnull
+		String getDate() {
+			return mDate;
+		}
+
+		@Nonnull
+		String getMessage() {
+			return mMessage;
+		}
+
+		/**
+		 * @return paths changed from the first parent, or from nothing for a root, if they were read
+		 */
+		@Nonnull
+		Optional<ImmutableList<String>> getChangedPaths() {
+			return Optional.ofNullable(mChangedPaths);
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.gitobjects.ObjectIds;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rewrites a <code>git fast-export</code> stream for <code>git fast-import</code>: paths out of the top folder are
+ * dropped and the top folder is stripped from the rest, excluded names are dropped at any depth.  Commits left without
+ * changes and with one parent or none, after their parents were rewritten, are pruned like
+ * <code>filter-branch --prune-empty</code> prunes them: their children and refs move to the commit that replaced them.
+ * <p>
+ * The stream is handled as bytes, lines are decoded as ISO-8859-1 so they are written back unchanged.  Commit marks
+ * are kept, so the marks exported by both processes can be joined through {@link #resolve(int)}.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class FastExportFilter {
+	/**
+	 * {@link #resolve(int)} of a commit pruned with no commit to replace it.
+	 */
+	static final int NONE = -1;
+
+	@Nonnull
+	private final String               mPrefix;
+	@Nonnull
+	private final ImmutableSet<String> mExcluded;
+	@Nonnull
+	private final BitSet               mCommits    = new BitSet(1024);
+	@Nonnull
+	private final Map<String, Integer> mRefTips    = new LinkedHashMap<>(16);
+	// 0 for a kept mark, the mark replacing a pruned commit or NONE
+	@Nonnull
+	private       int[]                mReplaced   = new int[1024];
+	private       int                  mPruned     = 0;
+	@Nullable
+	private       String               mPushedBack = null;
+
+	/**
+	 * @param topFolder folder that becomes the top of the paths, empty to keep them as they are
+	 * @param excluded  names dropped from the paths
+	 */
+	FastExportFilter(@Nonnull final String topFolder, @Nonnull final Collection<String> excluded) {
+		Objects.requireNonNull(topFolder);
+		Objects.requireNonNull(excluded);
+		final String folder = topFolder.replaceAll("^/+|/+$", "");
+		mPrefix = folder.isEmpty() ? "" : asLatin1(folder + '/');
+		mExcluded = ImmutableSet.copyOf(excluded.stream().map(FastExportFilter::asLatin1).iterator());
+	}
+
+	/**
+	 * Filters a whole stream.
+	 *
+	 * @param in  stdOut of <code>git fast-export</code>
+	 * @param out stdIn of <code>git fast-import</code>, flushed but not closed
+	 * @throws IOException  if the streams fail
+	 * @throws CLIException if the stream has commands the filter does not understand
+	 */
+	void filter(@Nonnull final InputStream in, @Nonnull final OutputStream out) throws IOException, CLIException {
+		final InputStream input = new BufferedInputStream(Objects.requireNonNull(in), 64 * 1024);
+		final OutputStream output = new BufferedOutputStream(Objects.requireNonNull(out), 64 * 1024);
+		boolean done = false;
+		String line;
+		while ((line = nextLine(input)) != null) {
+			if (line.startsWith("commit "))
+				filterCommit(line.substring(7), input, output);
+			else if (line.startsWith("reset "))
+				filterReset(line.substring(6), input, output);
+			else if (line.startsWith("data "))
+				copyData(line, input, output);
+			else if (line.startsWith("tag "))
+				throw new CLIException("Tags are not copied, found \"" + line + '"');
+			else {
+				if ("done".equals(line)) {
+					writeRefResets(output);
+					done = true;
+				}
+				writeLine(output, line);
+			}
+		}
+		if (!done)
+			writeRefResets(output);
+		output.flush();
+	}
+
+	/**
+	 * @param mark mark of a commit in the stream
+	 * @return the mark of the commit that replaced it in the filtered stream, itself if it was not pruned or
+	 * {@link #NONE}
+	 */
+	int resolve(final int mark) {
+		return mark < mReplaced.length && mReplaced[mark] != 0 ? mReplaced[mark] : mark;
+	}
+
+	/**
+	 * @param mark mark in the stream
+	 * @return true if the mark is of a commit
+	 */
+	boolean isCommit(final int mark) {
+		return mCommits.get(mark);
+	}
+
+	int getCommitCount() {
+		return mCommits.cardinality();
+	}
+
+	int getPrunedCount() {
+		return mPruned;
+	}
+
+	/**
+	 * Reads a marks file written by <code>--export-marks</code>.
+	 *
+	 * @param path marks file
+	 * @return full sha by mark
+	 * @throws IOException  if the file can't be read
+	 * @throws CLIException if the file is malformed
+	 */
+	@Nonnull
+	static
+	ImmutableMap<Integer, String> readMarks(@Nonnull final Path path) throws IOException, CLIException {
+		final ImmutableMap.Builder<Integer, String> marks = ImmutableMap.builder();
+		for (final String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+			final int space = line.indexOf(' ');
+			if (!line.startsWith(":") || space < 0 || !ObjectIds.isFullHex(line.substring(space + 1)))
+				throw new CLIException("Invalid mark \"" + line + "\" in \"" + path + '"');
+			marks.put(parseMark(line.substring(0, space)), line.substring(space + 1));
+		}
+		return marks.build();
+	}
+
+	private
+	void filterCommit(@Nonnull final String ref, @Nonnull final InputStream in, @Nonnull final OutputStream out)
+			throws IOException, CLIException {
+		final List<String> header = new ArrayList<>(4);
+		int mark = 0;
+		String line;
+		while ((line = nextLine(in)) != null && !line.startsWith("data ")) {
+			if (line.startsWith("mark "))
+				mark = parseMark(line.substring(5));
+			header.add(line);
+		}
+		if (line == null || mark == 0)
+			throw new CLIException("Commit of \"" + ref + "\" without mark or message");
+		final byte[] message = readData(line, in);
+		String from = null;
+		final List<String> merges = new ArrayList<>(2);
+		final List<String> changes = new ArrayList<>(8);
+		while ((line = nextLine(in)) != null && !line.isEmpty()) {
+			if (line.startsWith("from "))
+				from = line.substring(5);
+			else if (line.startsWith("merge "))
+				merges.add(line.substring(6));
+			else if (line.startsWith("M ") || line.startsWith("D ") || "deleteall".equals(line)) {
+				final String change = filterChange(line);
+				if (change != null)
+					changes.add(change);
+			}
+			else if (line.startsWith("C ") || line.startsWith("R ") || line.startsWith("N "))
+				throw new CLIException("Unsupported change \"" + line + "\" in commit of \"" + ref + '"');
+			else {
+				mPushedBack = line;
+				break;
+			}
+		}
+
+		final List<String> parents = new ArrayList<>(1 + merges.size());
+		final String firstParent = from == null ? null : resolveParent(from);
+		if (firstParent != null)
+			parents.add(firstParent);
+		for (final String merge : merges) {
+			final String parent = resolveParent(merge);
+			if (parent != null && !parents.contains(parent))
+				parents.add(parent);
+		}
+		mCommits.set(mark);
+		mRefTips.put(ref, mark);
+		if (changes.isEmpty() && parents.size() <= 1 && (firstParent == null || firstParent.startsWith(":"))) {
+			replace(mark, firstParent == null ? NONE : parseMark(firstParent));
+			return;
+		}
+		if (parents.isEmpty())
+			// Not to be committed on top of a branch already in the final repo
+			writeLine(out, "reset " + ref);
+		writeLine(out, "commit " + ref);
+		for (final String headerLine : header)
+			writeLine(out, headerLine);
+		writeLine(out, "data " + message.length);
+		out.write(message);
+		for (int inx = 0; inx < parents.size(); inx++)
+			writeLine(out, (inx == 0 ? "from " : "merge ") + parents.get(inx));
+		// The changes are relative to the first parent, pruned into nothing its tree was empty
+		if (from != null && firstParent == null && !parents.isEmpty())
+			writeLine(out, "deleteall");
+		for (final String change : changes)
+			writeLine(out, change);
+		writeLine(out, "");
+	}
+
+	private
+	void filterReset(@Nonnull final String ref, @Nonnull final InputStream in, @Nonnull final OutputStream out)
+			throws IOException, CLIException {
+		writeLine(out, "reset " + ref);
+		final String line = nextLine(in);
+		if (line != null && line.startsWith("from ")) {
+			final String from = resolveParent(line.substring(5));
+			if (line.startsWith("from :"))
+				mRefTips.put(ref, parseMark(line.substring(5)));
+			if (from != null)
+				writeLine(out, "from " + from);
+		}
+		else
+			mPushedBack = line;
+	}
+
+	/**
+	 * Refs whose last commit was pruned are moved to the commit that replaced it.
+	 */
+	private
+	void writeRefResets(@Nonnull final OutputStream out) throws IOException {
+		for (final Map.Entry<String, Integer> tip : mRefTips.entrySet()) {
+			final int mark = resolve(tip.getValue());
+			if (mark != tip.getValue() && mark != NONE) {
+				writeLine(out, "reset " + tip.getKey());
+				writeLine(out, "from :" + mark);
+				writeLine(out, "");
+			}
+		}
+	}
+
+	/**
+	 * @return the rewritten change, null if its path is dropped
+	 */
+	@Nullable
+	private
+	String filterChange(@Nonnull final String change) throws CLIException {
+		if ("deleteall".equals(change))
+			return change;
+		final int pathStart;
+		if (change.charAt(0) == 'M') {
+			final int dataRefEnd = change.indexOf(' ', change.indexOf(' ', 2) + 1);
+			if (dataRefEnd < 0)
+				throw new CLIException("Invalid change \"" + change + '"');
+			pathStart = dataRefEnd + 1;
+		}
+		else
+			pathStart = 2;
+		final String path = unquote(change.substring(pathStart));
+		if (!path.startsWith(mPrefix) || path.length() == mPrefix.length())
+			return null;
+		final String newPath = path.substring(mPrefix.length());
+		if (!mExcluded.isEmpty() && Arrays.stream(newPath.split("/")).anyMatch(mExcluded::contains))
+			return null;
+		return change.substring(0, pathStart) + quote(newPath);
+	}
+
+	/**
+	 * @param parent mark or sha of a parent
+	 * @return the parent in the filtered stream, null if it was pruned into nothing
+	 */
+	@Nullable
+	private
+	String resolveParent(@Nonnull final String parent) throws CLIException {
+		if (!parent.startsWith(":"))
+			return parent;
+		final int mark = resolve(parseMark(parent));
+		return mark == NONE ? null : ":" + mark;
+	}
+
+	private
+	void replace(final int mark, final int replacement) {
+		if (mark >= mReplaced.length)
+			mReplaced = Arrays.copyOf(mReplaced, Math.max(mReplaced.length * 2, mark + 1));
+		mReplaced[mark] = replacement;
+		mPruned++;
+	}
+
+	@Nullable
+	private
+	String nextLine(@Nonnull final InputStream in) throws IOException {
+		if (mPushedBack != null) {
+			final String line = mPushedBack;
+			mPushedBack = null;
+			return line;
+		}
+		return readLine(in);
+	}
+
+	private
+	void copyData(@Nonnull final String dataLine, @Nonnull final InputStream in, @Nonnull final OutputStream out)
+			throws IOException, CLIException {
+		final byte[] data = readData(dataLine, in);
+		writeLine(out, dataLine);
+		out.write(data);
+	}
+
+	@Nonnull
+	private static
+	byte[] readData(@Nonnull final String dataLine, @Nonnull final InputStream in) throws IOException, CLIException {
+		final int length;
+		try {
+			length = Integer.parseInt(dataLine.substring(5));
+		} catch (final NumberFormatException e) {
+			throw new CLIException("Unsupported data \"" + dataLine + '"', e);
+		}
+		final byte[] data = new byte[length];
+		int read = 0;
+		while (read < length) {
+			final int count = in.read(data, read, length - read);
+			if (count < 0)
+				throw new EOFException("Stream ended inside of data");
+			read += count;
+		}
+		return data;
+	}
+
+	private static
+	int parseMark(@Nonnull final String mark) throws CLIException {
+		try {
+			if (mark.startsWith(":"))
+				return Integer.parseInt(mark.substring(1));
+		} catch (final NumberFormatException e) {
+			throw new CLIException("Invalid mark \"" + mark + '"', e);
+		}
+		throw new CLIException("Invalid mark \"" + mark + '"');
+	}
+
+	@Nullable
+	private static
+	String readLine(@Nonnull final InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n')
+			line.write(b);
+		if (b < 0 && line.size() == 0)
+			return null;
+		return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static
+	void writeLine(@Nonnull final OutputStream out, @Nonnull final String line) throws IOException {
+		out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+		out.write('\n');
+	}
+
+	/**
+	 * @return the UTF-8 bytes of the text, one char per byte
+	 */
+	@Nonnull
+	private static
+	String asLatin1(@Nonnull final String text) {
+		return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Undoes the C style quoting git uses for unusual paths.
+	 */
+	@Nonnull
+	private static
+	String unquote(@Nonnull final String path) throws CLIException {
+		if (path.length() < 2 || path.charAt(0) != '"' || path.charAt(path.length() - 1) != '"')
+			return path;
+		final StringBuilder unquoted = new StringBuilder(path.length());
+		for (int inx = 1; inx < path.length() - 1; inx++) {
+			char c = path.charAt(inx);
+			if (c == '\\') {
+				if (++inx >= path.length() - 1)
+					throw new CLIException("Invalid quoted path " + path);
+				c = path.charAt(inx);
+				switch (c) {
+					case 'a':
+						c = 7;
+						break;
+					case 'b':
+						c = '\b';
+						break;
+					case 'f':
+						c = '\f';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					case 't':
+						c = '\t';
+						break;
+					case 'v':
+						c = 11;
+						break;
+					default:
+						if (c >= '0' && c <= '3' && inx + 2 < path.length() - 1) {
+							c = (char) Integer.parseInt(path.substring(inx, inx + 3), 8);
+							inx += 2;
+						}
+						break;
+				}
+			}
+			unquoted.append(c);
+		}
+		return unquoted.toString();
+	}
+
+	@Nonnull
+	private static
+	String quote(@Nonnull final String path) {
+		boolean needed = path.startsWith("\"");
+		for (int inx = 0; inx < path.length() && !needed; inx++) {
+			final char c = path.charAt(inx);
+			needed = c < ' ' || c == '\\' || c == 0x7f;
+		}
+		if (!needed)
+			return path;
+		final StringBuilder quoted = new StringBuilder(path.length() + 8).append('"');
+		for (int inx = 0; inx < path.length(); inx++) {
+			final char c = path.charAt(inx);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ' || c == 0x7f)
+				quoted.append('\\').append(String.format("%03o", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
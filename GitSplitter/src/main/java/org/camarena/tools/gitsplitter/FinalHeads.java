@@ -0,0 +1,117 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableList;
+import org.camarena.tools.gitobjects.ObjectIdIntMap;
+import org.camarena.tools.gitobjects.ObjectIds;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.camarena.tools.StreamUtils.immutableListCollector;
+
+/**
+ * Branches of the final repository being built and the commit each one points to.  There are only a few heads at any
+ * time but the commit to head lookup is done for every copied commit, so the reverse index is keyed by binary sha.
+ * The heads pointing to the same commit are chained, newest first, a head moving away leaves the previous one in the
+ * index.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class FinalHeads {
+	@Nonnull
+	private final Map<String, Integer> mHeadIds      = new HashMap<>(16);
+	@Nonnull
+	private final List<String>         mNames        = new ArrayList<>(16);
+	@Nonnull
+	private final ObjectIdIntMap       mHeadOfCommit = new ObjectIdIntMap(64);
+	@Nonnull
+	private       byte[]               mCommits      = new byte[16 * ObjectIds.RAW_LENGTH];
+	@Nonnull
+	private       int[]                mNextOfCommit = new int[16];
+
+	/**
+	 * Points a head to a commit, the head is created if needed.
+	 *
+	 * @param head   branch name
+	 * @param commit full sha
+	 */
+	void put(@Nonnull final String head, @Nonnull final String commit) {
+		Objects.requireNonNull(head);
+		Objects.requireNonNull(commit);
+		Integer id = mHeadIds.get(head);
+		if (id == null) {
+			id = mNames.indexOf(null);
+			if (id < 0) {
+				id = mNames.size();
+				mNames.add(head);
+				if (mCommits.length < mNames.size() * ObjectIds.RAW_LENGTH) {
+					mCommits = Arrays.copyOf(mCommits, mCommits.length * 2);
+					mNextOfCommit = Arrays.copyOf(mNextOfCommit, mNextOfCommit.length * 2);
+				}
+			}
+			else
+				mNames.set(id, head);
+			mHeadIds.put(head, id);
+		}
+		else
+			unlinkCommit(id);
+		ObjectIds.fromHex(commit, mCommits, id * ObjectIds.RAW_LENGTH);
+		mNextOfCommit[id] = mHeadOfCommit.put(mCommits, id * ObjectIds.RAW_LENGTH, id);
+	}
+
+	/**
+	 * @param commit full sha
+	 * @return the last head pointed to the commit that still points to it, null if none does
+	 */
+	@Nullable
+	String getHead(@Nonnull final String commit) {
+		final int id = mHeadOfCommit.get(commit);
+		return id == ObjectIdIntMap.NOT_FOUND ? null : mNames.get(id);
+	}
+
+	boolean contains(@Nonnull final String head) {
+		return mHeadIds.containsKey(head);
+	}
+
+	void remove(@Nonnull final String head) {
+		final Integer id = mHeadIds.remove(head);
+		if (id != null) {
+			unlinkCommit(id);
+			mNames.set(id, null);
+		}
+	}
+
+	@Nonnull
+	ImmutableList<String> getHeads() {
+		return mNames.stream().filter(Objects::nonNull).collect(immutableListCollector());
+	}
+
+	/**
+	 * Takes a head out of the chain of its commit, the next one in the chain takes its place in the index.
+	 */
+	private
+	void unlinkCommit(final int id) {
+		final int offset = id * ObjectIds.RAW_LENGTH;
+		final int first = mHeadOfCommit.get(mCommits, offset);
+		if (first == id) {
+			if (mNextOfCommit[id] == ObjectIdIntMap.NOT_FOUND)
+				mHeadOfCommit.remove(mCommits, offset);
+			else
+				mHeadOfCommit.put(mCommits, offset, mNextOfCommit[id]);
+			return;
+		}
+		int prev = first;
+		while (mNextOfCommit[prev] != id)
+			prev = mNextOfCommit[prev];
+		mNextOfCommit[prev] = mNextOfCommit[id];
+	}
+}
@@ -2,9 +2,8 @@ package org.camarena.tools.gitsplitter;
 
 import com.beust.jcommander.Parameter;
 import com.google.common.base.Throwables;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -12,14 +11,22 @@ import org.camarena.tools.CLIException;
 import org.camarena.tools.CLIInvalidArgumentException;
 import org.camarena.tools.CLITool;
 import org.camarena.tools.Configuration;
-import org.camarena.tools.FunctionUtils;
+import org.camarena.tools.oscommands.OSCommandMetrics;
+import org.camarena.tools.oscommands.ProcessInput;
+import org.camarena.tools.oscommands.ProcessOutput;
 import org.camarena.tools.oscommands.ProcessResult;
-import org.camarena.tools.oscommands.Tuple2;
-import org.camarena.tools.oscommands.git.CommitInfo;
+import org.camarena.tools.oscommands.RecordSeparator;
+import org.camarena.tools.gitsplitter.CommitPrefetcher.PrefetchedCommit;
+import org.camarena.tools.gitobjects.ObjectIds;
+import org.camarena.tools.oscommands.git.CommitGraph;
+import org.camarena.tools.oscommands.git.CommitSchedule;
+import org.camarena.tools.oscommands.git.GenerationIndex;
 import org.camarena.tools.oscommands.git.GitBranchDeleteOption;
-import org.camarena.tools.oscommands.git.GitVerboseOption;
+import org.camarena.tools.oscommands.git.GitMergeOption;
+import org.camarena.tools.oscommands.git.HistoryWindow;
 import org.camarena.tools.oscommands.rsync.RSyncExcludeOption;
 import org.camarena.tools.oscommands.rsync.RSyncOption;
+import org.camarena.tools.oscommands.rsync.TreeSynchronizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,39 +36,50 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.joining;
-import static java.util.stream.Collectors.toMap;
-import static java.util.stream.Collectors.toSet;
-import static org.camarena.tools.FunctionUtils.getFirstWord;
 import static org.camarena.tools.StreamUtils.immutableListCollector;
-import static org.camarena.tools.StreamUtils.immutableSetCollector;
-import static org.camarena.tools.StreamUtils.linesInString;
 import static org.camarena.tools.oscommands.git.GitAddAllFullTreeOption.allFullTree;
 import static org.camarena.tools.oscommands.git.GitArgument.arguments;
 import static org.camarena.tools.oscommands.git.GitBranchForceDeleteOption.forceDelete;
 import static org.camarena.tools.oscommands.git.GitCheckoutBranchOption.createBranch;
+import static org.camarena.tools.oscommands.git.GitCheckoutForceOption.force;
+import static org.camarena.tools.oscommands.git.GitCheckoutOrphanOption.orphanBranch;
 import static org.camarena.tools.oscommands.git.GitCommand.gitCommand;
 import static org.camarena.tools.oscommands.git.GitCommitAuthorOption.author;
 import static org.camarena.tools.oscommands.git.GitCommitDateOption.date;
@@ -69,11 +87,8 @@ import static org.camarena.tools.oscommands.git.GitFilterBranchPruneEmptyOption.
 import static org.camarena.tools.oscommands.git.GitFilterBranchSubdirectoryFilterOption.subdirectoryFilter;
 import static org.camarena.tools.oscommands.git.GitGCAggressiveOption.aggressive;
 import static org.camarena.tools.oscommands.git.GitGCPruneOption.pruneAll;
-import static org.camarena.tools.oscommands.git.GitLogAbbrevCommitOption.abbrev;
-import static org.camarena.tools.oscommands.git.GitLogAllOption.all;
-import static org.camarena.tools.oscommands.git.GitLogFormatOption.format;
-import static org.camarena.tools.oscommands.git.GitLogMaxCountOption.maxCount;
-import static org.camarena.tools.oscommands.git.GitLogPrettyOption.pretty;
+import static org.camarena.tools.oscommands.git.GitMergeAllowUnrelatedHistoriesOption.allowUnrelatedHistories;
+import static org.camarena.tools.oscommands.git.GitMergeFastForwardOnlyOption.fastForwardOnly;
 import static org.camarena.tools.oscommands.git.GitMessageOption.message;
 import static org.camarena.tools.oscommands.git.GitRemoteRemoveOption.remove;
 import static org.camarena.tools.oscommands.git.GitStatusShortOption.shortStatus;
@@ -88,13 +103,19 @@ import static org.camarena.tools.oscommands.rsync.RSyncExcludeOption.exclude;
 @SuppressWarnings({"HardcodedFileSeparator", "ProhibitedExceptionThrown"})
 public
 class Main extends CLITool implements Configuration {
-	private static final Logger                LOGGER                    = LoggerFactory.getLogger(Main.class);
-	private final        Map<String, String>   mMapFromTempToFinalCommit = new HashMap<>(256);
-	private final        BiMap<String, String> mFinalHeadToCommit        = HashBiMap.create();
-	private final        BiMap<String, String> mFinalCommitToHead        = mFinalHeadToCommit.inverse();
-	private              Path                  mTempRepoPath             = null;
-	private              PrintWriter           mMappingFileWriter        = null;
-	private              Path                  mFinalRepoPath            = null;
+	private static final Logger            LOGGER                    = LoggerFactory.getLogger(Main.class);
+	private static final String            COPY_STAGE                = "pipeline write";
+	private static final String            COPIED_PATHS              = "copied";
+	private static final String            DUMMY_FILE                = "DUMMY_FILE.txt";
+	private static final String            SINCE_COMMIT_REF          = "refs/gitsplitter/since";
+	private              CommitMapping     mMapFromTempToFinalCommit = null;
+	private              CheckpointJournal mJournal                  = null;
+	private              PlumbingCopier    mPlumbingCopier           = null;
+	private final        FinalHeads        mFinalHeads               = new FinalHeads();
+	private              Path              mTempRepoPath             = null;
+	private              Path              mFinalRepoPath            = null;
+	private              CommitGraph       mCommitGraph              = null;
+	private              GenerationIndex   mGenerationIndex          = null;
 
 	@Parameter(names = "--source", description = "Url to the original git repository")
 	private String mOriginalRepo = null;
@@ -109,6 +130,11 @@ class Main extends CLITool implements Configuration {
 	           description = "Use this option if the destination repo already exists.  Avoid creating it")
 	private boolean mUseExistingRepo = false;
 
+	@Parameter(names = "--incremental",
+	           description = "Copy only the commits not in the mapping file of a previous run into the existing "
+	                         + "final repo and fast forward its branches")
+	private boolean mIncremental = false;
+
 	@Parameter(names = "--topFolder", description = "Folder that will become new top of the new "
 	                                                + "repo")
 	private String mNewTopDirectory = null;
@@ -121,6 +147,15 @@ class Main extends CLITool implements Configuration {
 	                                              "original commit to new one")
 	private String mMappingFile = null;
 
+	@Parameter(names = "--binaryMap",
+	           description = "Store the mapping file in binary form, indexed in a sibling .idx file, instead of as "
+	                         + "text.  Faster to recover from on large histories")
+	private boolean mBinaryMap = false;
+
+	@Parameter(names = "--exportMap",
+	           description = "Path to write the mapping file as text to after a successful run")
+	private String mExportMapFile = null;
+
 	@Parameter(names = "--exclude",
 	           description = "Comma separated list of directories to exclude in new repo",
 	           variableArity = true)
@@ -129,13 +164,79 @@ class Main extends CLITool implements Configuration {
 	@Parameter(names = "--recoverFile", description = "File to get info to use if a failure occurred")
 	private File mRecoveryFile = null;
 
+	@Parameter(names = "--lookahead",
+	           description = "Number of commits whose metadata and changed paths are read while previous ones are "
+	                         + "copied.  0 reads each commit when it is copied")
+	private int mLookahead = 0;
+
+	@Parameter(names = "--plumbing",
+	           description = "Write the commits, trees and refs of the final repo straight from the objects of the "
+	                         + "temporary one, without checking out or syncing any file.  Merges keep the tree of the "
+	                         + "original merge and commits without changes are kept empty")
+	private boolean mPlumbing = false;
+
+	@Parameter(names = "--fastExport",
+	           description = "Copy the branches with a single git fast-export of the temporary repo, filtered in "
+	                         + "process, into a single git fast-import of the final repo.  Commits left without changes "
+	                         + "are pruned.  Such a run can't be recovered, only repeated")
+	private boolean mFastExport = false;
+
+	@Parameter(names = "--diffCopy",
+	           description = "Apply to the final working tree only the paths a commit changed since its first parent, "
+	                         + "as reported by git diff-tree, instead of syncing the whole tree with rsync.  Merges and "
+	                         + "roots are still synced whole")
+	private boolean mDiffCopy = false;
+
+	@Parameter(names = "--nativeSync",
+	           description = "Sync the working trees in process instead of running rsync, comparing files by size and "
+	                         + "content hash, and stage only the files it changed")
+	private boolean mNativeSync = false;
+
+	@Parameter(names = "--hardLinks",
+	           description = "With '--nativeSync', hard link the files of the final working tree to the temporary one "
+	                         + "instead of copying them, when both are in the same filesystem")
+	private boolean mHardLinks = false;
+
+	@Parameter(names = "--skipUnchanged",
+	           description = "Compare the tree of every commit, without the excluded files, with the one of its "
+	                         + "parent, and commit the commits that keep it without checking out or syncing anything.  A "
+	                         + "tree already copied on another branch is checked out from the final repo")
+	private boolean mSkipUnchanged = false;
+
+	@Parameter(names = "--pruneUnchanged",
+	           description = "Like '--skipUnchanged', but the commits that keep the tree of their parent are pruned "
+	                         + "instead of copied with a DUMMY_FILE.txt")
+	private boolean mPruneUnchanged = false;
+
+	@Parameter(names = "--since",
+	           description = "Copy only the commits authored since this date, yyyy-MM-dd or ISO 8601 date and time.  "
+	                         + "The oldest ones become roots with their whole tree")
+	private String mSince = null;
+
+	@Parameter(names = "--sinceCommit",
+	           description = "Copy only the commits that are not ancestors of this source commit.  The oldest ones "
+	                         + "become roots with their whole tree")
+	private String mSinceCommit = null;
+
+	@Parameter(names = "--last",
+	           description = "Copy only the last N commits of every branch.  The oldest ones become roots with their "
+	                         + "whole tree")
+	private int mLast = 0;
+
 	@Parameter(names = {"-h", "--help"}, description = "Displays help information", help = true)
 	private boolean mHelpOnly = false;
 
-	private String        mFinalCurrentHead        = null;
-	private String        mTempLastCommitProcessed = null;
-	private String        mFinalInitialCommit      = null;
-	private RSyncOption[] mRSyncOptions            = null;
+	private String           mFinalCurrentHead    = null;
+	private int              mLastCommitProcessed = CommitGraph.NONE;
+	private String           mFinalInitialCommit  = null;
+	private RSyncOption[]    mRSyncOptions        = null;
+	private long             mSinceTime           = Long.MIN_VALUE;
+	private int              mStartPosition       = 0;
+	private List<String>     mPreexistingBranches = ImmutableList.of();
+	private List<String>     mRemovedHeads        = new ArrayList<>(4);
+	private BitSet           mExactCopies         = new BitSet();
+	private TreeSynchronizer mTreeSynchronizer    = null;
+	private SubtreeCache     mSubtreeCache        = null;
 
 	public static
 	void main(@Nonnull final String... args) throws CLIException {
@@ -148,11 +249,6 @@ class Main extends CLITool implements Configuration {
 		return mFinalRepoPath;
 	}
 
-	public
-	PrintWriter getMappingFileWriter() {
-		return mMappingFileWriter;
-	}
-
 	public
 	Path getTempRepoPath() {
 		return mTempRepoPath;
@@ -177,11 +273,19 @@ class Main extends CLITool implements Configuration {
 	@Override
 	protected
 	void cleanUp() throws CLIException {
+		gitCommand().closeObjectReaders();
+		getLogger().info("Processes run:\n{}", OSCommandMetrics.registry().report());
 	}
 
 	@Nonnull
 	private
 	String reviewResult(@Nonnull final CompletableFuture<ProcessResult> result) throws CLIException {
+		return reviewRawResult(result).asString(StandardCharsets.UTF_8);
+	}
+
+	@Nonnull
+	private
+	ProcessOutput reviewRawResult(@Nonnull final CompletableFuture<ProcessResult> result) throws CLIException {
 		try {
 			Objects.requireNonNull(result);
 			final ProcessResult processResult = result.get();
@@ -194,7 +298,7 @@ class Main extends CLITool implements Configuration {
 				                       + "\nstdErr:"
 				                       + processResult.getStdErr());
 			}
-			return processResult.getStdOut();
+			return processResult.getRawStdOut();
 		} catch (InterruptedException | ExecutionException e) {
 			throw new CLIException(e);
 		}
@@ -207,9 +311,76 @@ class Main extends CLITool implements Configuration {
 		Objects.requireNonNull(newTopDirectory);
 		getLogger().info("Filtering branch(s):{}",
 		                 branchesToCopy.stream().map(s -> '"' + s + '"').collect(joining(", ")));
+		// The commit starting the window is rewritten too, through a ref, to find it in the filtered history
+		if (mSinceCommit != null)
+			reviewResult(gitCommand().updateRefs(getTempRepoPath(),
+			                                     ProcessInput.ofRecords(Stream.of("create " + SINCE_COMMIT_REF,
+			                                                                      mSinceCommit),
+			                                                            RecordSeparator.NUL)));
 		reviewResult(gitCommand().filterBranch(getTempRepoPath(),
 		                                       pruneEmpty, subdirectoryFilter(newTopDirectory),
-		                                       arguments(branchesToCopy.stream())));
+		                                       arguments(branchesToCopy.stream()),
+		                                       arguments(mSinceCommit != null
+		                                                 ? Stream.of(SINCE_COMMIT_REF)
+		                                                 : Stream.empty())));
+		if (mSinceCommit != null)
+			mapSinceCommit();
+	}
+
+	/**
+	 * Writes the commit-graph of the temporary repo.  It only speeds the copy up, when git can't write it, git older
+	 * than 2.27 doesn't know <code>--changed-paths</code>, the copy goes on without it.
+	 */
+	private
+	void writeCommitGraph() {
+		try {
+			gitCommand().writeCommitGraph(getTempRepoPath());
+		} catch (final CLIException e) {
+			getLogger().warn("Can't write the commit-graph of the temporary repo, going on without it: {}",
+			                 e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks '--sinceCommit' against the source branches, before anything is filtered or created in the final repo.
+	 *
+	 * @param branchesToCopy branches to copy
+	 * @throws CLIException if the commit is not in the branches
+	 */
+	private
+	void validateSinceCommit(@Nonnull final Collection<String> branchesToCopy) throws CLIException {
+		Objects.requireNonNull(branchesToCopy);
+		if (!gitCommand().objectReader(getTempRepoPath()).resolve(mSinceCommit + "^{commit}").isPresent())
+			throw new CLIException("'--sinceCommit' \"" + mSinceCommit + "\" is not a commit of the source repo");
+		if (!gitCommand().isReachable(getTempRepoPath(), mSinceCommit, branchesToCopy))
+			throw new CLIException("'--sinceCommit' \"" + mSinceCommit + "\" is not in the branches "
+			                       + branchesToCopy.stream().map(s -> '"' + s + '"').collect(joining(", ")));
+	}
+
+	/**
+	 * Replaces '--sinceCommit' with its rewrite, filter-branch moved the ref to it or, when it and all its ancestors
+	 * were pruned, deleted the ref and the whole filtered history is copied.
+	 *
+	 * @throws CLIException if git fails
+	 */
+	private
+	void mapSinceCommit() throws CLIException {
+		// The reader may have been opened before filter-branch moved the refs
+		gitCommand().closeObjectReader(getTempRepoPath());
+		final Optional<String> rewritten = gitCommand().objectReader(getTempRepoPath())
+		                                               .resolve(SINCE_COMMIT_REF + "^{commit}");
+		if (rewritten.isPresent()) {
+			getLogger().info("Commit \"{}\" is \"{}\" after filtering", mSinceCommit, rewritten.get());
+			mSinceCommit = rewritten.get();
+			reviewResult(gitCommand().updateRefs(getTempRepoPath(),
+			                                     ProcessInput.ofRecords(Stream.of("delete " + SINCE_COMMIT_REF, ""),
+			                                                            RecordSeparator.NUL)));
+		}
+		else {
+			getLogger().info("Commit \"{}\" and its ancestors don't touch the folder, copying all the commits",
+			                 mSinceCommit);
+			mSinceCommit = null;
+		}
 	}
 
 	private
@@ -217,11 +388,7 @@ class Main extends CLITool implements Configuration {
 		Objects.requireNonNull(branchesToCopy);
 		getLogger().debug("Getting current branches");
 		final Set<String> branchesToCreate = new HashSet<>(branchesToCopy);
-		final String branchesInfo = reviewResult(gitCommand().branch(getTempRepoPath(),
-		                                                             GitVerboseOption.verbose));
-		linesInString(branchesInfo).map(s -> s.substring(1).trim())
-		                           .map(getFirstWord())
-		                           .forEach(branchesToCreate::remove);
+		gitCommand().listBranches(getTempRepoPath()).forEach(branchesToCreate::remove);
 		branchesToCreate.forEach(s -> {
 			try {
 				getLogger().debug("Creating temp branch \"{}\"", s);
@@ -236,10 +403,7 @@ class Main extends CLITool implements Configuration {
 	private
 	void removeOrigin() throws CLIException {
 		getLogger().debug("Getting remotes");
-		final String remoteResults = reviewResult(gitCommand().remote(getTempRepoPath(), GitVerboseOption
-				.verbose));
-		final Set<String> remotes = linesInString(remoteResults).map(getFirstWord()).collect(toSet());
-		remotes.stream().forEach(s -> {
+		gitCommand().listRemotes(getTempRepoPath()).forEach(s -> {
 			getLogger().debug("Removing remote \"{}" + '\"', s);
 			try {
 				reviewResult(gitCommand().remote(getTempRepoPath(), remove, arguments(s)));
@@ -249,47 +413,45 @@ class Main extends CLITool implements Configuration {
 		});
 	}
 
+	/**
+	 * Loads the commits of the branches, with their metadata, in a single pass.
+	 *
+	 * @param branchesToCopy branches to copy
+	 * @throws CLIException if the commits can't be loaded
+	 */
 	private
-	ImmutableList<String> getCommitListInReverse(@Nonnull final Collection<String> branchesToCopy) throws
-	                                                                                               CLIException {
+	void loadCommitGraph(@Nonnull final Collection<String> branchesToCopy) throws CLIException {
 		Objects.requireNonNull(branchesToCopy);
-		final Set<String> relevantCommits = branchesToCopy.stream().flatMap(s -> {
+		mCommitGraph = gitCommand().loadCommitGraph(getTempRepoPath(), branchesToCopy);
+		getLogger().info("Loaded {} commits by {} authors", mCommitGraph.size(), mCommitGraph.getIdentityCount());
+		final Optional<HistoryWindow> window = getHistoryWindow();
+		if (window.isPresent()) {
+			final int[] tips = new int[branchesToCopy.size()];
+			int inx = 0;
+			for (final String branch : branchesToCopy)
+				tips[inx++] = mCommitGraph.indexOf(gitCommand().resolveCommit(getTempRepoPath(), branch));
 			try {
-				return linesInString(reviewResult(gitCommand().log(getTempRepoPath(),
-				                                                   format("%h"),
-				                                                   arguments(s)))).map(getFirstWord());
-			} catch (CLIException e) {
-				throw Throwables.propagate(e);
+				mCommitGraph = window.get().apply(mCommitGraph, tips);
+			} catch (final IllegalArgumentException e) {
+				throw new CLIException(e.getMessage(), e);
 			}
-		}).collect(toSet());
-		try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get("/tmp/relevantCommits.txt"),
-		                                                                        StandardOpenOption.TRUNCATE_EXISTING,
-		                                                                        StandardOpenOption.CREATE)
-		)) {
-			relevantCommits.forEach(writer::println);
-		} catch (final IOException e) {
-			getLogger().error("Can't output commits", e);
-			throw new CLIException(e);
+			getLogger().info("Copying the {} commits in the history window", mCommitGraph.size());
 		}
-
-		final String allCommits = reviewResult(gitCommand().log(getTempRepoPath(), format("%h"),
-		                                                        all));
+		mGenerationIndex = GenerationIndex.of(mCommitGraph);
+		final Optional<ImmutableList<String>> copiedPathspecs = getCopiedPathspecs();
+		if (copiedPathspecs.isPresent())
+			gitCommand().indexPath(getTempRepoPath(), mGenerationIndex, COPIED_PATHS, branchesToCopy,
+			                       copiedPathspecs.get());
 		try (final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get("/tmp/allCommits.txt"),
 		                                                                        StandardOpenOption.TRUNCATE_EXISTING,
 		                                                                        StandardOpenOption.CREATE)
 		)) {
-			linesInString(allCommits).map(getFirstWord())
-			                         .filter(relevantCommits::contains)
-			                         .collect(immutableListCollector())
-			                         .reverse().forEach(writer::println);
+			for (int commit = 0; commit < mCommitGraph.size(); commit++)
+				writer.println(mCommitGraph.getSha(commit));
 		} catch (final IOException e) {
 			getLogger().error("Can't output commits", e);
 			throw new CLIException(e);
 		}
-		return linesInString(allCommits).map(getFirstWord())
-		                                .filter(relevantCommits::contains)
-		                                .collect(immutableListCollector())
-		                                .reverse();
 	}
 
 	@Override
@@ -321,14 +483,42 @@ class Main extends CLITool implements Configuration {
 			reportConfigurationError("'--finalRepo' is required");
 		if (mNewTopDirectory == null
 		    && (mDirectoriesToExclude == null || mDirectoriesToExclude.isEmpty())
-		    && !mUseExistingRepo)
-			reportConfigurationError("One of '--topFolder', '--useExistingRepo' or '--exclude' is required");
+		    && !mUseExistingRepo
+		    && !mIncremental)
+			reportConfigurationError(
+					"One of '--topFolder', '--useExistingRepo', '--incremental' or '--exclude' is required");
 		if (mNewTopDirectory != null && mDirectoriesToExclude != null && mDirectoriesToExclude.size() > 0) {
 			reportConfigurationError(
 					"Only one of \'--topFolder\' and \'--exclude\' option is supported");
 		}
 		if (mBranchesToCopy == null || mBranchesToCopy.isEmpty())
 			reportConfigurationError("'--branches' is required");
+		if (mLookahead < 0)
+			reportConfigurationError("'--lookahead' can't be negative");
+		if ((mPlumbing || mFastExport || mDiffCopy || mSkipUnchanged || mPruneUnchanged)
+		    && mDirectoriesToExclude != null
+		    && mDirectoriesToExclude.stream().anyMatch(n -> StringUtils.containsAny(n, "/*?[\\")))
+			reportConfigurationError("'--plumbing', '--fastExport', '--diffCopy', '--skipUnchanged' and "
+			                         + "'--pruneUnchanged' only support plain names in '--exclude'");
+		if ((mDiffCopy || mNativeSync || mSkipUnchanged || mPruneUnchanged) && (mPlumbing || mFastExport))
+			reportConfigurationError("'--diffCopy', '--nativeSync', '--skipUnchanged' and '--pruneUnchanged' can't be "
+			                         + "combined with '--plumbing' or '--fastExport'");
+		if (mHardLinks && !mNativeSync)
+			reportConfigurationError("'--hardLinks' requires '--nativeSync'");
+		if (mFastExport && (mIncremental || mPlumbing || mSince != null || mSinceCommit != null || mLast != 0))
+			reportConfigurationError("'--fastExport' can't be combined with '--incremental', '--plumbing', '--since', "
+			                         + "'--sinceCommit' or '--last'");
+		if (Stream.of(mSince != null, mSinceCommit != null, mLast != 0).filter(b -> b).count() > 1)
+			reportConfigurationError("Only one of '--since', '--sinceCommit' and '--last' is supported");
+		if (mLast < 0)
+			reportConfigurationError("'--last' can't be negative");
+		if (mSince != null)
+			mSinceTime = parseSince(mSince);
+		if (mSinceCommit != null) {
+			if (!ObjectIds.isFullHex(mSinceCommit))
+				reportConfigurationError("'--sinceCommit' must be a full sha");
+			mSinceCommit = mSinceCommit.toLowerCase(Locale.ROOT);
+		}
 		if (mMappingFile == null)
 			reportConfigurationError("'--mapFile' is required");
 		final Path tempRepo;
@@ -347,31 +537,63 @@ class Main extends CLITool implements Configuration {
 			reportConfigurationError("Final repo argument can't be empty");
 		}
 		final Path finalRepoPath = Paths.get(mFinalRepo);
-		if (mUseExistingRepo) {
+		if (mUseExistingRepo || mIncremental) {
 			if (!Files.exists(finalRepoPath))
 				reportConfigurationError("Final repo \"" + mFinalRepo + "\" not found");
 			mFinalRepoPath = finalRepoPath;
-			final ImmutableSet<String> existingBranches = linesInString(reviewResult(gitCommand().branch
-					(mFinalRepoPath))).map(s -> s.substring(1).trim()).collect(immutableSetCollector());
-			mBranchesToCopy.stream().filter(existingBranches::contains).forEach(b -> CLIInvalidArgumentException
-					.rtWrap(
-							"Branch to copy \"" + b + "\" already exists in existing repository"));
-
+			if (!mIncremental) {
+				final ImmutableSet<String> existingBranches =
+						ImmutableSet.copyOf(gitCommand().listBranches(mFinalRepoPath));
+				final Optional<String> existingBranch =
+						mBranchesToCopy.stream().filter(existingBranches::contains).findFirst();
+				if (existingBranch.isPresent())
+					reportConfigurationError("Branch to copy \"" + existingBranch.get()
+					                         + "\" already exists in existing repository");
+			}
 		}
 		else if (Files.exists(finalRepoPath))
 			reportConfigurationError("Final repo \"" + mFinalRepo + "\" should not exist");
 		else
 			mFinalRepoPath = Files.createDirectories(finalRepoPath);
 		final Path mappingFilePath = Paths.get(mMappingFile);
-		if (Files.exists(mappingFilePath)) {
+		if (mIncremental) {
+			if (!Files.exists(mappingFilePath))
+				reportConfigurationError("Mapping file \"" + mMappingFile + "\" not found");
+		}
+		else if (Files.exists(mappingFilePath)) {
 			reportConfigurationError("Mapping file \"" + mMappingFile + "\" should not exist");
 		}
-		mMappingFileWriter = new PrintWriter(Files.newBufferedWriter(mappingFilePath,
-		                                                             StandardOpenOption.CREATE_NEW));
+		mMapFromTempToFinalCommit = CommitMapping.open(mappingFilePath, mBinaryMap);
+		mJournal = CheckpointJournal.create(getJournalPath());
 	}
 
+	/**
+	 * @return journal of the copy loop, next to the mapping file
+	 */
+	@Nonnull
 	private
-	void validateRecoveryOptions() throws CLIInvalidArgumentException, IOException {
+	Path getJournalPath() {
+		return Paths.get(mMappingFile + CheckpointJournal.SUFFIX);
+	}
+
+	/**
+	 * @param since date, with or without time
+	 * @return seconds since the epoch, a date without time starts at midnight UTC
+	 * @throws CLIInvalidArgumentException if the date can't be parsed
+	 */
+	private
+	long parseSince(@Nonnull final String since) throws CLIInvalidArgumentException {
+		try {
+			return since.length() == 10
+			       ? LocalDate.parse(since).atStartOfDay(ZoneOffset.UTC).toEpochSecond()
+			       : OffsetDateTime.parse(since).toEpochSecond();
+		} catch (final DateTimeParseException e) {
+			throw new CLIInvalidArgumentException("Invalid '--since' date \"" + since + '"', e);
+		}
+	}
+
+	private
+	void validateRecoveryOptions() throws CLIException, IOException {
 		if (mOriginalRepo != null)
 			reportConfigurationError("Only one of '--source' and '--recoverFile' can be "
 			                         + "specified");
@@ -391,6 +613,13 @@ class Main extends CLITool implements Configuration {
 			reportConfigurationError("Only one of '--mapFile' and '--recoverFile' can be "
 			                         + "specified");
 		readRecoveryFile();
+		if (mMappingFile == null)
+			throw new CLIInvalidArgumentException("Mapping file not found in recovery file");
+		final Path mappingFilePath = Paths.get(mMappingFile);
+		if (!Files.exists(mappingFilePath))
+			throw new CLIInvalidArgumentException("Mapping file \"" + mMappingFile + "\" not found");
+		mMapFromTempToFinalCommit = CommitMapping.open(mappingFilePath, mBinaryMap);
+		mJournal = CheckpointJournal.open(getJournalPath());
 	}
 
 	private
@@ -418,36 +647,52 @@ class Main extends CLITool implements Configuration {
 								if (mBranchesToCopy.isEmpty())
 									throw CLIInvalidArgumentException.rtWrap("Branches not found");
 								break;
+							case "Preexisting":
+								mPreexistingBranches = Arrays.stream(parts[1].trim().split(",")).collect(
+										immutableListCollector());
+								break;
 							case "MappingFile":
 								mMappingFile = parts[1].trim();
-								final Path mappingFilePath = Paths.get(mMappingFile);
-								if (!Files.exists(mappingFilePath)) {
-									throw CLIInvalidArgumentException.rtWrap("Mapping file \""
-									                                         + mMappingFile
-									                                         + "\" not found");
-								}
-								try {
-									try (final BufferedReader mapRdr = new BufferedReader(new FileReader(mMappingFile)
-									)) {
-										mMapFromTempToFinalCommit.putAll(mapRdr.lines().map(l -> {
-											final String[] p = FunctionUtils.SPACES_PATTERN.split(l);
-											if (p.length != 2)
-												throw CLIInvalidArgumentException.rtWrap("Invalid mapping entry \""
-												                                         + l
-												                                         + '"');
-											return new Tuple2<>(p[0].trim(), p[1].trim());
-										}).collect(toMap(Tuple2::get_1, Tuple2::get_2)));
-									}
-									mMappingFileWriter = new PrintWriter(Files.newBufferedWriter(mappingFilePath,
-									                                                             StandardOpenOption
-											                                                             .APPEND));
-								} catch (final IOException e) {
-									throw CLIInvalidArgumentException.rtWrap("Can't open mapping file", e);
-								}
+								break;
+							case "BinaryMap":
+								mBinaryMap = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "ExportMap":
+								mExportMapFile = parts[1].trim();
 								break;
 							case "FinalInitial":
 								mFinalInitialCommit = parts[1].trim();
 								break;
+							case "Incremental":
+								mIncremental = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "Plumbing":
+								mPlumbing = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "DiffCopy":
+								mDiffCopy = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "NativeSync":
+								mNativeSync = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "HardLinks":
+								mHardLinks = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "SkipUnchanged":
+								mSkipUnchanged = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "PruneUnchanged":
+								mPruneUnchanged = Boolean.parseBoolean(parts[1].trim());
+								break;
+							case "Since":
+								mSinceTime = Long.parseLong(parts[1].trim());
+								break;
+							case "SinceCommit":
+								mSinceCommit = parts[1].trim();
+								break;
+							case "Last":
+								mLast = Integer.parseInt(parts[1].trim());
+								break;
 							case "Exclude":
 								mDirectoriesToExclude = Arrays.stream(parts[1].trim().split(",")).collect(
 										immutableListCollector());
@@ -474,28 +719,200 @@ class Main extends CLITool implements Configuration {
 				getLogger().info("Cloning original repo into temporary one at \"{}\"", getTempRepoPath());
 				reviewResult(gitCommand().cloneRepo(mOriginalRepo, getTempRepoPath()));
 				createNeededTempBranches(mBranchesToCopy);
-				if (mNewTopDirectory != null)
+				if (mSinceCommit != null)
+					validateSinceCommit(mBranchesToCopy);
+				if (mFastExport) {
+					removeOrigin();
+					if (!mUseExistingRepo)
+						createFinalRepo(getFinalRepoPath(), mBranchesToCopy);
+					copyWithFastExport();
+					finishCopy();
+					return;
+				}
+				if (mNewTopDirectory != null) {
+					// Its Bloom filters let filter-branch skip the commits that don't touch the folder
+					writeCommitGraph();
 					filterBranch(mBranchesToCopy, mNewTopDirectory);
+				}
 				removeOrigin();
-				if (mUseExistingRepo)
+				writeCommitGraph();
+				// Branches of the user, a recovery must leave them alone
+				if (mIncremental || mUseExistingRepo)
+					mPreexistingBranches = gitCommand().listBranches(getFinalRepoPath());
+				if (mIncremental)
+					getLogger().info("Copying new commits into \"{}\"", getFinalRepoPath());
+				else if (mUseExistingRepo)
 					createMissingBranchesInFinalRepo(getFinalRepoPath(), mBranchesToCopy);
 				else
 					createFinalRepo(getFinalRepoPath(), mBranchesToCopy);
 			}
-			else
+			else if (!mJournal.hasSteps())
 				populateExistingFinalBranches();
-			final ImmutableList<String> commitList = getCommitListInReverse(mBranchesToCopy);
-			commitList.stream().forEach(this::copyCommit);
+			loadCommitGraph(mBranchesToCopy);
+			if (mIncremental)
+				prepareIncrementalCopy();
+			final CommitSchedule schedule = CommitSchedule.plan(mCommitGraph);
+			getLogger().info("Copying commits with {} branch switches, {} less than in topological order",
+			                 schedule.getSwitches(), schedule.getSwitchesSaved());
+			final int[] order = schedule.getOrder();
+			if (mRecoveryFile != null && mJournal.hasSteps())
+				resumeFromJournal(order);
+			if (mPlumbing)
+				mPlumbingCopier = new PlumbingCopier(gitCommand().objectReader(getTempRepoPath()),
+				                                     gitCommand().objectWriter(getFinalRepoPath(), false),
+				                                     gitCommand().refUpdater(getFinalRepoPath()),
+				                                     getExcludedNames());
+			if (mSkipUnchanged || mPruneUnchanged)
+				mSubtreeCache = new SubtreeCache(gitCommand().objectReader(getTempRepoPath()), getExcludedNames());
+			// Positions of the commits left to copy, the ones already mapped are not prefetched
+			final int[] positions = IntStream.range(mStartPosition, order.length)
+			                                 .filter(p -> !mMapFromTempToFinalCommit.containsKey(
+					                                 mCommitGraph.getSha(order[p])))
+			                                 .toArray();
+			try (final CommitPrefetcher prefetcher = new CommitPrefetcher(gitCommand(),
+			                                                              getTempRepoPath(),
+			                                                              mCommitGraph,
+			                                                              Arrays.stream(positions)
+			                                                                    .map(p -> order[p])
+			                                                                    .toArray(),
+			                                                              mLookahead)) {
+				for (int inx = 0; inx < positions.length; inx++)
+					copyCommit(prefetcher.take(inx), positions[inx]);
+			}
+			if (mSubtreeCache != null)
+				getLogger().info("Switched {} times to a tree already copied", mSubtreeCache.getHits());
+			if (mPlumbingCopier != null) {
+				getLogger().info("Wrote {} trees and blobs to the final repo", mPlumbingCopier.getObjectsCopied());
+				// The refs were written without running git
+				gitCommand().getQueryCache().invalidateRefs(getFinalRepoPath());
+			}
 			defineFinalBranches();
-			deleteTemporaryRepo();
+			finishCopy();
 		} catch (final Throwable e) {
 			final List<Throwable> exceptions = Throwables.getCausalChain(e);
 			exceptions.stream().forEach(ex -> getLogger().error("Exception reported:", ex));
-			createRecoveryFile();
+			if (mFastExport)
+				getLogger().error("A '--fastExport' run can't be recovered, delete the final repo and run it again");
+			else
+				createRecoveryFile();
+		} finally {
+			if (mPlumbingCopier != null) {
+				try {
+					mPlumbingCopier.close();
+				} catch (final CLIException e) {
+					getLogger().error("Can't close final repo objects", e);
+				}
+			}
+			if (mJournal != null) {
+				try {
+					mJournal.close();
+				} catch (final IOException e) {
+					getLogger().error("Can't close journal", e);
+				}
+			}
+			if (mMapFromTempToFinalCommit != null) {
+				try {
+					mMapFromTempToFinalCommit.close();
+				} catch (final IOException e) {
+					getLogger().error("Can't close mapping file", e);
+				}
+			}
+		}
+	}
+
+	private
+	void finishCopy() throws CLIException, IOException {
+		deleteTemporaryRepo();
+		if (mExportMapFile != null)
+			exportMapping(Paths.get(mExportMapFile));
+		mJournal.delete();
+	}
+
+	/**
+	 * Pipes a <code>git fast-export</code> of the branches of the temporary repo, through a
+	 * {@link FastExportFilter}, into a <code>git fast-import</code> of the final repo.  The mapping is the join of the
+	 * marks exported by both, a pruned commit is mapped to the commit that replaced it.
+	 *
+	 * @throws CLIException if a process fails or the marks don't match
+	 */
+	private
+	void copyWithFastExport() throws CLIException {
+		final FastExportFilter filter = new FastExportFilter(mNewTopDirectory == null ? "" : mNewTopDirectory,
+		                                                     mDirectoriesToExclude == null
+		                                                     ? ImmutableList.of()
+		                                                     : mDirectoriesToExclude);
+		final long start = System.nanoTime();
+		Path sourceMarks = null;
+		Path finalMarks = null;
+		try {
+			sourceMarks = Files.createTempFile("GitSplitterSourceMarks", ".txt");
+			finalMarks = Files.createTempFile("GitSplitterFinalMarks", ".txt");
+			getLogger().info("Piping fast-export of \"{}\" into fast-import of \"{}\"", getTempRepoPath(),
+			                 getFinalRepoPath());
+			final Process fastExport = gitCommand().startFastExport(getTempRepoPath(), sourceMarks, mBranchesToCopy);
+			final Process fastImport = gitCommand().startFastImport(getFinalRepoPath(), finalMarks);
+			boolean filtered = false;
+			try (final InputStream in = fastExport.getInputStream();
+			     final OutputStream out = fastImport.getOutputStream()) {
+				filter.filter(in, out);
+				filtered = true;
+			} finally {
+				if (!filtered) {
+					fastExport.destroy();
+					fastImport.destroy();
+				}
+			}
+			final int exportExit = fastExport.waitFor();
+			final int importExit = fastImport.waitFor();
+			gitCommand().getQueryCache().invalidateRefs(getFinalRepoPath());
+			if (exportExit != 0 || importExit != 0)
+				throw new CLIException("fast-export ended with " + exportExit + " and fast-import with " + importExit);
+			final ImmutableMap<Integer, String> finalCommits = FastExportFilter.readMarks(finalMarks);
+			for (final Map.Entry<Integer, String> source : FastExportFilter.readMarks(sourceMarks).entrySet()) {
+				final int mark = filter.resolve(source.getKey());
+				if (mark == FastExportFilter.NONE)
+					continue;
+				final String finalCommit = finalCommits.get(mark);
+				if (finalCommit == null)
+					throw new CLIException("Commit \"" + source.getValue() + "\" was not imported");
+				mMapFromTempToFinalCommit.put(source.getValue(), finalCommit);
+			}
+		} catch (final IOException | InterruptedException e) {
+			throw new CLIException("Can't pipe fast-export into fast-import", e);
 		} finally {
-			final PrintWriter writer = getMappingFileWriter();
-			if (writer != null)
-				writer.close();
+			deleteQuietly(sourceMarks);
+			deleteQuietly(finalMarks);
+			OSCommandMetrics.registry().recordTime(COPY_STAGE, System.nanoTime() - start);
+		}
+		getLogger().info("Copied {} commits, {} pruned for having no changes", filter.getCommitCount(),
+		                 filter.getPrunedCount());
+		final ImmutableSet<String> finalBranches = ImmutableSet.copyOf(gitCommand().listBranches(getFinalRepoPath()));
+		mBranchesToCopy.stream().filter(b -> !finalBranches.contains(b)).forEach(
+				b -> getLogger().warn("Branch \"{}\" has no changes to copy, it is not created", b));
+		if (gitCommand().objectReader(getFinalRepoPath()).resolve("HEAD").isPresent())
+			reviewResult(gitCommand().checkout(getFinalRepoPath(), force));
+		getLogger().debug("Running GC...");
+		reviewResult(gitCommand().gc(getFinalRepoPath(), aggressive, pruneAll));
+	}
+
+	private
+	void deleteQuietly(@Nullable final Path path) {
+		if (path != null) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (final IOException e) {
+				getLogger().warn("Can't delete \"{}\"", path, e);
+			}
+		}
+	}
+
+	private
+	void exportMapping(@Nonnull final Path exportPath) throws CLIException {
+		getLogger().info("Exporting mapping to \"{}\"", exportPath);
+		try (final Writer writer = Files.newBufferedWriter(exportPath, StandardCharsets.UTF_8)) {
+			mMapFromTempToFinalCommit.exportText(writer);
+		} catch (final IOException e) {
+			throw new CLIException("Can't export mapping", e);
 		}
 	}
 
@@ -504,9 +921,7 @@ class Main extends CLITool implements Configuration {
 	                                                                                                          CLIException {
 		Objects.requireNonNull(repoPath);
 		Objects.requireNonNull(branches);
-		final ImmutableSet<String> existingBranches = linesInString(reviewResult(gitCommand().branch(repoPath))).map(s -> s
-				.substring(
-						1).trim()).collect(immutableSetCollector());
+		final ImmutableSet<String> existingBranches = ImmutableSet.copyOf(gitCommand().listBranches(repoPath));
 		branches.stream()
 		        .filter(s -> !existingBranches.contains(s)).forEach(b -> {
 			getLogger().debug("Creating initial branch \"{}\"", b);
@@ -518,22 +933,91 @@ class Main extends CLITool implements Configuration {
 		});
 	}
 
+	/**
+	 * Counts the commits copied by previous runs, they are skipped, and finds the final commit new roots start from.
+	 *
+	 * @throws CLIException if a previous run copied nothing
+	 */
+	private
+	void prepareIncrementalCopy() throws CLIException {
+		int copied = 0;
+		for (int commit = 0; commit < mCommitGraph.size(); commit++) {
+			final String finalCommit = mMapFromTempToFinalCommit.get(mCommitGraph.getSha(commit));
+			if (finalCommit != null) {
+				copied++;
+				if (mFinalInitialCommit == null && mCommitGraph.isRoot(commit))
+					mFinalInitialCommit = finalCommit;
+			}
+		}
+		if (copied == 0)
+			throw new CLIException("None of the commits is in the mapping file, the source or the options changed");
+		getLogger().info("{} commits already copied, {} new", copied, mCommitGraph.size() - copied);
+	}
+
+	/**
+	 * Restores the state journaled by the failed run: the heads of the final repo, reset to the commits journaled for
+	 * them, the last commit copied and where in the schedule to continue.  Commits journaled but missing from the
+	 * mapping file are added to it and branches created by an unfinished step are deleted.
+	 *
+	 * @param order schedule of the commits, the same as in the failed run
+	 * @throws CLIException if the mapping file lost commits or the final repo can't be reset
+	 */
+	private
+	void resumeFromJournal(@Nonnull final int[] order) throws CLIException {
+		try {
+			for (final Map.Entry<String, String> replayed : mJournal.getReplayed().entrySet()) {
+				if (!mMapFromTempToFinalCommit.containsKey(replayed.getKey()))
+					mMapFromTempToFinalCommit.put(replayed.getKey(), replayed.getValue());
+			}
+		} catch (final IOException e) {
+			throw new CLIException("Can't write mapping file", e);
+		}
+		if (mMapFromTempToFinalCommit.size() < mJournal.getMapped())
+			throw new CLIException("Mapping file has " + mMapFromTempToFinalCommit.size() + " commits, "
+			                       + mJournal.getMapped() + " were journaled");
+		final ImmutableMap<String, String> heads = mJournal.getHeads();
+		heads.forEach(mFinalHeads::put);
+		mFinalCurrentHead = mJournal.getCurrentHead();
+		if (mFinalInitialCommit == null)
+			mFinalInitialCommit = mJournal.getFinalInitial();
+		final int lastCommit = mCommitGraph.indexOf(Objects.requireNonNull(mJournal.getLastCommit()));
+		mLastCommitProcessed = lastCommit;
+		final int position = mJournal.getPosition();
+		if (position < order.length && order[position] == lastCommit)
+			mStartPosition = position + 1;
+		else
+			getLogger().warn("Journaled commit is not in the schedule, checking every commit");
+
+		// Only the heads of the run are deleted, the branches the final repo had before it are kept
+		final ImmutableSet<String> keep = mIncremental
+		                                  ? ImmutableSet.<String>builder().addAll(mBranchesToCopy)
+		                                                .addAll(mPreexistingBranches).build()
+		                                  : ImmutableSet.copyOf(mPreexistingBranches);
+		final Stream<String> updates = heads.entrySet().stream().flatMap(
+				h -> Stream.of("update refs/heads/" + h.getKey(), h.getValue(), ""));
+		final Stream<String> deletes = gitCommand().listBranches(getFinalRepoPath()).stream()
+		                                           .filter(b -> !heads.containsKey(b) && !keep.contains(b))
+		                                           .flatMap(b -> Stream.of("delete refs/heads/" + b, ""));
+		reviewResult(gitCommand().updateRefs(getFinalRepoPath(),
+		                                     ProcessInput.ofRecords(Stream.concat(updates, deletes),
+		                                                            RecordSeparator.NUL)));
+		if (mFinalCurrentHead != null && !mPlumbing)
+			reviewResult(gitCommand().checkout(getFinalRepoPath(), force, arguments(mFinalCurrentHead)));
+		getLogger().info("Resuming after commit \"{}\" with {} heads, {} of {} commits left",
+		                 mJournal.getLastCommit(), heads.size(), order.length - mStartPosition, order.length);
+	}
+
 	private
 	void populateExistingFinalBranches() throws CLIException {
-		final String branchesInfo = reviewResult(gitCommand().branch(getFinalRepoPath(),
-		                                                             GitVerboseOption.verbose));
-		final ImmutableList<String> existingBranches = linesInString(branchesInfo).map(s -> s.substring(1).trim())
-		                                                                          .map(getFirstWord())
-		                                                                          .collect(immutableListCollector());
-		existingBranches.stream().forEach(b -> {
+		final ImmutableList<String> existingBranches = gitCommand().listBranches(getFinalRepoPath());
+		// The branches being copied predate an incremental run, they are only fast forwarded at the end
+		existingBranches.stream().filter(b -> !mIncremental || !mBranchesToCopy.contains(b)).forEach(b -> {
 			try {
 				reviewResult(gitCommand().checkout(getFinalRepoPath(), arguments(b)));
 				final String currentCommit = getCurrentCommit(getFinalRepoPath());
-				final boolean foundIt = mMapFromTempToFinalCommit.values().parallelStream().anyMatch(c -> c.equals(
-						currentCommit));
-				if (!foundIt)
+				if (!mMapFromTempToFinalCommit.containsValue(currentCommit))
 					throw CLIException.rtWrap("Can't find branch HEAD commit");
-				mFinalHeadToCommit.put(b, currentCommit);
+				mFinalHeads.put(b, currentCommit);
 			} catch (final CLIException e) {
 				Throwables.propagate(e);
 			}
@@ -551,12 +1035,48 @@ class Main extends CLITool implements Configuration {
 			sb.append(mFinalRepoPath);
 			sb.append("\nBranches:");
 			sb.append(mBranchesToCopy.stream().collect(joining(",")));
+			if (!mPreexistingBranches.isEmpty()) {
+				sb.append("\nPreexisting:");
+				sb.append(mPreexistingBranches.stream().collect(joining(",")));
+			}
 			sb.append("\nMappingFile:");
 			sb.append(mMappingFile);
 			if (mFinalInitialCommit != null) {
 				sb.append("\nFinalInitial:");
 				sb.append(mFinalInitialCommit);
 			}
+			if (mBinaryMap)
+				sb.append("\nBinaryMap:true");
+			if (mExportMapFile != null) {
+				sb.append("\nExportMap:");
+				sb.append(mExportMapFile);
+			}
+			if (mIncremental)
+				sb.append("\nIncremental:true");
+			if (mPlumbing)
+				sb.append("\nPlumbing:true");
+			if (mDiffCopy)
+				sb.append("\nDiffCopy:true");
+			if (mNativeSync)
+				sb.append("\nNativeSync:true");
+			if (mHardLinks)
+				sb.append("\nHardLinks:true");
+			if (mSkipUnchanged)
+				sb.append("\nSkipUnchanged:true");
+			if (mPruneUnchanged)
+				sb.append("\nPruneUnchanged:true");
+			if (mSinceTime != Long.MIN_VALUE) {
+				sb.append("\nSince:");
+				sb.append(mSinceTime);
+			}
+			if (mSinceCommit != null) {
+				sb.append("\nSinceCommit:");
+				sb.append(mSinceCommit);
+			}
+			if (mLast > 0) {
+				sb.append("\nLast:");
+				sb.append(mLast);
+			}
 			if (mDirectoriesToExclude != null && !mDirectoriesToExclude.isEmpty()) {
 				sb.append("\nExclude:");
 				sb.append(mDirectoriesToExclude.stream().collect(joining(",")));
@@ -570,6 +1090,7 @@ class Main extends CLITool implements Configuration {
 
 	private
 	void deleteTemporaryRepo() throws CLIException {
+		gitCommand().closeObjectReader(mTempRepoPath);
 		try {
 			Files.walkFileTree(mTempRepoPath, new SimpleFileVisitor<Path>() {
 				@Override
@@ -611,55 +1132,224 @@ class Main extends CLITool implements Configuration {
 	}
 
 	private
-	void copyCommit(@Nonnull final String commit) {
+	void copyCommit(@Nonnull final PrefetchedCommit prefetched, final int position) {
+		final int commit = prefetched.getCommit();
+		final String sha = prefetched.getSha();
+		final long start = System.nanoTime();
 		try {
-			if (mRecoveryFile != null && mMapFromTempToFinalCommit.containsKey(commit))
+			if (mMapFromTempToFinalCommit.containsKey(sha))
 				return;
-			reviewResult(gitCommand().checkout(getTempRepoPath(), arguments(commit)));
-			final CommitInfo commitInfo = gitCommand().getCommitInfo(getTempRepoPath(), commit).get();
-			getLogger().info("Processing commit \"{}\":{} committed at {} - \"{}\"", commit, commitInfo.getAuthor(),
-			                 commitInfo.getDate(), commitInfo.getComment());
-			if (commitInfo.isMerge()) {
-				doMerge(commit, commitInfo);
+			mRemovedHeads.clear();
+			getLogger().info("Processing commit \"{}\":{} committed at {} - \"{}\"", sha, prefetched.getAuthor(),
+			                 prefetched.getDate(), prefetched.getMessage());
+			final String currentFinalCommit;
+			if (mPlumbingCopier != null)
+				currentFinalCommit = copyWithPlumbing(prefetched);
+			else if (mCommitGraph.isMerge(commit) && !hasSingleParentCopy(commit)) {
+				reviewResult(gitCommand().checkout(getTempRepoPath(), arguments(sha)));
+				doMerge(prefetched);
+				currentFinalCommit = getFinalCurrentCommit();
 			}
 			else {
-				if (commitInfo.isRoot()) {
+				if (mCommitGraph.isRoot(commit) && mCommitGraph.isGrafted(commit)) {
+					// The oldest commits of a history window start histories of their own
+					mFinalCurrentHead = getNewHead();
+					reviewResult(gitCommand().checkout(getFinalRepoPath(), orphanBranch, arguments(mFinalCurrentHead)));
+					if (mFinalInitialCommit != null)
+						waitForNextSecond();
+				}
+				else if (mCommitGraph.isRoot(commit)) {
 					prepareFinalBranch(getFinalRepoPath(), mFinalInitialCommit);
 				}
-				else if (mTempLastCommitProcessed == null || !mTempLastCommitProcessed.equals(commitInfo.getParents()
-				                                                                                        .get(0))) {
-					prepareFinalBranch(getFinalRepoPath(),
-					                   mMapFromTempToFinalCommit.get(commitInfo.getParents().get(0)));
-					try {
-						// This wait is required since the commit sha generation has a time stamp component.  In the
-						// rare case that you have two commits with the same parent and the changes are identical you
-						// may end up pointing to the same final commit if you created the childs in the same second.
-						// It is not very common but I got bitten by it and took me long time to debug it.
-						Thread.sleep(1_000);
-					} catch (final InterruptedException e) {
-						throw Throwables.propagate(e);
-					}
+				else if (mLastCommitProcessed != mCommitGraph.getParent(commit, 0)) {
+					prepareFinalBranch(getFinalRepoPath(), getFinalCommit(mCommitGraph.getParent(commit, 0)));
+					waitForNextSecond();
 				}
-				copyFilesAndCommit(commit, commitInfo);
+				currentFinalCommit = copyFiles(prefetched);
 			}
-			final String currentFinalCommit = getFinalCurrentCommit();
 			getLogger().debug("Adding mapping from \"{}\" to commit \"{}\"", mFinalCurrentHead, currentFinalCommit);
-			mFinalHeadToCommit.put(mFinalCurrentHead, currentFinalCommit);
-			mTempLastCommitProcessed = commit;
-			mMapFromTempToFinalCommit.put(commit, currentFinalCommit);
+			mFinalHeads.put(mFinalCurrentHead, currentFinalCommit);
+			mLastCommitProcessed = commit;
+			try {
+				mJournal.step(position, sha, currentFinalCommit, mFinalCurrentHead, mRemovedHeads);
+				mMapFromTempToFinalCommit.put(sha, currentFinalCommit);
+				if (mJournal.isSnapshotDue()) {
+					// The journal forgets the steps, the mapping file has to hold them even after a crash of the OS
+					mMapFromTempToFinalCommit.sync();
+					mJournal.snapshot(mMapFromTempToFinalCommit.size());
+				}
+			} catch (final IOException e) {
+				throw new CLIException("Can't write mapping file or journal", e);
+			}
 			if (mFinalInitialCommit == null) {
 				mFinalInitialCommit = currentFinalCommit;
 			}
-			getMappingFileWriter().println(commit + '\t' + currentFinalCommit);
-		} catch (final InterruptedException | ExecutionException | CLIException e) {
-			getLogger().error("Failed processing commit \"{}\"", commit);
+		} catch (final CLIException e) {
+			getLogger().error("Failed processing commit \"{}\"", sha);
 			throw Throwables.propagate(e);
+		} finally {
+			OSCommandMetrics.registry().recordTime(COPY_STAGE, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Copies a commit without touching the working tree of either repo, its tree is written to the final repo and
+	 * committed on the copies of its parents.  The head of the first parent that has one moves to the copy and the
+	 * heads of the other parents are removed, as merging them removes them.
+	 *
+	 * @return the copy
+	 */
+	@Nonnull
+	private
+	String copyWithPlumbing(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final int commit = prefetched.getCommit();
+		final List<String> parents = new ArrayList<>(mCommitGraph.getParentCount(commit));
+		String head = null;
+		for (int n = 0; n < mCommitGraph.getParentCount(commit); n++) {
+			final String parent = getFinalCommit(mCommitGraph.getParent(commit, n));
+			parents.add(parent);
+			final String parentHead = mFinalHeads.getHead(parent);
+			if (head == null)
+				head = parentHead;
+			else if (parentHead != null && !parentHead.equals(head)) {
+				mFinalHeads.remove(parentHead);
+				mRemovedHeads.add(parentHead);
+				reviewResult(gitCommand().branch(getFinalRepoPath(), forceDelete, arguments(parentHead)));
+			}
+		}
+		if (head == null)
+			head = getNewHead();
+		final String copy = mPlumbingCopier.copyCommit(prefetched.getSha(),
+		                                               parents,
+		                                               mMapFromTempToFinalCommit::containsValue);
+		mPlumbingCopier.updateHead(head, copy);
+		mFinalCurrentHead = head;
+		return copy;
+	}
+
+	/**
+	 * Copies the working tree of the temporary repo over the final one and commits it.  When the paths changed by a
+	 * non merge commit were read ahead and none of them is copied, and its parent was copied exactly, the final repo is
+	 * known to be unchanged and <code>git status</code> is not run to find it out.
+	 */
+	private
+	void copyFilesAndCommit(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final int commit = prefetched.getCommit();
+		if (mDiffCopy && canCopyChanges(commit))
+			copyChanges(prefetched);
+		else
+			syncTree(prefetched);
+		commitStaged(prefetched);
+		mExactCopies.set(commit);
+	}
+
+	/**
+	 * Copies a commit git doesn't merge onto the final branch already checked out.  With the subtree cache, a commit
+	 * that keeps the filtered tree of a parent copied exactly is committed without looking at the files, or pruned,
+	 * and a filtered tree already copied is switched to from the final repo instead of synced from the temporary one.
+	 *
+	 * @return the commit it was copied to
+	 */
+	@Nonnull
+	private
+	String copyFiles(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final int commit = prefetched.getCommit();
+		final String filteredTree = mSubtreeCache == null ? null : mSubtreeCache.getFilteredTree(prefetched.getSha());
+		if (filteredTree != null && !mCommitGraph.isRoot(commit)) {
+			final int parent = mCommitGraph.getParent(commit, 0);
+			// A parent merged by git may not hold its filtered tree, the copy has to fix it
+			if (mExactCopies.get(parent)
+			    && filteredTree.equals(mSubtreeCache.getFilteredTree(mCommitGraph.getSha(parent)))) {
+				mExactCopies.set(commit);
+				if (mPruneUnchanged) {
+					getLogger().info("Commit \"{}\" doesn't change the copied files.  Pruning it", prefetched.getSha());
+					return getFinalCommit(parent);
+				}
+				commitUnchanged(prefetched);
+				return getFinalCurrentCommit();
+			}
+			final String finalTree = mSubtreeCache.getFinalTree(filteredTree);
+			if (finalTree != null) {
+				getLogger().debug("Switching to tree \"{}\", already copied", finalTree);
+				reviewResult(gitCommand().switchTree(getFinalRepoPath(), "HEAD", finalTree));
+				commitStaged(prefetched);
+				mExactCopies.set(commit);
+				return getFinalCurrentCommit();
+			}
+		}
+		reviewResult(gitCommand().checkout(getTempRepoPath(), arguments(prefetched.getSha())));
+		copyFilesAndCommit(prefetched);
+		final String currentFinalCommit = getFinalCurrentCommit();
+		// A copy with a dummy file is not the copy of the filtered tree alone
+		if (filteredTree != null && !new File(mFinalRepoPath.toFile(), DUMMY_FILE).exists())
+			mSubtreeCache.putFinalTree(filteredTree,
+			                           gitCommand().objectReader(getFinalRepoPath())
+			                                       .readCommit(currentFinalCommit)
+			                                       .orElseThrow(() -> new CLIException("Can't read commit \""
+			                                                                           + currentFinalCommit + '"'))
+			                                       .getTree());
+		return currentFinalCommit;
+	}
+
+	/**
+	 * Commits a commit that keeps the copied files of its parent without looking at them: the dummy file the parent
+	 * left is removed, or one is created, like a sync would do.
+	 */
+	private
+	void commitUnchanged(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final File dummyFile = new File(mFinalRepoPath.toFile(), DUMMY_FILE);
+		try {
+			if (dummyFile.exists())
+				Files.delete(dummyFile.toPath());
+			else {
+				getLogger().info("Commit \"{}\" has no changes.  Creating a DUMMY_FILE.txt", prefetched.getSha());
+				FileUtils.writeStringToFile(dummyFile, "Commit:" + prefetched.getSha());
+			}
+		} catch (final IOException e) {
+			throw new CLIException(e);
 		}
+		reviewResult(gitCommand().addPaths(getFinalRepoPath(), ImmutableList.of(DUMMY_FILE)));
+		commitStaged(prefetched);
+	}
+
+	private
+	void commitStaged(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final String commitResult = reviewResult(gitCommand().commit(getFinalRepoPath(),
+		                                                             author(prefetched.getAuthor()),
+		                                                             date(prefetched.getDate()),
+		                                                             message(prefetched.getMessage())));
+		getLogger().debug("Commit result: \"{}\"", commitResult);
 	}
 
+	/**
+	 * Pruning may copy every parent of a merge to the same commit, there is nothing left for git to merge.
+	 *
+	 * @param commit a merge
+	 * @return true if all its parents were copied to the same commit
+	 */
 	private
-	void copyFilesAndCommit(@Nonnull final String commit,
-	                        @Nonnull final CommitInfo commitInfo) throws CLIException {
+	boolean hasSingleParentCopy(final int commit) throws CLIException {
+		if (!mPruneUnchanged)
+			return false;
+		final String first = getFinalCommit(mCommitGraph.getParent(commit, 0));
+		for (int parent = 1; parent < mCommitGraph.getParentCount(commit); parent++) {
+			if (!first.equals(getFinalCommit(mCommitGraph.getParent(commit, parent))))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Syncs the whole temporary working tree into the final one, with rsync unless it is synced in process, and stages
+	 * the changes.
+	 */
+	private
+	void syncTree(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		if (mNativeSync) {
+			syncTreeInProcess(prefetched);
+			return;
+		}
+		final int commit = prefetched.getCommit();
 		String source = getTempRepoPath().toString();
 		if (!(source.length() > 0 && source.charAt(source.length() - 1) == '/')) {
 			source += '/';
@@ -668,41 +1358,163 @@ class Main extends CLITool implements Configuration {
 		if (!(destination.length() > 0 && destination.charAt(destination.length() - 1) == '/')) {
 			destination += '/';
 		}
+		final File dummyFile = new File(mFinalRepoPath.toFile(), DUMMY_FILE);
+		final Optional<ImmutableList<String>> changedPaths = prefetched.getChangedPaths();
+		// rsync deletes a dummy file left by the parent, which is a change, and fixes a parent merged by git
+		final boolean knownUnchanged = canCopyChanges(commit)
+		                               && !dummyFile.exists()
+		                               && ((mGenerationIndex.hasPath(COPIED_PATHS)
+		                                    && !mGenerationIndex.touches(commit, COPIED_PATHS))
+		                                   || (changedPaths.isPresent()
+		                                       && changedPaths.get().stream().noneMatch(this::isCopied)));
 		getLogger().debug("Copying from \"{}\" to \"{}\"", source, destination);
 		reviewResult(rsyncCommand().sync(source, destination, getRSyncOptions()));
-		final String status = reviewResult(gitCommand().status(getFinalRepoPath(), shortStatus));
-		if (StringUtils.isEmpty(status)) {
-			getLogger().info("Commit \"{}\" has no changes.  Creating a DUMMY_FILE.txt", commit);
+		if (knownUnchanged
+		    || StringUtils.isEmpty(reviewResult(gitCommand().status(getFinalRepoPath(), shortStatus)))) {
+			getLogger().info("Commit \"{}\" has no changes.  Creating a DUMMY_FILE.txt", prefetched.getSha());
 			try {
-				final File dummyFile = new File(mFinalRepoPath.toFile(), "DUMMY_FILE.txt");
-				FileUtils.writeStringToFile(dummyFile, "Commit:" + commit);
+				FileUtils.writeStringToFile(dummyFile, "Commit:" + prefetched.getSha());
 			} catch (final IOException e) {
 				throw new CLIException(e);
 			}
 		}
 		reviewResult(gitCommand().add(getFinalRepoPath(), allFullTree));
-		final String commitResult = reviewResult(gitCommand().commit(getFinalRepoPath(),
-		                                                             author(commitInfo.getAuthor()),
-		                                                             date(commitInfo.getDate()),
-		                                                             message(commitInfo.getComment())));
-		getLogger().debug("Commit result: \"{}\"", commitResult);
+	}
+
+	/**
+	 * Syncs the whole temporary working tree into the final one in process and stages only the files the sync changed.
+	 * A merge git couldn't resolve is staged whole, its conflicts may be in files the sync found equal.
+	 */
+	private
+	void syncTreeInProcess(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		if (mTreeSynchronizer == null)
+			mTreeSynchronizer = TreeSynchronizer.forOptions(mHardLinks, getRSyncOptions());
+		final TreeSynchronizer.Changes changes = mTreeSynchronizer.sync(getTempRepoPath(), getFinalRepoPath());
+		getLogger().debug("Synced \"{}\" into \"{}\": {}", getTempRepoPath(), getFinalRepoPath(), changes);
+		final List<String> toStage = new ArrayList<>(changes.getChangedPaths());
+		if (changes.isEmpty()) {
+			getLogger().info("Commit \"{}\" has no changes.  Creating a DUMMY_FILE.txt", prefetched.getSha());
+			try {
+				FileUtils.writeStringToFile(new File(mFinalRepoPath.toFile(), DUMMY_FILE),
+				                            "Commit:" + prefetched.getSha());
+			} catch (final IOException e) {
+				throw new CLIException(e);
+			}
+			toStage.add(DUMMY_FILE);
+		}
+		if (mCommitGraph.isMerge(prefetched.getCommit()))
+			reviewResult(gitCommand().add(getFinalRepoPath(), allFullTree));
+		else
+			reviewResult(gitCommand().addPaths(getFinalRepoPath(), toStage));
+	}
+
+	/**
+	 * The final working tree can be patched only when it holds the copy this run made of the first parent: merges may
+	 * have been resolved by git, roots start from whatever the branch had and commits copied by a previous run are
+	 * not known to be exact.
+	 *
+	 * @param commit commit being copied
+	 * @return true if the changes of the commit can be applied instead of syncing the whole tree
+	 */
+	private
+	boolean canCopyChanges(final int commit) {
+		return mCommitGraph.getParentCount(commit) == 1 && mExactCopies.get(mCommitGraph.getParent(commit, 0));
+	}
+
+	/**
+	 * Applies to the final working tree only the paths the commit changed since its first parent, filtered like rsync
+	 * filters them, and stages only those paths.
+	 */
+	private
+	void copyChanges(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final int commit = prefetched.getCommit();
+		final ImmutableMap<String, Character> changes =
+				gitCommand().changedPathStatus(getTempRepoPath(),
+				                               mCommitGraph.getSha(mCommitGraph.getParent(commit, 0)),
+				                               prefetched.getSha());
+		final List<String> toStage = new ArrayList<>(changes.size() + 1);
+		try {
+			// Deletions go first, a deleted directory may be replaced by a file of the same name
+			for (final Map.Entry<String, Character> change : changes.entrySet()) {
+				if (change.getValue() == 'D' && isCopied(change.getKey())) {
+					deleteFromFinalRepo(change.getKey());
+					toStage.add(change.getKey());
+				}
+			}
+			for (final Map.Entry<String, Character> change : changes.entrySet()) {
+				if (change.getValue() != 'D' && isCopied(change.getKey())) {
+					final Path target = getFinalRepoPath().resolve(change.getKey());
+					Files.createDirectories(target.getParent());
+					Files.copy(getTempRepoPath().resolve(change.getKey()),
+					           target,
+					           StandardCopyOption.REPLACE_EXISTING,
+					           StandardCopyOption.COPY_ATTRIBUTES,
+					           LinkOption.NOFOLLOW_LINKS);
+					toStage.add(change.getKey());
+				}
+			}
+			final File dummyFile = new File(mFinalRepoPath.toFile(), DUMMY_FILE);
+			// Removing the dummy file left by the parent is a change, like rsync removes it
+			if (dummyFile.exists()) {
+				Files.delete(dummyFile.toPath());
+				toStage.add(DUMMY_FILE);
+			}
+			else if (toStage.isEmpty()) {
+				getLogger().info("Commit \"{}\" has no changes.  Creating a DUMMY_FILE.txt", prefetched.getSha());
+				FileUtils.writeStringToFile(dummyFile, "Commit:" + prefetched.getSha());
+				toStage.add(DUMMY_FILE);
+			}
+		} catch (final IOException e) {
+			throw new CLIException("Can't apply the changes of commit \"" + prefetched.getSha() + '"', e);
+		}
+		getLogger().debug("Applied {} changed paths of {}", toStage.size(), changes.size());
+		reviewResult(gitCommand().addPaths(getFinalRepoPath(), toStage));
+	}
+
+	/**
+	 * Deletes a file of the final working tree and the directories it leaves empty.
+	 *
+	 * @param path path relative to the top of the final repo
+	 */
+	private
+	void deleteFromFinalRepo(@Nonnull final String path) throws IOException {
+		Path toDelete = getFinalRepoPath().resolve(path);
+		Files.deleteIfExists(toDelete);
+		for (toDelete = toDelete.getParent(); !toDelete.equals(getFinalRepoPath()); toDelete = toDelete.getParent()) {
+			try (final DirectoryStream<Path> entries = Files.newDirectoryStream(toDelete)) {
+				if (entries.iterator().hasNext())
+					return;
+			}
+			Files.delete(toDelete);
+		}
 	}
 
 	private
 	void defineFinalBranches() throws CLIException {
+		final ImmutableSet<String> existingBranches = mIncremental
+		                                              ? ImmutableSet.copyOf(gitCommand().listBranches(getFinalRepoPath()))
+		                                              : ImmutableSet.of();
 		mBranchesToCopy.forEach(b -> {
 			try {
-				final String originalCommit = getFirstWord().apply(reviewResult(gitCommand().log(getTempRepoPath(),
-				                                                                                 abbrev,
-				                                                                                 pretty("oneline"),
-				                                                                                 maxCount(1),
-				                                                                                 arguments(b))));
+				final String originalCommit = gitCommand().resolveCommit(getTempRepoPath(), b);
+				if (!mCommitGraph.contains(originalCommit)) {
+					getLogger().warn("Branch \"{}\" has no commits in the history window, it is not created", b);
+					return;
+				}
 				final String newCommit = mMapFromTempToFinalCommit.get(originalCommit);
 				if (StringUtils.isEmpty(newCommit)) {
 					throw new CLIException("Can't find new commit");
 				}
+				if (existingBranches.contains(b)) {
+					fastForwardFinalBranch(b, originalCommit, newCommit);
+					return;
+				}
 				getLogger().debug("Setting final branch \"{}\" to commit \"{}\"", b, newCommit);
-				final String existingHead = mFinalCommitToHead.get(newCommit);
+				if (mPlumbingCopier != null) {
+					mPlumbingCopier.updateHead(b, newCommit);
+					return;
+				}
+				final String existingHead = mFinalHeads.getHead(newCommit);
 				reviewResult(gitCommand().checkout(getFinalRepoPath(), createBranch, arguments(b,
 				                                                                               existingHead
 				                                                                               == null ?
@@ -712,7 +1524,7 @@ class Main extends CLITool implements Configuration {
 				throw Throwables.propagate(e);
 			}
 		});
-		mFinalHeadToCommit.keySet().forEach(b -> {
+		mFinalHeads.getHeads().forEach(b -> {
 			getLogger().debug("Removing temporary branch \"{}\".", b);
 			try {
 				reviewResult(gitCommand().branch(getFinalRepoPath(), forceDelete, arguments(b)));
@@ -720,24 +1532,57 @@ class Main extends CLITool implements Configuration {
 				throw Throwables.propagate(e);
 			}
 		});
+		if (mPlumbingCopier != null) {
+			gitCommand().getQueryCache().invalidateRefs(getFinalRepoPath());
+			// Nothing was checked out while copying, the working tree catches up with the branch at once
+			if (gitCommand().objectReader(getFinalRepoPath()).resolve("HEAD").isPresent())
+				reviewResult(gitCommand().checkout(getFinalRepoPath(), force));
+		}
 		getLogger().debug("Running GC...");
 		reviewResult(gitCommand().gc(getFinalRepoPath(), aggressive, pruneAll));
 	}
 
+	/**
+	 * Moves a branch copied by a previous run to its new commit.  The commit it points to must have been copied from
+	 * an ancestor of the new source commit, otherwise the source branch was rewritten and the branch is left alone.
+	 *
+	 * @param branch         branch of the final repo
+	 * @param originalCommit commit the branch points to in the temporary repo
+	 * @param newCommit      commit it was copied to
+	 * @throws CLIException if the branch can't be fast forwarded
+	 */
 	private
-	void doMerge(@Nonnull final String commit, final CommitInfo commitInfo) throws CLIException {
-		final ImmutableList<String> headsToMerge = commitInfo.getParents()
-		                                                     .stream()
-		                                                     .map(mMapFromTempToFinalCommit::get)
-		                                                     .map(finalCommit -> {
-			                                                     try {
-				                                                     prepareFinalBranch(mFinalRepoPath, finalCommit);
-			                                                     } catch (final CLIException e) {
-				                                                     Throwables.propagate(e);
-			                                                     }
-			                                                     return mFinalCurrentHead;
-		                                                     })
-		                                                     .collect(immutableListCollector());
+	void fastForwardFinalBranch(@Nonnull final String branch,
+	                            @Nonnull final String originalCommit,
+	                            @Nonnull final String newCommit) throws CLIException {
+		final String currentCommit = gitCommand().resolveCommit(getFinalRepoPath(), "refs/heads/" + branch);
+		if (newCommit.equals(currentCommit)) {
+			getLogger().info("Final branch \"{}\" is up to date", branch);
+			return;
+		}
+		final String currentOriginal = mMapFromTempToFinalCommit.getKey(currentCommit);
+		final int current = currentOriginal == null ? CommitGraph.NONE : mCommitGraph.indexOf(currentOriginal);
+		if (current == CommitGraph.NONE
+		    || !mGenerationIndex.isAncestor(current, mCommitGraph.indexOf(originalCommit)))
+			throw new CLIException("Final branch \"" + branch + "\" can't be fast forwarded to \"" + newCommit + '"');
+		getLogger().info("Fast forwarding final branch \"{}\" to commit \"{}\"", branch, newCommit);
+		if (mPlumbingCopier != null) {
+			mPlumbingCopier.updateBranch(branch, newCommit, currentCommit);
+			return;
+		}
+		reviewResult(gitCommand().checkout(getFinalRepoPath(), arguments(branch)));
+		reviewResult(gitCommand().merge(getFinalRepoPath(), fastForwardOnly, arguments(newCommit)));
+	}
+
+	private
+	void doMerge(@Nonnull final PrefetchedCommit prefetched) throws CLIException {
+		final int commit = prefetched.getCommit();
+		final ImmutableList.Builder<String> headsBuilder = ImmutableList.builder();
+		for (int parent = 0; parent < mCommitGraph.getParentCount(commit); parent++) {
+			prepareFinalBranch(mFinalRepoPath, getFinalCommit(mCommitGraph.getParent(commit, parent)));
+			headsBuilder.add(mFinalCurrentHead);
+		}
+		final ImmutableList<String> headsToMerge = headsBuilder.build();
 		if (headsToMerge.size() < 2)
 			throw new CLIException("Can't find the two commits to merge");
 
@@ -754,14 +1599,20 @@ class Main extends CLITool implements Configuration {
 			getLogger().debug("Issuing the merge command to \"{}\" from {}",
 			                  survivorHead,
 			                  otherHeads.stream().map(s -> '"' + s + '"').collect(joining(", ")));
-			reviewResult(gitCommand().merge(getFinalRepoPath(), message(commitInfo.getComment()), arguments(otherHeads
-					                                                                                                .stream())));
+			// The sides of a merge may come from different roots of a history window
+			final GitMergeOption[] options = getHistoryWindow().isPresent()
+			                                 ? new GitMergeOption[]{allowUnrelatedHistories,
+			                                                        message(prefetched.getMessage()),
+			                                                        arguments(otherHeads.stream())}
+			                                 : new GitMergeOption[]{message(prefetched.getMessage()),
+			                                                        arguments(otherHeads.stream())};
+			reviewResult(gitCommand().merge(getFinalRepoPath(), options));
 		} catch (final CLIException e) {
 			if (e.getMessage().contains("Merge conflict") || e.getMessage().contains("Automatic merge failed; fix "
 			                                                                         + "conflicts and then commit the "
 			                                                                         + "result")) {
 				getLogger().debug("Found merge conflict.  Issuing a copy and commit");
-				copyFilesAndCommit(commit, commitInfo);
+				copyFilesAndCommit(prefetched);
 			}
 			else {
 				throw e;
@@ -769,7 +1620,8 @@ class Main extends CLITool implements Configuration {
 		}
 		getLogger().debug("Removing branches and references to {}",
 		                  otherHeads.stream().map(s -> '"' + s + '"').collect(joining(", ")));
-		otherHeads.forEach(mFinalHeadToCommit::remove);
+		otherHeads.forEach(mFinalHeads::remove);
+		mRemovedHeads.addAll(otherHeads);
 		otherHeads.forEach(b -> {
 			try {
 				reviewResult(gitCommand().branch(getFinalRepoPath(), GitBranchDeleteOption.deleteBranch, arguments
@@ -781,11 +1633,24 @@ class Main extends CLITool implements Configuration {
 		mFinalCurrentHead = survivorHead;
 	}
 
+	/**
+	 * This wait is required since the commit sha generation has a time stamp component.  In the rare case that you
+	 * have two commits with the same parent and the changes are identical you may end up pointing to the same final
+	 * commit if you created the childs in the same second.  It is not very common but I got bitten by it and took me
+	 * long time to debug it.
+	 */
+	private static
+	void waitForNextSecond() {
+		try {
+			Thread.sleep(1_000);
+		} catch (final InterruptedException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
 	private
 	String getCurrentCommit(final Path gitPath) throws CLIException {
-		final String commit =
-				reviewResult(gitCommand().log(gitPath, abbrev, pretty("oneline"), maxCount(1), arguments("HEAD")));
-		return getFirstWord().apply(commit);
+		return gitCommand().resolveCommit(gitPath, "HEAD");
 	}
 
 	@Nonnull
@@ -794,13 +1659,27 @@ class Main extends CLITool implements Configuration {
 		return getCurrentCommit(getFinalRepoPath());
 	}
 
+	/**
+	 * @param commit id of a commit already copied
+	 * @return the commit it was copied to
+	 * @throws CLIException if the commit was not copied
+	 */
+	@Nonnull
+	private
+	String getFinalCommit(final int commit) throws CLIException {
+		final String finalCommit = mMapFromTempToFinalCommit.get(mCommitGraph.getSha(commit));
+		if (finalCommit == null)
+			throw new CLIException("Commit \"" + mCommitGraph.getSha(commit) + "\" has not been copied");
+		return finalCommit;
+	}
+
 	@Nonnull
 	private
 	String getNewHead() {
 		//noinspection ForLoopWithMissingComponent
 		for (int inx = 1; ; inx++) {
 			final String newHead = "Branch_" + inx;
-			if (!mFinalHeadToCommit.containsKey(newHead)) {
+			if (!mFinalHeads.contains(newHead)) {
 				getLogger().debug("New head to use is \"{}\"", newHead);
 				return newHead;
 			}
@@ -815,7 +1694,7 @@ class Main extends CLITool implements Configuration {
 			reviewResult(gitCommand().checkout(finalPath, createBranch, arguments(mFinalCurrentHead)));
 		}
 		else {
-			mFinalCurrentHead = mFinalCommitToHead.get(baseCommit);
+			mFinalCurrentHead = mFinalHeads.getHead(baseCommit);
 			if (mFinalCurrentHead == null) {
 				mFinalCurrentHead = getNewHead();
 				reviewResult(gitCommand().checkout(finalPath, createBranch, arguments(mFinalCurrentHead, baseCommit)));
@@ -825,6 +1704,64 @@ class Main extends CLITool implements Configuration {
 		}
 	}
 
+	/**
+	 * @return the part of the history to copy, empty to copy all of it
+	 */
+	@Nonnull
+	private
+	Optional<HistoryWindow> getHistoryWindow() {
+		if (mSinceTime != Long.MIN_VALUE)
+			return Optional.of(HistoryWindow.since(mSinceTime));
+		if (mSinceCommit != null)
+			return Optional.of(HistoryWindow.sinceCommit(mSinceCommit));
+		if (mLast > 0)
+			return Optional.of(HistoryWindow.last(mLast));
+		return Optional.empty();
+	}
+
+	/**
+	 * Pathspecs matching what rsync copies, the whole tree but the excluded names.  Only plain names are translated,
+	 * rsync patterns with wildcards or slashes don't match exactly like pathspecs do.
+	 *
+	 * @return the pathspecs or empty if some exclusion can't be translated
+	 */
+	@Nonnull
+	private
+	Optional<ImmutableList<String>> getCopiedPathspecs() {
+		final ImmutableList.Builder<String> pathspecs = ImmutableList.builder();
+		pathspecs.add(".");
+		if (mDirectoriesToExclude != null) {
+			for (final String name : mDirectoriesToExclude) {
+				if (StringUtils.containsAny(name, "/*?[\\"))
+					return Optional.empty();
+				pathspecs.add(":(exclude,glob)**/" + name, ":(exclude,glob)**/" + name + "/**");
+			}
+		}
+		return Optional.of(pathspecs.build());
+	}
+
+	/**
+	 * @return names excluded from the copy at any depth
+	 */
+	@Nonnull
+	private
+	ImmutableList<String> getExcludedNames() {
+		return mDirectoriesToExclude == null ? ImmutableList.of() : ImmutableList.copyOf(mDirectoriesToExclude);
+	}
+
+	/**
+	 * @param path path relative to the top of the temporary repo
+	 * @return true if rsync copies the path to the final repo: none of its components is excluded
+	 */
+	private
+	boolean isCopied(@Nonnull final String path) {
+		for (final String component : path.split("/")) {
+			if (".git".equals(component) || (mDirectoriesToExclude != null && mDirectoriesToExclude.contains(component)))
+				return false;
+		}
+		return true;
+	}
+
 	public
 	RSyncOption[] getRSyncOptions() {
 		if (mRSyncOptions == null) {
@@ -0,0 +1,184 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.gitobjects.GitCommitObject;
+import org.camarena.tools.gitobjects.GitObject;
+import org.camarena.tools.gitobjects.GitObjectReader;
+import org.camarena.tools.gitobjects.GitObjectWriter;
+import org.camarena.tools.gitobjects.GitPersonIdent;
+import org.camarena.tools.gitobjects.GitTreeEntry;
+import org.camarena.tools.gitobjects.ObjectIdMap;
+import org.camarena.tools.gitobjects.RefUpdater;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Copies commits of the temporary repo into the final one writing objects and refs only, the in process equivalent of
+ * <code>ls-tree</code>, <code>mktree</code>, <code>commit-tree</code> and <code>update-ref</code>.  Nothing is checked
+ * out, so the cost of a commit is proportional to what it changed: trees and blobs already in the final repo are not
+ * read again.
+ * <p>
+ * Excluded names are dropped at any depth of the tree, like rsync drops them, and so are the trees left empty.  The
+ * filtered tree of every source tree is cached.  Commits keep their author, committer, dates and message, a commit
+ * without changes stays empty and a merge keeps the tree of the source merge.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class PlumbingCopier implements AutoCloseable {
+	private static final String EMPTY_TREE = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+
+	@Nonnull
+	private final GitObjectReader      mSource;
+	@Nonnull
+	private final GitObjectWriter      mTarget;
+	@Nonnull
+	private final RefUpdater           mRefs;
+	@Nonnull
+	private final ImmutableSet<String> mExcluded;
+	@Nonnull
+	private final ObjectIdMap          mFilteredTrees = new ObjectIdMap(1024);
+	private       int                  mObjectsCopied = 0;
+
+	/**
+	 * @param source   objects of the temporary repo
+	 * @param target   writer to the final repo, owned by the copier
+	 * @param refs     refs of the final repo
+	 * @param excluded names dropped from the trees
+	 */
+	PlumbingCopier(@Nonnull final GitObjectReader source,
+	               @Nonnull final GitObjectWriter target,
+	               @Nonnull final RefUpdater refs,
+	               @Nonnull final Collection<String> excluded) {
+		Objects.requireNonNull(source);
+		Objects.requireNonNull(target);
+		Objects.requireNonNull(refs);
+		Objects.requireNonNull(excluded);
+		mSource = source;
+		mTarget = target;
+		mRefs = refs;
+		mExcluded = ImmutableSet.copyOf(excluded);
+	}
+
+	/**
+	 * Writes the copy of a commit.  Commits that differ only in excluded files would be copied to the same commit, when
+	 * the copy is already taken by another commit its committer date is moved a second ahead until it is not.
+	 *
+	 * @param commit  full sha in the temporary repo
+	 * @param parents commits of the final repo the copy follows, in order
+	 * @param taken   tells whether a commit of the final repo is the copy of another commit
+	 * @return full sha of the copy
+	 * @throws CLIException if an object can't be read or written
+	 */
+	@Nonnull
+	String copyCommit(@Nonnull final String commit,
+	                  @Nonnull final List<String> parents,
+	                  @Nonnull final Predicate<String> taken) throws CLIException {
+		Objects.requireNonNull(parents);
+		Objects.requireNonNull(taken);
+		final GitCommitObject source = mSource.readCommit(commit).orElseThrow(
+				() -> new CLIException("Can't find commit \"" + commit + "\" in temporary repo"));
+		final String tree = filterTree(source.getTree());
+		final GitPersonIdent committer = source.getCommitter();
+		String copy = mTarget.insertCommit(tree, parents, source.getAuthor(), committer, source.getMessage());
+		for (int delay = 1; taken.test(copy); delay++)
+			copy = mTarget.insertCommit(tree, parents, source.getAuthor(),
+			                            new GitPersonIdent(committer.getName(),
+			                                               committer.getEmail(),
+			                                               committer.getWhen() + delay,
+			                                               committer.getTimeZoneOffset()),
+			                            source.getMessage());
+		return copy;
+	}
+
+	/**
+	 * @param head   branch of the final repo
+	 * @param commit full sha it will point to
+	 * @throws CLIException if the ref can't be written
+	 */
+	void updateHead(@Nonnull final String head, @Nonnull final String commit) throws CLIException {
+		mRefs.update("refs/heads/" + head, commit, Optional.empty());
+	}
+
+	/**
+	 * Moves a branch only if nobody moved it since it was read.
+	 *
+	 * @param branch   branch of the final repo
+	 * @param commit   full sha it will point to
+	 * @param expected full sha it points to now
+	 * @throws CLIException if the branch moved or the ref can't be written
+	 */
+	void updateBranch(@Nonnull final String branch, @Nonnull final String commit, @Nonnull final String expected)
+			throws CLIException {
+		mRefs.update("refs/heads/" + branch, commit, Optional.of(expected));
+	}
+
+	/**
+	 * @return blobs and trees written to the final repo so far
+	 */
+	int getObjectsCopied() {
+		return mObjectsCopied;
+	}
+
+	/**
+	 * @param treeId tree of the temporary repo
+	 * @return the tree without the excluded names, written to the final repo
+	 */
+	@Nonnull
+	private
+	String filterTree(@Nonnull final String treeId) throws CLIException {
+		if (mExcluded.isEmpty()) {
+			mObjectsCopied += mTarget.copyTree(mSource, treeId);
+			return treeId;
+		}
+		final String cached = mFilteredTrees.get(treeId);
+		if (cached != null)
+			return cached;
+		final ImmutableList<GitTreeEntry> entries = mSource.readTree(treeId).orElseThrow(
+				() -> new CLIException("Can't find tree " + treeId + " in temporary repo"));
+		final List<GitTreeEntry> filtered = new ArrayList<>(entries.size());
+		for (final GitTreeEntry entry : entries) {
+			if (mExcluded.contains(entry.getName()))
+				continue;
+			if (entry.isTree()) {
+				final String subtree = filterTree(entry.getId());
+				if (!EMPTY_TREE.equals(subtree))
+					filtered.add(new GitTreeEntry(entry.getMode(), entry.getName(), subtree));
+			}
+			else {
+				if (!entry.isGitLink() && !mTarget.contains(entry.getId())) {
+					final GitObject blob = mSource.readObject(entry.getId()).orElseThrow(
+							() -> new CLIException("Can't find blob " + entry.getId() + " in temporary repo"));
+					mTarget.insert(blob.getType(), blob.getData());
+					mObjectsCopied++;
+				}
+				filtered.add(entry);
+			}
+		}
+		final String filteredId = mTarget.insertTree(filtered);
+		mObjectsCopied++;
+		mFilteredTrees.put(treeId, filteredId);
+		return filteredId;
+	}
+
+	/**
+	 * Closes the writer, the reader and the refs are not owned.
+	 *
+	 * @throws CLIException if the objects can't be written
+	 */
+	@Override
+	public
+	void close() throws CLIException {
+		mTarget.close();
+	}
+}
@@ -0,0 +1,135 @@
+package org.camarena.tools.gitsplitter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.camarena.tools.CLIException;
+import org.camarena.tools.gitobjects.GitCommitObject;
+import org.camarena.tools.gitobjects.GitObjectReader;
+import org.camarena.tools.gitobjects.GitObjectType;
+import org.camarena.tools.gitobjects.GitTreeEntry;
+import org.camarena.tools.gitobjects.ObjectIdMap;
+import org.camarena.tools.gitobjects.ObjectIds;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Filtered trees of the commits of the temporary repo, and the trees of the final repo they were copied to.
+ * <p>
+ * The filtered tree of a commit is its tree without the excluded names, at any depth, and without the subtrees left
+ * empty: what a sync leaves in the final working tree, which git sees.  Its id is hashed in process from the objects of
+ * the temporary repo, nothing is written.  Two commits with the same filtered tree are copied to the same files, so a
+ * commit with the filtered tree of its parent doesn't change the copy, and a tree already copied on another branch can
+ * be checked out instead of synced.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Hermán de J. Camarena R.
+ */
+final
+class SubtreeCache {
+	private static final String EMPTY_TREE = "4b825dc642cb6eb9a060e54bf8d69288fbee4904";
+
+	@Nonnull
+	private final GitObjectReader      mSource;
+	@Nonnull
+	private final ImmutableSet<String> mExcluded;
+	@Nonnull
+	private final ObjectIdMap          mFilteredTrees = new ObjectIdMap(1024);
+	@Nonnull
+	private final ObjectIdMap          mFinalTrees    = new ObjectIdMap(256);
+	private       int                  mHits          = 0;
+
+	/**
+	 * @param source   objects of the temporary repo
+	 * @param excluded names dropped from the trees
+	 */
+	SubtreeCache(@Nonnull final GitObjectReader source, @Nonnull final Collection<String> excluded) {
+		Objects.requireNonNull(source);
+		Objects.requireNonNull(excluded);
+		mSource = source;
+		mExcluded = ImmutableSet.copyOf(excluded);
+	}
+
+	/**
+	 * @param commit full sha in the temporary repo
+	 * @return id of its filtered tree
+	 * @throws CLIException if an object can't be read
+	 */
+	@Nonnull
+	String getFilteredTree(@Nonnull final String commit) throws CLIException {
+		final GitCommitObject source = mSource.readCommit(commit).orElseThrow(
+				() -> new CLIException("Can't find commit \"" + commit + "\" in temporary repo"));
+		return filterTree(source.getTree());
+	}
+
+	/**
+	 * @param filteredTree a filtered tree
+	 * @return the tree of the final repo it was copied to, null if it wasn't copied yet
+	 */
+	@Nullable
+	String getFinalTree(@Nonnull final String filteredTree) {
+		final String finalTree = mFinalTrees.get(filteredTree);
+		if (finalTree != null)
+			mHits++;
+		return finalTree;
+	}
+
+	/**
+	 * Records the first copy of a filtered tree, later ones are the same files.
+	 *
+	 * @param filteredTree a filtered tree
+	 * @param finalTree    tree of the final repo it was copied to
+	 */
+	void putFinalTree(@Nonnull final String filteredTree, @Nonnull final String finalTree) {
+		if (mFinalTrees.get(filteredTree) == null)
+			mFinalTrees.put(filteredTree, finalTree);
+	}
+
+	/**
+	 * @return times a tree already copied was found
+	 */
+	int getHits() {
+		return mHits;
+	}
+
+	@Nonnull
+	private
+	String filterTree(@Nonnull final String treeId) throws CLIException {
+		if (mExcluded.isEmpty())
+			return treeId;
+		final String cached = mFilteredTrees.get(treeId);
+		if (cached != null)
+			return cached;
+		final ImmutableList<GitTreeEntry> entries = mSource.readTree(treeId).orElseThrow(
+				() -> new CLIException("Can't find tree " + treeId + " in temporary repo"));
+		final List<GitTreeEntry> filtered = new ArrayList<>(entries.size());
+		boolean changed = false;
+		for (final GitTreeEntry entry : entries) {
+			if (mExcluded.contains(entry.getName())) {
+				changed = true;
+				continue;
+			}
+			if (entry.isTree()) {
+				final String subtree = filterTree(entry.getId());
+				if (EMPTY_TREE.equals(subtree))
+					changed = true;
+				else {
+					changed |= !subtree.equals(entry.getId());
+					filtered.add(new GitTreeEntry(entry.getMode(), entry.getName(), subtree));
+				}
+			}
+			else
+				filtered.add(entry);
+		}
+		final String filteredId = changed
+		                          ? ObjectIds.toHex(ObjectIds.hash(GitObjectType.TREE, GitTreeEntry.format(filtered)))
+		                          : treeId;
+		mFilteredTrees.put(treeId, filteredId);
+		return filteredId;
+	}
+}